@@ -109,6 +109,11 @@ public class GenomeAnalysisEngine {
      */
     private SAMDataSource readsDataSource = null;
 
+    /**
+     * Measures shard traversal throughput for adaptive shard sizing.  Null if adaptive sizing is disabled.
+     */
+    private ShardThroughputMonitor shardThroughputMonitor = null;
+
     /**
      * Accessor for sharded reference data.
      */
@@ -662,6 +667,9 @@ public class GenomeAnalysisEngine {
         DownsamplingMethod downsamplingMethod = readsDataSource != null ? readsDataSource.getReadsInfo().getDownsamplingMethod() : null;
         ReferenceDataSource referenceDataSource = this.getReferenceDataSource();
 
+        if(argCollection.targetShardSeconds > 0)
+            shardThroughputMonitor = new ShardThroughputMonitor(argCollection.targetShardSeconds);
+
         // If reads are present, assume that accessing the reads is always the dominant factor and shard based on that supposition.
         if(!readsDataSource.isEmpty()) {
             if(!readsDataSource.hasIndex() && !exclusions.contains(ValidationExclusion.TYPE.ALLOW_UNINDEXED_BAM))
@@ -673,9 +681,9 @@ public class GenomeAnalysisEngine {
                 if (readsDataSource.getSortOrder() != SAMFileHeader.SortOrder.coordinate)
                     throw new UserException.MissortedBAM(SAMFileHeader.SortOrder.coordinate, "Locus walkers can only traverse coordinate-sorted data.  Please resort your input BAM file(s) or set the Sort Order tag in the header appropriately.");
                 if(intervals == null)
-                    return readsDataSource.createShardIteratorOverMappedReads(new LocusShardBalancer());
+                    return readsDataSource.createShardIteratorOverMappedReads(new LocusShardBalancer(shardThroughputMonitor));
                 else
-                    return readsDataSource.createShardIteratorOverIntervals(intervals,new LocusShardBalancer());
+                    return readsDataSource.createShardIteratorOverIntervals(intervals,new LocusShardBalancer(shardThroughputMonitor));
             } 
             else if(walker instanceof ActiveRegionWalker) {
                 if (readsDataSource.getSortOrder() != SAMFileHeader.SortOrder.coordinate)
@@ -683,7 +691,8 @@ public class GenomeAnalysisEngine {
                 if(intervals == null)
                     return readsDataSource.createShardIteratorOverMappedReads(new ActiveRegionShardBalancer());
                 else
-                    return readsDataSource.createShardIteratorOverIntervals(((ActiveRegionWalker)walker).extendIntervals(intervals, this.genomeLocParser, this.getReferenceDataSource().getReference()), new ActiveRegionShardBalancer());
+                    return readsDataSource.createShardIteratorOverIntervals(((ActiveRegionWalker)walker).extendIntervals(intervals, this.genomeLocParser, this.getReferenceDataSource().getReference()),
+                            new ActiveRegionShardBalancer(((ActiveRegionWalker)walker).getMinGapBetweenShards()));
             } 
             else if(walker instanceof ReadWalker || walker instanceof ReadPairWalker || walker instanceof DuplicateWalker) {
                 // Apply special validation to read pair walkers.
@@ -695,9 +704,9 @@ public class GenomeAnalysisEngine {
                 }
 
                 if(intervals == null)
-                    return readsDataSource.createShardIteratorOverAllReads(new ReadShardBalancer());
+                    return readsDataSource.createShardIteratorOverAllReads(new ReadShardBalancer(shardThroughputMonitor));
                 else
-                    return readsDataSource.createShardIteratorOverIntervals(intervals, new ReadShardBalancer());
+                    return readsDataSource.createShardIteratorOverIntervals(intervals, new ReadShardBalancer(shardThroughputMonitor));
             }
             else
                 throw new ReviewedGATKException("Unable to determine walker type for walker " + walker.getClass().getName());
@@ -966,7 +975,12 @@ public class GenomeAnalysisEngine {
                 removeProgramRecords,
                 keepReadsInLIBS,
                 sampleRenameMap,
-                argCollection.intervalArguments.intervalMerging);
+                argCollection.intervalArguments.intervalMerging,
+                argCollection.useMemoryMappedBAMIO,
+                argCollection.useBAMIndexCache,
+                argCollection.bamScheduleSpillThresholdInMB * 1024L * 1024L,
+                argCollection.inflatedBlockCacheSizeInMB * 1024L * 1024L,
+                argCollection.numPileupSampleThreads);
     }
 
     /**
@@ -1124,6 +1138,15 @@ public class GenomeAnalysisEngine {
         return this.readsDataSource;
     }
 
+    /**
+     * Returns the monitor used to size shards adaptively, to which traversals should report each completed shard.
+     *
+     * @return the shard throughput monitor, or null if adaptive shard sizing is disabled
+     */
+    public ShardThroughputMonitor getShardThroughputMonitor() {
+        return this.shardThroughputMonitor;
+    }
+
     /**
      * Sets the collection of GATK main application arguments.
      *
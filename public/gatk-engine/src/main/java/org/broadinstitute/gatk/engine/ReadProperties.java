@@ -65,6 +65,7 @@ public class ReadProperties {
     private final boolean includeReadsWithDeletionAtLoci;
     private final boolean useOriginalBaseQualities;
     private final byte defaultBaseQualities;
+    private final int numPileupSampleThreads;
 
     /**
      * Return true if the walker wants to see reads that contain deletions when looking at locus pileups
@@ -79,6 +80,14 @@ public class ReadProperties {
         return keepUniqueReadListInLIBS;
     }
 
+    /**
+     * Number of threads across which LocusIteratorByState should split the samples of each pileup.
+     * @return number of threads; 1 builds every pileup on the traversal thread.
+     */
+    public int getNumPileupSampleThreads() {
+        return numPileupSampleThreads;
+    }
+
     /**
      * Gets a list of the files acting as sources of reads.
      * @return A list of files storing reads data.
@@ -181,6 +190,44 @@ public class ReadProperties {
            boolean includeReadsWithDeletionAtLoci,
            byte defaultBaseQualities,
            final boolean keepUniqueReadListInLIBS) {
+        this(samFiles, header, sortOrder, useOriginalBaseQualities, strictness, downsamplingMethod, exclusionList,
+                supplementalFilters, readTransformers, includeReadsWithDeletionAtLoci, defaultBaseQualities,
+                keepUniqueReadListInLIBS, 1);
+    }
+
+    /**
+     * Extract the command-line arguments having to do with reads input
+     * files and store them in an easy-to-work-with package.  Constructor
+     * is package protected.
+     * @param samFiles list of reads files.
+     * @param header sam file header.
+     * @param useOriginalBaseQualities True if original base qualities should be used.
+     * @param strictness Stringency of reads file parsing.
+     * @param downsamplingMethod Method for downsampling reads at a given locus.
+     * @param exclusionList what safety checks we're willing to let slide
+     * @param supplementalFilters additional filters to dynamically apply.
+     * @param includeReadsWithDeletionAtLoci if 'true', the base pileups sent to the walker's map() method
+     *         will explicitly list reads with deletion over the current reference base; otherwise, only observed
+     *        bases will be seen in the pileups, and the deletions will be skipped silently.
+     * @param defaultBaseQualities if the reads have incomplete quality scores, set them all to defaultBaseQuality.
+     * @param keepUniqueReadListInLIBS If true, we will tell LocusIteratorByState to track the unique reads it sees
+     *                                 This is really useful for ActiveRegionTraversals
+     * @param numPileupSampleThreads number of threads across which LocusIteratorByState splits the samples of
+     *                               each pileup; 1 builds pileups on the traversal thread.
+     */
+    public ReadProperties( Collection<SAMReaderID> samFiles,
+           SAMFileHeader header,
+           SAMFileHeader.SortOrder sortOrder,
+           boolean useOriginalBaseQualities,
+           ValidationStringency strictness,
+           DownsamplingMethod downsamplingMethod,
+           ValidationExclusion exclusionList,
+           Collection<ReadFilter> supplementalFilters,
+           List<ReadTransformer> readTransformers,
+           boolean includeReadsWithDeletionAtLoci,
+           byte defaultBaseQualities,
+           final boolean keepUniqueReadListInLIBS,
+           final int numPileupSampleThreads) {
         this.readers = samFiles;
         this.header = header;
         this.sortOrder = sortOrder;
@@ -193,5 +240,6 @@ public class ReadProperties {
         this.useOriginalBaseQualities = useOriginalBaseQualities;
         this.defaultBaseQualities = defaultBaseQualities;
         this.keepUniqueReadListInLIBS = keepUniqueReadListInLIBS;
+        this.numPileupSampleThreads = numPileupSampleThreads;
     }
 }
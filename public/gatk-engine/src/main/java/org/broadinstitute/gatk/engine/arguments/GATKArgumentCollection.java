@@ -521,6 +521,75 @@ public class GATKArgumentCollection {
     @Argument(fullName = "num_bam_file_handles", shortName = "bfh", doc="When using IO threads, total number of BAM file handles to keep open simultaneously", required=false, minValue = 1)
     @Hidden
     public Integer numberOfBAMFileHandles = null;
+
+    /**
+     * When using IO threads, read compressed BAM blocks directly from a memory mapping of each BAM file rather than
+     * through per-block file reads.  Most useful for large BAMs on fast local storage, where the read path is
+     * dominated by copying rather than by decompression.
+     */
+    @Argument(fullName = "use_mmap_for_bam_io", shortName = "mmapio", doc="When using IO threads, read BAM blocks through memory-mapped files", required=false)
+    @Hidden
+    public boolean useMemoryMappedBAMIO = false;
+
+    /**
+     * Store a flattened copy of each BAM index in a sidecar file next to the index (with the extension .gatkcache),
+     * and reuse it on subsequent runs as long as neither the BAM nor its index has changed.  This greatly reduces
+     * the time needed to compute shards over large interval lists.  If the sidecar can't be written, the flattened
+     * index is kept in memory for the current run only.
+     */
+    @Argument(fullName = "use_bam_index_cache", shortName = "baicache", doc="Cache flattened BAM indices in sidecar files for reuse across runs", required=false)
+    @Hidden
+    public boolean useBAMIndexCache = false;
+
+    /**
+     * BAM schedules, which map each genomic bin of a contig onto the file spans covering it, are built in memory.
+     * Schedules larger than this many megabytes are moved to a temporary file instead, bounding the memory used
+     * when sharding over very large or very many BAMs.
+     */
+    @Argument(fullName = "bam_schedule_spill_threshold", shortName = "bsst", doc="Size in megabytes above which a BAM schedule is spilled to disk", required=false, minValue = 1)
+    @Hidden
+    public int bamScheduleSpillThresholdInMB = 64;
+
+    /**
+     * For read walkers run without -nt, fill up to this many upcoming read shards on a background thread while
+     * the current shard is being traversed, so that reading and decoding the BAM overlaps with map() calls.  Each
+     * prefetched shard holds up to --read_buffer_size reads in memory.  The number of times the traversal had to
+     * wait for a shard is reported at the end of the run.  Read filters and read transformers applied on input run
+     * on the prefetch thread, concurrently with the walker, so don't enable this with filters or transformers that
+     * share mutable state with the walker.
+     */
+    @Argument(fullName = "read_shard_prefetch_depth", shortName = "rspd", doc="Number of read shards to load in the background during read traversals; 0 disables prefetching", required=false, minValue = 0)
+    @Hidden
+    public int readShardPrefetchDepth = 0;
+
+    /**
+     * Size shards so that each takes roughly this many seconds to traverse, based on the throughput measured on
+     * shards completed so far.  Locus traversals coalesce small index regions and split very deep ones; read
+     * traversals scale the number of reads per shard.  Mainly useful with -nt over regions of very uneven depth,
+     * where fixed-size shards leave one thread working long after the others have finished.
+     */
+    @Argument(fullName = "target_shard_seconds", shortName = "tss", doc="Adaptively size shards to take about this many seconds each; 0 disables adaptive sizing", required=false, minValue = 0)
+    @Hidden
+    public double targetShardSeconds = 0;
+
+    /**
+     * With asynchronous IO (-nit), keep up to this many megabytes of inflated BGZF blocks in a cache shared by all
+     * IO threads.  When shards are processed in parallel, blocks at shard boundaries are requested by more than
+     * one stream; the cache lets all but the first request skip the read and inflation.
+     */
+    @Argument(fullName = "inflated_block_cache_size", shortName = "ibcs", doc="Size, in MB, of the inflated BGZF block cache shared between IO threads; 0 disables the cache", required=false, minValue = 0)
+    @Hidden
+    public int inflatedBlockCacheSizeInMB = 0;
+
+    /**
+     * Split the samples at each locus across this many threads when building pileups.  Only worthwhile with many
+     * samples (hundreds), where assembling a single locus' pileup is itself a substantial amount of work; the
+     * pileups are identical to those built on a single thread.
+     */
+    @Argument(fullName = "pileup_sample_threads", shortName = "pst", doc="Number of threads across which to split the samples when building each locus pileup", required=false, minValue = 1)
+    @Hidden
+    public int numPileupSampleThreads = 1;
+
     /**
      * This will filter out read groups matching <TAG>:<STRING> (e.g. SM:sample1) or a .txt file containing the filter strings one per line.
      */
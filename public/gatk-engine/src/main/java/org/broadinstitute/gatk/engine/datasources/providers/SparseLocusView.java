@@ -0,0 +1,183 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.providers;
+
+import org.broadinstitute.gatk.engine.datasources.rmd.ReferenceOrderedDataSource;
+import org.broadinstitute.gatk.utils.GenomeLoc;
+import org.broadinstitute.gatk.utils.collections.RODMergingIterator;
+import org.broadinstitute.gatk.utils.contexts.AlignmentContext;
+import org.broadinstitute.gatk.utils.pileup.ReadBackedPileupImpl;
+import org.broadinstitute.gatk.utils.refdata.utils.LocationAwareSeekableRODIterator;
+import org.broadinstitute.gatk.utils.refdata.utils.RODRecordList;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A view of all loci in the shard that, like AllLocusView, accounts for every base, but hands each contiguous
+ * run of uncovered bases out as a single empty AlignmentContext instead of one per base.
+ *
+ * The empty context of a run sits at the run's last base, and its skipped bases are the rest of the run, in
+ * keeping with the meaning of AlignmentContext.getSkippedBases().  Covered loci are returned just as
+ * CoveredLocusView returns them.  Optionally, the runs are also broken at each base where a reference-ordered
+ * data record starts, so that every such base is visited on its own.
+ *
+ * Jumping from covered locus to covered locus, rather than stepping base by base, means traversals over sparse
+ * data no longer create a reference context, a tracker and a map call for every uncovered base.
+ */
+public class SparseLocusView extends LocusView {
+    /**
+     * Positions of the reference-ordered data in the shard, or null if we aren't stopping at them
+     */
+    private RODMergingIterator rodQueue = null;
+
+    /**
+     * The ROD iterators backing rodQueue, to be released on close
+     */
+    private final List<ReferenceOrderedDataState> states = new ArrayList<ReferenceOrderedDataState>();
+
+    /**
+     * The position of the last base handed out.  Every base in the shard up to and including it has been traversed.
+     */
+    private int lastPosition;
+
+    /**
+     * The next covered locus, pre-read so that we know where the current uncovered run ends
+     */
+    private AlignmentContext nextCoveredLocus = null;
+
+    /**
+     * Create a new view that doesn't stop at reference-ordered data.
+     *
+     * @param provider
+     */
+    public SparseLocusView(final LocusShardDataProvider provider) {
+        this(provider, false);
+    }
+
+    /**
+     * Create a new view.
+     *
+     * @param provider
+     * @param stopAtRODs if true, visit each uncovered base where a reference-ordered data record starts on its own
+     */
+    public SparseLocusView(final LocusShardDataProvider provider, final boolean stopAtRODs) {
+        super(provider);
+        lastPosition = locus.getStart() - 1;
+
+        if ( stopAtRODs && provider.getReferenceOrderedData() != null ) {
+            final List<Iterator<RODRecordList>> iterators = new LinkedList<Iterator<RODRecordList>>();
+            for ( final ReferenceOrderedDataSource dataSource : provider.getReferenceOrderedData() ) {
+                // as in RodLocusView, the interval track would otherwise make us think there's a ROD everywhere
+                if ( dataSource.getName().equals(RodLocusView.INTERVAL_ROD_NAME) )
+                    continue;
+                final LocationAwareSeekableRODIterator it = dataSource.seek(locus);
+                states.add(new ReferenceOrderedDataState(dataSource, it));
+                iterators.add(it);
+            }
+            rodQueue = new RODMergingIterator(iterators);
+        }
+    }
+
+    public boolean hasNext() {
+        return lastPosition < locus.getStop();
+    }
+
+    public AlignmentContext next() {
+        if ( ! hasNext() )
+            throw new NoSuchElementException("No next is available in the sparse locus view");
+
+        if ( nextCoveredLocus == null && hasNextLocus() )
+            nextCoveredLocus = nextLocus();
+
+        final int coveredPosition = nextCoveredLocus != null ? nextCoveredLocus.getLocation().getStart() : locus.getStop() + 1;
+        final int nextPosition = Math.min(coveredPosition, getNextRODPosition());
+
+        if ( nextPosition == lastPosition + 1 ) {
+            lastPosition = nextPosition;
+            if ( nextPosition == coveredPosition ) {
+                final AlignmentContext covered = nextCoveredLocus;
+                nextCoveredLocus = null;
+                return covered;
+            }
+            return createEmptyLocus(nextPosition, 0);
+        }
+
+        // everything between the last base and the next one of interest is uncovered; hand it out in one go
+        final int runStart = lastPosition + 1;
+        lastPosition = nextPosition - 1;
+        return createEmptyLocus(lastPosition, lastPosition - runStart);
+    }
+
+    /**
+     * Gets the start of the next reference-ordered data record after the last base handed out
+     *
+     * @return a position on the shard's contig, or Integer.MAX_VALUE if there are no more records to stop at
+     */
+    private int getNextRODPosition() {
+        if ( rodQueue == null )
+            return Integer.MAX_VALUE;
+
+        while ( rodQueue.hasNext() ) {
+            final GenomeLoc rodLocation = rodQueue.peekLocation();
+            if ( rodLocation.isPast(locus) )
+                break;
+            if ( rodLocation.getStart() > lastPosition )
+                return rodLocation.getStart();
+            rodQueue.next(); // starts at or before a base we've already handed out
+        }
+
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Creates a blank locus context at the specified position.
+     *
+     * @param position position on the shard's contig of the context
+     * @param skippedBases the number of uncovered bases immediately before position folded into this context
+     * @return empty context.
+     */
+    private AlignmentContext createEmptyLocus(final int position, final long skippedBases) {
+        final GenomeLoc site = genomeLocParser.createGenomeLoc(locus.getContig(), position);
+        return new AlignmentContext(site, new ReadBackedPileupImpl(site), skippedBases);
+    }
+
+    /**
+     * Closes the current view.
+     */
+    @Override
+    public void close() {
+        for ( final ReferenceOrderedDataState state : states )
+            state.dataSource.close(state.iterator);
+        states.clear();
+        rodQueue = null;
+
+        super.close();
+    }
+}
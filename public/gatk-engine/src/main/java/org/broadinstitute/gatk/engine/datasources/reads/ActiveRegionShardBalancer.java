@@ -25,6 +25,8 @@
 
 package org.broadinstitute.gatk.engine.datasources.reads;
 
+import org.broadinstitute.gatk.utils.GenomeLoc;
+
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -36,8 +38,41 @@ import java.util.List;
  * combined shard.  The purpose of doing this is to ensure that the HaplotypeCaller, which
  * doesn't support TreeReduction by construction, gets all of the data on a single
  * contig together so the the NanoSchedule runs efficiently
+ *
+ * Optionally, a contig's file pointers are instead split into separate shards wherever there's a large
+ * enough gap between their intervals.  The active region traversal restarts its activity profile at every
+ * such gap anyway, so with -nt the parts of a long contig can be traversed in parallel rather than leaving
+ * threads idle while one contig finishes.
+ *
+ * Split shards only give the same results as whole contig shards if no read spans a gap.  A read that
+ * appeared in one shard is skipped when it shows up again in the next, so with a gap shorter than the
+ * longest read plus the active region extension, reads overlapping both sides are lost to the second shard.
+ * Callers are responsible for choosing a large enough gap.
  */
 public class ActiveRegionShardBalancer extends ShardBalancer {
+    /**
+     * Split shards at gaps of at least this many bp between intervals on the same contig, or never if <= 0
+     */
+    private final int minGapToSplit;
+
+    /**
+     * Create a balancer producing one shard per contig
+     */
+    public ActiveRegionShardBalancer() {
+        this(0);
+    }
+
+    /**
+     * Create a balancer producing one shard per contig, except that shards are also split at gaps of at
+     * least minGapToSplit bp between the intervals of adjacent file pointers
+     *
+     * @param minGapToSplit the smallest gap to split at, or <= 0 to never split a contig.  Should be at least
+     *                      the maximum read length plus the active region extension; see the class documentation.
+     */
+    public ActiveRegionShardBalancer(final int minGapToSplit) {
+        this.minGapToSplit = minGapToSplit;
+    }
+
     /**
      * Convert iterators of file pointers into balanced iterators of shards.
      * @return An iterator over balanced shards.
@@ -74,12 +109,39 @@ public class ActiveRegionShardBalancer extends ShardBalancer {
         final List<FilePointer> toCombine = new LinkedList<>();
         toCombine.add(current);
 
+        int stop = getStop(current);
         while ( filePointers.hasNext() &&
                 current.isRegionUnmapped == filePointers.peek().isRegionUnmapped &&
-                (current.getContigIndex() == filePointers.peek().getContigIndex() || current.isRegionUnmapped) ) {
-            toCombine.add(filePointers.next());
+                (current.getContigIndex() == filePointers.peek().getContigIndex() || current.isRegionUnmapped) &&
+                ! isSplitPoint(stop, filePointers.peek()) ) {
+            final FilePointer next = filePointers.next();
+            toCombine.add(next);
+            stop = Math.max(stop, getStop(next));
         }
 
         return FilePointer.union(toCombine, parser);
     }
+
+    /**
+     * Should we start a new shard at next, on the same contig as the shard ending at stop?
+     *
+     * @param stop the last position covered by the intervals of the shard so far
+     * @param next the next file pointer on the contig
+     * @return true if there's a gap of at least minGapToSplit bp between stop and next's intervals
+     */
+    private boolean isSplitPoint(final int stop, final FilePointer next) {
+        if ( minGapToSplit <= 0 || next.isRegionUnmapped || next.getLocations().isEmpty() )
+            return false;
+        return next.getLocations().get(0).getStart() - stop - 1 >= minGapToSplit;
+    }
+
+    /**
+     * @return the last position covered by the intervals of filePointer, or -1 if it has none
+     */
+    private static int getStop(final FilePointer filePointer) {
+        int stop = -1;
+        for ( final GenomeLoc location : filePointer.getLocations() )
+            stop = Math.max(stop, location.getStop());
+        return stop;
+    }
 }
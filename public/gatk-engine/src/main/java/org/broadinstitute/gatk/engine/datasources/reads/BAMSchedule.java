@@ -45,19 +45,50 @@ import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
- * Writes schedules for a single BAM file to a target output file.
+ * Builds schedules for a set of BAM files over a single contig.  Schedule data is kept in an off-heap buffer,
+ * and spilled to a temporary file only if it grows beyond a configurable threshold.
  */
 public class BAMSchedule implements CloseableIterator<BAMScheduleEntry> {
     /**
-     * File in which to store schedule data.
+     * Default size, in bytes, above which schedule data is spilled to disk.
+     */
+    public static final long DEFAULT_SPILL_THRESHOLD = 64L*1024*1024;
+
+    /**
+     * Initial capacity of the in-memory schedule buffer.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 64*1024;
+
+    /**
+     * Size, in bytes, above which schedule data is spilled to disk.
+     */
+    private final long spillThreshold;
+
+    /**
+     * Off-heap storage for schedule data.  Null once the schedule has been spilled to disk or closed.
+     */
+    private ByteBuffer scheduleBuffer;
+
+    /**
+     * File in which to store schedule data, if it has been spilled to disk.
      */
     private File scheduleFile;
 
     /**
-     * File channel for the schedule file.
+     * File channel for the schedule file, if it has been spilled to disk.
      */
     private FileChannel scheduleFileChannel;
 
+    /**
+     * Current read/write position within the schedule data.
+     */
+    private long schedulePosition = 0;
+
+    /**
+     * Total number of bytes of schedule data written.
+     */
+    private long scheduleSize = 0;
+
     /**
      * The definitive, sorted list of reader IDs.  Order is important here: the order
      * in which the reader IDs are presented here maps to the order in which they appear in the file. 
@@ -91,18 +122,34 @@ public class BAMSchedule implements CloseableIterator<BAMScheduleEntry> {
      * @param intervals List of 
      */
     public BAMSchedule(final SAMDataSource dataSource, final List<GenomeLoc> intervals) {
+        this(dataSource, intervals, dataSource.getBAMScheduleSpillThreshold());
+    }
+
+    /**
+     * Create a new BAM schedule based on the given index.
+     * @param dataSource The SAM data source to use.
+     * @param intervals List of intervals on a single contig over which to schedule.
+     * @param spillThreshold Size, in bytes, above which schedule data is spilled to a temporary file.
+     */
+    public BAMSchedule(final SAMDataSource dataSource, final List<GenomeLoc> intervals, final long spillThreshold) {
         if(intervals.isEmpty())
             throw new ReviewedGATKException("Tried to write schedule for empty interval list.");
 
         referenceSequence = dataSource.getHeader().getSequence(intervals.get(0).getContig()).getSequenceIndex();
 
-        createScheduleFile();
+        // Off-heap buffers are indexed by int; anything larger than that must go to disk regardless.
+        this.spillThreshold = Math.min(spillThreshold,Integer.MAX_VALUE-8);
+        scheduleBuffer = ByteBuffer.allocateDirect((int)Math.min(INITIAL_BUFFER_SIZE,Math.max(spillThreshold,1)));
 
         readerIDs.addAll(dataSource.getReaderIDs());
 
         for(final SAMReaderID reader: readerIDs) {
             final GATKBAMIndex index = dataSource.getIndex(reader);
-            final GATKBAMIndexData indexData = index.readReferenceSequence(referenceSequence);
+            // Indices are not thread-safe, and schedules for different contigs may be built concurrently.
+            final GATKBAMIndexData indexData;
+            synchronized(index) {
+                indexData = index.readReferenceSequence(referenceSequence);
+            }
 
             int currentBinInLowestLevel = GATKBAMIndex.getFirstBinInLevel(GATKBAMIndex.getNumIndexLevels()-1);
             Iterator<GenomeLoc> locusIterator = intervals.iterator();
@@ -188,16 +235,32 @@ public class BAMSchedule implements CloseableIterator<BAMScheduleEntry> {
     }
 
     /**
-     * Close down and delete the file.
+     * Release the schedule data, closing down and deleting the file if the schedule was spilled to disk.
      */
     @Override
     public void close() {
+        scheduleBuffer = null;
+        if(scheduleFileChannel == null)
+            return;
         try {
             scheduleFileChannel.close();
         }
         catch(IOException ex) {
             throw makeIOFailureException(true, "Unable to close schedule file.", ex);
         }
+        finally {
+            scheduleFileChannel = null;
+            if(!scheduleFile.delete())
+                scheduleFile.deleteOnExit();
+        }
+    }
+
+    /**
+     * Whether the schedule data has outgrown memory and been moved to a temporary file.
+     * @return true if the schedule is stored on disk.
+     */
+    public boolean isSpilledToDisk() {
+        return scheduleFile != null;
     }
 
     /**
@@ -287,9 +350,10 @@ public class BAMSchedule implements CloseableIterator<BAMScheduleEntry> {
     public void remove() { throw new UnsupportedOperationException("Unable to remove from a schedule iterator."); }
 
     /**
-     * Create a new schedule file, containing schedule information for all BAM files being dynamically merged.
+     * Create a new schedule file, containing schedule information for all BAM files being dynamically merged,
+     * and move the schedule data accumulated so far in memory into it.
      */
-    private void createScheduleFile() {
+    private void spillToScheduleFile() {
         try {
             scheduleFile = File.createTempFile("bamschedule."+referenceSequence,null);
             scheduleFileChannel = new RandomAccessFile(scheduleFile,"rw").getChannel();
@@ -299,6 +363,40 @@ public class BAMSchedule implements CloseableIterator<BAMScheduleEntry> {
         }
         scheduleFile.deleteOnExit();
 
+        final ByteBuffer contents = scheduleBuffer.duplicate();
+        contents.position(0);
+        contents.limit((int)scheduleSize);
+        try {
+            while(contents.hasRemaining())
+                scheduleFileChannel.write(contents);
+        }
+        catch(IOException ex) {
+            throw makeIOFailureException(true, "Unable to write data to BAM schedule file.", ex);
+        }
+        scheduleBuffer = null;
+    }
+
+    /**
+     * Make room in the in-memory buffer for the given number of additional bytes at the current position,
+     * spilling to disk instead if the buffer would exceed the spill threshold.
+     * @param bytesToWrite Number of bytes about to be written.
+     */
+    private void ensureCapacity(final int bytesToWrite) {
+        final long requiredSize = schedulePosition + bytesToWrite;
+        if(requiredSize <= scheduleBuffer.capacity())
+            return;
+
+        if(requiredSize > spillThreshold) {
+            spillToScheduleFile();
+            return;
+        }
+
+        final ByteBuffer newBuffer = ByteBuffer.allocateDirect((int)Math.min(spillThreshold,Math.max(requiredSize,2L*scheduleBuffer.capacity())));
+        final ByteBuffer contents = scheduleBuffer.duplicate();
+        contents.position(0);
+        contents.limit((int)scheduleSize);
+        newBuffer.put(contents);
+        scheduleBuffer = newBuffer;
     }
 
     /**
@@ -313,53 +411,71 @@ public class BAMSchedule implements CloseableIterator<BAMScheduleEntry> {
     }
 
     /**
-     * Reads the contents at the current position on disk into the given buffer.
+     * Reads the schedule contents at the current position into the given buffer.
      * @param buffer buffer to fill.
+     * @return the number of bytes read.
      */
     private int read(final ByteBuffer buffer) {
-        try {
-            return scheduleFileChannel.read(buffer);
+        int bytesRead;
+        if(scheduleFileChannel != null) {
+            try {
+                bytesRead = scheduleFileChannel.read(buffer,schedulePosition);
+            }
+            catch(IOException ex) {
+                throw makeIOFailureException(false, "Unable to read data from BAM schedule file.", ex);
+            }
         }
-        catch(IOException ex) {
-            throw makeIOFailureException(false, "Unable to read data from BAM schedule file.", ex);
+        else {
+            bytesRead = (int)Math.min(buffer.remaining(),scheduleSize-schedulePosition);
+            final ByteBuffer contents = scheduleBuffer.duplicate();
+            contents.position((int)schedulePosition);
+            contents.limit((int)schedulePosition+bytesRead);
+            buffer.put(contents);
         }
+        if(bytesRead > 0)
+            schedulePosition += bytesRead;
+        return bytesRead;
     }
 
     private void write(final ByteBuffer buffer) {
-        try {
-            scheduleFileChannel.write(buffer);
-            if(buffer.remaining() > 0)
-                throw makeIOFailureException(true, "Unable to write entire buffer to file.", null);
+        final int bytesToWrite = buffer.remaining();
+        if(scheduleFileChannel == null)
+            ensureCapacity(bytesToWrite);
+
+        if(scheduleFileChannel != null) {
+            try {
+                scheduleFileChannel.write(buffer,schedulePosition);
+                if(buffer.remaining() > 0)
+                    throw makeIOFailureException(true, "Unable to write entire buffer to file.", null);
+            }
+            catch(IOException ex) {
+                throw makeIOFailureException(true, "Unable to write data to BAM schedule file.", ex);
+            }
         }
-        catch(IOException ex) {
-            throw makeIOFailureException(true, "Unable to write data to BAM schedule file.", ex);
+        else {
+            final ByteBuffer target = scheduleBuffer.duplicate();
+            target.position((int)schedulePosition);
+            target.put(buffer);
         }
+
+        schedulePosition += bytesToWrite;
+        scheduleSize = Math.max(scheduleSize,schedulePosition);
     }
 
     /**
-     * Reads the current position from the file channel.
-     * @return Current position within file channel.
+     * Reads the current position within the schedule data.
+     * @return Current position.
      */
     private long position() {
-        try {
-            return scheduleFileChannel.position();
-        }
-        catch(IOException ex) {
-            throw makeIOFailureException(false, "Unable to retrieve position of BAM schedule file.", ex);
-        }
+        return schedulePosition;
     }
 
     /**
-     * Reposition the file channel to the specified offset wrt the start of the file.
+     * Reposition the schedule to the specified offset wrt the start of the schedule data.
      * @param position The position.
      */
     private void position(final long position) {
-        try {
-            scheduleFileChannel.position(position);
-        }
-        catch(IOException ex) {
-            throw makeIOFailureException(false, "Unable to position BAM schedule file.",ex);
-        }
+        schedulePosition = position;
     }
 
     /**
@@ -413,9 +529,9 @@ public class BAMSchedule implements CloseableIterator<BAMScheduleEntry> {
 
             // Make sure we read in a complete bin header:
             if ( binHeaderBytesRead < INT_SIZE_IN_BYTES * 3 ) {
-                throw new ReviewedGATKException(String.format("Unable to read a complete bin header from BAM schedule file %s for BAM file %s. " +
-                                                               "The BAM schedule file is likely incomplete/corrupt.",
-                                                               scheduleFile.getAbsolutePath(), reader.getSamFilePath()));
+                throw new ReviewedGATKException(String.format("Unable to read a complete bin header from BAM schedule %s for BAM file %s. " +
+                                                               "The BAM schedule is likely incomplete/corrupt.",
+                                                               scheduleFile != null ? scheduleFile.getAbsolutePath() : "in memory", reader.getSamFilePath()));
             }
 
             // Decode contents.
@@ -170,8 +170,12 @@ public class BAMScheduler implements Iterator<FilePointer> {
             // special case handling of the unmapped shard.
             if(currentLocus == GenomeLoc.UNMAPPED) {
                 nextFilePointer = new FilePointer(intervalMergingRule, GenomeLoc.UNMAPPED);
-                for(SAMReaderID id: dataSource.getReaderIDs())
-                    nextFilePointer.addFileSpans(id,createSpanToEndOfFile(indexFiles.get(id).getStartOfLastLinearBin()));
+                for(SAMReaderID id: dataSource.getReaderIDs()) {
+                    final GATKBAMIndex index = indexFiles.get(id);
+                    synchronized(index) {
+                        nextFilePointer.addFileSpans(id,createSpanToEndOfFile(index.getStartOfLastLinearBin()));
+                    }
+                }
                 currentLocus = null;
                 continue;
             }
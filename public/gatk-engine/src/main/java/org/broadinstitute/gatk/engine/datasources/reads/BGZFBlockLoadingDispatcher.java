@@ -25,19 +25,40 @@
 
 package org.broadinstitute.gatk.engine.datasources.reads;
 
+import org.apache.log4j.Logger;
+import org.broadinstitute.gatk.utils.AutoFormattingTime;
 import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
+import org.broadinstitute.gatk.utils.sam.SAMReaderID;
 
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Preloads BGZF blocks in preparation for unzipping and data processing.
- * TODO: Right now, the block loader has all threads blocked waiting for a work request.  Ultimately this should
- * TODO: be replaced with a central thread management strategy.
+ *
+ * Work requests are queued per input file in lock-free lanes.  Each block loader thread has a home lane that it
+ * drains preferentially, and steals work from the other lanes when its home lane is empty, so that blocks for
+ * different readers are decompressed concurrently rather than serialized through a single queue.  Each stream
+ * requests one block at a time, since the address of its next block isn't known until the current one is read;
+ * the number of block loads in flight for any one file, summed over all of the streams reading it, is bounded by
+ * maxLoadsInFlightPerFile.  Requesters exceeding that bound block until a load completes, and the time spent
+ * blocked is reported as stall time.
  */
 public class BGZFBlockLoadingDispatcher {
+    /**
+     * Default number of block loads which may be outstanding against a single file at once, across all of its streams.
+     */
+    public static final int DEFAULT_MAX_LOADS_IN_FLIGHT_PER_FILE = 4;
+
     /**
      * The file handle cache, used when allocating blocks from the dispatcher.
      */
@@ -45,42 +66,283 @@ public class BGZFBlockLoadingDispatcher {
 
     private final ExecutorService threadPool;
 
-    private final Queue<BAMAccessPlan> inputQueue;
+    /**
+     * Reusable decompression buffers and inflaters, shared by all of this dispatcher's loaders.
+     */
+    private final BlockDecompressionPool decompressionPool;
+
+    /**
+     * Inflated blocks shared by all of this dispatcher's loaders, or null if caching is disabled.
+     */
+    private final InflatedBlockCache inflatedBlockCache;
+
+    /**
+     * Per-file lanes of pending work, keyed by reader.
+     */
+    private final ConcurrentMap<SAMReaderID,WorkLane> lanesByReader = new ConcurrentHashMap<SAMReaderID,WorkLane>();
+
+    /**
+     * The same lanes as above, in order of creation, so that loaders can scan them by index when stealing.
+     */
+    private final List<WorkLane> lanes = new CopyOnWriteArrayList<WorkLane>();
+
+    /**
+     * One permit per queued work request; idle loaders park here rather than spinning over the lanes.
+     */
+    private final Semaphore pendingWork = new Semaphore(0);
+
+    /**
+     * Maximum number of block loads in flight per file, across all of its streams.
+     */
+    private final int maxLoadsInFlightPerFile;
+
+    private final AtomicLong blocksLoaded = new AtomicLong(0);
+    private final AtomicLong blocksFailed = new AtomicLong(0);
+    private final AtomicLong blocksStolen = new AtomicLong(0);
+    private final AtomicLong stallTimeNanos = new AtomicLong(0);
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+    private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+
+    /**
+     * Time at which the dispatcher was created, for computing throughput.
+     */
+    private final long startTimeNanos;
 
     public BGZFBlockLoadingDispatcher(final int numThreads, final int numFileHandles) {
+        this(numThreads, numFileHandles, DEFAULT_MAX_LOADS_IN_FLIGHT_PER_FILE, false);
+    }
+
+    /**
+     * Create a new dispatcher.
+     * @param numThreads Number of block loading threads.
+     * @param numFileHandles Number of file handles to keep open at once.
+     * @param maxLoadsInFlightPerFile Maximum number of block loads in flight per file, across all of its streams.
+     * @param useMemoryMapping If true, read blocks from memory mappings of the files rather than through file channels.
+     */
+    public BGZFBlockLoadingDispatcher(final int numThreads, final int numFileHandles, final int maxLoadsInFlightPerFile, final boolean useMemoryMapping) {
+        this(numThreads, numFileHandles, maxLoadsInFlightPerFile, useMemoryMapping, 0);
+    }
+
+    /**
+     * Create a new dispatcher.
+     * @param numThreads Number of block loading threads.
+     * @param numFileHandles Number of file handles to keep open at once.
+     * @param maxLoadsInFlightPerFile Maximum number of block loads in flight per file, across all of its streams.
+     * @param useMemoryMapping If true, read blocks from memory mappings of the files rather than through file channels.
+     * @param inflatedBlockCacheSize Total size, in bytes, of inflated blocks to share between streams.  0 disables the cache.
+     */
+    public BGZFBlockLoadingDispatcher(final int numThreads, final int numFileHandles, final int maxLoadsInFlightPerFile, final boolean useMemoryMapping,
+                                      final long inflatedBlockCacheSize) {
+        this(numThreads, numFileHandles, maxLoadsInFlightPerFile, useMemoryMapping, inflatedBlockCacheSize, true);
+    }
+
+    /**
+     * Create a new dispatcher, optionally without starting its block loaders so that work requests can be claimed
+     * and completed by hand.
+     * @param numThreads Number of block loading threads.
+     * @param numFileHandles Number of file handles to keep open at once.
+     * @param maxLoadsInFlightPerFile Maximum number of block loads in flight per file, across all of its streams.
+     * @param useMemoryMapping If true, read blocks from memory mappings of the files rather than through file channels.
+     * @param inflatedBlockCacheSize Total size, in bytes, of inflated blocks to share between streams.  0 disables the cache.
+     * @param startLoaders If false, no block loaders are started.
+     */
+    BGZFBlockLoadingDispatcher(final int numThreads, final int numFileHandles, final int maxLoadsInFlightPerFile, final boolean useMemoryMapping,
+                               final long inflatedBlockCacheSize, final boolean startLoaders) {
+        if(numThreads < 1)
+            throw new ReviewedGATKException("Number of block loading threads must be at least 1; got " + numThreads);
+        if(maxLoadsInFlightPerFile < 1)
+            throw new ReviewedGATKException("Maximum number of block loads in flight per file must be at least 1; got " + maxLoadsInFlightPerFile);
+        if(inflatedBlockCacheSize < 0)
+            throw new ReviewedGATKException("Inflated block cache size must be non-negative; got " + inflatedBlockCacheSize);
+
+        this.maxLoadsInFlightPerFile = maxLoadsInFlightPerFile;
+        this.startTimeNanos = System.nanoTime();
+
         threadPool = Executors.newFixedThreadPool(numThreads);
         fileHandleCache = new FileHandleCache(numFileHandles);
-        inputQueue = new LinkedList<BAMAccessPlan>();
+        decompressionPool = new BlockDecompressionPool(2*numThreads);
+        inflatedBlockCache = inflatedBlockCacheSize > 0 ? new InflatedBlockCache(inflatedBlockCacheSize,decompressionPool) : null;
 
-        threadPool.execute(new BlockLoader(this,fileHandleCache,true));
+        for(int loaderIndex = 0; startLoaders && loaderIndex < numThreads; loaderIndex++)
+            threadPool.execute(new BlockLoader(this,fileHandleCache,decompressionPool,inflatedBlockCache,true,loaderIndex,useMemoryMapping));
     }
 
     /**
-     * Initiates a request for a new block load.
+     * Initiates a request for a new block load.  Blocks if the file already has maxLoadsInFlightPerFile loads in flight.
       * @param readerPosition Position at which to load.
      */
     void queueBlockLoad(final BAMAccessPlan readerPosition) {
-        synchronized(inputQueue) {
-            inputQueue.add(readerPosition);
-            inputQueue.notify();
+        final WorkLane lane = getLane(readerPosition.getReader());
+
+        if(!lane.inFlight.tryAcquire()) {
+            final long stallStart = System.nanoTime();
+            try {
+                lane.inFlight.acquire();
+            }
+            catch(InterruptedException ex) {
+                throw new ReviewedGATKException("Interrupt occurred waiting for block loading capacity",ex);
+            }
+            stallTimeNanos.addAndGet(System.nanoTime() - stallStart);
         }
+
+        lane.queue.add(readerPosition);
+        updateMaxQueueDepth(queueDepth.incrementAndGet());
+        pendingWork.release();
     }
 
     /**
-     * Claims the next work request from the queue.
-     * @return The next work request, or null if none is available.
+     * Claims the next work request, preferring the given loader's home lane and stealing from other lanes otherwise.
+     * Blocks until a work request is available.
+     * @param loaderIndex Index of the calling loader, used to pick its home lane.
+     * @return The next work request.  Never null.
      */
-    BAMAccessPlan claimNextWorkRequest() {
-        synchronized(inputQueue) {
-            while(inputQueue.isEmpty()) {
-                try {
-                    inputQueue.wait();
-                }
-                catch(InterruptedException ex) {
-                    throw new ReviewedGATKException("Interrupt occurred waiting for next block reader work item");
+    BAMAccessPlan claimNextWorkRequest(final int loaderIndex) {
+        try {
+            pendingWork.acquire();
+        }
+        catch(InterruptedException ex) {
+            throw new ReviewedGATKException("Interrupt occurred waiting for next block reader work item");
+        }
+
+        // A permit guarantees that exactly one request is reserved for this loader somewhere in the lanes;
+        // another loader may beat us to a particular lane, so keep scanning until it turns up.
+        for(;;) {
+            final int numLanes = lanes.size();
+            for(int i = 0; i < numLanes; i++) {
+                final BAMAccessPlan accessPlan = lanes.get((loaderIndex+i) % numLanes).queue.poll();
+                if(accessPlan != null) {
+                    if(i > 0)
+                        blocksStolen.incrementAndGet();
+                    queueDepth.decrementAndGet();
+                    return accessPlan;
                 }
             }
-            return inputQueue.poll();
+        }
+    }
+
+    /**
+     * Notifies the dispatcher that a previously claimed work request has been fully processed, freeing
+     * capacity for another load from its file.
+     * @param accessPlan The work request that was claimed via claimNextWorkRequest.
+     * @param succeeded Whether the block was delivered to its stream, as opposed to an error being reported.
+     */
+    void completeWorkRequest(final BAMAccessPlan accessPlan, final boolean succeeded) {
+        if(succeeded)
+            blocksLoaded.incrementAndGet();
+        else
+            blocksFailed.incrementAndGet();
+        getLane(accessPlan.getReader()).inFlight.release();
+    }
+
+    /**
+     * @return the total number of BGZF blocks successfully loaded so far.
+     */
+    public long getNumBlocksLoaded() {
+        return blocksLoaded.get();
+    }
+
+    /**
+     * @return the number of block loads which failed and reported an error to their stream.
+     */
+    public long getNumBlocksFailed() {
+        return blocksFailed.get();
+    }
+
+    /**
+     * @return the number of block loads claimed by a loader from a lane other than its home lane.
+     */
+    public long getNumBlocksStolen() {
+        return blocksStolen.get();
+    }
+
+    /**
+     * @return the average number of blocks loaded per second since the dispatcher was created.
+     */
+    public double getBlocksPerSecond() {
+        final double elapsedSeconds = (System.nanoTime() - startTimeNanos) / 1e9;
+        return elapsedSeconds > 0 ? blocksLoaded.get() / elapsedSeconds : 0.0;
+    }
+
+    /**
+     * @return the number of work requests currently queued and not yet claimed by a loader.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return the largest number of work requests queued at any one time.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * @return the total time, in nanoseconds, that readers spent blocked because their file already had the maximum number of loads in flight.
+     */
+    public long getStallTimeNanos() {
+        return stallTimeNanos.get();
+    }
+
+    /**
+     * Print the block loading counters to the given logger.
+     * @param logger logger to which to write.
+     */
+    public void printStatistics(final Logger logger) {
+        logger.info(String.format("BGZF block loading: %d blocks loaded (%.1f blocks/s), %d failed, %d stolen across files, peak queue depth %d, stall time %s",
+                getNumBlocksLoaded(), getBlocksPerSecond(), getNumBlocksFailed(), getNumBlocksStolen(), getMaxQueueDepth(),
+                new AutoFormattingTime(getStallTimeNanos())));
+        logger.info(String.format("BGZF decompression pool: %d of %d buffer and inflater claims reused pooled objects (%.2f%% hit rate)",
+                decompressionPool.getNumHits(), decompressionPool.getNumHits() + decompressionPool.getNumMisses(),
+                100.0 * decompressionPool.getHitRate()));
+        if(inflatedBlockCache != null)
+            logger.info(String.format("Inflated block cache: %d of %d block loads served from the cache (%.2f%% hit rate), %d blocks evicted",
+                    inflatedBlockCache.getNumHits(), inflatedBlockCache.getNumHits() + inflatedBlockCache.getNumMisses(),
+                    100.0 * inflatedBlockCache.getHitRate(), inflatedBlockCache.getNumEvictions()));
+    }
+
+    /**
+     * @return the pool of decompression buffers and inflaters used by this dispatcher's loaders.
+     */
+    BlockDecompressionPool getDecompressionPool() {
+        return decompressionPool;
+    }
+
+    /**
+     * @return the cache of inflated blocks shared by this dispatcher's loaders, or null if caching is disabled.
+     */
+    InflatedBlockCache getInflatedBlockCache() {
+        return inflatedBlockCache;
+    }
+
+    private WorkLane getLane(final SAMReaderID reader) {
+        WorkLane lane = lanesByReader.get(reader);
+        if(lane == null) {
+            final WorkLane newLane = new WorkLane(maxLoadsInFlightPerFile);
+            lane = lanesByReader.putIfAbsent(reader,newLane);
+            if(lane == null) {
+                lanes.add(newLane);
+                lane = newLane;
+            }
+        }
+        return lane;
+    }
+
+    private void updateMaxQueueDepth(final int depth) {
+        int currentMax;
+        while(depth > (currentMax = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(currentMax,depth))
+            ;
+    }
+
+    /**
+     * Pending work for a single file, along with the permits bounding the loads in flight for that file.
+     */
+    private static class WorkLane {
+        private final Queue<BAMAccessPlan> queue = new ConcurrentLinkedQueue<BAMAccessPlan>();
+        private final Semaphore inFlight;
+
+        public WorkLane(final int maxLoadsInFlight) {
+            this.inFlight = new Semaphore(maxLoadsInFlight);
         }
     }
 }
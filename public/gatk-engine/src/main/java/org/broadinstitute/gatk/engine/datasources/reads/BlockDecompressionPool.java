@@ -0,0 +1,145 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of inflated-block buffers and inflaters, shared by the block loaders of a single dispatcher,
+ * so that steady-state block decompression allocates nothing per block.
+ */
+class BlockDecompressionPool {
+    /**
+     * Size of each pooled buffer; large enough to hold any inflated BGZF block.
+     */
+    static final int BUFFER_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+
+    /**
+     * Maximum number of idle buffers and inflaters retained by the pool.  Anything returned beyond this is dropped.
+     */
+    private final int capacity;
+
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+    private final AtomicInteger numIdleBuffers = new AtomicInteger(0);
+    private final AtomicInteger numIdleInflaters = new AtomicInteger(0);
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Create a new pool.
+     * @param capacity Maximum number of idle buffers and of idle inflaters to retain.
+     */
+    public BlockDecompressionPool(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Claims a buffer of at least BUFFER_SIZE bytes, reusing an idle buffer if one is available.
+     * @return a buffer, whose contents are undefined.
+     */
+    public byte[] claimBuffer() {
+        final byte[] buffer = buffers.poll();
+        if(buffer != null) {
+            numIdleBuffers.decrementAndGet();
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Returns a buffer previously claimed from this pool.
+     * @param buffer the buffer to return.
+     */
+    public void releaseBuffer(final byte[] buffer) {
+        if(numIdleBuffers.incrementAndGet() <= capacity)
+            buffers.add(buffer);
+        else
+            numIdleBuffers.decrementAndGet();
+    }
+
+    /**
+     * Claims an inflater configured for raw (headerless) deflate data, as found in BGZF blocks.
+     * @return an inflater in its reset state.
+     */
+    public Inflater claimInflater() {
+        final Inflater inflater = inflaters.poll();
+        if(inflater != null) {
+            numIdleInflaters.decrementAndGet();
+            hits.incrementAndGet();
+            return inflater;
+        }
+        misses.incrementAndGet();
+        return new Inflater(true);
+    }
+
+    /**
+     * Returns an inflater previously claimed from this pool.  Inflaters that don't fit in the pool have their
+     * native resources released immediately.
+     * @param inflater the inflater to return.
+     */
+    public void releaseInflater(final Inflater inflater) {
+        inflater.reset();
+        if(numIdleInflaters.incrementAndGet() <= capacity)
+            inflaters.add(inflater);
+        else {
+            numIdleInflaters.decrementAndGet();
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return the number of claims satisfied by a pooled object.
+     */
+    public long getNumHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of claims that required a new allocation.
+     */
+    public long getNumMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the fraction of claims satisfied by a pooled object, or 0 if nothing has been claimed.
+     */
+    public double getHitRate() {
+        final long total = getNumHits() + getNumMisses();
+        return total > 0 ? (double)getNumHits() / total : 0.0;
+    }
+}
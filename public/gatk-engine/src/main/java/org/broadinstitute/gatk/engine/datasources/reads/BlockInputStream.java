@@ -88,6 +88,11 @@ public class BlockInputStream extends InputStream {
      */
     private final Object lock = new Object();
 
+    /**
+     * Scratch space for single-byte reads, to avoid allocating on every call to read().
+     */
+    private final byte[] singleByte = new byte[1];
+
     /**
      * An input stream to use when comparing data back to what it should look like.
      */
@@ -251,8 +256,9 @@ public class BlockInputStream extends InputStream {
      * @param incomingBuffer The data being pushed into this input stream.
      * @param accessPlan target access plan for the data.
      * @param filePosition the current position of the file pointer
+     * @return true if the data was added to this stream; false if an error was reported to the stream instead.
      */
-    public void copyIntoBuffer(final ByteBuffer incomingBuffer, final BAMAccessPlan accessPlan, final long filePosition) {
+    public boolean copyIntoBuffer(final ByteBuffer incomingBuffer, final BAMAccessPlan accessPlan, final long filePosition) {
         synchronized(lock) {
             try {
                 if(validatingInputStream != null) {
@@ -312,10 +318,12 @@ public class BlockInputStream extends InputStream {
                 buffer.flip();
 
                 lock.notify();
+                return true;
             }
             catch(Exception ex) {
                 reportException(ex);
                 lock.notify();
+                return false;
             }
         }
     }
@@ -343,9 +351,11 @@ public class BlockInputStream extends InputStream {
      */
     @Override
     public int read() {
-        byte[] singleByte = new byte[1];
-        read(singleByte);
-        return singleByte[0];
+        synchronized(lock) {
+            singleByte[0] = 0;
+            read(singleByte);
+            return singleByte[0];
+        }
     }
 
     /**
@@ -369,6 +379,9 @@ public class BlockInputStream extends InputStream {
                 // If completely out of space, queue up another buffer fill.
                 waitForBufferFill();
 
+                // The fill may have failed rather than delivered data; don't mistake that for the end of the stream.
+                checkForErrors();
+
                 // Couldn't manage to load any data at all; abort and return what's available.
                 if(buffer.remaining() == 0)
                     break;
@@ -27,6 +27,7 @@ package org.broadinstitute.gatk.engine.datasources.reads;
 
 import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
+import org.broadinstitute.gatk.utils.sam.SAMReaderID;
 
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -50,20 +51,60 @@ class BlockLoader implements Runnable {
      */
     private final FileHandleCache fileHandleCache;
 
+    /**
+     * Source of reusable inflated-block buffers and inflaters.
+     */
+    private final BlockDecompressionPool decompressionPool;
+
+    /**
+     * Inflated blocks shared across all loaders, or null if inflated blocks shouldn't be cached.
+     */
+    private final InflatedBlockCache inflatedBlockCache;
+
     /**
      * Whether asynchronous decompression should happen.
      */
     private final boolean decompress;
 
+    /**
+     * Index of this loader within the dispatcher's pool; determines which file's work this loader prefers.
+     */
+    private final int loaderIndex;
+
+    /**
+     * Whether blocks should be read from a memory mapping of the file rather than through a file channel.
+     */
+    private final boolean useMemoryMapping;
+
     /**
      * An direct input buffer for incoming data from disk.
      */
     private final ByteBuffer inputBuffer;
 
-    public BlockLoader(final BGZFBlockLoadingDispatcher dispatcher, final FileHandleCache fileHandleCache, final boolean decompress) {
+    /**
+     * Reusable staging area for the compressed contents of a block, handed to the inflater.
+     */
+    private final byte[] compressedContent = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+
+    /**
+     * The address just past the end of the block most recently read by readCompressedBlock.
+     */
+    private long compressedBlockEnd;
+
+    public BlockLoader(final BGZFBlockLoadingDispatcher dispatcher, final FileHandleCache fileHandleCache, final BlockDecompressionPool decompressionPool,
+                       final boolean decompress, final int loaderIndex, final boolean useMemoryMapping) {
+        this(dispatcher,fileHandleCache,decompressionPool,null,decompress,loaderIndex,useMemoryMapping);
+    }
+
+    public BlockLoader(final BGZFBlockLoadingDispatcher dispatcher, final FileHandleCache fileHandleCache, final BlockDecompressionPool decompressionPool,
+                       final InflatedBlockCache inflatedBlockCache, final boolean decompress, final int loaderIndex, final boolean useMemoryMapping) {
         this.dispatcher = dispatcher;
         this.fileHandleCache = fileHandleCache;
+        this.decompressionPool = decompressionPool;
+        this.inflatedBlockCache = inflatedBlockCache;
         this.decompress = decompress;
+        this.loaderIndex = loaderIndex;
+        this.useMemoryMapping = useMemoryMapping;
 
         this.inputBuffer = ByteBuffer.allocateDirect(64*1024 + BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length);
         inputBuffer.order(ByteOrder.LITTLE_ENDIAN);
@@ -72,31 +113,91 @@ class BlockLoader implements Runnable {
     public void run() {
         for(;;) {
             BAMAccessPlan accessPlan = null;
+            byte[] inflatedBuffer = null;
+            InflatedBlockCache.CachedBlock cachedBlock = null;
+            boolean succeeded = false;
             try {
-                accessPlan = dispatcher.claimNextWorkRequest();
-                FileInputStream inputStream = fileHandleCache.claimFileInputStream(accessPlan.getReader());
-
-                //long blockAddress = readerPosition.getBlockAddress();
-                //System.out.printf("Thread %s: BlockLoader: copying bytes from %s at position %d into %s%n",Thread.currentThread().getId(),inputStream,blockAddress,readerPosition.getInputStream());
-
-                ByteBuffer compressedBlock = readBGZFBlock(inputStream,accessPlan.getBlockAddress());
-                long nextBlockAddress = position(inputStream);
-                fileHandleCache.releaseFileInputStream(accessPlan.getReader(),inputStream);
-
-                ByteBuffer block = decompress ? decompressBGZFBlock(compressedBlock) : compressedBlock;
-                int bytesCopied = block.remaining();
+                accessPlan = dispatcher.claimNextWorkRequest(loaderIndex);
+
+                // Blocks at shard boundaries are often requested by more than one stream; serve them from the cache if possible.
+                if(decompress && inflatedBlockCache != null) {
+                    cachedBlock = inflatedBlockCache.get(accessPlan.getReader(),accessPlan.getBlockAddress());
+                    if(cachedBlock != null) {
+                        succeeded = accessPlan.getInputStream().copyIntoBuffer(ByteBuffer.wrap(cachedBlock.data,0,cachedBlock.length),accessPlan,cachedBlock.nextBlockAddress);
+                        continue;
+                    }
+                }
+
+                final ByteBuffer compressedBlock = readCompressedBlock(accessPlan.getReader(),accessPlan.getBlockAddress());
+                final long nextBlockAddress = compressedBlockEnd;
+
+                final ByteBuffer block;
+                if(decompress) {
+                    inflatedBuffer = decompressionPool.claimBuffer();
+                    block = decompressBGZFBlock(compressedBlock,inflatedBuffer);
+                    if(inflatedBlockCache != null) {
+                        // Hand the buffer itself to the cache rather than a copy; the cache returns it to the pool once
+                        // it's been evicted and released.
+                        cachedBlock = new InflatedBlockCache.CachedBlock(inflatedBuffer,block.remaining(),nextBlockAddress);
+                        inflatedBlockCache.put(accessPlan.getReader(),accessPlan.getBlockAddress(),cachedBlock);
+                        inflatedBuffer = null;
+                    }
+                }
+                else
+                    block = compressedBlock;
 
                 BlockInputStream bamInputStream = accessPlan.getInputStream();
-                bamInputStream.copyIntoBuffer(block,accessPlan,nextBlockAddress);
-
-                //System.out.printf("Thread %s: BlockLoader: copied %d bytes from %s at position %d into %s%n",Thread.currentThread().getId(),bytesCopied,inputStream,blockAddress,readerPosition.getInputStream());
+                succeeded = bamInputStream.copyIntoBuffer(block,accessPlan,nextBlockAddress);
             }
             catch(Throwable error) {
                 if(accessPlan != null && accessPlan.getInputStream() != null)
                     accessPlan.getInputStream().reportException(error);
             }
+            finally {
+                if(inflatedBuffer != null)
+                    decompressionPool.releaseBuffer(inflatedBuffer);
+                if(cachedBlock != null)
+                    inflatedBlockCache.release(cachedBlock);
+                if(accessPlan != null)
+                    dispatcher.completeWorkRequest(accessPlan,succeeded);
+            }
+        }
+
+    }
+
+    /**
+     * Reads the compressed BGZF block at the given address, either from a memory mapping of the file or through a
+     * file channel.  Empty blocks are skipped unless they are at the end of the file.  On return, compressedBlockEnd
+     * holds the address of the block following the one returned.
+     * @param reader Reader whose file should be read.
+     * @param blockAddress Address of the first block to read.
+     * @return The complete compressed block, positioned at its start.  Only valid until the next call.
+     * @throws IOException if the file can't be read.
+     */
+    ByteBuffer readCompressedBlock(final SAMReaderID reader, final long blockAddress) throws IOException {
+        if(useMemoryMapping)
+            return readMappedBGZFBlock(reader,blockAddress);
+
+        FileInputStream inputStream = fileHandleCache.claimFileInputStream(reader);
+
+        //System.out.printf("Thread %s: BlockLoader: copying bytes from %s at position %d%n",Thread.currentThread().getId(),inputStream,blockAddress);
+
+        try {
+            final ByteBuffer compressedBlock = readBGZFBlock(inputStream,blockAddress);
+            compressedBlockEnd = position(inputStream);
+            return compressedBlock;
+        }
+        finally {
+            fileHandleCache.releaseFileInputStream(reader,inputStream);
         }
+    }
 
+    /**
+     * Gets the address just past the end of the block most recently returned by readCompressedBlock.
+     * @return Address of the following block.
+     */
+    long getCompressedBlockEnd() {
+        return compressedBlockEnd;
     }
 
     private ByteBuffer readBGZFBlock(final FileInputStream inputStream, final long blockAddress) throws IOException {
@@ -120,14 +221,7 @@ class BlockLoader implements Runnable {
                 throw new ReviewedGATKException("BUG: unable to read a the complete block header in one pass.");
 
             // Verify that the file was read at a valid point.
-            if(unpackUByte8(inputBuffer,0) != BlockCompressedStreamConstants.GZIP_ID1 ||
-                    unpackUByte8(inputBuffer,1) != BlockCompressedStreamConstants.GZIP_ID2 ||
-                    unpackUByte8(inputBuffer,3) != BlockCompressedStreamConstants.GZIP_FLG ||
-                    unpackUInt16(inputBuffer,10) != BlockCompressedStreamConstants.GZIP_XLEN ||
-                    unpackUByte8(inputBuffer,12) != BlockCompressedStreamConstants.BGZF_ID1 ||
-                    unpackUByte8(inputBuffer,13) != BlockCompressedStreamConstants.BGZF_ID2) {
-                throw new ReviewedGATKException("BUG: Started reading compressed block at incorrect position");
-            }
+            validateBlockHeader(inputBuffer,0);
 
             inputBuffer.position(BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET);
             bufferSize = unpackUInt16(inputBuffer,BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET)+1;
@@ -149,28 +243,88 @@ class BlockLoader implements Runnable {
         return inputBuffer;
     }
 
-    private ByteBuffer decompressBGZFBlock(final ByteBuffer bgzfBlock) throws DataFormatException {
+    /**
+     * Reads a BGZF block directly out of a memory mapping of the file, without copying.  Like readBGZFBlock,
+     * skips over empty blocks unless they are at the end of the file.  On return, compressedBlockEnd holds the
+     * address of the block following the one returned.
+     * @param reader Reader whose file should be read.
+     * @param blockAddress Address of the first block to read.
+     * @return A view of the complete compressed block, positioned at its start.
+     */
+    private ByteBuffer readMappedBGZFBlock(final SAMReaderID reader, final long blockAddress) {
+        long address = blockAddress;
+        ByteBuffer block;
+        int uncompressedDataSize;
+
+        do {
+            final ByteBuffer view = fileHandleCache.claimMappedView(reader,address);
+            if(view.remaining() < BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH)
+                throw new ReviewedGATKException("BUG: unable to read a the complete block header in one pass.");
+
+            final int blockStart = view.position();
+            validateBlockHeader(view,blockStart);
+            final int blockSize = unpackUInt16(view,blockStart+BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET)+1;
+
+            view.limit(blockStart+blockSize);
+            block = view.slice();
+            block.order(ByteOrder.LITTLE_ENDIAN);
+
+            uncompressedDataSize = block.getInt(blockSize-4);
+            address += blockSize;
+        }
+        while(uncompressedDataSize == 0 && address < fileHandleCache.getMappedFileLength(reader));
+
+        compressedBlockEnd = address;
+        return block;
+    }
+
+    private void validateBlockHeader(final ByteBuffer buffer, final int blockStart) {
+        if(unpackUByte8(buffer,blockStart) != BlockCompressedStreamConstants.GZIP_ID1 ||
+                unpackUByte8(buffer,blockStart+1) != BlockCompressedStreamConstants.GZIP_ID2 ||
+                unpackUByte8(buffer,blockStart+3) != BlockCompressedStreamConstants.GZIP_FLG ||
+                unpackUInt16(buffer,blockStart+10) != BlockCompressedStreamConstants.GZIP_XLEN ||
+                unpackUByte8(buffer,blockStart+12) != BlockCompressedStreamConstants.BGZF_ID1 ||
+                unpackUByte8(buffer,blockStart+13) != BlockCompressedStreamConstants.BGZF_ID2) {
+            throw new ReviewedGATKException("BUG: Started reading compressed block at incorrect position");
+        }
+    }
+
+    /**
+     * Inflates the given BGZF block into the given buffer.
+     * @param bgzfBlock The complete compressed block, positioned at its start.
+     * @param uncompressedContent Destination for the inflated data; must be large enough to hold any BGZF block.
+     * @return A view of the inflated data within uncompressedContent.
+     * @throws DataFormatException if the block is corrupt.
+     */
+    private ByteBuffer decompressBGZFBlock(final ByteBuffer bgzfBlock, final byte[] uncompressedContent) throws DataFormatException {
         final int compressedBufferSize = bgzfBlock.remaining();
 
         // Determine the uncompressed buffer size (
         bgzfBlock.position(bgzfBlock.limit()-4);
         int uncompressedBufferSize = bgzfBlock.getInt();
-        byte[] uncompressedContent = new byte[uncompressedBufferSize];
+        if(uncompressedBufferSize > uncompressedContent.length)
+            throw new ReviewedGATKException(String.format("Uncompressed block size %d exceeds the maximum BGZF block size",uncompressedBufferSize));
 
         // Bound the CDATA section of the buffer.
         bgzfBlock.limit(compressedBufferSize-BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH);
         bgzfBlock.position(BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
-        byte[] compressedContent = new byte[bgzfBlock.remaining()];
-        ByteBuffer.wrap(compressedContent).put(bgzfBlock);
+        final int compressedContentSize = bgzfBlock.remaining();
+        bgzfBlock.get(compressedContent,0,compressedContentSize);
 
         // Decompress the buffer.
-        final Inflater inflater = new Inflater(true);
-        inflater.setInput(compressedContent);
-        int bytesUncompressed = inflater.inflate(uncompressedContent);
+        final Inflater inflater = decompressionPool.claimInflater();
+        final int bytesUncompressed;
+        try {
+            inflater.setInput(compressedContent,0,compressedContentSize);
+            bytesUncompressed = inflater.inflate(uncompressedContent,0,uncompressedBufferSize);
+        }
+        finally {
+            decompressionPool.releaseInflater(inflater);
+        }
         if(bytesUncompressed != uncompressedBufferSize)
             throw new ReviewedGATKException("Error decompressing block");
 
-        return ByteBuffer.wrap(uncompressedContent);
+        return ByteBuffer.wrap(uncompressedContent,0,uncompressedBufferSize);
     }
 
     private long position(final FileInputStream inputStream) throws IOException {
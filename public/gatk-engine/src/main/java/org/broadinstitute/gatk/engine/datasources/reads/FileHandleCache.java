@@ -29,11 +29,19 @@ import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
 import org.broadinstitute.gatk.utils.exceptions.GATKException;
 import org.broadinstitute.gatk.utils.sam.SAMReaderID;
 
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Caches frequently used  file handles.  Right now, caches only a single file handle.
@@ -65,12 +73,39 @@ public class FileHandleCache {
      */
     private int numOutstandingFileHandles = 0;
 
+    /**
+     * Memory mappings of each file, created on first use when running in memory-mapped mode.
+     */
+    private final Map<SAMReaderID,MappedFile> mappedFiles = new ConcurrentHashMap<SAMReaderID,MappedFile>();
+
+    /**
+     * Default size of the non-overlapping portion of each segment of a mapped file.  A single mapping is limited to 2GB.
+     */
+    private static final long DEFAULT_MAPPING_SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * Size of the non-overlapping portion of each segment of a mapped file.
+     */
+    private final long mappingSegmentSize;
+
     /**
      * Create a new file handle cache of the given cache size.
      * @param cacheSize how many readers to hold open at once.
      */
     public FileHandleCache(final int cacheSize) {
+        this(cacheSize,DEFAULT_MAPPING_SEGMENT_SIZE);
+    }
+
+    /**
+     * Create a new file handle cache of the given cache size, mapping files in segments of the given size.
+     * @param cacheSize how many readers to hold open at once.
+     * @param mappingSegmentSize size of the non-overlapping portion of each segment of a memory-mapped file.
+     */
+    FileHandleCache(final int cacheSize, final long mappingSegmentSize) {
+        if(mappingSegmentSize <= 0 || mappingSegmentSize > DEFAULT_MAPPING_SEGMENT_SIZE)
+            throw new ReviewedGATKException("BUG: mapping segment size must be between 1 and " + DEFAULT_MAPPING_SEGMENT_SIZE);
         this.cacheSize = cacheSize;
+        this.mappingSegmentSize = mappingSegmentSize;
         fileHandleStorage = new FileHandleStorage();
     }
 
@@ -115,6 +150,40 @@ public class FileHandleCache {
         }
     }
 
+    /**
+     * Gets a read-only, little-endian view of the given file's memory mapping, positioned at the given address.
+     * The view is guaranteed to extend at least one maximum-size BGZF block past the given address, or to the end
+     * of the file, whichever comes first.  Views are independent and may be used concurrently by different threads.
+     * @param key The reader whose file should be mapped.
+     * @param address Address in the file at which the view should be positioned.
+     * @return A view of the mapped file.  Its limit marks the end of the addressable region.
+     */
+    public ByteBuffer claimMappedView(final SAMReaderID key, final long address) {
+        MappedFile mappedFile = mappedFiles.get(key);
+        if(mappedFile == null) {
+            synchronized(lock) {
+                mappedFile = mappedFiles.get(key);
+                if(mappedFile == null) {
+                    mappedFile = new MappedFile(key,mappingSegmentSize);
+                    mappedFiles.put(key,mappedFile);
+                }
+            }
+        }
+        return mappedFile.viewAt(address);
+    }
+
+    /**
+     * Gets the length of a file previously mapped via claimMappedView.
+     * @param key The reader whose file has been mapped.
+     * @return Length of the mapped file, in bytes.
+     */
+    public long getMappedFileLength(final SAMReaderID key) {
+        final MappedFile mappedFile = mappedFiles.get(key);
+        if(mappedFile == null)
+            throw new ReviewedGATKException("BUG: file for reader " + key + " has not been mapped");
+        return mappedFile.length;
+    }
+
     /**
      * Finds an existing entry in the storage mechanism.
      * @param key Reader.
@@ -191,6 +260,56 @@ public class FileHandleCache {
         }
     }
 
+    /**
+     * A file mapped into memory as a series of overlapping segments.  Each segment overlaps the next by the size of
+     * the largest possible BGZF block, so that any block starting within a segment can be read from that segment alone.
+     */
+    private static class MappedFile {
+        /**
+         * Size of the non-overlapping portion of each segment.
+         */
+        private final long segmentSize;
+
+        private final MappedByteBuffer[] segments;
+
+        private final long length;
+
+        public MappedFile(final SAMReaderID reader, final long segmentSize) {
+            this.segmentSize = segmentSize;
+            try {
+                final RandomAccessFile file = new RandomAccessFile(reader.getSamFilePath(),"r");
+                try {
+                    final FileChannel channel = file.getChannel();
+                    final long size = channel.size();
+                    length = size;
+                    segments = new MappedByteBuffer[(int)Math.max(1,(size+segmentSize-1)/segmentSize)];
+                    for(int i = 0; i < segments.length; i++) {
+                        final long start = i*segmentSize;
+                        final long length = Math.min(size-start,segmentSize+BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE);
+                        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,start,Math.max(0,length));
+                    }
+                }
+                finally {
+                    // The mappings remain valid after the channel is closed.
+                    file.close();
+                }
+            }
+            catch(IOException ex) {
+                throw new GATKException("Unable to memory map input file " + reader.getSamFilePath(),ex);
+            }
+        }
+
+        public ByteBuffer viewAt(final long address) {
+            final int segment = (int)(address / segmentSize);
+            if(segment >= segments.length)
+                throw new ReviewedGATKException(String.format("BUG: address %d is beyond the end of the mapped file",address));
+            final ByteBuffer view = segments[segment].duplicate();
+            view.order(ByteOrder.LITTLE_ENDIAN);
+            view.position((int)(address - segment*segmentSize));
+            return view;
+        }
+    }
+
     /**
      * Uniquifies a key by adding a numerical uniquifier.
      */
@@ -51,6 +51,22 @@ public class GATKBAMIndexData {
         return referenceSequence;
     }
 
+    /**
+     * Gets the bins in this reference sequence, indexed by bin number.
+     * @return List of bins.  Entries for bins not present in the index are null.
+     */
+    List<GATKBin> getBins() {
+        return bins;
+    }
+
+    /**
+     * Gets the linear index for this reference sequence.
+     * @return The linear index.
+     */
+    LinearIndex getLinearIndex() {
+        return linearIndex;
+    }
+
     /**
      * Perform an overlapping query of all bins bounding the given location.
      * @param bin The bin over which to perform an overlapping query.
@@ -0,0 +1,340 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import htsjdk.samtools.GATKBin;
+import htsjdk.samtools.GATKChunk;
+import htsjdk.samtools.LinearIndex;
+import htsjdk.samtools.SAMSequenceDictionary;
+import org.apache.log4j.Logger;
+import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A BAM index backed by a flattened, memory-mapped copy of the .bai stored in a sidecar file.
+ *
+ * The sidecar is keyed by the size and modification time of both the BAM and its index, and is rebuilt from the
+ * .bai whenever the key doesn't match.  Once built, finding a contig's bins and linear index is a single offset
+ * lookup into the mapping rather than a walk through the .bai, and finding the start of the last linear bin no
+ * longer requires a pass over the entire index.
+ *
+ * Sidecar layout, all little endian:
+ * <pre>
+ *   header:   magic "GBIC", int version, long bamLength, long bamLastModified, long indexLength, long indexLastModified,
+ *             int sequenceCount, long startOfLastLinearBin, long[sequenceCount] sequenceOffsets
+ *   sequence: int binCount, int linearBinCount, int[binCount] binNumbers (ascending),
+ *             int[binCount+1] firstChunkOfBin, long[2*totalChunks] chunkStartsAndEnds, long[linearBinCount] linearIndex
+ * </pre>
+ *
+ * If the sidecar can't be written, the flattened index is kept in memory for the duration of the run.  If the
+ * flattened index would be too large to map, the .bai is read directly, as by GATKBAMIndexFromFile.
+ *
+ * The most recently read reference sequence is kept decoded, so repeated queries against the same contig, as
+ * made while scheduling its shards, allocate nothing.
+ *
+ * Very much not thread-safe.
+ */
+public class GATKBAMIndexFromCache extends GATKBAMIndexFromFile {
+    /**
+     * Suffix appended to the index file name to form the default sidecar location.
+     */
+    public static final String CACHE_FILE_EXTENSION = ".gatkcache";
+
+    private static final byte[] CACHE_MAGIC = "GBIC".getBytes();
+    private static final int CACHE_VERSION = 1;
+
+    /**
+     * Size of the fixed portion of the header, before the sequence offset table.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 4*8 + 4 + 8;
+
+    private static final int INT_SIZE_IN_BYTES = Integer.SIZE / 8;
+    private static final int LONG_SIZE_IN_BYTES = Long.SIZE / 8;
+
+    private static Logger logger = Logger.getLogger(GATKBAMIndexFromCache.class);
+
+    /**
+     * The flattened index; either a mapping of the sidecar or an in-memory copy.  Null if the index is too
+     * large to flatten, in which case queries go to the .bai.
+     */
+    private final ByteBuffer cache;
+
+    /**
+     * The most recently read reference sequence, or null if none has been read yet.
+     */
+    private GATKBAMIndexData lastSequenceRead = null;
+
+    /**
+     * Create a cached index, using the default sidecar location next to the index file.
+     * @param bamFile The BAM file being indexed; its size and modification time key the cache.
+     * @param indexFile The .bai file.
+     * @param sequenceDictionary Sequence dictionary of the BAM.
+     */
+    public GATKBAMIndexFromCache(final File bamFile, final File indexFile, final SAMSequenceDictionary sequenceDictionary) {
+        this(bamFile, indexFile, getDefaultCacheFile(indexFile), sequenceDictionary);
+    }
+
+    /**
+     * Create a cached index.
+     * @param bamFile The BAM file being indexed; its size and modification time key the cache.
+     * @param indexFile The .bai file.
+     * @param cacheFile The sidecar in which to store the flattened index.
+     * @param sequenceDictionary Sequence dictionary of the BAM.
+     */
+    public GATKBAMIndexFromCache(final File bamFile, final File indexFile, final File cacheFile, final SAMSequenceDictionary sequenceDictionary) {
+        super(indexFile, sequenceDictionary);
+
+        ByteBuffer mappedCache = mapCacheFile(cacheFile);
+        if(mappedCache == null || !isValid(mappedCache, bamFile, indexFile, getNumberOfReferences())) {
+            final ByteBuffer flattened = flatten(bamFile, indexFile);
+            mappedCache = flattened != null && writeCacheFile(cacheFile, flattened) ? mapCacheFile(cacheFile) : null;
+            if(mappedCache == null)
+                mappedCache = flattened;
+        }
+
+        cache = mappedCache;
+    }
+
+    /**
+     * Gets the default sidecar location for the given index file.
+     * @param indexFile The .bai file.
+     * @return The sidecar file, which may or may not exist.
+     */
+    public static File getDefaultCacheFile(final File indexFile) {
+        return new File(indexFile.getPath() + CACHE_FILE_EXTENSION);
+    }
+
+    @Override
+    public GATKBAMIndexData readReferenceSequence(final int referenceSequence) {
+        if (referenceSequence >= getNumberOfReferences())
+            throw new ReviewedGATKException("Invalid sequence number " + referenceSequence + " in index cache");
+
+        if(lastSequenceRead == null || lastSequenceRead.getReferenceSequence() != referenceSequence)
+            lastSequenceRead = cache != null ? decodeReferenceSequence(referenceSequence) : super.readReferenceSequence(referenceSequence);
+        return lastSequenceRead;
+    }
+
+    /**
+     * Builds the bins and linear index of the given reference sequence from the flattened index.
+     */
+    private GATKBAMIndexData decodeReferenceSequence(final int referenceSequence) {
+        final int sequenceStart = (int)cache.getLong(HEADER_SIZE + referenceSequence*LONG_SIZE_IN_BYTES);
+        final int binCount = cache.getInt(sequenceStart);
+        final int linearBinCount = cache.getInt(sequenceStart + INT_SIZE_IN_BYTES);
+
+        final int binNumbersStart = sequenceStart + 2*INT_SIZE_IN_BYTES;
+        final int chunkIndexStart = binNumbersStart + binCount*INT_SIZE_IN_BYTES;
+        final int chunksStart = chunkIndexStart + (binCount+1)*INT_SIZE_IN_BYTES;
+        final int totalChunks = cache.getInt(chunkIndexStart + binCount*INT_SIZE_IN_BYTES);
+        final int linearStart = chunksStart + 2*totalChunks*LONG_SIZE_IN_BYTES;
+
+        final List<GATKBin> bins = new ArrayList<>();
+        for(int i = 0; i < binCount; i++) {
+            final int binNumber = cache.getInt(binNumbersStart + i*INT_SIZE_IN_BYTES);
+            final int firstChunk = cache.getInt(chunkIndexStart + i*INT_SIZE_IN_BYTES);
+            final int lastChunk = cache.getInt(chunkIndexStart + (i+1)*INT_SIZE_IN_BYTES);
+
+            final GATKChunk[] chunks = new GATKChunk[lastChunk-firstChunk];
+            for(int c = firstChunk; c < lastChunk; c++) {
+                final int chunkOffset = chunksStart + 2*c*LONG_SIZE_IN_BYTES;
+                chunks[c-firstChunk] = new GATKChunk(cache.getLong(chunkOffset), cache.getLong(chunkOffset + LONG_SIZE_IN_BYTES));
+            }
+
+            final GATKBin bin = new GATKBin(referenceSequence, binNumber);
+            bin.setChunkList(chunks);
+            while(binNumber >= bins.size())
+                bins.add(null);
+            bins.set(binNumber, bin);
+        }
+
+        final long[] linearIndexEntries = new long[linearBinCount];
+        for(int i = 0; i < linearBinCount; i++)
+            linearIndexEntries[i] = cache.getLong(linearStart + i*LONG_SIZE_IN_BYTES);
+
+        return new GATKBAMIndexData(this, referenceSequence, bins, new LinearIndex(referenceSequence, 0, linearIndexEntries));
+    }
+
+    @Override
+    public long getStartOfLastLinearBin() {
+        return cache != null ? cache.getLong(HEADER_SIZE - LONG_SIZE_IN_BYTES) : super.getStartOfLastLinearBin();
+    }
+
+    /**
+     * Reads the entire .bai through the superclass and lays it out in the flat sidecar format.
+     * @return The flattened index, or null if it would be too large to address.
+     */
+    private ByteBuffer flatten(final File bamFile, final File indexFile) {
+        final int numSequences = getNumberOfReferences();
+        final List<GATKBAMIndexData> sequences = new ArrayList<>(numSequences);
+        long totalSize = HEADER_SIZE + (long)numSequences*LONG_SIZE_IN_BYTES;
+        for(int i = 0; i < numSequences; i++) {
+            final GATKBAMIndexData data = super.readReferenceSequence(i);
+            sequences.add(data);
+
+            int binCount = 0;
+            int chunkCount = 0;
+            for(final GATKBin bin: data.getBins()) {
+                if(bin == null)
+                    continue;
+                binCount++;
+                chunkCount += bin.getChunkList().length;
+            }
+            totalSize += 2*INT_SIZE_IN_BYTES + binCount*INT_SIZE_IN_BYTES + (binCount+1)*INT_SIZE_IN_BYTES
+                    + 2L*chunkCount*LONG_SIZE_IN_BYTES + (long)data.getLinearIndex().getIndexEntries().length*LONG_SIZE_IN_BYTES;
+        }
+
+        if(totalSize > Integer.MAX_VALUE) {
+            logger.debug("BAM index " + indexFile + " is too large to cache; reading it directly");
+            return null;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int)totalSize);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.put(CACHE_MAGIC);
+        buffer.putInt(CACHE_VERSION);
+        buffer.putLong(bamFile.length());
+        buffer.putLong(bamFile.lastModified());
+        buffer.putLong(indexFile.length());
+        buffer.putLong(indexFile.lastModified());
+        buffer.putInt(numSequences);
+        buffer.putLong(super.getStartOfLastLinearBin());
+
+        // Reserve space for the sequence offset table, then fill it in as the sequences are written.
+        final int sequenceTableStart = buffer.position();
+        buffer.position(sequenceTableStart + numSequences*LONG_SIZE_IN_BYTES);
+
+        for(int i = 0; i < numSequences; i++) {
+            buffer.putLong(sequenceTableStart + i*LONG_SIZE_IN_BYTES, buffer.position());
+
+            final List<GATKBin> bins = new ArrayList<>();
+            for(final GATKBin bin: sequences.get(i).getBins()) {
+                if(bin != null)
+                    bins.add(bin);
+            }
+            final long[] linearIndexEntries = sequences.get(i).getLinearIndex().getIndexEntries();
+
+            buffer.putInt(bins.size());
+            buffer.putInt(linearIndexEntries.length);
+            for(final GATKBin bin: bins)
+                buffer.putInt(bin.getBinNumber());
+            int firstChunk = 0;
+            for(final GATKBin bin: bins) {
+                buffer.putInt(firstChunk);
+                firstChunk += bin.getChunkList().length;
+            }
+            buffer.putInt(firstChunk);
+            for(final GATKBin bin: bins) {
+                for(final GATKChunk chunk: bin.getChunkList()) {
+                    buffer.putLong(chunk.getChunkStart());
+                    buffer.putLong(chunk.getChunkEnd());
+                }
+            }
+            for(final long linearIndexEntry: linearIndexEntries)
+                buffer.putLong(linearIndexEntry);
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Checks that the given flattened index was built from the current versions of the BAM and index.
+     */
+    private static boolean isValid(final ByteBuffer cache, final File bamFile, final File indexFile, final int sequenceCount) {
+        if(cache.limit() < HEADER_SIZE)
+            return false;
+        for(int i = 0; i < CACHE_MAGIC.length; i++) {
+            if(cache.get(i) != CACHE_MAGIC[i])
+                return false;
+        }
+        return cache.getInt(4) == CACHE_VERSION &&
+                cache.getLong(8) == bamFile.length() &&
+                cache.getLong(16) == bamFile.lastModified() &&
+                cache.getLong(24) == indexFile.length() &&
+                cache.getLong(32) == indexFile.lastModified() &&
+                cache.getInt(HEADER_SIZE - LONG_SIZE_IN_BYTES - INT_SIZE_IN_BYTES) == sequenceCount;
+    }
+
+    /**
+     * Maps the given sidecar file read-only.
+     * @return The mapping, or null if the file doesn't exist, is too large to map in one piece, or can't be mapped.
+     */
+    private static ByteBuffer mapCacheFile(final File cacheFile) {
+        if(!cacheFile.isFile())
+            return null;
+        if(cacheFile.length() > Integer.MAX_VALUE) {
+            logger.debug("BAM index cache " + cacheFile + " is too large to map");
+            return null;
+        }
+        try (final RandomAccessFile file = new RandomAccessFile(cacheFile, "r")) {
+            final ByteBuffer mapping = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            mapping.order(ByteOrder.LITTLE_ENDIAN);
+            return mapping;
+        }
+        catch(IOException ex) {
+            logger.debug("Unable to map BAM index cache " + cacheFile, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the flattened index to the sidecar, via a temporary file so that concurrent runs never see a partial cache.
+     * @return true if the sidecar was written.
+     */
+    private static boolean writeCacheFile(final File cacheFile, final ByteBuffer flattened) {
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+            try (final RandomAccessFile file = new RandomAccessFile(tempFile, "rw")) {
+                final ByteBuffer contents = flattened.duplicate();
+                while(contents.hasRemaining())
+                    file.getChannel().write(contents);
+            }
+            if(!tempFile.renameTo(cacheFile)) {
+                logger.debug("Unable to move BAM index cache into place at " + cacheFile);
+                return false;
+            }
+            return true;
+        }
+        catch(IOException ex) {
+            logger.debug("Unable to write BAM index cache " + cacheFile + "; keeping flattened index in memory", ex);
+            return false;
+        }
+        finally {
+            if(tempFile != null && tempFile.exists())
+                tempFile.delete();
+        }
+    }
+}
@@ -106,6 +106,14 @@ public class GATKBAMIndexFromFile extends GATKBAMIndex {
         closeIndexFile();
     }
 
+    /**
+     * Gets the number of reference sequences stored in this index.
+     * @return Number of reference sequences.
+     */
+    protected int getNumberOfReferences() {
+        return sequenceCount;
+    }
+
     public GATKBAMIndexData readReferenceSequence(final int referenceSequence) {
         openIndexFile();
 
@@ -0,0 +1,280 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import org.broadinstitute.gatk.utils.sam.SAMReaderID;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache of inflated BGZF blocks, keyed by reader and block address, shared by all of a
+ * dispatcher's block loaders.  With -nt, neighboring shards overlap at their edges, and without this cache each
+ * worker re-reads and re-inflates the blocks in the overlap.
+ *
+ * The cache is split into independently locked segments to keep contention between loaders low; each segment
+ * evicts its least recently used blocks once it exceeds its share of the total size budget.
+ *
+ * Blocks are inserted in the decompression pool's own buffers rather than in copies.  Each lookup or insertion
+ * pins its block until release() is called, and an evicted block's buffer goes back to the pool only once it's
+ * unpinned, so that no loader's buffer is reused while another loader is still copying out of it.
+ */
+class InflatedBlockCache {
+    /**
+     * Number of independently locked segments.
+     */
+    private static final int NUM_SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[NUM_SEGMENTS];
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * Pool to which the buffers of evicted blocks are returned, or null if they should just be dropped.
+     */
+    private final BlockDecompressionPool bufferPool;
+
+    /**
+     * Create a new cache whose evicted buffers are left to the garbage collector.
+     * @param maxSizeInBytes Total size of inflated data to retain across all segments.
+     */
+    public InflatedBlockCache(final long maxSizeInBytes) {
+        this(maxSizeInBytes,null);
+    }
+
+    /**
+     * Create a new cache.
+     * @param maxSizeInBytes Total size of inflated data to retain across all segments.
+     * @param bufferPool Pool to which the buffers of evicted blocks are returned, or null to drop them.
+     */
+    public InflatedBlockCache(final long maxSizeInBytes, final BlockDecompressionPool bufferPool) {
+        this.bufferPool = bufferPool;
+        for(int i = 0; i < NUM_SEGMENTS; i++)
+            segments[i] = new Segment(Math.max(1,maxSizeInBytes/NUM_SEGMENTS));
+    }
+
+    /**
+     * Look up an inflated block.
+     * @param reader Reader from which the block was loaded.
+     * @param blockAddress Address of the block within the file.
+     * @return The cached block, pinned until passed to release(), or null if it isn't in the cache.  The block's
+     *         contents must not be modified.
+     */
+    public CachedBlock get(final SAMReaderID reader, final long blockAddress) {
+        final BlockKey key = new BlockKey(reader,blockAddress);
+        final CachedBlock block = getSegment(key).get(key);
+        if(block != null)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return block;
+    }
+
+    /**
+     * Add an inflated block to the cache, evicting older blocks as necessary.
+     * @param reader Reader from which the block was loaded.
+     * @param blockAddress Address of the block within the file.
+     * @param block The inflated block.  The cache takes ownership of its contents, and the block stays pinned for
+     *              the caller until passed to release().
+     */
+    public void put(final SAMReaderID reader, final long blockAddress, final CachedBlock block) {
+        final BlockKey key = new BlockKey(reader,blockAddress);
+        getSegment(key).put(key,block);
+    }
+
+    /**
+     * Releases a block returned by get() or inserted by put(), once the caller is done reading it.
+     * @param block The block to release.
+     */
+    public void release(final CachedBlock block) {
+        if(block.unpin())
+            recycle(block);
+    }
+
+    private void recycle(final CachedBlock block) {
+        if(bufferPool != null)
+            bufferPool.releaseBuffer(block.data);
+    }
+
+    /**
+     * @return the number of lookups that found their block in the cache.
+     */
+    public long getNumHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that missed.
+     */
+    public long getNumMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of blocks evicted to stay within the size budget.
+     */
+    public long getNumEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the fraction of lookups that found their block in the cache, or 0 if nothing has been looked up.
+     */
+    public double getHitRate() {
+        final long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0.0 : (double)hits.get() / lookups;
+    }
+
+    private Segment getSegment(final BlockKey key) {
+        // Fold the high hash bits into the low ones that pick the segment, so the choice depends on the whole
+        // block address and reader rather than just on the last few bits of the block's compressed file offset.
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & 0x7fffffff) % NUM_SEGMENTS];
+    }
+
+    /**
+     * An inflated block, along with the address of the block following it in the file.
+     */
+    static class CachedBlock {
+        final byte[] data;
+        final int length;
+        final long nextBlockAddress;
+
+        /**
+         * Number of callers currently reading the block, and whether it has left the cache.  Guarded by this.
+         */
+        private int pins = 0;
+        private boolean evicted = false;
+
+        CachedBlock(final byte[] data, final long nextBlockAddress) {
+            this(data,data.length,nextBlockAddress);
+        }
+
+        /**
+         * @param data Buffer holding the inflated block.
+         * @param length Number of bytes of the block at the start of data.
+         * @param nextBlockAddress Address of the block following this one in the file.
+         */
+        CachedBlock(final byte[] data, final int length, final long nextBlockAddress) {
+            this.data = data;
+            this.length = length;
+            this.nextBlockAddress = nextBlockAddress;
+        }
+
+        private synchronized void pin() {
+            pins++;
+        }
+
+        /**
+         * @return true if the block has left the cache and this was its last pin, so its buffer may be reused.
+         */
+        private synchronized boolean unpin() {
+            return --pins == 0 && evicted;
+        }
+
+        /**
+         * @return true if nobody is reading the block, so its buffer may be reused.
+         */
+        private synchronized boolean evict() {
+            evicted = true;
+            return pins == 0;
+        }
+    }
+
+    private static class BlockKey {
+        private final SAMReaderID reader;
+        private final long blockAddress;
+
+        public BlockKey(final SAMReaderID reader, final long blockAddress) {
+            this.reader = reader;
+            this.blockAddress = blockAddress;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if(!(other instanceof BlockKey))
+                return false;
+            final BlockKey otherKey = (BlockKey)other;
+            return blockAddress == otherKey.blockAddress && reader.equals(otherKey.reader);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * reader.hashCode() + (int)(blockAddress ^ (blockAddress >>> 32));
+        }
+    }
+
+    /**
+     * A single LRU-ordered, size-bounded portion of the cache.
+     */
+    private class Segment {
+        private final long maxSizeInBytes;
+        private final LinkedHashMap<BlockKey,CachedBlock> blocks = new LinkedHashMap<BlockKey,CachedBlock>(16,0.75f,true);
+        private long sizeInBytes = 0;
+
+        public Segment(final long maxSizeInBytes) {
+            this.maxSizeInBytes = maxSizeInBytes;
+        }
+
+        public synchronized CachedBlock get(final BlockKey key) {
+            final CachedBlock block = blocks.get(key);
+            // Pin while still holding the segment lock, so the block can't be evicted and recycled in between.
+            if(block != null)
+                block.pin();
+            return block;
+        }
+
+        public synchronized void put(final BlockKey key, final CachedBlock block) {
+            block.pin();
+            final CachedBlock previous = blocks.put(key,block);
+            if(previous != null) {
+                // Two loaders raced to load the same block; the loser's copy leaves the cache.
+                sizeInBytes -= previous.data.length;
+                if(previous != block && previous.evict())
+                    recycle(previous);
+            }
+            sizeInBytes += block.data.length;
+
+            final Iterator<Map.Entry<BlockKey,CachedBlock>> eldest = blocks.entrySet().iterator();
+            while(sizeInBytes > maxSizeInBytes && eldest.hasNext()) {
+                final Map.Entry<BlockKey,CachedBlock> entry = eldest.next();
+                // Never evict the block just added; an oversized block simply won't stay past the next insertion.
+                if(entry.getKey().equals(key))
+                    break;
+                sizeInBytes -= entry.getValue().data.length;
+                eldest.remove();
+                evictions.incrementAndGet();
+                if(entry.getValue().evict())
+                    recycle(entry.getValue());
+            }
+        }
+    }
+}
@@ -55,11 +55,46 @@ public class IntervalSharder implements Iterator<FilePointer> {
         return new IntervalSharder(BAMScheduler.createOverMappedReads(dataSource),parser);
     }
 
+    /**
+     * Shard over all mapped reads, computing the file pointers for each contig concurrently.
+     * @param dataSource BAM source.
+     * @param parser Parser for interval manipulation.
+     * @param numSchedulingThreads Number of threads with which to compute file pointers.  If 1, scheduling is sequential.
+     * @return A sharder producing the same file pointers as the sequential version.
+     */
+    public static IntervalSharder shardOverMappedReads(final SAMDataSource dataSource, final GenomeLocParser parser, final int numSchedulingThreads) {
+        if(!useParallelScheduling(dataSource,numSchedulingThreads))
+            return shardOverMappedReads(dataSource,parser);
+        final GenomeLocSortedSet intervals = GenomeLocSortedSet.createSetFromSequenceDictionary(dataSource.getHeader().getSequenceDictionary());
+        return new IntervalSharder(new ParallelBAMScheduler(dataSource,IntervalMergingRule.ALL,intervals,numSchedulingThreads),parser);
+    }
+
     public static IntervalSharder shardOverIntervals(final SAMDataSource dataSource, final GenomeLocSortedSet loci, final IntervalMergingRule intervalMergeRule) {
         return new IntervalSharder(BAMScheduler.createOverIntervals(dataSource,intervalMergeRule,loci),loci.getGenomeLocParser());
     }
 
-    private IntervalSharder(final BAMScheduler scheduler, final GenomeLocParser parser) {
+    /**
+     * Shard over the given intervals, computing the file pointers for each contig concurrently.
+     * @param dataSource BAM source.
+     * @param loci Intervals over which to shard.
+     * @param intervalMergeRule How adjacent intervals should be merged.
+     * @param numSchedulingThreads Number of threads with which to compute file pointers.  If 1, scheduling is sequential.
+     * @return A sharder producing the same file pointers as the sequential version.
+     */
+    public static IntervalSharder shardOverIntervals(final SAMDataSource dataSource, final GenomeLocSortedSet loci, final IntervalMergingRule intervalMergeRule, final int numSchedulingThreads) {
+        if(!useParallelScheduling(dataSource,numSchedulingThreads))
+            return shardOverIntervals(dataSource,loci,intervalMergeRule);
+        return new IntervalSharder(new ParallelBAMScheduler(dataSource,intervalMergeRule,loci,numSchedulingThreads),loci.getGenomeLocParser());
+    }
+
+    /**
+     * Parallel scheduling only applies when every BAM is indexed; otherwise a single file pointer covers everything.
+     */
+    private static boolean useParallelScheduling(final SAMDataSource dataSource, final int numSchedulingThreads) {
+        return numSchedulingThreads > 1 && !dataSource.getReaderIDs().isEmpty() && dataSource.hasIndex();
+    }
+
+    private IntervalSharder(final Iterator<FilePointer> scheduler, final GenomeLocParser parser) {
         wrappedIterator = new PeekableIterator<FilePointer>(scheduler);
         this.parser = parser;
     }
@@ -25,27 +25,75 @@
 
 package org.broadinstitute.gatk.engine.datasources.reads;
 
+import htsjdk.samtools.GATKBAMFileSpan;
+import org.broadinstitute.gatk.utils.GenomeLoc;
+import org.broadinstitute.gatk.utils.GenomeLocSortedSet;
+import org.broadinstitute.gatk.utils.sam.SAMReaderID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
 
 /**
  * Batch granular file pointers into potentially larger shards.
+ *
+ * If a throughput monitor is supplied, upcoming file pointers are resized toward a target wall time per shard:
+ * runs of small file pointers on the same contig are coalesced, and file pointers much larger than the target
+ * (e.g. over regions of extreme depth) are split into several smaller ones, re-querying the index for each piece.
+ * The index can't resolve positions within its smallest (16kb) bins, so pieces that the index maps to the same
+ * file spans are merged back together rather than having each of them read and filter the same reads.
  */
 public class LocusShardBalancer extends ShardBalancer {
+    /**
+     * File pointers are only split if they are at least this many times larger than the target size.
+     */
+    private static final int SPLIT_THRESHOLD_FACTOR = 2;
+
+    /**
+     * Maximum number of pieces into which a single file pointer will be split.
+     */
+    private static final int MAX_SPLITS_PER_FILE_POINTER = 16;
+
+    /**
+     * If non-null, used to size each shard so that it takes roughly a fixed wall time to traverse.
+     */
+    private final ShardThroughputMonitor throughputMonitor;
+
+    public LocusShardBalancer() {
+        this(null);
+    }
+
+    /**
+     * Create a balancer that resizes file pointers based on the throughput of the traversal.
+     * @param throughputMonitor Source of throughput measurements, or null to use file pointers as-is.
+     */
+    public LocusShardBalancer(final ShardThroughputMonitor throughputMonitor) {
+        this.throughputMonitor = throughputMonitor;
+    }
+
     /**
      * Convert iterators of file pointers into balanced iterators of shards.
      * @return An iterator over balanced shards.
      */
     public Iterator<Shard> iterator() {
         return new Iterator<Shard>() {
+            /**
+             * Pieces of a split file pointer that have yet to be handed out.
+             */
+            private final Queue<FilePointer> pendingSplits = new LinkedList<FilePointer>();
+
             public boolean hasNext() {
-                return filePointers.hasNext();
+                return !pendingSplits.isEmpty() || filePointers.hasNext();
             }
 
             public Shard next() {
-                FilePointer current = filePointers.next();
+                FilePointer current = !pendingSplits.isEmpty() ? pendingSplits.remove() : nextBalancedFilePointer(pendingSplits);
 
                 // FilePointers have already been combined as necessary at the IntervalSharder level. No
-                // need to do so again here.
+                // need to do so again here, unless we're adaptively balancing shard sizes.
 
                 return new LocusShard(parser,readsDataSource,current.getLocations(),current.fileSpans);
             }
@@ -55,4 +103,122 @@ public class LocusShardBalancer extends ShardBalancer {
             }
         };
     }
+
+    /**
+     * Pull the next file pointer, coalescing or splitting it toward the target shard size if one is known.
+     * @param pendingSplits Queue to which any additional pieces of a split file pointer should be added.
+     * @return The next file pointer to turn into a shard.
+     */
+    private FilePointer nextBalancedFilePointer(final Queue<FilePointer> pendingSplits) {
+        final FilePointer current = filePointers.next();
+
+        final long targetSize = throughputMonitor != null ? throughputMonitor.getTargetWorkSize() : -1;
+        if ( targetSize < 0 || ! isResizable(current) )
+            return current;
+
+        final long currentSize = current.size();
+        if ( currentSize > SPLIT_THRESHOLD_FACTOR * targetSize ) {
+            final List<FilePointer> pieces = split(current, (int)Math.min(MAX_SPLITS_PER_FILE_POINTER, (currentSize + targetSize - 1) / targetSize));
+            pendingSplits.addAll(pieces.subList(1, pieces.size()));
+            return pieces.get(0);
+        }
+
+        List<FilePointer> toCombine = null;
+        long combinedSize = currentSize;
+        while ( filePointers.hasNext() &&
+                isResizable(filePointers.peek()) &&
+                filePointers.peek().getContigIndex() == current.getContigIndex() &&
+                combinedSize + filePointers.peek().size() <= targetSize ) {
+            if ( toCombine == null ) {
+                toCombine = new ArrayList<FilePointer>();
+                toCombine.add(current);
+            }
+            combinedSize += filePointers.peek().size();
+            toCombine.add(filePointers.next());
+        }
+
+        return toCombine != null ? FilePointer.union(toCombine, parser) : current;
+    }
+
+    /**
+     * Can the given file pointer be split or merged with its neighbors?
+     * @param filePointer The file pointer to test.
+     * @return true if the file pointer covers mapped intervals of an indexed data source.
+     */
+    private boolean isResizable(final FilePointer filePointer) {
+        return ! filePointer.isRegionUnmapped &&
+               ! filePointer.isMonolithic() &&
+               ! filePointer.getLocations().isEmpty() &&
+               readsDataSource != null && readsDataSource.hasIndex();
+    }
+
+    /**
+     * Split the given file pointer into pieces covering roughly equal genomic extents, and compute the file
+     * spans for each piece from the index so that the pieces don't all read the whole of the original span.
+     * Adjacent pieces with identical file spans, which lie within the same lowest-level bins of the index,
+     * are merged, so that no two pieces read the same blocks.
+     * @param filePointer File pointer to split.
+     * @param numPieces Desired number of pieces.
+     * @return The pieces, in genomic order.  Never empty, but may hold fewer than numPieces pieces.
+     */
+    private List<FilePointer> split(final FilePointer filePointer, final int numPieces) {
+        long totalLength = 0;
+        for ( final GenomeLoc location : filePointer.getLocations() )
+            totalLength += location.size();
+        final long pieceLength = Math.max(1, (totalLength + numPieces - 1) / numPieces);
+
+        final List<List<GenomeLoc>> pieceLocations = new ArrayList<List<GenomeLoc>>(numPieces);
+        List<GenomeLoc> currentPiece = new ArrayList<GenomeLoc>();
+        long remainingInPiece = pieceLength;
+        for ( final GenomeLoc location : filePointer.getLocations() ) {
+            GenomeLoc remainder = location;
+            while ( remainder != null ) {
+                if ( remainder.size() <= remainingInPiece ) {
+                    currentPiece.add(remainder);
+                    remainingInPiece -= remainder.size();
+                    remainder = null;
+                }
+                else {
+                    final int headStop = remainder.getStart() + (int)remainingInPiece - 1;
+                    currentPiece.add(parser.createGenomeLoc(remainder.getContig(), remainder.getStart(), headStop));
+                    remainder = parser.createGenomeLoc(remainder.getContig(), headStop + 1, remainder.getStop());
+                    remainingInPiece = 0;
+                }
+
+                if ( remainingInPiece == 0 ) {
+                    pieceLocations.add(currentPiece);
+                    currentPiece = new ArrayList<GenomeLoc>();
+                    remainingInPiece = pieceLength;
+                }
+            }
+        }
+        if ( ! currentPiece.isEmpty() )
+            pieceLocations.add(currentPiece);
+
+        final List<FilePointer> pieces = new ArrayList<FilePointer>(pieceLocations.size());
+        for ( final List<GenomeLoc> locations : pieceLocations ) {
+            final FilePointer piece;
+            final List<FilePointer> scheduled = new ArrayList<FilePointer>();
+            final BAMScheduler scheduler = BAMScheduler.createOverIntervals(readsDataSource, filePointer.getIntervalMergingRule(), new GenomeLocSortedSet(parser, locations));
+            while ( scheduler.hasNext() )
+                scheduled.add(scheduler.next());
+            scheduler.close();
+
+            if ( scheduled.isEmpty() ) {
+                // No index data at all for this piece; make sure none of the readers are asked for anything.
+                piece = new FilePointer(filePointer.getIntervalMergingRule(), locations);
+                for ( final SAMReaderID reader : filePointer.getFileSpans().keySet() )
+                    piece.addFileSpans(reader, new GATKBAMFileSpan());
+            }
+            else
+                piece = FilePointer.union(scheduled, parser);
+
+            final FilePointer previous = pieces.isEmpty() ? null : pieces.get(pieces.size() - 1);
+            if ( previous != null && previous.getFileSpans().equals(piece.getFileSpans()) )
+                pieces.set(pieces.size() - 1, FilePointer.union(Arrays.asList(previous, piece), parser));
+            else
+                pieces.add(piece);
+        }
+        return pieces;
+    }
 }
@@ -0,0 +1,187 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import org.broadinstitute.gatk.utils.GenomeLoc;
+import org.broadinstitute.gatk.utils.GenomeLocSortedSet;
+import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
+import org.broadinstitute.gatk.utils.interval.IntervalMergingRule;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Computes file pointers for each contig of an interval list concurrently, presenting them as a single stream in
+ * the same order as a sequential BAMScheduler would.
+ *
+ * Each contig is scheduled by its own BAMScheduler on a fork-join pool.  A bounded number of contigs are scheduled
+ * ahead of the consumer, so that memory use stays proportional to the number of threads rather than to the size
+ * of the interval list.
+ */
+public class ParallelBAMScheduler implements Iterator<FilePointer> {
+    /**
+     * The number of contigs scheduled ahead of the consumer, per thread.
+     */
+    private static final int CONTIGS_AHEAD_PER_THREAD = 2;
+
+    private final SAMDataSource dataSource;
+
+    private final IntervalMergingRule intervalMergingRule;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Per-contig partitions of the interval list, in order, which have not yet been submitted.
+     */
+    private final Iterator<GenomeLocSortedSet> partitions;
+
+    /**
+     * Scheduling work submitted but not yet consumed, in contig order.
+     */
+    private final Queue<Future<List<FilePointer>>> pending = new LinkedList<Future<List<FilePointer>>>();
+
+    private final int maxPending;
+
+    /**
+     * File pointers for the contig currently being consumed.
+     */
+    private Iterator<FilePointer> current = Collections.<FilePointer>emptyList().iterator();
+
+    /**
+     * Create a new parallel scheduler.
+     * @param dataSource BAM source.
+     * @param mergeRule How adjacent intervals should be merged.
+     * @param loci Intervals over which to schedule.
+     * @param numThreads Number of threads with which to compute schedules.
+     */
+    public ParallelBAMScheduler(final SAMDataSource dataSource, final IntervalMergingRule mergeRule, final GenomeLocSortedSet loci, final int numThreads) {
+        if(numThreads < 1)
+            throw new ReviewedGATKException("Number of scheduling threads must be at least 1; got " + numThreads);
+
+        this.dataSource = dataSource;
+        this.intervalMergingRule = mergeRule;
+        this.pool = new ForkJoinPool(numThreads);
+        this.partitions = partitionByContig(loci).iterator();
+        this.maxPending = numThreads * CONTIGS_AHEAD_PER_THREAD;
+    }
+
+    /**
+     * Splits a sorted interval list into one interval list per contig, preserving order.  The unmapped
+     * pseudo-interval, if present, forms its own partition.
+     * @param loci Intervals to split.
+     * @return A list of per-contig interval lists.
+     */
+    static List<GenomeLocSortedSet> partitionByContig(final GenomeLocSortedSet loci) {
+        final List<GenomeLocSortedSet> partitions = new ArrayList<GenomeLocSortedSet>();
+        GenomeLocSortedSet currentPartition = null;
+        GenomeLoc previous = null;
+        for(final GenomeLoc locus: loci) {
+            if(previous == null || GenomeLoc.isUnmapped(locus) || GenomeLoc.isUnmapped(previous) || locus.getContigIndex() != previous.getContigIndex()) {
+                currentPartition = new GenomeLocSortedSet(loci.getGenomeLocParser());
+                partitions.add(currentPartition);
+            }
+            currentPartition.add(locus);
+            previous = locus;
+        }
+        return partitions;
+    }
+
+    public boolean hasNext() {
+        while(!current.hasNext() && (partitions.hasNext() || !pending.isEmpty())) {
+            while(pending.size() < maxPending && partitions.hasNext())
+                pending.add(pool.submit(new ContigScheduler(partitions.next())));
+            current = waitFor(pending.remove()).iterator();
+        }
+
+        if(!current.hasNext())
+            close();
+
+        return current.hasNext();
+    }
+
+    public FilePointer next() {
+        if(!hasNext())
+            throw new NoSuchElementException("No next element available in parallel BAM scheduler");
+        return current.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Unable to remove FilePointers from a ParallelBAMScheduler");
+    }
+
+    /**
+     * Abandon any outstanding scheduling work and release the threads.
+     */
+    public void close() {
+        for(final Future<List<FilePointer>> future: pending)
+            future.cancel(true);
+        pending.clear();
+        pool.shutdownNow();
+    }
+
+    private List<FilePointer> waitFor(final Future<List<FilePointer>> future) {
+        try {
+            return future.get();
+        }
+        catch(InterruptedException ex) {
+            throw new ReviewedGATKException("Interrupted while waiting for BAM schedule", ex);
+        }
+        catch(ExecutionException ex) {
+            // Preserve user-facing errors such as missing contigs.
+            if(ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException)ex.getCause();
+            throw new ReviewedGATKException("Unable to compute BAM schedule", ex.getCause());
+        }
+    }
+
+    /**
+     * Computes all of the file pointers for a single contig.
+     */
+    private class ContigScheduler implements Callable<List<FilePointer>> {
+        private final GenomeLocSortedSet contigLoci;
+
+        public ContigScheduler(final GenomeLocSortedSet contigLoci) {
+            this.contigLoci = contigLoci;
+        }
+
+        @Override
+        public List<FilePointer> call() {
+            final BAMScheduler scheduler = BAMScheduler.createOverIntervals(dataSource, intervalMergingRule, contigLoci);
+            try {
+                final List<FilePointer> filePointers = new ArrayList<FilePointer>();
+                while(scheduler.hasNext())
+                    filePointers.add(scheduler.next());
+                return filePointers;
+            }
+            finally {
+                scheduler.close();
+            }
+        }
+    }
+}
@@ -75,13 +75,28 @@ public class ReadShard extends Shard {
      */
     public static int MAX_READS = DEFAULT_MAX_READS;
 
+    /**
+     * The maximum number of reads to buffer in this particular shard.
+     */
+    private final int maxReads;
+
     /**
      * The reads making up this shard.
      */
-    private final Collection<SAMRecord> reads = new ArrayList<SAMRecord>(MAX_READS);
+    private final Collection<SAMRecord> reads;
 
     public ReadShard(GenomeLocParser parser, SAMDataSource readsDataSource, Map<SAMReaderID,SAMFileSpan> fileSpans, List<GenomeLoc> loci, boolean isUnmapped) {
+        this(parser, readsDataSource, fileSpans, loci, isUnmapped, MAX_READS);
+    }
+
+    /**
+     * Create a read shard buffering up to the given number of reads, rather than the global default.
+     * @param maxReads Maximum number of reads to buffer in this shard.
+     */
+    public ReadShard(GenomeLocParser parser, SAMDataSource readsDataSource, Map<SAMReaderID,SAMFileSpan> fileSpans, List<GenomeLoc> loci, boolean isUnmapped, int maxReads) {
         super(parser, ShardType.READ, loci, readsDataSource, fileSpans, isUnmapped);
+        this.maxReads = maxReads;
+        this.reads = new ArrayList<SAMRecord>(Math.min(maxReads, MAX_READS));
     }
 
     /**
@@ -127,7 +142,24 @@ public class ReadShard extends Shard {
      * @return True if this shard's buffer is full (and the shard can buffer reads).
      */
     public boolean isBufferFull() {
-        return reads.size() > ReadShard.MAX_READS;
+        return reads.size() > maxReads;
+    }
+
+    /**
+     * Gets the maximum number of reads this shard will buffer.
+     * @return maximum number of reads.
+     */
+    public int getMaxReads() {
+        return maxReads;
+    }
+
+    /**
+     * For read shards, the work is measured by the number of reads buffered.
+     * @return number of reads in this shard.
+     */
+    @Override
+    public long getWorkSize() {
+        return reads.size();
     }
 
     /**
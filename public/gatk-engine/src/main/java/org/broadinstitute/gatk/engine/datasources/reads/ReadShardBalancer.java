@@ -68,6 +68,41 @@ public class ReadShardBalancer extends ShardBalancer {
 
     private static Logger logger = Logger.getLogger(ReadShardBalancer.class);
 
+    /**
+     * Adaptive shard sizes are kept within this factor of the configured read buffer size.
+     */
+    private static final int MAX_ADAPTIVE_RESIZE_FACTOR = 10;
+
+    /**
+     * If non-null, used to size each shard so that it takes roughly a fixed wall time to traverse.
+     */
+    private final ShardThroughputMonitor throughputMonitor;
+
+    public ReadShardBalancer() {
+        this(null);
+    }
+
+    /**
+     * Create a balancer that sizes read shards based on the throughput of the traversal.
+     * @param throughputMonitor Source of throughput measurements, or null to always use the configured read buffer size.
+     */
+    public ReadShardBalancer(final ShardThroughputMonitor throughputMonitor) {
+        this.throughputMonitor = throughputMonitor;
+    }
+
+    /**
+     * Determine how many reads should go into the next shard.
+     * @return The configured read buffer size, adjusted toward the target shard time if adaptive sizing is enabled.
+     */
+    private int getNextShardMaxReads() {
+        final long targetReads = throughputMonitor != null ? throughputMonitor.getTargetWorkSize() : -1;
+        if ( targetReads < 0 )
+            return ReadShard.MAX_READS;
+        final long minReads = Math.max(1, ReadShard.MAX_READS / MAX_ADAPTIVE_RESIZE_FACTOR);
+        final long maxReads = (long)ReadShard.MAX_READS * MAX_ADAPTIVE_RESIZE_FACTOR;
+        return (int)Math.min(maxReads, Math.max(minReads, targetReads));
+    }
+
     /**
      * Convert iterators of file pointers into balanced iterators of shards.
      * @return An iterator over balanced shards.
@@ -141,7 +176,7 @@ public class ReadShardBalancer extends ShardBalancer {
                     // At this point our currentContigReadsIterator may be null or non-null depending on whether or not
                     // this is our first shard for this file pointer.
                     if ( currentContigFilePointer != null ) {
-                        Shard shard = new ReadShard(parser,readsDataSource, currentContigFilePointer.fileSpans, currentContigFilePointer.locations, currentContigFilePointer.isRegionUnmapped);
+                        Shard shard = new ReadShard(parser,readsDataSource, currentContigFilePointer.fileSpans, currentContigFilePointer.locations, currentContigFilePointer.isRegionUnmapped, getNextShardMaxReads());
 
                         // Create a new reads iterator only when we've just advanced to the file pointer for the next
                         // contig. It's essential that the iterators persist across all shards that share the same contig
@@ -167,6 +167,11 @@ public class SAMDataSource {
      */
     private final IntervalMergingRule intervalMergingRule;
 
+    /**
+     * Size, in bytes, above which a BAM schedule is spilled from memory to a temporary file.
+     */
+    private final long bamScheduleSpillThreshold;
+
     /**
      * Static set of unsupported programs that create bam files.
      * The key is the PG record ID and the value is the name of the tool that created it
@@ -277,19 +282,95 @@ public class SAMDataSource {
             final boolean keepReadsInLIBS,
             final Map<String, String> sampleRenameMap,
             final IntervalMergingRule intervalMergingRule) {
+        this(   referenceFile,
+                samFiles,
+                threadAllocation,
+                numFileHandles,
+                genomeLocParser,
+                useOriginalBaseQualities,
+                strictness,
+                readBufferSize,
+                downsamplingMethod,
+                exclusionList,
+                supplementalFilters,
+                readTransformers,
+                includeReadsWithDeletionAtLoci,
+                defaultBaseQualities,
+                removeProgramRecords,
+                keepReadsInLIBS,
+                sampleRenameMap,
+                intervalMergingRule,
+                false,
+                false,
+                BAMSchedule.DEFAULT_SPILL_THRESHOLD,
+                0,
+                1);
+    }
+
+    /**
+     * Create a new SAM data source given the supplied read metadata.
+     * @param referenceFile reference file.
+     * @param samFiles list of reads files.
+     * @param useOriginalBaseQualities True if original base qualities should be used.
+     * @param strictness Stringency of reads file parsing.
+     * @param readBufferSize Number of reads to hold in memory per BAM.
+     * @param downsamplingMethod Method for downsampling reads at a given locus.
+     * @param exclusionList what safety checks we're willing to let slide
+     * @param supplementalFilters additional filters to dynamically apply.
+     * @param includeReadsWithDeletionAtLoci if 'true', the base pileups sent to the walker's map() method
+     *         will explicitly list reads with deletion over the current reference base; otherwise, only observed
+     *        bases will be seen in the pileups, and the deletions will be skipped silently.
+     * @param defaultBaseQualities if the reads have incomplete quality scores, set them all to defaultBaseQuality.
+     * @param keepReadsInLIBS should we keep a unique list of reads in LIBS?
+     * @param sampleRenameMap Map of BAM file to new sample ID used during on-the-fly runtime sample renaming.
+     *                        Will be null if we're not doing sample renaming.
+     * @param intervalMergingRule how are adjacent intervals merged by the sharder
+     * @param useMemoryMappedIO if true, IO threads read BGZF blocks from memory mappings of the BAM files
+     * @param useBAMIndexCache if true, keep a flattened copy of each BAM index in a sidecar file and reuse it across runs
+     * @param bamScheduleSpillThreshold size, in bytes, above which a BAM schedule is spilled from memory to disk
+     * @param inflatedBlockCacheSize size, in bytes, of the cache of inflated BGZF blocks shared by IO threads; 0 disables it
+     * @param numPileupSampleThreads number of threads across which LIBS splits the samples of each pileup
+     */
+    public SAMDataSource(
+            final File referenceFile,
+            Collection<SAMReaderID> samFiles,
+            ThreadAllocation threadAllocation,
+            Integer numFileHandles,
+            GenomeLocParser genomeLocParser,
+            boolean useOriginalBaseQualities,
+            ValidationStringency strictness,
+            Integer readBufferSize,
+            DownsamplingMethod downsamplingMethod,
+            ValidationExclusion exclusionList,
+            Collection<ReadFilter> supplementalFilters,
+            List<ReadTransformer> readTransformers,
+            boolean includeReadsWithDeletionAtLoci,
+            byte defaultBaseQualities,
+            boolean removeProgramRecords,
+            final boolean keepReadsInLIBS,
+            final Map<String, String> sampleRenameMap,
+            final IntervalMergingRule intervalMergingRule,
+            final boolean useMemoryMappedIO,
+            final boolean useBAMIndexCache,
+            final long bamScheduleSpillThreshold,
+            final long inflatedBlockCacheSize,
+            final int numPileupSampleThreads) {
 
         this.referenceFile = referenceFile;
         this.readMetrics = new ReadMetrics();
         this.genomeLocParser = genomeLocParser;
         this.intervalMergingRule = intervalMergingRule;
+        this.bamScheduleSpillThreshold = bamScheduleSpillThreshold;
 
         readerIDs = samFiles;
 
         this.threadAllocation = threadAllocation;
         // TODO: Consider a borrowed-thread dispatcher implementation.
         if(this.threadAllocation.getNumIOThreads() > 0) {
-            logger.info("Running in asynchronous I/O mode; number of threads = " + this.threadAllocation.getNumIOThreads());
-            dispatcher = new BGZFBlockLoadingDispatcher(this.threadAllocation.getNumIOThreads(), numFileHandles != null ? numFileHandles : 1);
+            logger.info("Running in asynchronous I/O mode; number of threads = " + this.threadAllocation.getNumIOThreads() +
+                    (useMemoryMappedIO ? ", using memory-mapped reads" : ""));
+            dispatcher = new BGZFBlockLoadingDispatcher(this.threadAllocation.getNumIOThreads(), numFileHandles != null ? numFileHandles : 1,
+                    BGZFBlockLoadingDispatcher.DEFAULT_MAX_LOADS_IN_FLIGHT_PER_FILE, useMemoryMappedIO, inflatedBlockCacheSize);
         }
         else
             dispatcher = null;
@@ -352,7 +433,8 @@ public class SAMDataSource {
                 readTransformers,
                 includeReadsWithDeletionAtLoci,
                 defaultBaseQualities,
-                keepReadsInLIBS);
+                keepReadsInLIBS,
+                numPileupSampleThreads);
 
         // cache the read group id (original) -> read group id (merged)
         // and read group id (merged) -> read group id (original) mappings.
@@ -392,7 +474,9 @@ public class SAMDataSource {
         for(SAMReaderID id: readerIDs) {
             File indexFile = findIndexFile(id.getSamFile());
             if(indexFile != null) {
-                bamIndices.put(id, new GATKBAMIndexFromFile(indexFile, samSequenceDictionary));
+                bamIndices.put(id, useBAMIndexCache ?
+                        new GATKBAMIndexFromCache(id.getSamFile(), indexFile, samSequenceDictionary) :
+                        new GATKBAMIndexFromFile(indexFile, samSequenceDictionary));
                 continue;
             }
 
@@ -499,6 +583,14 @@ public class SAMDataSource {
         return mergedToOriginalReadGroupMappings.get(mergedReadGroupId);
     }
 
+    /**
+     * Gets the size, in bytes, above which BAM schedules built over this data source are spilled to disk.
+     * @return The spill threshold, in bytes.
+     */
+    public long getBAMScheduleSpillThreshold() {
+        return bamScheduleSpillThreshold;
+    }
+
     /**
      * Gets the index for a particular reader.  Always preloaded.
      * @param id Id of the reader.
@@ -564,6 +656,15 @@ public class SAMDataSource {
         this.readMetrics.incrementMetrics(readMetrics);
     }
 
+    /**
+     * Print statistics about asynchronous BGZF block loading, if asynchronous I/O is enabled.
+     * @param logger logger to which to write.
+     */
+    public void printBlockLoadingStatistics(final Logger logger) {
+        if(dispatcher != null)
+            dispatcher.printStatistics(logger);
+    }
+
     public GATKSAMIterator seek(Shard shard) {
         if(shard.buffersReads()) {
             return shard.iterator();
@@ -1216,6 +1317,14 @@ public class SAMDataSource {
         return SamFiles.findIndex(bamFile);
     }
 
+    /**
+     * Scheduling happens before traversal begins, so it can borrow all of the threads allocated to the traversal.
+     * @return the number of threads with which to compute file pointers.
+     */
+    private int getNumSchedulingThreads() {
+        return threadAllocation.getNumDataThreads() * threadAllocation.getNumCPUThreadsPerDataThread();
+    }
+
     /**
      * Creates a BAM schedule over all reads in the BAM file, both mapped and unmapped.  The outgoing stream
      * will be as granular as possible given our current knowledge of the best ways to split up BAM files.
@@ -1234,7 +1343,7 @@ public class SAMDataSource {
      * @return non-null initialized version of the shard balancer
      */
     public Iterable<Shard> createShardIteratorOverMappedReads(final ShardBalancer shardBalancer) {
-        shardBalancer.initialize(this,IntervalSharder.shardOverMappedReads(this,genomeLocParser),genomeLocParser);
+        shardBalancer.initialize(this,IntervalSharder.shardOverMappedReads(this,genomeLocParser,getNumSchedulingThreads()),genomeLocParser);
         return shardBalancer;
     }
 
@@ -1247,7 +1356,7 @@ public class SAMDataSource {
     public Iterable<Shard> createShardIteratorOverIntervals(final GenomeLocSortedSet intervals,final ShardBalancer shardBalancer) {
         if(intervals == null)
             throw new ReviewedGATKException("Unable to create schedule from intervals; no intervals were provided.");
-        shardBalancer.initialize(this,IntervalSharder.shardOverIntervals(SAMDataSource.this,intervals,intervalMergingRule),genomeLocParser);
+        shardBalancer.initialize(this,IntervalSharder.shardOverIntervals(SAMDataSource.this,intervals,intervalMergingRule,getNumSchedulingThreads()),genomeLocParser);
         return shardBalancer;
     }
 }
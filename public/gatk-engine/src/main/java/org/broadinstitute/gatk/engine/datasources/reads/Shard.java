@@ -26,6 +26,7 @@
 package org.broadinstitute.gatk.engine.datasources.reads;
 
 import htsjdk.samtools.util.PeekableIterator;
+import htsjdk.samtools.GATKBAMFileSpan;
 import htsjdk.samtools.SAMFileSpan;
 import htsjdk.samtools.SAMRecord;
 import org.broadinstitute.gatk.engine.ReadMetrics;
@@ -150,6 +151,20 @@ public abstract class Shard implements HasGenomeLocation {
         return Collections.unmodifiableMap(fileSpans);
     }    
 
+    /**
+     * Estimates the amount of work needed to traverse this shard, for use in balancing shard sizes.
+     * By default this is the size of the file spans backing the shard.
+     * @return An estimate of the work in this shard, or 0 if this shard isn't backed by reads.
+     */
+    public long getWorkSize() {
+        if ( fileSpans == null )
+            return 0;
+        long size = 0;
+        for ( final SAMFileSpan fileSpan : fileSpans.values() )
+            size += new GATKBAMFileSpan(fileSpan).size();
+        return size;
+    }
+
     /**
      * Returns the span of the genomeLocs comprising this shard
      * @return a GenomeLoc that starts as the first position in getGenomeLocs() and stops at the stop of the last
@@ -0,0 +1,106 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
+
+/**
+ * Tracks how quickly the traversal is getting through shards, so that shard balancers can size upcoming
+ * shards to take roughly a fixed amount of wall time.  Work is measured in whatever units Shard.getWorkSize()
+ * reports for the shard type in use; throughput is an exponentially weighted moving average over completed
+ * shards, so that the estimate follows changes in depth or complexity along the genome.
+ *
+ * Thread-safe: traversal threads record completed shards while the shard balancer reads the target size.
+ */
+public class ShardThroughputMonitor {
+    /**
+     * Weight given to the most recently completed shard in the moving average.
+     */
+    private static final double SMOOTHING_FACTOR = 0.25;
+
+    /**
+     * Number of shards that must complete before a target size is estimated.
+     */
+    private static final int MIN_SHARDS_BEFORE_ESTIMATING = 3;
+
+    /**
+     * Desired wall time per shard, in nanoseconds.
+     */
+    private final long targetNanosPerShard;
+
+    /**
+     * Moving average of work units processed per nanosecond.
+     */
+    private double workPerNano = 0.0;
+
+    /**
+     * Number of shards recorded so far.
+     */
+    private long numShardsRecorded = 0;
+
+    /**
+     * Create a new monitor aiming for the given wall time per shard.
+     * @param targetSecondsPerShard Desired wall time per shard, in seconds.  Must be positive.
+     */
+    public ShardThroughputMonitor(final double targetSecondsPerShard) {
+        if ( targetSecondsPerShard <= 0 )
+            throw new ReviewedGATKException("Target time per shard must be positive, but got " + targetSecondsPerShard);
+        this.targetNanosPerShard = (long)(targetSecondsPerShard * 1e9);
+    }
+
+    /**
+     * Record that a shard has been traversed.
+     * @param workSize Amount of work in the shard, as reported by Shard.getWorkSize().
+     * @param elapsedNanos Wall time spent traversing the shard.
+     */
+    public synchronized void recordShard(final long workSize, final long elapsedNanos) {
+        // Shards with no data or no measurable time carry no information about throughput.
+        if ( workSize <= 0 || elapsedNanos <= 0 )
+            return;
+
+        final double shardWorkPerNano = (double)workSize / elapsedNanos;
+        workPerNano = numShardsRecorded == 0 ? shardWorkPerNano : SMOOTHING_FACTOR * shardWorkPerNano + (1 - SMOOTHING_FACTOR) * workPerNano;
+        numShardsRecorded++;
+    }
+
+    /**
+     * Gets the amount of work that should go into the next shard to hit the target wall time.
+     * @return Target work size, or -1 if too few shards have completed to estimate one.
+     */
+    public synchronized long getTargetWorkSize() {
+        if ( numShardsRecorded < MIN_SHARDS_BEFORE_ESTIMATING )
+            return -1;
+        return Math.max(1L, (long)(workPerNano * targetNanosPerShard));
+    }
+
+    /**
+     * Gets the number of shards that have contributed to the throughput estimate.
+     * @return number of recorded shards.
+     */
+    public synchronized long getNumShardsRecorded() {
+        return numShardsRecorded;
+    }
+}
@@ -37,11 +37,13 @@ import org.broadinstitute.gatk.engine.io.DirectOutputTracker;
 import org.broadinstitute.gatk.engine.io.OutputTracker;
 import org.broadinstitute.gatk.engine.resourcemanagement.ThreadAllocation;
 import org.broadinstitute.gatk.engine.traversals.TraversalEngine;
+import org.broadinstitute.gatk.engine.walkers.ReadWalker;
 import org.broadinstitute.gatk.engine.walkers.Walker;
 import org.broadinstitute.gatk.utils.sam.ReadUtils;
 import org.broadinstitute.gatk.utils.threading.ThreadEfficiencyMonitor;
 
 import java.util.Collection;
+import java.util.Iterator;
 
 
 /** A micro-scheduling manager for single-threaded execution of a traversal. */
@@ -85,33 +87,57 @@ public class LinearMicroScheduler extends MicroScheduler {
 
         boolean done = walker.isDone();
 
+        // Read shards are filled as they're pulled from the shard strategy, so pulling them on a background thread
+        // overlaps reading the next shards with traversal of the current one.  Note that filling a shard is also what
+        // runs the read filters and ON_INPUT read transformers, so with prefetching they're called on the prefetch
+        // thread while the walker's map() runs here.  They're still only ever called from one thread at a time, but
+        // a filter or transformer sharing mutable state with the walker must not be used with prefetching.
+        final int prefetchDepth = engine.getArguments() == null ? 0 : engine.getArguments().readShardPrefetchDepth;
+        final PrefetchingShardIterator prefetcher = prefetchDepth > 0 && walker instanceof ReadWalker && getSAMDataSource() != null && !getSAMDataSource().isEmpty() ?
+                new PrefetchingShardIterator(shardStrategy.iterator(), prefetchDepth) : null;
+        final Iterator<Shard> shards = prefetcher != null ? prefetcher : shardStrategy.iterator();
+
         final TraversalEngine traversalEngine = borrowTraversalEngine(this);
-        for (Shard shard : shardStrategy ) {
-            if ( abortExecution() || done || shard == null ) // we ran out of shards that aren't owned
-                break;
-
-            if(shard.getShardType() == Shard.ShardType.LOCUS) {
-                WindowMaker windowMaker = new WindowMaker(shard, engine.getGenomeLocParser(),
-                        getReadIterator(shard), shard.getGenomeLocs(), ReadUtils.getSAMFileSamples(engine.getSAMFileHeader()));
-                for(WindowMaker.WindowMakerIterator iterator: windowMaker) {
-                    ShardDataProvider dataProvider = new LocusShardDataProvider(shard,iterator.getSourceInfo(),engine.getGenomeLocParser(),iterator.getLocus(),iterator,reference,rods);
+        try {
+            while ( shards.hasNext() ) {
+                final Shard shard = shards.next();
+                if ( abortExecution() || done || shard == null ) // we ran out of shards that aren't owned
+                    break;
+
+                final long shardStartNanos = System.nanoTime();
+
+                if(shard.getShardType() == Shard.ShardType.LOCUS) {
+                    WindowMaker windowMaker = new WindowMaker(shard, engine.getGenomeLocParser(),
+                            getReadIterator(shard), shard.getGenomeLocs(), ReadUtils.getSAMFileSamples(engine.getSAMFileHeader()));
+                    for(WindowMaker.WindowMakerIterator iterator: windowMaker) {
+                        ShardDataProvider dataProvider = new LocusShardDataProvider(shard,iterator.getSourceInfo(),engine.getGenomeLocParser(),iterator.getLocus(),iterator,reference,rods);
+                        Object result = traversalEngine.traverse(walker, dataProvider, accumulator.getReduceInit());
+                        accumulator.accumulate(dataProvider,result);
+                        dataProvider.close();
+                        if ( walker.isDone() ) break;
+                    }
+                    windowMaker.close();
+                }
+                else {
+                    ShardDataProvider dataProvider = new ReadShardDataProvider(shard,engine.getGenomeLocParser(),getReadIterator(shard),reference,rods);
                     Object result = traversalEngine.traverse(walker, dataProvider, accumulator.getReduceInit());
                     accumulator.accumulate(dataProvider,result);
                     dataProvider.close();
-                    if ( walker.isDone() ) break;
                 }
-                windowMaker.close();
-            }
-            else {
-                ShardDataProvider dataProvider = new ReadShardDataProvider(shard,engine.getGenomeLocParser(),getReadIterator(shard),reference,rods);
-                Object result = traversalEngine.traverse(walker, dataProvider, accumulator.getReduceInit());
-                accumulator.accumulate(dataProvider,result);
-                dataProvider.close();
-            }
 
-            done = walker.isDone();
+                reportShardThroughput(shard, System.nanoTime() - shardStartNanos);
+                done = walker.isDone();
+            }
+        }
+        finally {
+            // Always stop the background thread, even if the traversal failed, so that it doesn't keep filling shards
+            if ( prefetcher != null )
+                prefetcher.close();
         }
 
+        if ( prefetcher != null )
+            prefetcher.printStatistics(logger);
+
         Object result = accumulator.finishTraversal();
 
         outputTracker.close();
@@ -32,6 +32,7 @@ import org.broadinstitute.gatk.engine.GenomeAnalysisEngine;
 import org.broadinstitute.gatk.engine.ReadMetrics;
 import org.broadinstitute.gatk.engine.datasources.reads.SAMDataSource;
 import org.broadinstitute.gatk.engine.datasources.reads.Shard;
+import org.broadinstitute.gatk.engine.datasources.reads.ShardThroughputMonitor;
 import org.broadinstitute.gatk.engine.datasources.rmd.ReferenceOrderedDataSource;
 import org.broadinstitute.gatk.engine.io.OutputTracker;
 import org.broadinstitute.gatk.engine.iterators.NullSAMIterator;
@@ -314,6 +315,17 @@ public abstract class MicroScheduler implements MicroSchedulerMBean {
      */
     public abstract OutputTracker getOutputTracker();
 
+    /**
+     * Report the time taken to traverse a shard, so that adaptive shard balancers can size upcoming shards.
+     * @param shard The shard that was traversed.
+     * @param elapsedNanos Wall time spent traversing the shard.
+     */
+    protected void reportShardThroughput(final Shard shard, final long elapsedNanos) {
+        final ShardThroughputMonitor throughputMonitor = engine.getShardThroughputMonitor();
+        if ( throughputMonitor != null )
+            throughputMonitor.recordShard(shard.getWorkSize(), elapsedNanos);
+    }
+
     /**
      * Gets the an iterator over the given reads, which will iterate over the reads in the given shard.
      * @param shard the shard to use when querying reads.
@@ -329,6 +341,8 @@ public abstract class MicroScheduler implements MicroSchedulerMBean {
     protected void executionIsDone() {
         engine.getProgressMeter().notifyDone(engine.getCumulativeMetrics().getNumIterations());
         printReadFilteringStats();
+        if ( reads != null )
+            reads.printBlockLoadingStatistics(logger);
         shutdownTraversalEngines();
 
         // Print out the threading efficiency of this HMS, if state monitoring is enabled
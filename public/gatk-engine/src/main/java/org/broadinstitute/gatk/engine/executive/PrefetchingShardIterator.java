@@ -0,0 +1,263 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.executive;
+
+import org.apache.log4j.Logger;
+import org.broadinstitute.gatk.engine.datasources.reads.Shard;
+import org.broadinstitute.gatk.utils.AutoFormattingTime;
+import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pulls shards from an underlying shard iterator on a background thread, keeping up to a fixed number of
+ * shards ready for the traversal.  For read traversals, pulling a shard from the ReadShardBalancer is what fills
+ * it with reads, so this lets disk and decompression work on the upcoming shards overlap with map() calls on the
+ * current one.  At most prefetchDepth filled shards (plus the one being filled) are held at any time.
+ *
+ * Filling a read shard runs the read filters and input read transformers, so these are called from the
+ * background thread while the traversal is running.  They're never called from two threads at once, but any
+ * state they share with the walker is accessed concurrently.
+ *
+ * Not thread-safe on the consumer side: a single traversal thread should call hasNext() / next().
+ */
+public class PrefetchingShardIterator implements Iterator<Shard> {
+    private static Logger logger = Logger.getLogger(PrefetchingShardIterator.class);
+
+    /**
+     * How long the background thread waits on a full queue before checking whether it's been closed.
+     */
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    /**
+     * Shards filled by the background thread, waiting to be handed to the traversal.
+     */
+    private final BlockingQueue<PrefetchedShard> prefetchedShards;
+
+    /**
+     * The background thread filling shards.
+     */
+    private final Thread prefetchThread;
+
+    /**
+     * Set when the consumer has no further interest in shards.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The next element to hand out, or null if it hasn't been retrieved from the queue yet.
+     */
+    private PrefetchedShard nextShard = null;
+
+    /**
+     * Number of shards handed to the traversal.
+     */
+    private long numShards = 0;
+
+    /**
+     * Number of times the traversal asked for a shard that the background thread hadn't finished yet.
+     */
+    private long numStarvations = 0;
+
+    /**
+     * Total time the traversal spent waiting for shards, in nanoseconds.
+     */
+    private long starvationTimeNanos = 0;
+
+    /**
+     * Create a new prefetching iterator, and immediately start filling shards.
+     * @param shards The underlying shard iterator.  Will only be accessed from the background thread.
+     * @param prefetchDepth Maximum number of filled shards to keep waiting for the traversal.
+     */
+    public PrefetchingShardIterator(final Iterator<Shard> shards, final int prefetchDepth) {
+        if ( prefetchDepth < 1 )
+            throw new ReviewedGATKException("Prefetch depth must be at least 1, but got " + prefetchDepth);
+
+        prefetchedShards = new ArrayBlockingQueue<PrefetchedShard>(prefetchDepth);
+        prefetchThread = new Thread(new ShardPrefetcher(shards), "ShardPrefetcher");
+        prefetchThread.setDaemon(true);
+        prefetchThread.start();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if ( nextShard == null )
+            nextShard = takeNextShard();
+        return nextShard != PrefetchedShard.END_OF_SHARDS;
+    }
+
+    @Override
+    public Shard next() {
+        if ( ! hasNext() )
+            throw new NoSuchElementException("No next shard available");
+        final Shard shard = nextShard.shard;
+        nextShard = null;
+        numShards++;
+        return shard;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Unable to remove from a prefetching shard iterator");
+    }
+
+    /**
+     * Stop prefetching and wait for the background thread to finish the shard it is filling, so that the data
+     * sources can be safely closed afterward.
+     */
+    public void close() {
+        closed = true;
+        prefetchedShards.clear();
+        try {
+            prefetchThread.join();
+        }
+        catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new ReviewedGATKException("Interrupted while waiting for shard prefetching to stop", ex);
+        }
+    }
+
+    /**
+     * Gets the number of times the traversal had to wait on the background thread for its next shard.
+     * @return number of starvations.
+     */
+    public long getNumStarvations() {
+        return numStarvations;
+    }
+
+    /**
+     * Gets the total time the traversal spent waiting on the background thread.
+     * @return wait time, in nanoseconds.
+     */
+    public long getStarvationTimeNanos() {
+        return starvationTimeNanos;
+    }
+
+    /**
+     * Log how often the traversal was starved for shards.
+     * @param logger Logger to which to write statistics.
+     */
+    public void printStatistics(final Logger logger) {
+        logger.info(String.format("Read shard prefetching: traversal waited for %d of %d shards (%.1f%%); total time waiting for I/O: %s",
+                numStarvations, numShards, numShards == 0 ? 0.0 : 100.0 * numStarvations / numShards,
+                new AutoFormattingTime(starvationTimeNanos)));
+    }
+
+    /**
+     * Retrieve the next element from the queue, recording any time spent waiting for it.
+     * @return The next element.  Never null.
+     */
+    private PrefetchedShard takeNextShard() {
+        PrefetchedShard prefetched = prefetchedShards.poll();
+        if ( prefetched == null ) {
+            numStarvations++;
+            final long waitStart = System.nanoTime();
+            try {
+                prefetched = prefetchedShards.take();
+            }
+            catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new ReviewedGATKException("Interrupted while waiting for the next shard", ex);
+            }
+            starvationTimeNanos += System.nanoTime() - waitStart;
+        }
+
+        if ( prefetched.error != null ) {
+            // Rethrow errors in the traversal thread, preserving user-facing exception types.
+            if ( prefetched.error instanceof RuntimeException )
+                throw (RuntimeException)prefetched.error;
+            if ( prefetched.error instanceof Error )
+                throw (Error)prefetched.error;
+            throw new ReviewedGATKException("Unable to load next shard", prefetched.error);
+        }
+
+        return prefetched;
+    }
+
+    /**
+     * A filled shard, the end-of-stream marker, or an error raised while filling.
+     */
+    private static class PrefetchedShard {
+        public static final PrefetchedShard END_OF_SHARDS = new PrefetchedShard(null,null);
+
+        public final Shard shard;
+        public final Throwable error;
+
+        public PrefetchedShard(final Shard shard, final Throwable error) {
+            this.shard = shard;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Drains the underlying shard iterator into the queue until it's exhausted or the iterator is closed.
+     */
+    private class ShardPrefetcher implements Runnable {
+        private final Iterator<Shard> shards;
+
+        public ShardPrefetcher(final Iterator<Shard> shards) {
+            this.shards = shards;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while ( ! closed && shards.hasNext() ) {
+                    if ( ! enqueue(new PrefetchedShard(shards.next(), null)) )
+                        return;
+                }
+                enqueue(PrefetchedShard.END_OF_SHARDS);
+            }
+            catch ( Throwable t ) {
+                if ( closed )
+                    logger.debug("Ignoring error while prefetching shards after close", t);
+                else
+                    enqueue(new PrefetchedShard(null, t));
+            }
+        }
+
+        /**
+         * Put the given element on the queue, waiting for space.
+         * @return false if the iterator was closed before space became available.
+         */
+        private boolean enqueue(final PrefetchedShard prefetched) {
+            try {
+                while ( ! closed ) {
+                    if ( prefetchedShards.offer(prefetched, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) )
+                        return true;
+                }
+            }
+            catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+    }
+}
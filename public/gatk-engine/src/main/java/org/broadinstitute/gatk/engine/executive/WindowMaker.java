@@ -112,7 +112,8 @@ public class WindowMaker implements Iterable<WindowMaker.WindowMakerIterator>, I
 
         this.libs = new LocusIteratorByState(readIterator,
                 sourceInfo.getDownsamplingMethod(), sourceInfo.includeReadsWithDeletionAtLoci(),
-                sourceInfo.keepUniqueReadListInLIBS(), genomeLocParser,sampleNames);
+                sourceInfo.keepUniqueReadListInLIBS(), genomeLocParser,sampleNames,
+                sourceInfo.getNumPileupSampleThreads());
         this.sourceIterator = new PeekableIterator<AlignmentContext>(libs);
 
         this.intervalIterator = intervals.size()>0 ? new PeekableIterator<GenomeLoc>(intervals.iterator()) : null;
@@ -141,6 +142,7 @@ public class WindowMaker implements Iterable<WindowMaker.WindowMakerIterator>, I
 
     public void close() {
         this.readIterator.close();
+        this.libs.close();
     }
 
     public class WindowMakerIterator extends LocusIterator {
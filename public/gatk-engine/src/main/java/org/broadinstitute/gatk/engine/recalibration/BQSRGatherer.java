@@ -54,13 +54,19 @@ public class BQSRGatherer extends Gatherer  {
 
     @Override
     public void gather(final List<File> inputs, final File output) {
+        final RecalibrationReport recalibrationReport = gatherRecalibrationReport(inputs);
+        if ( BinaryRecalibrationReport.isBinaryReportName(output) ) {
+            recalibrationReport.writeBinaryReport(output);
+            return;
+        }
+
         final PrintStream outputFile;
         try {
             outputFile = new PrintStream(output);
         } catch(final FileNotFoundException e) {
             throw new UserException.MissingArgument("output", MISSING_OUTPUT_FILE);
         }
-        final GATKReport report = gatherReport(inputs);
+        final GATKReport report = recalibrationReport.createGATKReport();
         report.print(outputFile);
         outputFile.close();
     }
@@ -72,6 +78,20 @@ public class BQSRGatherer extends Gatherer  {
      * @return gathered recalibration GATK report
      */
     public static GATKReport gatherReport(final List<File> inputs) {
+        return gatherRecalibrationReport(inputs).createGATKReport();
+    }
+
+    /**
+     * Gathers the input recalibration reports into a single recalibration report.
+     *
+     * Inputs may be GATKReports or binary recalibration reports, in any mix.  Once the first non-empty input has
+     * been loaded, binary inputs are streamed row by row into its tables, so gathering them only needs memory for
+     * the combined tables, no matter how many inputs there are.
+     *
+     * @param inputs Input recalibration reports
+     * @return gathered recalibration report, with the quantized qualities already calculated
+     */
+    public static RecalibrationReport gatherRecalibrationReport(final List<File> inputs) {
         final SortedSet<String> allReadGroups = new TreeSet<String>();
         final LinkedHashMap<File, Set<String>> inputReadGroups = new LinkedHashMap<>();
 
@@ -100,6 +120,11 @@ public class BQSRGatherer extends Gatherer  {
 
         RecalibrationReport generalReport = null;
         for (final File input : parsedInputs) {
+            if (generalReport != null && BinaryRecalibrationReport.isBinaryReport(input)) {
+                generalReport.combine(input);
+                continue;
+            }
+
             final RecalibrationReport inputReport = new RecalibrationReport(input, allReadGroups);
             if( inputReport.isEmpty() ) { continue; }
 
@@ -113,7 +138,7 @@ public class BQSRGatherer extends Gatherer  {
 
         generalReport.calculateQuantizedQualities();
 
-        return generalReport.createGATKReport();
+        return generalReport;
     }
 
     /**
@@ -29,7 +29,6 @@ import com.google.java.contract.Ensures;
 import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SAMUtils;
 import org.apache.log4j.Logger;
-import org.broadinstitute.gatk.utils.MathUtils;
 import org.broadinstitute.gatk.utils.QualityUtils;
 import org.broadinstitute.gatk.utils.exceptions.UserException;
 import org.broadinstitute.gatk.utils.recalibration.EventType;
@@ -39,7 +38,6 @@ import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
 import java.util.Collections;
 import java.util.Iterator;
 import java.io.File;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -54,12 +52,11 @@ public class BaseRecalibration {
     private final static boolean TEST_CACHING = false;
 
     private final QuantizationInfo quantizationInfo; // histogram containing the map for qual quantization (calculated after recalibration is done)
-    private final RecalibrationTables recalibrationTables;
     private final Covariate[] requestedCovariates; // list of all covariates to be used in this calculation
+    private final RecalibrationLookupTable lookupTable; // the recalibration tables compiled for fast, lock-free application
 
     private final boolean disableIndelQuals;
     private final int preserveQLessThan;
-    private final double globalQScorePrior;
     private final boolean emitOriginalQuals;
 
     private byte[] staticQuantizedMapping = null;
@@ -76,7 +73,7 @@ public class BaseRecalibration {
     public BaseRecalibration(final File RECAL_FILE, final int quantizationLevels, final boolean disableIndelQuals, final int preserveQLessThan, final boolean emitOriginalQuals, final double globalQScorePrior, final List<Integer> staticQuantizedQuals, final boolean roundDown) {
         RecalibrationReport recalibrationReport = new RecalibrationReport(RECAL_FILE);
 
-        recalibrationTables = recalibrationReport.getRecalibrationTables();
+        final RecalibrationTables recalibrationTables = recalibrationReport.getRecalibrationTables();
         requestedCovariates = recalibrationReport.getRequestedCovariates();
         quantizationInfo = recalibrationReport.getQuantizationInfo();
         if (quantizationLevels == 0) // quantizationLevels == 0 means no quantization, preserve the quality scores
@@ -86,7 +83,6 @@ public class BaseRecalibration {
 
         this.disableIndelQuals = disableIndelQuals;
         this.preserveQLessThan = preserveQLessThan;
-        this.globalQScorePrior = globalQScorePrior;
         this.emitOriginalQuals = emitOriginalQuals;
 
         // staticQuantizedQuals is entirely separate from the dynamic binning that quantizationLevels, and
@@ -97,6 +93,8 @@ public class BaseRecalibration {
             }
             staticQuantizedMapping = constructStaticQuantizedMapping(staticQuantizedQuals, roundDown);
         }
+
+        lookupTable = new RecalibrationLookupTable(recalibrationTables, requestedCovariates.length, globalQScorePrior, quantizationInfo.getQuantizedQuals(), staticQuantizedMapping);
     }
 
     /**
@@ -116,6 +114,8 @@ public class BaseRecalibration {
      *
      * Qrecal = Qreported + DeltaQ + DeltaQ(pos) + DeltaQ(dinuc) + DeltaQ( ... any other covariate ... )
      *
+     * All of the deltas are precomputed by the RecalibrationLookupTable, so this is just a few lookups per base.
+     *
      * @param read the read to recalibrate
      */
     public void recalibrateRead(final GATKSAMRecord read) {
@@ -143,42 +143,13 @@ public class BaseRecalibration {
 
             // the rg key is constant over the whole read, the global deltaQ is too
             final int rgKey = fullReadKeySet[0][0];
-            final RecalDatum empiricalQualRG = recalibrationTables.getReadGroupTable().get(rgKey, errorModel.ordinal());
-
-            if( empiricalQualRG != null ) {
-                final double epsilon = ( globalQScorePrior > 0.0 && errorModel.equals(EventType.BASE_SUBSTITUTION) ? globalQScorePrior : empiricalQualRG.getEstimatedQReported() );
 
+            if( lookupTable.canRecalibrate(errorModel.ordinal(), rgKey) ) {
                 for (int offset = 0; offset < readLength; offset++) { // recalibrate all bases in the read
-                    final byte origQual = quals[offset];
-
                     // only recalibrate usable qualities (the original quality will come from the instrument -- reported quality)
-                    if ( origQual >= preserveQLessThan ) {
+                    if ( quals[offset] >= preserveQLessThan ) {
                         // get the keyset for this base using the error model
-                        final int[] keySet = fullReadKeySet[offset];
-                        final RecalDatum empiricalQualQS = recalibrationTables.getQualityScoreTable().get(keySet[0], keySet[1], errorModel.ordinal());
-                        final List<RecalDatum> empiricalQualCovs = new ArrayList<RecalDatum>();
-                        for (int i = 2; i < requestedCovariates.length; i++) {
-                            if (keySet[i] < 0) {
-                                continue;
-                            }
-                            empiricalQualCovs.add(recalibrationTables.getTable(i).get(keySet[0], keySet[1], keySet[i], errorModel.ordinal()));
-                        }
-
-                        double recalibratedQualDouble = hierarchicalBayesianQualityEstimate( epsilon, empiricalQualRG, empiricalQualQS, empiricalQualCovs );
-
-                        // recalibrated quality is bound between 1 and MAX_QUAL
-                        final byte recalibratedQual = QualityUtils.boundQual(MathUtils.fastRound(recalibratedQualDouble), RecalDatum.MAX_RECALIBRATED_Q_SCORE);
-
-                        // return the quantized version of the recalibrated quality
-                        final byte recalibratedQualityScore = quantizationInfo.getQuantizedQuals().get(recalibratedQual);
-
-                        // Bin to static quals
-                        if(staticQuantizedMapping != null) {
-                            quals[offset] = staticQuantizedMapping[recalibratedQualityScore];
-                        }
-                        else {
-                            quals[offset] = recalibratedQualityScore;
-                        }
+                        quals[offset] = lookupTable.getRecalibratedQual(errorModel.ordinal(), fullReadKeySet[offset]);
                     }
                 }
             }
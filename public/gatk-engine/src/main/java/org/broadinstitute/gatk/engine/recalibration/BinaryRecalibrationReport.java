@@ -0,0 +1,375 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.recalibration;
+
+import org.broadinstitute.gatk.engine.recalibration.covariates.Covariate;
+import org.broadinstitute.gatk.utils.Utils;
+import org.broadinstitute.gatk.utils.collections.NestedIntegerArray;
+import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
+import org.broadinstitute.gatk.utils.exceptions.UserException;
+import org.broadinstitute.gatk.utils.report.GATKReportTable;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact binary encoding of a recalibration report.
+ *
+ * The text GATKReport is convenient to read but expensive to produce and parse, which dominates the gather step
+ * when a recalibration is scattered over hundreds of shards.  This format carries exactly the information the
+ * RecalibrationReport parser uses from the text report -- the argument table, the quantization map and, for every
+ * table, the keys, observations and errors of each RecalDatum -- but stores covariate keys rather than formatted
+ * values, so no covariate has to format or parse anything.  Read group keys are the only keys that depend on the
+ * order in which a covariate sees its values, so they are written as indexes into the list of read group names
+ * stored in the header and are remapped when the tables are read back.
+ *
+ * Layout: the magic bytes and a format version, followed by a gzipped stream with the argument rows, the
+ * quantization map, the read group names and then each table as its dimensions and row count followed by its rows.
+ * Because every table is preceded by its row count, {@link Reader#readTables} can merge the rows one at a time into an existing
+ * set of tables without ever holding a second copy of them in memory.
+ */
+public final class BinaryRecalibrationReport {
+    /**
+     * Recalibration reports written to files with this extension by the BQSRGatherer use the binary format
+     */
+    public static final String BINARY_REPORT_EXTENSION = ".bqsr";
+
+    private static final byte[] MAGIC = {'B', 'Q', 'S', 'R'};
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BinaryRecalibrationReport() {}
+
+    /**
+     * @param file a recalibration report
+     * @return true if the file starts with the binary report magic bytes, false if it is (presumably) a GATKReport
+     */
+    public static boolean isBinaryReport(final File file) {
+        try {
+            final DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                final byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                return Arrays.equals(magic, MAGIC);
+            } catch ( EOFException e ) {
+                return false;
+            } finally {
+                in.close();
+            }
+        } catch ( IOException e ) {
+            throw new UserException.CouldNotReadInputFile(file, e);
+        }
+    }
+
+    /**
+     * @param file an output file
+     * @return true if a recalibration report written to this file should use the binary format
+     */
+    public static boolean isBinaryReportName(final File file) {
+        return file.getName().endsWith(BINARY_REPORT_EXTENSION);
+    }
+
+    /**
+     * Writes the recalibration report in the binary format
+     *
+     * @param output              the file to write to
+     * @param argumentTable       the argument table of the report
+     * @param quantizationInfo    the quantization info of the report
+     * @param recalibrationTables the recalibration tables
+     * @param requestedCovariates the covariates used to build the tables
+     */
+    public static void write(final File output, final GATKReportTable argumentTable, final QuantizationInfo quantizationInfo, final RecalibrationTables recalibrationTables, final Covariate[] requestedCovariates) {
+        try {
+            final FileOutputStream fileStream = new FileOutputStream(output);
+            final DataOutputStream header = new DataOutputStream(fileStream);
+            header.write(MAGIC);
+            header.writeInt(VERSION);
+            header.flush();
+
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(fileStream, BUFFER_SIZE), BUFFER_SIZE));
+            try {
+                writeArguments(out, argumentTable);
+                writeQuantization(out, quantizationInfo);
+                final Map<Integer, Integer> readGroupIndexes = writeReadGroups(out, recalibrationTables, requestedCovariates[0]);
+                writeTables(out, recalibrationTables, readGroupIndexes);
+            } finally {
+                out.close();
+            }
+        } catch ( IOException e ) {
+            throw new UserException.CouldNotCreateOutputFile(output, e);
+        }
+    }
+
+    private static void writeArguments(final DataOutputStream out, final GATKReportTable argumentTable) throws IOException {
+        out.writeInt(argumentTable.getNumRows());
+        for ( int i = 0; i < argumentTable.getNumRows(); i++ ) {
+            out.writeUTF(String.valueOf(argumentTable.get(i, RecalUtils.ARGUMENT_COLUMN_NAME)));
+            out.writeUTF(String.valueOf(argumentTable.get(i, RecalUtils.ARGUMENT_VALUE_COLUMN_NAME)));
+        }
+    }
+
+    private static void writeQuantization(final DataOutputStream out, final QuantizationInfo quantizationInfo) throws IOException {
+        final List<Byte> quals = quantizationInfo.getQuantizedQuals();
+        final List<Long> counts = quantizationInfo.getEmpiricalQualCounts();
+        out.writeInt(quals.size());
+        for ( int i = 0; i < quals.size(); i++ ) {
+            out.writeByte(quals.get(i));
+            out.writeLong(counts.get(i));
+        }
+    }
+
+    /**
+     * Writes the names of the read groups present in the read group table, in sorted order
+     *
+     * @return a map from the read group keys used in the tables to their index in the written list
+     */
+    private static Map<Integer, Integer> writeReadGroups(final DataOutputStream out, final RecalibrationTables recalibrationTables, final Covariate readGroupCovariate) throws IOException {
+        final SortedMap<String, Integer> readGroupKeys = new TreeMap<String, Integer>();
+        for ( final NestedIntegerArray.Leaf leaf : recalibrationTables.getReadGroupTable().getAllLeaves() )
+            readGroupKeys.put(readGroupCovariate.formatKey(leaf.keys[0]), leaf.keys[0]);
+
+        final Map<Integer, Integer> readGroupIndexes = new HashMap<Integer, Integer>(readGroupKeys.size());
+        out.writeInt(readGroupKeys.size());
+        for ( final Map.Entry<String, Integer> entry : readGroupKeys.entrySet() ) {
+            readGroupIndexes.put(entry.getValue(), readGroupIndexes.size());
+            out.writeUTF(entry.getKey());
+        }
+        return readGroupIndexes;
+    }
+
+    private static void writeTables(final DataOutputStream out, final RecalibrationTables recalibrationTables, final Map<Integer, Integer> readGroupIndexes) throws IOException {
+        out.writeInt(recalibrationTables.numTables());
+        for ( int tableIndex = 0; tableIndex < recalibrationTables.numTables(); tableIndex++ ) {
+            final NestedIntegerArray<RecalDatum> table = recalibrationTables.getTable(tableIndex);
+            final int[] dimensions = table.getDimensions();
+            out.writeInt(dimensions.length);
+            for ( final int dimension : dimensions )
+                out.writeInt(dimension);
+
+            final List<NestedIntegerArray.Leaf<RecalDatum>> leaves = table.getAllLeaves();
+            out.writeInt(leaves.size());
+            for ( final NestedIntegerArray.Leaf<RecalDatum> leaf : leaves ) {
+                final int[] keys = leaf.keys;
+                final RecalDatum datum = leaf.value;
+
+                final Integer readGroupIndex = readGroupIndexes.get(keys[0]);
+                if ( readGroupIndex == null )
+                    throw new ReviewedGATKException("Recalibration table " + tableIndex + " has data for read group key " + keys[0] + " which is missing from the read group table");
+
+                int keyIndex = 0;
+                out.writeInt(readGroupIndex);
+                keyIndex++;
+                if ( tableIndex != RecalibrationTables.TableType.READ_GROUP_TABLE.ordinal() ) {
+                    out.writeByte(keys[keyIndex++]); // quality score keys are the quality itself, which always fits in a byte
+                    if ( tableIndex >= RecalibrationTables.TableType.OPTIONAL_COVARIATE_TABLES_START.ordinal() )
+                        out.writeInt(keys[keyIndex++]);
+                }
+                out.writeByte(keys[keyIndex]);
+
+                out.writeLong(datum.getNumObservations());
+                out.writeDouble(datum.getNumMismatches());
+                if ( tableIndex == RecalibrationTables.TableType.READ_GROUP_TABLE.ordinal() )
+                    out.writeDouble(datum.getEstimatedQReported()); // as in the GATKReport, only the read group table keeps the estimated Q reported
+            }
+        }
+    }
+
+    /**
+     * Reads a binary recalibration report.  The header (arguments, quantization and read groups) is read on
+     * construction; the tables are only read, if at all, by {@link #readTables}.
+     */
+    public static final class Reader {
+        private final File file;
+        private final DataInputStream in;
+        private final GATKReportTable argumentTable;
+        private final QuantizationInfo quantizationInfo;
+        private final List<String> readGroups;
+
+        public Reader(final File file) {
+            this.file = file;
+            try {
+                final FileInputStream fileStream = new FileInputStream(file);
+                final DataInputStream header = new DataInputStream(fileStream);
+                final byte[] magic = new byte[MAGIC.length];
+                header.readFully(magic);
+                final int version = header.readInt();
+                if ( ! Arrays.equals(magic, MAGIC) || version != VERSION ) {
+                    fileStream.close();
+                    throw new UserException.MalformedFile(file, Arrays.equals(magic, MAGIC) ?
+                            "unsupported binary recalibration report version " + version :
+                            "it is not a binary recalibration report");
+                }
+
+                in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(fileStream, BUFFER_SIZE), BUFFER_SIZE));
+                argumentTable = readArguments();
+                quantizationInfo = readQuantization();
+                readGroups = readReadGroups();
+            } catch ( IOException e ) {
+                throw new UserException.CouldNotReadInputFile(file, e);
+            }
+        }
+
+        /**
+         * @return the argument table, with all values as strings just as if it had been parsed from a GATKReport
+         */
+        public GATKReportTable getArgumentTable() {
+            return argumentTable;
+        }
+
+        public QuantizationInfo getQuantizationInfo() {
+            return quantizationInfo;
+        }
+
+        /**
+         * @return the sorted names of the read groups with data in this report
+         */
+        public List<String> getReadGroups() {
+            return readGroups;
+        }
+
+        /**
+         * Adds every row of this report into recalibrationTables, one row at a time.  Rows for keys that are not yet
+         * in the tables are put as they are, the others are combined into the existing RecalDatum.
+         *
+         * Note: like RecalibrationReport.combine(), this does not recalculate the empirical or quantized qualities.
+         *
+         * @param recalibrationTables the tables to add the rows to, with room for all the read groups of this report
+         * @param readGroupCovariate  the read group covariate used by recalibrationTables
+         */
+        public void readTables(final RecalibrationTables recalibrationTables, final Covariate readGroupCovariate) {
+            final int[] readGroupKeys = new int[readGroups.size()];
+            for ( int i = 0; i < readGroupKeys.length; i++ )
+                readGroupKeys[i] = readGroupCovariate.keyFromValue(readGroups.get(i));
+
+            try {
+                final int numTables = in.readInt();
+                if ( numTables != recalibrationTables.numTables() )
+                    throw new UserException.MalformedFile(file, "it has " + numTables + " recalibration tables but " + recalibrationTables.numTables() + " were expected; was it generated with different covariates?");
+
+                for ( int tableIndex = 0; tableIndex < numTables; tableIndex++ ) {
+                    final NestedIntegerArray<RecalDatum> table = recalibrationTables.getTable(tableIndex);
+                    final boolean isReadGroupTable = tableIndex == RecalibrationTables.TableType.READ_GROUP_TABLE.ordinal();
+                    final boolean isOptionalTable = tableIndex >= RecalibrationTables.TableType.OPTIONAL_COVARIATE_TABLES_START.ordinal();
+                    final int[] dimensions = table.getDimensions();
+                    final int[] keys = new int[dimensions.length];
+                    readAndCheckDimensions(tableIndex, dimensions);
+
+                    final int numRows = in.readInt();
+                    for ( int row = 0; row < numRows; row++ ) {
+                        int keyIndex = 0;
+                        final int readGroupIndex = in.readInt();
+                        if ( readGroupIndex < 0 || readGroupIndex >= readGroupKeys.length )
+                            throw new UserException.MalformedFile(file, "row " + row + " of recalibration table " + tableIndex + " refers to read group " + readGroupIndex + " but there are only " + readGroupKeys.length + " read groups");
+                        keys[keyIndex++] = readGroupKeys[readGroupIndex];
+                        if ( ! isReadGroupTable ) {
+                            keys[keyIndex++] = in.readUnsignedByte();
+                            if ( isOptionalTable )
+                                keys[keyIndex++] = in.readInt();
+                        }
+                        keys[keyIndex] = in.readUnsignedByte();
+
+                        if ( keys[0] >= dimensions[0] )
+                            throw new IllegalArgumentException("Read group " + readGroups.get(readGroupIndex) + " of " + file + " has key " + keys[0] + " but the recalibration tables only have room for " + dimensions[0] + " read groups");
+                        for ( int i = 1; i < keys.length; i++ ) {
+                            if ( keys[i] < 0 || keys[i] >= dimensions[i] )
+                                throw new UserException.MalformedFile(file, "row " + row + " of recalibration table " + tableIndex + " has key " + keys[i] + " outside of dimension " + i + " of size " + dimensions[i]);
+                        }
+
+                        final long nObservations = in.readLong();
+                        final double nErrors = in.readDouble();
+                        final double estimatedQReported = isReadGroupTable ? in.readDouble() : keys[1]; // or we use the reported quality if we are in any other table
+
+                        final RecalDatum datum = new RecalDatum(nObservations, nErrors, (byte)1);
+                        datum.setEstimatedQReported(estimatedQReported);
+
+                        final RecalDatum existing = table.get(keys);
+                        if ( existing == null )
+                            table.put(datum, keys);
+                        else
+                            existing.combine(datum);
+                    }
+                }
+            } catch ( IOException e ) {
+                throw new UserException.CouldNotReadInputFile(file, e);
+            }
+        }
+
+        /**
+         * Reads the dimensions of the next table and checks that they match those of the table its rows will be
+         * added to.  The read group dimension isn't compared, as each report only counts its own read groups.
+         */
+        private void readAndCheckDimensions(final int tableIndex, final int[] expectedDimensions) throws IOException {
+            final int[] dimensions = new int[in.readInt()];
+            for ( int i = 0; i < dimensions.length; i++ )
+                dimensions[i] = in.readInt();
+
+            if ( dimensions.length != expectedDimensions.length || ! Arrays.equals(Arrays.copyOfRange(dimensions, 1, dimensions.length), Arrays.copyOfRange(expectedDimensions, 1, expectedDimensions.length)) )
+                throw new IllegalArgumentException("Recalibration table " + tableIndex + " of " + file + " has dimensions " + Utils.join(",", dimensions) + " which are not compatible with " + Utils.join(",", expectedDimensions));
+        }
+
+        public void close() {
+            try {
+                in.close();
+            } catch ( IOException e ) {
+                throw new UserException.CouldNotReadInputFile(file, e);
+            }
+        }
+
+        private GATKReportTable readArguments() throws IOException {
+            final GATKReportTable table = new GATKReportTable(RecalUtils.ARGUMENT_REPORT_TABLE_TITLE, "Recalibration argument collection values used in this run", 2);
+            table.addColumn(RecalUtils.ARGUMENT_COLUMN_NAME);
+            table.addColumn(RecalUtils.ARGUMENT_VALUE_COLUMN_NAME);
+            final int numRows = in.readInt();
+            for ( int i = 0; i < numRows; i++ ) {
+                final String argument = in.readUTF();
+                table.addRowID(argument, true);
+                table.set(argument, RecalUtils.ARGUMENT_VALUE_COLUMN_NAME, in.readUTF());
+            }
+            return table;
+        }
+
+        private QuantizationInfo readQuantization() throws IOException {
+            final int numQuals = in.readInt();
+            final List<Byte> quals = new ArrayList<Byte>(numQuals);
+            final List<Long> counts = new ArrayList<Long>(numQuals);
+            for ( int i = 0; i < numQuals; i++ ) {
+                quals.add(in.readByte());
+                counts.add(in.readLong());
+            }
+            return new QuantizationInfo(quals, counts);
+        }
+
+        private List<String> readReadGroups() throws IOException {
+            final int numReadGroups = in.readInt();
+            final List<String> names = new ArrayList<String>(numReadGroups);
+            for ( int i = 0; i < numReadGroups; i++ )
+                names.add(in.readUTF());
+            return names;
+        }
+    }
+}
@@ -88,6 +88,10 @@ public class QuantizationInfo {
         return quantizedQuals;
     }
 
+    public List<Long> getEmpiricalQualCounts() {
+        return empiricalQualCounts;
+    }
+
     public int getQuantizationLevels() {
         return quantizationLevels;
     }
@@ -26,9 +26,12 @@
 package org.broadinstitute.gatk.engine.recalibration;
 
 import org.apache.log4j.Logger;
-import org.broadinstitute.gatk.utils.LRUCache;
 import org.broadinstitute.gatk.utils.recalibration.EventType;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * The object temporarily held by a read that describes all of it's covariates.
  *
@@ -41,54 +44,166 @@ public class ReadCovariates {
     private final static Logger logger = Logger.getLogger(ReadCovariates.class);
 
     /**
-     * How big should we let the LRU cache grow
+     * One reusable ReadCovariates per thread, large enough for the longest read the thread has seen.
+     *
+     * Together with the scratch space below this means that computing the covariates of a read normally
+     * hardly allocates anything.
      */
-    private static final int LRU_CACHE_SIZE = 500;
+    private final static ThreadLocal<ReadCovariates> threadLocalWorkspace = new ThreadLocal<ReadCovariates>();
 
     /**
-     * Use an LRU cache to keep cache of keys (int[][][]) arrays for each read length we've seen.
-     * The cache allows us to avoid the expense of recreating these arrays for every read.  The LRU
-     * keeps the total number of cached arrays to less than LRU_CACHE_SIZE.
+     * How many rows of allKeys the cached views for shorter read lengths may refer to in total, across all event types.
      *
-     * This is a thread local variable, so the total memory required may grow to N_THREADS x LRU_CACHE_SIZE
+     * Each view costs one reference per row, so this bounds their memory regardless of how long or how varied the
+     * read lengths are, while still caching a few hundred lengths of short reads.
      */
-    private final static ThreadLocal<LRUCache<Integer, int[][][]>> keysCache = new ThreadLocal<LRUCache<Integer, int[][][]>>() {
-        @Override protected LRUCache<Integer, int[][][]> initialValue() {
-            return new LRUCache<Integer, int[][][]>(LRU_CACHE_SIZE);
-        }
-    };
+    static final int MAX_CACHED_VIEW_ROWS = 256 * 1024;
 
     /**
-     * The keys cache is only valid for a single covariate count.  Normally this will remain constant for the analysis.
+     * The thread local workspace is only valid for a single covariate count.  Normally this will remain constant for the analysis.
      * If running multiple analyses (or the unit test suite), it's necessary to clear the cache.
      */
     public static void clearKeysCache() {
-        keysCache.remove();
+        threadLocalWorkspace.remove();
     }
 
     /**
-     * Our keys, indexed by event type x read length x covariate
+     * Get the calling thread's reusable ReadCovariates, set up for a read of readLength bases
+     *
+     * The result is overwritten by the next call on the same thread, so it must not be kept beyond the
+     * processing of the current read.
+     *
+     * @param readLength the length of the read whose covariates will be recorded
+     * @param numberOfCovariates the number of covariates that will be recorded
+     * @return a ReadCovariates for the read, never null
+     */
+    public static ReadCovariates getThreadLocal(final int readLength, final int numberOfCovariates) {
+        ReadCovariates workspace = threadLocalWorkspace.get();
+        if ( workspace == null || workspace.numberOfCovariates != numberOfCovariates || workspace.capacity < readLength ) {
+            if ( logger.isDebugEnabled() ) logger.debug("Allocating covariate keys workspace for length " + readLength + " with " + numberOfCovariates + " covariates");
+            workspace = new ReadCovariates(readLength, numberOfCovariates);
+            threadLocalWorkspace.set(workspace);
+        }
+        workspace.setReadLength(readLength);
+        return workspace;
+    }
+
+    private final int numberOfCovariates;
+
+    /**
+     * The longest read this object can hold the keys of
+     */
+    private final int capacity;
+
+    /**
+     * All of our keys, indexed by event type x read offset (up to capacity) x covariate
+     */
+    private final int[][][] allKeys;
+
+    /**
+     * The keys for recently used read lengths shorter than capacity, indexed by event type x read offset x covariate,
+     * in least recently used order.
+     *
+     * These only hold new arrays of references to the rows of allKeys, so we can hand out key sets of exactly the
+     * read's length without allocating them for every read.  Views are evicted once they refer to more than
+     * MAX_CACHED_VIEW_ROWS rows in total.
+     */
+    private final LinkedHashMap<Integer, int[][][]> keysByReadLength = new LinkedHashMap<Integer, int[][][]>(16, 0.75f, true);
+
+    /**
+     * The total number of rows referred to by the views in keysByReadLength
+     */
+    private int cachedViewRows = 0;
+
+    /**
+     * The length of the read keys currently refers to
+     */
+    private int readLength;
+
+    /**
+     * Our keys for the current read, indexed by event type x read length x covariate
      */
-    private final int[][][] keys;
+    private int[][][] keys;
 
     /**
      * The index of the current covariate, used by addCovariate
      */
     private int currentCovariateIndex = 0;
 
+    /**
+     * Scratch space for covariates to compute their values in, see getScratchBases() and getScratchKeys()
+     */
+    private final byte[] scratchBases;
+    private final int[][] scratchKeys = new int[NUM_SCRATCH_KEY_BUFFERS][];
+    public static final int NUM_SCRATCH_KEY_BUFFERS = 2;
+
     public ReadCovariates(final int readLength, final int numberOfCovariates) {
-        final LRUCache<Integer, int[][][]> cache = keysCache.get();
-        final int[][][] cachedKeys = cache.get(readLength);
-        if ( cachedKeys == null ) {
-            // There's no cached value for read length so we need to create a new int[][][] array
-            if ( logger.isDebugEnabled() ) logger.debug("Keys cache miss for length " + readLength + " cache size " + cache.size());
-            keys = new int[EventType.values().length][readLength][numberOfCovariates];
-            cache.put(readLength, keys);
-        } else {
-            keys = cachedKeys;
+        this.numberOfCovariates = numberOfCovariates;
+        this.capacity = readLength;
+        allKeys = new int[EventType.values().length][readLength][numberOfCovariates];
+        keys = allKeys;
+        this.readLength = readLength;
+        scratchBases = new byte[readLength];
+        for ( int i = 0; i < NUM_SCRATCH_KEY_BUFFERS; i++ )
+            scratchKeys[i] = new int[readLength];
+    }
+
+    /**
+     * Reuse this object for a read of readLength bases, no longer than its capacity
+     *
+     * @param readLength the length of the next read
+     */
+    private void setReadLength(final int readLength) {
+        currentCovariateIndex = 0;
+        if ( readLength == this.readLength )
+            return;
+
+        this.readLength = readLength;
+        if ( readLength == capacity ) {
+            keys = allKeys;
+            return;
+        }
+
+        keys = keysByReadLength.get(readLength);
+        if ( keys == null ) {
+            keys = new int[allKeys.length][readLength][];
+            for ( int event = 0; event < allKeys.length; event++ )
+                System.arraycopy(allKeys[event], 0, keys[event], 0, readLength);
+            keysByReadLength.put(readLength, keys);
+            cachedViewRows += allKeys.length * readLength;
+
+            // evict the least recently used views, but always keep the one we just made
+            final Iterator<Map.Entry<Integer, int[][][]>> it = keysByReadLength.entrySet().iterator();
+            while ( cachedViewRows > MAX_CACHED_VIEW_ROWS && keysByReadLength.size() > 1 ) {
+                cachedViewRows -= allKeys.length * it.next().getKey();
+                it.remove();
+            }
         }
     }
 
+    /**
+     * Get a buffer for a covariate to work on a copy of the read's bases in, rather than allocating one
+     *
+     * Its contents are undefined, and are overwritten by the next covariate to use it.
+     *
+     * @return a byte array at least as long as the read
+     */
+    public byte[] getScratchBases() {
+        return scratchBases;
+    }
+
+    /**
+     * Get one of the buffers for a covariate to work out keys in before recording them, rather than allocating one
+     *
+     * Their contents are undefined, and are overwritten by the next covariate to use them.
+     *
+     * @param buffer which buffer to get, from 0 to NUM_SCRATCH_KEY_BUFFERS - 1
+     * @return an int array at least as long as the read
+     */
+    public int[] getScratchKeys(final int buffer) {
+        return scratchKeys[buffer];
+    }
+
     public void setCovariateIndex(final int index) {
         currentCovariateIndex = index;
     }
@@ -96,9 +211,8 @@ public class ReadCovariates {
     /**
      * Update the keys for mismatch, insertion, and deletion for the current covariate at read offset
      *
-     * NOTE: no checks are performed on the number of covariates, for performance reasons.  If the count increases
-     * after the keysCache has been accessed, this method will throw an ArrayIndexOutOfBoundsException.  This currently
-     * only occurs in the testing harness, and we don't anticipate that it will become a part of normal runs.
+     * NOTE: no checks are performed on the number of covariates, for performance reasons.  If more covariates are
+     * recorded than this ReadCovariates was created for, this method will throw an ArrayIndexOutOfBoundsException.
      *
      * @param mismatch the mismatch key value
      * @param insertion the insertion key value
@@ -132,6 +246,8 @@ public class ReadCovariates {
     //
     // ----------------------------------------------------------------------
 
+    protected int getNumCachedViewRows() { return cachedViewRows; }
+
     protected int[][] getMismatchesKeySet() { return getKeySet(EventType.BASE_SUBSTITUTION); }
     protected int[][] getInsertionsKeySet() { return getKeySet(EventType.BASE_INSERTION); }
     protected int[][] getDeletionsKeySet() { return getKeySet(EventType.BASE_DELETION); }
@@ -507,6 +507,19 @@ public class RecalUtils {
         report.print(RAC.RECAL_TABLE);
     }
 
+    /**
+     * Outputs the recalibration report in the compact binary format.
+     *
+     * @param RAC The list of shared command line arguments
+     * @param quantizationInfo Quantization info
+     * @param recalibrationTables Recalibration tables
+     * @param requestedCovariates The list of requested covariates
+     * @param output The file to write the binary report to
+     */
+    public static void outputBinaryRecalibrationReport(final RecalibrationArgumentCollection RAC, final QuantizationInfo quantizationInfo, final RecalibrationTables recalibrationTables, final Covariate[] requestedCovariates, final File output) {
+        BinaryRecalibrationReport.write(output, RAC.generateReportTable(covariateNames(requestedCovariates)), quantizationInfo, recalibrationTables, requestedCovariates);
+    }
+
     /**
      * Creates a consolidated GATK report, first generating report tables. Report can then be written to a stream via GATKReport.print(PrintStream).
      *
@@ -897,12 +910,15 @@ public class RecalUtils {
      * value for the ith position in the read and the jth covariate in
      * reqeustedCovariates list.
      *
+     * The result is the calling thread's reusable ReadCovariates, so it's overwritten by the next call on the
+     * same thread and must not be kept beyond the processing of this read.
+     *
      * @param read                The read for which to compute covariate values.
      * @param requestedCovariates The list of requested covariates.
      * @return a matrix with all the covariates calculated for every base in the read
      */
     public static ReadCovariates computeCovariates(final GATKSAMRecord read, final Covariate[] requestedCovariates) {
-        final ReadCovariates readCovariates = new ReadCovariates(read.getReadLength(), requestedCovariates.length);
+        final ReadCovariates readCovariates = ReadCovariates.getThreadLocal(read.getReadLength(), requestedCovariates.length);
         computeCovariates(read, requestedCovariates, readCovariates);
         return readCovariates;
     }
@@ -0,0 +1,193 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.recalibration;
+
+import org.broadinstitute.gatk.utils.MathUtils;
+import org.broadinstitute.gatk.utils.QualityUtils;
+import org.broadinstitute.gatk.utils.collections.NestedIntegerArray;
+import org.broadinstitute.gatk.utils.recalibration.EventType;
+
+import java.util.List;
+
+/**
+ * The recalibration tables compiled into flat arrays for applying BQSR
+ *
+ * Recalibrating a base walks the hierarchical Bayesian chain read group -> reported quality -> each optional
+ * covariate, getting each level's RecalDatum out of a NestedIntegerArray and asking it for its (synchronized,
+ * lazily calculated) empirical quality given the prior from the level above.  But that prior only depends on
+ * the datum's own keys, so every step of the chain can be worked out once, up front: the quality up to and
+ * including the reported quality level for each read group, reported quality and event, and the delta of
+ * each optional covariate value on top of it.  Recalibrating a base is then a few array lookups and additions,
+ * with no locks or allocation, followed by a lookup in the combined quantization map.
+ *
+ * The deltas can't be folded into a single final quality per combination of covariate values, as that's the
+ * product of all of the covariates' key spaces, but the result is exactly what
+ * BaseRecalibration.hierarchicalBayesianQualityEstimate() gives, computed in the same order.
+ */
+public final class RecalibrationLookupTable {
+    private final int numReadGroups;
+    private final int qualDimension;
+    private final int numCovariates;
+
+    /**
+     * Whether reads of each event x read group are recalibrated at all, i.e. whether the read group was in the tables
+     */
+    private final boolean[] hasReadGroup;
+
+    /**
+     * epsilon + globalDeltaQ for each event x read group, for reported qualities outside of the tables
+     */
+    private final double[] readGroupEstimates;
+
+    /**
+     * epsilon + globalDeltaQ + deltaQReported for each event x read group x reported quality row
+     */
+    private final double[] qualityScoreEstimates;
+
+    /**
+     * For each optional covariate, the deltaQ of each of its values, or null for rows without any data for it
+     */
+    private final double[][][] covariateDeltas;
+
+    /**
+     * Map from bounded recalibrated quality to final quality, with any quantization applied
+     */
+    private final byte[] finalQuals;
+
+    /**
+     * Compile the tables for recalibration
+     *
+     * @param recalibrationTables the tables to compile; their datums' empirical qualities are calculated and cached
+     * @param numCovariates the number of requested covariates
+     * @param globalQScorePrior if > 0, the prior to use in place of the read group's reported quality for substitutions
+     * @param quantizedQuals the quantization map applied to recalibrated qualities
+     * @param staticQuantizedMapping if not null, the static quantization applied after the quantization map
+     */
+    public RecalibrationLookupTable(final RecalibrationTables recalibrationTables, final int numCovariates, final double globalQScorePrior,
+                                    final List<Byte> quantizedQuals, final byte[] staticQuantizedMapping) {
+        final int[] qualTableDimensions = recalibrationTables.getQualityScoreTable().getDimensions();
+        this.numReadGroups = qualTableDimensions[0];
+        this.qualDimension = qualTableDimensions[1];
+        this.numCovariates = numCovariates;
+        final int numEvents = EventType.values().length;
+
+        hasReadGroup = new boolean[numEvents * numReadGroups];
+        readGroupEstimates = new double[hasReadGroup.length];
+        qualityScoreEstimates = new double[numEvents * numReadGroups * qualDimension];
+        covariateDeltas = new double[numCovariates][][];
+
+        // the read group level of the chain
+        final double[] epsilons = new double[hasReadGroup.length];
+        final double[] globalDeltaQs = new double[hasReadGroup.length];
+        for ( final NestedIntegerArray.Leaf<RecalDatum> leaf : recalibrationTables.getReadGroupTable().getAllLeaves() ) {
+            final int rgKey = leaf.keys[0];
+            final int event = leaf.keys[1];
+            final int index = event * numReadGroups + rgKey;
+            epsilons[index] = ( globalQScorePrior > 0.0 && event == EventType.BASE_SUBSTITUTION.ordinal() ? globalQScorePrior : leaf.value.getEstimatedQReported() );
+            globalDeltaQs[index] = leaf.value.getEmpiricalQuality(epsilons[index]) - epsilons[index];
+            readGroupEstimates[index] = epsilons[index] + globalDeltaQs[index];
+            hasReadGroup[index] = true;
+        }
+
+        // the reported quality level, including quals without any data, for which deltaQReported is 0
+        final double[] deltaQReporteds = new double[qualityScoreEstimates.length];
+        for ( final NestedIntegerArray.Leaf<RecalDatum> leaf : recalibrationTables.getQualityScoreTable().getAllLeaves() ) {
+            final int rgIndex = leaf.keys[2] * numReadGroups + leaf.keys[0];
+            if ( hasReadGroup[rgIndex] ) {
+                final double prior = globalDeltaQs[rgIndex] + epsilons[rgIndex];
+                deltaQReporteds[rowIndex(leaf.keys[2], leaf.keys[0], leaf.keys[1])] = leaf.value.getEmpiricalQuality(prior) - prior;
+            }
+        }
+        for ( int row = 0; row < qualityScoreEstimates.length; row++ ) {
+            final int rgIndex = row / qualDimension;
+            qualityScoreEstimates[row] = epsilons[rgIndex] + globalDeltaQs[rgIndex] + deltaQReporteds[row];
+        }
+
+        // and the optional covariates
+        for ( int i = RecalibrationTables.TableType.OPTIONAL_COVARIATE_TABLES_START.ordinal(); i < numCovariates; i++ ) {
+            final NestedIntegerArray<RecalDatum> table = recalibrationTables.getTable(i);
+            final int covariateDimension = table.getDimensions()[2];
+            covariateDeltas[i] = new double[qualityScoreEstimates.length][];
+            for ( final NestedIntegerArray.Leaf<RecalDatum> leaf : table.getAllLeaves() ) {
+                final int rgIndex = leaf.keys[3] * numReadGroups + leaf.keys[0];
+                if ( ! hasReadGroup[rgIndex] )
+                    continue;
+
+                final int row = rowIndex(leaf.keys[3], leaf.keys[0], leaf.keys[1]);
+                if ( covariateDeltas[i][row] == null )
+                    covariateDeltas[i][row] = new double[covariateDimension];
+                final double prior = deltaQReporteds[row] + globalDeltaQs[rgIndex] + epsilons[rgIndex];
+                covariateDeltas[i][row][leaf.keys[2]] = leaf.value.getEmpiricalQuality(prior) - prior;
+            }
+        }
+
+        finalQuals = new byte[RecalDatum.MAX_RECALIBRATED_Q_SCORE + 1];
+        for ( int qual = 0; qual < finalQuals.length; qual++ ) {
+            final byte quantizedQual = quantizedQuals.get(qual);
+            finalQuals[qual] = staticQuantizedMapping == null ? quantizedQual : staticQuantizedMapping[quantizedQual];
+        }
+    }
+
+    private int rowIndex(final int event, final int rgKey, final int qualKey) {
+        return (event * numReadGroups + rgKey) * qualDimension + qualKey;
+    }
+
+    /**
+     * @return true if reads in the read group with rgKey have data for event, and so should be recalibrated
+     */
+    public boolean canRecalibrate(final int event, final int rgKey) {
+        return rgKey >= 0 && rgKey < numReadGroups && hasReadGroup[event * numReadGroups + rgKey];
+    }
+
+    /**
+     * Get the final recalibrated quality of a base
+     *
+     * @param event the ordinal of the EventType being recalibrated
+     * @param keySet the keys of all covariates for the base and event, as returned by ReadCovariates.getKeySet().
+     *               canRecalibrate() must be true for its read group
+     * @return the recalibrated, bounded and quantized quality
+     */
+    public byte getRecalibratedQual(final int event, final int[] keySet) {
+        if ( keySet[1] < 0 || keySet[1] >= qualDimension )
+            // there's no data for this quality, so nothing beyond the read group level to apply
+            return finalQuals[QualityUtils.boundQual(MathUtils.fastRound(readGroupEstimates[event * numReadGroups + keySet[0]]), RecalDatum.MAX_RECALIBRATED_Q_SCORE)];
+
+        final int row = rowIndex(event, keySet[0], keySet[1]);
+
+        double deltaQCovariates = 0.0;
+        for ( int i = RecalibrationTables.TableType.OPTIONAL_COVARIATE_TABLES_START.ordinal(); i < numCovariates; i++ ) {
+            final double[] deltas = covariateDeltas[i][row];
+            final int key = keySet[i];
+            if ( deltas != null && key >= 0 && key < deltas.length )
+                deltaQCovariates += deltas[key];
+        }
+
+        final double recalibratedQualDouble = qualityScoreEstimates[row] + deltaQCovariates;
+
+        // recalibrated quality is bound between 1 and MAX_QUAL
+        return finalQuals[QualityUtils.boundQual(MathUtils.fastRound(recalibratedQualDouble), RecalDatum.MAX_RECALIBRATED_Q_SCORE)];
+    }
+}
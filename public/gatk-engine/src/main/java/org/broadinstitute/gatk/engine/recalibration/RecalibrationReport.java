@@ -61,14 +61,22 @@ public class RecalibrationReport {
     }
 
     public RecalibrationReport(final File recalFile, final SortedSet<String> allReadGroups) {
-        final GATKReport report = new GATKReport(recalFile);
+        final GATKReport report;
+        final BinaryRecalibrationReport.Reader binaryReport;
+        if ( BinaryRecalibrationReport.isBinaryReport(recalFile) ) {
+            report = null;
+            binaryReport = new BinaryRecalibrationReport.Reader(recalFile);
+            argumentTable = binaryReport.getArgumentTable();
+            quantizationInfo = binaryReport.getQuantizationInfo();
+        } else {
+            report = new GATKReport(recalFile);
+            binaryReport = null;
+            argumentTable = report.getTable(RecalUtils.ARGUMENT_REPORT_TABLE_TITLE);
+            quantizationInfo = initializeQuantizationTable(report.getTable(RecalUtils.QUANTIZED_REPORT_TABLE_TITLE));
+        }
 
-        argumentTable = report.getTable(RecalUtils.ARGUMENT_REPORT_TABLE_TITLE);
         RAC = initializeArgumentCollectionTable(argumentTable);
 
-        GATKReportTable quantizedTable = report.getTable(RecalUtils.QUANTIZED_REPORT_TABLE_TITLE);
-        quantizationInfo = initializeQuantizationTable(quantizedTable);
-
         Pair<ArrayList<Covariate>, ArrayList<Covariate>> covariates = RecalUtils.initializeCovariates(RAC); // initialize the required and optional covariates
         ArrayList<Covariate> requiredCovariates = covariates.getFirst();
         ArrayList<Covariate> optionalCovariates = covariates.getSecond();
@@ -91,21 +99,34 @@ public class RecalibrationReport {
 
         initializeReadGroupCovariates(allReadGroups);
 
-        parseReadGroupTable(report.getTable(RecalUtils.READGROUP_REPORT_TABLE_TITLE), recalibrationTables.getReadGroupTable());
-
-        parseQualityScoreTable(report.getTable(RecalUtils.QUALITY_SCORE_REPORT_TABLE_TITLE), recalibrationTables.getQualityScoreTable());
+        if ( binaryReport != null ) {
+            try {
+                binaryReport.readTables(recalibrationTables, requestedCovariates[0]);
+            } finally {
+                binaryReport.close();
+            }
+        } else {
+            parseReadGroupTable(report.getTable(RecalUtils.READGROUP_REPORT_TABLE_TITLE), recalibrationTables.getReadGroupTable());
 
-        parseAllCovariatesTable(report.getTable(RecalUtils.ALL_COVARIATES_REPORT_TABLE_TITLE), recalibrationTables);
+            parseQualityScoreTable(report.getTable(RecalUtils.QUALITY_SCORE_REPORT_TABLE_TITLE), recalibrationTables.getQualityScoreTable());
 
+            parseAllCovariatesTable(report.getTable(RecalUtils.ALL_COVARIATES_REPORT_TABLE_TITLE), recalibrationTables);
+        }
     }
 
     /**
      * Gets the unique read groups in the recal file
      *
-     * @param recalFile the recal file as a GATK Report
+     * @param recalFile the recal file as a GATK Report or a binary recalibration report
      * @return the unique read groups
      */
     public static SortedSet<String> getReadGroups(final File recalFile) {
+        if ( BinaryRecalibrationReport.isBinaryReport(recalFile) ) {
+            // only the header of the binary report has to be read to get its read groups
+            final BinaryRecalibrationReport.Reader binaryReport = new BinaryRecalibrationReport.Reader(recalFile);
+            binaryReport.close();
+            return new TreeSet<String>(binaryReport.getReadGroups());
+        }
         return getReadGroups(new GATKReport(recalFile));
     }
 
@@ -144,6 +165,24 @@ public class RecalibrationReport {
         }
     }
 
+    /**
+     * Combines a binary recalibration report into this one by streaming its rows directly into these tables, so
+     * the other report is never held in memory.
+     *
+     * The same notes as for {@link #combine(RecalibrationReport)} apply.  The read groups of the other report must
+     * have been included in the read groups this report was created with.
+     *
+     * @param binaryRecalFile the binary recalibration report to combine with this one
+     */
+    public void combine(final File binaryRecalFile) {
+        final BinaryRecalibrationReport.Reader binaryReport = new BinaryRecalibrationReport.Reader(binaryRecalFile);
+        try {
+            binaryReport.readTables(recalibrationTables, requestedCovariates[0]);
+        } finally {
+            binaryReport.close();
+        }
+    }
+
     public QuantizationInfo getQuantizationInfo() {
         return quantizationInfo;
     }
@@ -377,6 +416,16 @@ public class RecalibrationReport {
         return RecalUtils.createRecalibrationGATKReport(argumentTable, quantizationInfo, recalibrationTables, requestedCovariates, RAC.SORT_BY_ALL_COLUMNS);
     }
 
+    /**
+     * Writes the recalibration report in the compact binary format, which can be read back by the constructor
+     * and combined by the BQSRGatherer much faster than the GATKReport.
+     *
+     * @param output the file to write the report to
+     */
+    public void writeBinaryReport(final File output) {
+        BinaryRecalibrationReport.write(output, argumentTable, quantizationInfo, recalibrationTables, requestedCovariates);
+    }
+
     public RecalibrationArgumentCollection getRAC() {
         return RAC;
     }
@@ -28,15 +28,11 @@ package org.broadinstitute.gatk.engine.recalibration.covariates;
 import org.apache.log4j.Logger;
 import org.broadinstitute.gatk.engine.recalibration.RecalibrationArgumentCollection;
 import org.broadinstitute.gatk.utils.BaseUtils;
-import org.broadinstitute.gatk.utils.clipping.ClippingRepresentation;
-import org.broadinstitute.gatk.utils.clipping.ReadClipper;
 import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
 import org.broadinstitute.gatk.utils.exceptions.UserException;
 import org.broadinstitute.gatk.engine.recalibration.ReadCovariates;
 import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
 
-import java.util.ArrayList;
-
 /**
  * Created by IntelliJ IDEA.
  * User: rpoplin
@@ -86,40 +82,45 @@ public class ContextCovariate implements StandardCovariate {
 
     @Override
     public void recordValues(final GATKSAMRecord read, final ReadCovariates values) {
-
-        // store the original bases and then write Ns over low quality ones
-        final byte[] originalBases = read.getReadBases().clone();
-        // Write N's over the low quality tail of the reads to avoid adding them into the context
-        final GATKSAMRecord clippedRead = ReadClipper.clipLowQualEnds(read, LOW_QUAL_TAIL, ClippingRepresentation.WRITE_NS);
-        
-        final boolean negativeStrand = clippedRead.getReadNegativeStrandFlag();
-        byte[] bases = clippedRead.getReadBases();
-        if (negativeStrand)
-            bases = BaseUtils.simpleReverseComplement(bases);
-
-        final ArrayList<Integer> mismatchKeys = contextWith(bases, mismatchesContextSize, mismatchesKeyMask);
-        final ArrayList<Integer> indelKeys = contextWith(bases, indelsContextSize, indelsKeyMask);
-
-        final int readLength = bases.length;
-
-        // this is necessary to ensure that we don't keep historical data in the ReadCovariates values
-        // since the context covariate may not span the entire set of values in read covariates
-        // due to the clipping of the low quality bases
-        if ( readLength != originalBases.length ) {
-            // don't both zeroing out if we are going to overwrite the whole array
-            for ( int i = 0; i < originalBases.length; i++ )
-                // this base has been clipped off, so zero out the covariate values here
+        final byte[] readBases = read.getReadBases();
+        final byte[] quals = read.getBaseQualities();
+        final int readLength = readBases.length;
+
+        // Write N's over the low quality tail of the reads to avoid adding them into the context, as
+        // ReadClipper.clipLowQualEnds(read, LOW_QUAL_TAIL, WRITE_NS) would, but into a copy of the bases
+        // in the scratch space rather than a whole new read
+        int leftClipIndex = 0;
+        int rightClipIndex = readLength - 1;
+        while (rightClipIndex >= 0 && quals[rightClipIndex] <= LOW_QUAL_TAIL) rightClipIndex--;
+        while (leftClipIndex < readLength && quals[leftClipIndex] <= LOW_QUAL_TAIL) leftClipIndex++;
+
+        if (leftClipIndex > rightClipIndex) {
+            // the whole read is clipped off, so zero out the covariate values to ensure that we don't keep
+            // historical data in the ReadCovariates values
+            for (int i = 0; i < readLength; i++)
                 values.addCovariate(0, 0, 0, i);
+            return;
         }
 
+        final boolean negativeStrand = read.getReadNegativeStrandFlag();
+        final byte[] bases = values.getScratchBases();
         for (int i = 0; i < readLength; i++) {
-            final int readOffset = (negativeStrand ? readLength - i - 1 : i);
-            final int indelKey = indelKeys.get(i);
-            values.addCovariate(mismatchKeys.get(i), indelKey, indelKey, readOffset);
+            final byte base = (i < leftClipIndex || i > rightClipIndex) ? (byte)'N' : readBases[i];
+            if (negativeStrand)
+                bases[readLength - i - 1] = BaseUtils.simpleComplement(base);
+            else
+                bases[i] = base;
         }
 
-        // put the original bases back in
-        read.setReadBases(originalBases);
+        final int[] mismatchKeys = values.getScratchKeys(0);
+        final int[] indelKeys = values.getScratchKeys(1);
+        contextWith(bases, readLength, mismatchesContextSize, mismatchesKeyMask, mismatchKeys);
+        contextWith(bases, readLength, indelsContextSize, indelsKeyMask, indelKeys);
+
+        for (int i = 0; i < readLength; i++) {
+            final int readOffset = (negativeStrand ? readLength - i - 1 : i);
+            values.addCovariate(mismatchKeys[i], indelKeys[i], indelKeys[i], readOffset);
+        }
     }
 
     // Used to get the covariate's value from input csv file during on-the-fly recalibration
@@ -154,26 +155,26 @@ public class ContextCovariate implements StandardCovariate {
      * calculates the context of a base independent of the covariate mode (mismatch, insertion or deletion)
      *
      * @param bases       the bases in the read to build the context from
+     * @param readLength  the number of bases in the read, which may be fewer than bases.length
      * @param contextSize context size to use building the context
      * @param mask        mask for pulling out just the context bits
+     * @param keys        array to write the key of each of the first readLength bases into
      */
-    private static ArrayList<Integer> contextWith(final byte[] bases, final int contextSize, final int mask) {
-
-        final int readLength = bases.length;
-        final ArrayList<Integer> keys = new ArrayList<Integer>(readLength);
+    private static void contextWith(final byte[] bases, final int readLength, final int contextSize, final int mask, final int[] keys) {
 
         // the first contextSize-1 bases will not have enough previous context
+        int nKeys = 0;
         for (int i = 1; i < contextSize && i <= readLength; i++)
-            keys.add(-1);
+            keys[nKeys++] = -1;
 
         if (readLength < contextSize)
-            return keys;
+            return;
 
         final int newBaseOffset = 2 * (contextSize - 1) + LENGTH_BITS;
 
         // get (and add) the key for the context starting at the first base
         int currentKey = keyFromContext(bases, 0, contextSize);
-        keys.add(currentKey);
+        keys[nKeys++] = currentKey;
 
         // if the first key was -1 then there was an N in the context; figure out how many more consecutive contexts it affects
         int currentNPenalty = 0;
@@ -202,14 +203,12 @@ public class ContextCovariate implements StandardCovariate {
             }
 
             if (currentNPenalty == 0) {
-                keys.add(currentKey);
+                keys[nKeys++] = currentKey;
             } else {
                 currentNPenalty--;
-                keys.add(-1);
+                keys[nKeys++] = -1;
             }
         }
-
-        return keys;
     }
 
     public static int keyFromContext(final String dna) {
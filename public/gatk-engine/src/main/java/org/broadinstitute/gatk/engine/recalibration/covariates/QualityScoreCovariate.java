@@ -72,11 +72,14 @@ public class QualityScoreCovariate implements RequiredCovariate {
     @Override
     public void recordValues(final GATKSAMRecord read, final ReadCovariates values) {
         final byte[] baseQualities = read.getBaseQualities();
-        final byte[] baseInsertionQualities = read.getBaseInsertionQualities();
-        final byte[] baseDeletionQualities = read.getBaseDeletionQualities();
+        // reads without indel qualities use the default for every base, so don't create arrays full of it
+        final byte[] baseInsertionQualities = read.getExistingBaseInsertionQualities();
+        final byte[] baseDeletionQualities = read.getExistingBaseDeletionQualities();
 
         for (int i = 0; i < baseQualities.length; i++) {
-            values.addCovariate((int)baseQualities[i], (int)baseInsertionQualities[i], (int)baseDeletionQualities[i], i);
+            final int insertionQual = baseInsertionQualities == null ? GATKSAMRecord.DEFAULT_INSERTION_DELETION_QUAL : baseInsertionQualities[i];
+            final int deletionQual = baseDeletionQualities == null ? GATKSAMRecord.DEFAULT_INSERTION_DELETION_QUAL : baseDeletionQualities[i];
+            values.addCovariate((int)baseQualities[i], insertionQual, deletionQual, i);
         }
     }
 
@@ -0,0 +1,339 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.traversals;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.RuntimeIOException;
+import org.broadinstitute.gatk.utils.exceptions.UserException;
+import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A first-in, first-out store of reads kept in BAM record encoding rather than as objects on the heap.
+ *
+ * Encoded reads go into a fixed-size buffer memory-mapped from a temporary file, so that it neither counts
+ * against the heap nor against the JVM's direct memory limit, and the OS can page it out under pressure.  Once
+ * that fills, further reads are appended to a second temporary file.  Reads come back out, in the order they
+ * went in, through drainTo(); a drain can stop at a given position, leaving the reads after it serialized.
+ *
+ * Only the fields of the BAM record survive the round trip.  GATK-specific state that isn't part of the record,
+ * such as temporary attributes or the strandless flag, is lost, so reads should be stored before walkers get a
+ * chance to annotate them.
+ */
+final class SerializedReadBuffer {
+    private static final int SPILL_FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final SAMFileHeader header;
+    private final int memoryBufferSize;
+    private final BAMRecordCodec codec;
+    private final BAMRecordCodec decoder;
+
+    /**
+     * Mapped storage for the oldest memoryBufferSize bytes of encoded reads.  Its position is where the next byte
+     * is written.  Mapped on first use, and kept from drain to drain thereafter.
+     */
+    private MappedByteBuffer memoryBuffer = null;
+
+    /**
+     * A view of memoryBuffer whose position is where the next byte is read
+     */
+    private ByteBuffer memoryReadView = null;
+
+    /**
+     * Overflow for encoded reads that didn't fit in memoryBuffer.  Everything in the overflow file comes after
+     * everything still unread in memoryBuffer.
+     */
+    private File spillFile = null;
+    private OutputStream spillStream = null;
+    private InputStream spillInput = null;
+    private long spillBytesWritten = 0;
+    private long spillBytesRead = 0;
+
+    /**
+     * The read at the front of the buffer, if it has been decoded by a drain that stopped before it
+     */
+    private GATKSAMRecord head = null;
+
+    private int size = 0;
+    private long numBytesSpilledToDisk = 0;
+    private long numSpilledToDisk = 0;
+
+    /**
+     * Create a new, empty buffer
+     * @param header the header of the reads that will be stored, used to encode and decode them
+     * @param memoryBufferSize number of bytes of encoded reads to keep in the mapped buffer before spilling to disk
+     */
+    SerializedReadBuffer(final SAMFileHeader header, final int memoryBufferSize) {
+        if ( header == null ) throw new IllegalArgumentException("header cannot be null");
+        if ( memoryBufferSize < 0 ) throw new IllegalArgumentException("memoryBufferSize must be >= 0 but got " + memoryBufferSize);
+        this.header = header;
+        this.memoryBufferSize = memoryBufferSize;
+        this.codec = new BAMRecordCodec(header);
+        this.codec.setOutputStream(new SinkOutputStream());
+        this.decoder = new BAMRecordCodec(header);
+        this.decoder.setInputStream(new SourceInputStream());
+    }
+
+    /**
+     * Append a read to the end of this buffer
+     * @param read a non-null read
+     */
+    void add(final GATKSAMRecord read) {
+        final long spilledBefore = numBytesSpilledToDisk;
+        codec.encode(read);
+        if ( numBytesSpilledToDisk > spilledBefore )
+            numSpilledToDisk++;
+        size++;
+    }
+
+    /**
+     * @return the number of reads in this buffer
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the total number of reads that didn't fit in memory and were written to disk since this buffer was created
+     */
+    long getNumSpilledToDisk() {
+        return numSpilledToDisk;
+    }
+
+    /**
+     * Decodes all of the reads in this buffer, in the order in which they were added, onto the end of destination
+     * and empties this buffer.
+     *
+     * @param destination the list to add the reads to
+     */
+    void drainTo(final List<GATKSAMRecord> destination) {
+        drainTo(destination, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Decodes the reads at the front of this buffer onto the end of destination, in the order in which they were
+     * added, stopping at the first read that starts after stop on contig contigIndex.  That read and all of the
+     * ones after it stay in this buffer.
+     *
+     * @param destination the list to add the reads to
+     * @param contigIndex the contig of the last position to drain
+     * @param stop the last alignment start to drain on contigIndex
+     */
+    void drainTo(final List<GATKSAMRecord> destination, final int contigIndex, final int stop) {
+        try {
+            while ( size > 0 ) {
+                final GATKSAMRecord read = head != null ? head : decodeNext();
+                if ( read.getReferenceIndex() > contigIndex || (read.getReferenceIndex() == contigIndex && read.getAlignmentStart() > stop) ) {
+                    head = read;
+                    break;
+                }
+                head = null;
+                destination.add(read);
+                size--;
+            }
+        } catch ( RuntimeIOException e ) {
+            throw new UserException.CouldNotReadInputFile("the reads spilled to temporary storage couldn't be read back", e);
+        }
+
+        if ( size == 0 )
+            clear();
+    }
+
+    /**
+     * @return the next read encoded in this buffer
+     */
+    private GATKSAMRecord decodeNext() {
+        final SAMRecord record = decoder.decode();
+        if ( record == null )
+            throw new IllegalStateException("Expected " + size + " reads in the buffer but ran out of encoded reads");
+        return new GATKSAMRecord(record);
+    }
+
+    /**
+     * Empties this buffer, deleting its spill file if any
+     */
+    private void clear() {
+        size = 0;
+        head = null;
+        if ( memoryBuffer != null ) {
+            memoryBuffer.clear();
+            memoryReadView.clear();
+        }
+        closeSpillFile();
+    }
+
+    /**
+     * Maps the buffer for the oldest encoded reads from a temporary file
+     */
+    private void mapMemoryBuffer() {
+        try {
+            final File bufferFile = File.createTempFile("TAROrderedReadCache.", ".buffer");
+            bufferFile.deleteOnExit();
+            final RandomAccessFile file = new RandomAccessFile(bufferFile, "rw");
+            try {
+                memoryBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, memoryBufferSize);
+                memoryReadView = memoryBuffer.duplicate();
+            } finally {
+                // the mapping remains valid after the file is closed, and on most platforms after it's deleted too
+                file.close();
+                bufferFile.delete();
+            }
+        } catch ( IOException e ) {
+            throw new UserException.BadTmpDir("Unable to create a temporary file to buffer reads that don't fit in memory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the unread bytes of the mapped buffer to its start, making room after them for more
+     */
+    private void compactMemoryBuffer() {
+        memoryBuffer.limit(memoryBuffer.position());
+        memoryBuffer.position(memoryReadView.position());
+        memoryBuffer.compact();
+        memoryReadView.position(0);
+    }
+
+    /**
+     * Opens the temporary file that receives reads beyond the mapped buffer
+     */
+    private void openSpillFile() {
+        try {
+            spillFile = File.createTempFile("TAROrderedReadCache.", ".reads");
+            spillFile.deleteOnExit();
+            spillStream = new BufferedOutputStream(new FileOutputStream(spillFile), SPILL_FILE_BUFFER_SIZE);
+        } catch ( IOException e ) {
+            throw new UserException.BadTmpDir("Unable to create a temporary file for reads that don't fit in memory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes and deletes the spill file, if any
+     */
+    private void closeSpillFile() {
+        if ( spillFile == null )
+            return;
+        try {
+            spillStream.close();
+            if ( spillInput != null )
+                spillInput.close();
+        } catch ( IOException e ) {
+            // we're throwing the file away anyway
+        }
+        spillFile.delete();
+        spillFile = null;
+        spillStream = null;
+        spillInput = null;
+        spillBytesWritten = 0;
+        spillBytesRead = 0;
+    }
+
+    /**
+     * Receives the codec's encoded reads, filling the mapped buffer before spilling over to disk
+     */
+    private class SinkOutputStream extends OutputStream {
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, int offset, int length) throws IOException {
+            // while the spill file holds unread bytes, new bytes must go after them to stay in order
+            if ( spillBytesRead == spillBytesWritten && memoryBufferSize > 0 ) {
+                if ( memoryBuffer == null )
+                    mapMemoryBuffer();
+
+                // reclaim the space of reads already drained, but only once there's enough of it to pay for the copy
+                if ( memoryBuffer.remaining() < length && memoryReadView.position() >= memoryBufferSize / 2 )
+                    compactMemoryBuffer();
+
+                final int inMemory = Math.min(length, memoryBuffer.remaining());
+                memoryBuffer.put(bytes, offset, inMemory);
+                offset += inMemory;
+                length -= inMemory;
+            }
+
+            if ( length > 0 ) {
+                if ( spillStream == null )
+                    openSpillFile();
+                spillStream.write(bytes, offset, length);
+                spillBytesWritten += length;
+                numBytesSpilledToDisk += length;
+            }
+        }
+    }
+
+    /**
+     * Reads encoded reads back out of the mapped buffer and then the spill file, releasing space as it goes
+     */
+    private class SourceInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if ( length == 0 )
+                return 0;
+
+            final int unreadInMemory = memoryBuffer == null ? 0 : memoryBuffer.position() - memoryReadView.position();
+            if ( unreadInMemory > 0 ) {
+                final int n = Math.min(length, unreadInMemory);
+                memoryReadView.get(bytes, offset, n);
+                if ( memoryReadView.position() == memoryBuffer.position() ) {
+                    // everything in memory has been read, so start over from the beginning of the buffer
+                    memoryBuffer.clear();
+                    memoryReadView.clear();
+                }
+                return n;
+            }
+
+            if ( spillBytesRead < spillBytesWritten ) {
+                spillStream.flush();
+                if ( spillInput == null )
+                    spillInput = new BufferedInputStream(new FileInputStream(spillFile), SPILL_FILE_BUFFER_SIZE);
+                final int n = spillInput.read(bytes, offset, (int)Math.min(length, spillBytesWritten - spillBytesRead));
+                if ( n > 0 ) {
+                    spillBytesRead += n;
+                    if ( spillBytesRead == spillBytesWritten )
+                        closeSpillFile();
+                }
+                return n;
+            }
+
+            return -1;
+        }
+    }
+}
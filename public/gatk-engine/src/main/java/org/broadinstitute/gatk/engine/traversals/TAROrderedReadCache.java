@@ -25,6 +25,8 @@
 
 package org.broadinstitute.gatk.engine.traversals;
 
+import htsjdk.samtools.SAMFileHeader;
+import org.broadinstitute.gatk.utils.GenomeLoc;
 import org.broadinstitute.gatk.utils.downsampling.Downsampler;
 import org.broadinstitute.gatk.utils.downsampling.ReservoirDownsampler;
 import org.broadinstitute.gatk.utils.sam.AlignmentStartComparator;
@@ -38,6 +40,11 @@ import java.util.List;
  * Subsystem to track a list of all reads currently live in the TraverseActiveRegions system,
  * while limiting the total number of reads to a maximum capacity.
  *
+ * Beyond the maximum capacity, the cache either downsamples the reads or, if created with a spill buffer,
+ * keeps the excess in serialized form off the heap (see SerializedReadBuffer) so that no reads are lost.
+ * Spilled reads come back onto the heap only once an active region can reach them; see
+ * popCurrentReads(GenomeLoc) and restoreLiveReads().
+ *
  * User: depristo
  * Date: 4/7/13
  * Time: 11:23 AM
@@ -47,6 +54,11 @@ public class TAROrderedReadCache {
     private ArrayList<GATKSAMRecord> undownsampledCache;
     private Downsampler<GATKSAMRecord> downsampler;
 
+    /**
+     * Holds the reads beyond maxCapacity, in order, when we spill rather than downsample; null otherwise
+     */
+    private final SerializedReadBuffer spilledReads;
+
     private static final int UNDOWNSAMPLED_CACHE_MAX_INITIAL_SIZE = 10000;
 
     /**
@@ -54,8 +66,22 @@ public class TAROrderedReadCache {
      * @param maxCapacity the max capacity of the read cache.
      */
     public TAROrderedReadCache( final int maxCapacity ) {
+        this(maxCapacity, null, 0);
+    }
+
+    /**
+     * Create a new empty ReadCache that, given a header, never discards reads: once maxCapacity reads are
+     * held on the heap, further reads are serialized into a buffer of spillBufferSize bytes memory-mapped
+     * from a temporary file and, beyond that, into a second temporary file.
+     *
+     * @param maxCapacity the max number of reads added to the heap before spilling.
+     * @param header the header of the reads, or null to downsample reads beyond maxCapacity instead of spilling them
+     * @param spillBufferSize size in bytes of the mapped buffer for reads beyond maxCapacity.
+     */
+    public TAROrderedReadCache( final int maxCapacity, final SAMFileHeader header, final int spillBufferSize ) {
         if ( maxCapacity < 0 ) throw new IllegalArgumentException("maxCapacity must be >= 0 but got " + maxCapacity);
         this.maxCapacity = maxCapacity;
+        this.spilledReads = header == null ? null : new SerializedReadBuffer(header, spillBufferSize);
 
         // The one we're not currently using will always be null:
         initializeUndownsampledCache();
@@ -89,6 +115,23 @@ public class TAROrderedReadCache {
         return maxCapacity;
     }
 
+    /**
+     * Does this cache spill reads beyond its capacity rather than downsampling them?
+     * @return true if no reads are ever discarded
+     */
+    public boolean isSpilling() {
+        return spilledReads != null;
+    }
+
+    /**
+     * How many reads have been written to disk since the cache was created, because they didn't fit in either the
+     * heap or the off-heap spill buffer?
+     * @return a non-negative number, always 0 if we aren't spilling
+     */
+    public long getNumSpilledToDisk() {
+        return spilledReads != null ? spilledReads.getNumSpilledToDisk() : 0;
+    }
+
     /**
      * Add a single read to this cache.  Assumed to be in sorted order w.r.t. the previously added reads
      * @param read a read to add
@@ -99,6 +142,10 @@ public class TAROrderedReadCache {
         if ( downsampler != null ) {
             downsampler.submit(read);
         }
+        else if ( spilledReads != null && (spilledReads.size() > 0 || undownsampledCache.size() >= maxCapacity) ) {
+            // once we've started spilling everything else goes after the spilled reads, keeping them in order
+            spilledReads.add(read);
+        }
         else {
             undownsampledCache.add(read);
 
@@ -125,7 +172,9 @@ public class TAROrderedReadCache {
      * @return a positive integer
      */
     public int size() {
-        return downsampler != null ? downsampler.size() : undownsampledCache.size();
+        if ( downsampler != null )
+            return downsampler.size();
+        return undownsampledCache.size() + (spilledReads != null ? spilledReads.size() : 0);
     }
 
     /**
@@ -151,6 +200,8 @@ public class TAROrderedReadCache {
 
         if ( downsampler == null ) {
             poppedReads = undownsampledCache;  // avoid making a copy here, since we're going to allocate a new cache
+            if ( spilledReads != null )
+                spilledReads.drainTo(poppedReads); // all added after the reads on the heap, so still in order
         }
         else {
             // If we triggered the downsampler, we need to sort the reads before returning them,
@@ -165,4 +216,44 @@ public class TAROrderedReadCache {
         initializeUndownsampledCache();
         return poppedReads;
     }
+
+    /**
+     * Like popCurrentReads(), but leaves any spilled reads that start after the end of span in the cache, still
+     * serialized, since they can't overlap span.  Every read in the cache that overlaps span is returned.
+     *
+     * @param span the span of the active region, including its extension, about to be given reads
+     * @return a list of GATKSAMRecords in this cache, in sorted order
+     */
+    public List<GATKSAMRecord> popCurrentReads( final GenomeLoc span ) {
+        if ( span == null ) throw new IllegalArgumentException("span cannot be null");
+        if ( downsampler != null || spilledReads == null )
+            return popCurrentReads();
+
+        final List<GATKSAMRecord> poppedReads = undownsampledCache;
+        spilledReads.drainTo(poppedReads, span.getContigIndex(), span.getStop());
+        initializeUndownsampledCache();
+        return poppedReads;
+    }
+
+    /**
+     * Puts reads returned by the last pop that are still live back into the cache, ahead of any reads that were
+     * left in it.
+     *
+     * When spilling, the reads go straight back onto the heap even if that takes it past maxCapacity, so that
+     * reads which are still in use aren't serialized again only to be decoded for the next region.  There are
+     * never more of them than the last pop returned.  Otherwise they're added as by addAll(), and may be downsampled.
+     *
+     * @param reads reads from the last pop, in sorted order; no other reads may have been added since that pop
+     */
+    public void restoreLiveReads( final List<GATKSAMRecord> reads ) {
+        if ( reads == null ) throw new IllegalArgumentException("Reads cannot be null");
+        if ( spilledReads == null || downsampler != null ) {
+            addAll(reads);
+            return;
+        }
+
+        if ( ! undownsampledCache.isEmpty() )
+            throw new IllegalStateException("Live reads must be restored before any other reads are added to the cache");
+        undownsampledCache.addAll(reads);
+    }
 }
@@ -42,6 +42,7 @@ import org.broadinstitute.gatk.utils.activeregion.ActiveRegion;
 import org.broadinstitute.gatk.utils.activeregion.ActivityProfile;
 import org.broadinstitute.gatk.utils.activeregion.ActivityProfileState;
 import org.broadinstitute.gatk.utils.activeregion.BandPassActivityProfile;
+import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
 import org.broadinstitute.gatk.utils.nanoScheduler.NSMapFunction;
 import org.broadinstitute.gatk.utils.nanoScheduler.NSProgressFunction;
 import org.broadinstitute.gatk.utils.nanoScheduler.NSReduceFunction;
@@ -49,12 +50,21 @@ import org.broadinstitute.gatk.utils.nanoScheduler.NanoScheduler;
 import org.broadinstitute.gatk.utils.progressmeter.ProgressMeter;
 import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
 import org.broadinstitute.gatk.utils.sam.ReadUtils;
+import org.broadinstitute.gatk.utils.threading.NamedThreadFactory;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implement active region traversal
@@ -97,6 +107,19 @@ public final class TraverseActiveRegions<M, T> extends TraversalEngine<M,T,Activ
     ActiveRegionWalker<M, T> walker;
 
     final NanoScheduler<MapData, M, T> nanoScheduler;
+    private final int nThreads;
+
+    /**
+     * Runs the walker's isActive() over blocks of loci in parallel, or null if we call it on each locus as we reach it
+     */
+    private ExecutorService activityScoringExecutor = null;
+    private int activityScoringBlockSize = 0;
+
+    /**
+     * Time, in nanoseconds summed over all threads, spent in the walker's isActive() and map() functions
+     */
+    private final AtomicLong isActiveNanos = new AtomicLong();
+    private final AtomicLong mapNanos = new AtomicLong();
 
     /**
      * Data to use in the ActiveRegionWalker.map function produced by the NanoScheduler input iterator
@@ -123,6 +146,7 @@ public final class TraverseActiveRegions<M, T> extends TraversalEngine<M,T,Activ
      * @param nThreads number of threads
      */
     public TraverseActiveRegions(final int nThreads) {
+        this.nThreads = nThreads;
         nanoScheduler = new NanoScheduler<>(nThreads);
         nanoScheduler.setProgressFunction(new NSProgressFunction<MapData>() {
             @Override
@@ -164,7 +188,31 @@ public final class TraverseActiveRegions<M, T> extends TraversalEngine<M,T,Activ
 
         final int maxReadsAcrossSamples = this.walker.maxReadsInMemoryPerSample * ReadUtils.getSAMFileSamples(engine.getSAMFileHeader()).size();
         final int maxReadsToHoldInMemory = Math.min(maxReadsAcrossSamples, this.walker.maxTotalReadsInMemory);
-        myReads = new TAROrderedReadCache(maxReadsToHoldInMemory);
+        if ( this.walker.spillReadsBufferSizeInMB > 0 )
+            myReads = new TAROrderedReadCache(maxReadsToHoldInMemory, engine.getSAMFileHeader(), this.walker.spillReadsBufferSizeInMB * 1024 * 1024);
+        else
+            myReads = new TAROrderedReadCache(maxReadsToHoldInMemory);
+
+        if ( this.walker.activityScoringBlockSize > 0 && nThreads > 1 ) {
+            activityScoringBlockSize = this.walker.activityScoringBlockSize;
+            activityScoringExecutor = Executors.newFixedThreadPool(nThreads, new NamedThreadFactory("TAR-isActive-thread-%d"));
+        }
+    }
+
+    /**
+     * Release the isActive() threads and, if there were any, report how the traversal's time divided between
+     * scoring activity and map()
+     */
+    @Override
+    public void shutdown() {
+        if ( activityScoringExecutor == null )
+            return;
+
+        activityScoringExecutor.shutdownNow();
+        activityScoringExecutor = null;
+
+        logger.info(String.format("Active region traversal spent %.2f seconds scoring activity with isActive() and %.2f seconds in map(), summed over all threads",
+                isActiveNanos.get() / (double)TimeUnit.SECONDS.toNanos(1), mapNanos.get() / (double)TimeUnit.SECONDS.toNanos(1)));
     }
 
     // -------------------------------------------------------------------------------------
@@ -287,6 +335,11 @@ public final class TraverseActiveRegions<M, T> extends TraversalEngine<M,T,Activ
         private final GenomeLoc currentWindow;
         private final boolean processRemainingActiveRegions;
 
+        /**
+         * Loci waiting for their isActive() calls, when those are made in parallel over blocks of loci
+         */
+        private final List<PendingLocus> pendingLoci = new ArrayList<>();
+
         public ActiveRegionIterator( final LocusShardDataProvider dataProvider ) {
             this.dataProvider = dataProvider;
             locusView = new AllLocusView(dataProvider);
@@ -360,10 +413,27 @@ public final class TraverseActiveRegions<M, T> extends TraversalEngine<M,T,Activ
                     if ( outsideEngineIntervals(location) )
                         continue;
 
+                    if ( activityScoringExecutor != null ) {
+                        // leave the profile alone for now: the isActive() calls, and everything that depends on
+                        // their results, happen for a whole block of loci at once in scorePendingLoci()
+                        dataProvider.getShard().getReadMetrics().incrementNumIterations();
+                        final ReferenceContext refContext = referenceView.getReferenceContext(location);
+                        final RefMetaDataTracker tracker = referenceOrderedDataView.getReferenceOrderedDataAtLocus(locus.getLocation());
+                        pendingLoci.add(new PendingLocus(tracker, refContext, locus));
+
+                        maxReadsInMemory = Math.max(myReads.size(), maxReadsInMemory);
+                        printProgress(location);
+
+                        if ( pendingLoci.size() >= activityScoringBlockSize ) {
+                            scorePendingLoci();
+                            if ( ! readyActiveRegions.isEmpty() )
+                                return true;
+                        }
+                        continue;
+                    }
+
                     // we've move across some interval boundary, restart profile
-                    final boolean flushProfile = ! activityProfile.isEmpty()
-                            && ( activityProfile.getContigIndex() != location.getContigIndex()
-                            || location.getStart() != activityProfile.getStop() + 1);
+                    final boolean flushProfile = needToFlushProfile(location);
                     final List<MapData> newActiveRegions = prepActiveRegionsForProcessing(walker, flushProfile, false, referenceOrderedDataView);
 
                     dataProvider.getShard().getReadMetrics().incrementNumIterations();
@@ -390,6 +460,9 @@ public final class TraverseActiveRegions<M, T> extends TraversalEngine<M,T,Activ
                     }
                 }
 
+                // the reference and ROD views are specific to this window, so finish off its loci before moving on
+                scorePendingLoci();
+
                 if ( processRemainingActiveRegions ) {
                     // we've run out of stuff to process, and since shards now span entire contig boundaries
                     // we should finalized our regions.  This allows us to continue to use our referenceOrderedDataView
@@ -401,6 +474,88 @@ public final class TraverseActiveRegions<M, T> extends TraversalEngine<M,T,Activ
                 return ! readyActiveRegions.isEmpty();
             }
         }
+
+        /**
+         * Call isActive() on all of the pending loci in parallel, then feed the results into the activity profile
+         * in order, popping active regions exactly as we would have had we called isActive() on each locus in turn
+         */
+        private void scorePendingLoci() {
+            if ( pendingLoci.isEmpty() )
+                return;
+
+            final List<ActivityProfileState> states = scoreActivity(pendingLoci);
+            for ( int i = 0; i < pendingLoci.size(); i++ ) {
+                final boolean flushProfile = needToFlushProfile(pendingLoci.get(i).locus.getLocation());
+                readyActiveRegions.addAll(prepActiveRegionsForProcessing(walker, flushProfile, false, referenceOrderedDataView));
+                addIsActiveResult(states.get(i));
+            }
+            pendingLoci.clear();
+        }
+    }
+
+    /**
+     * A locus, with its reference and ROD data, whose isActive() call hasn't been made yet
+     */
+    private static class PendingLocus {
+        final RefMetaDataTracker tracker;
+        final ReferenceContext refContext;
+        final AlignmentContext locus;
+
+        private PendingLocus(final RefMetaDataTracker tracker, final ReferenceContext refContext, final AlignmentContext locus) {
+            this.tracker = tracker;
+            this.refContext = refContext;
+            this.locus = locus;
+        }
+    }
+
+    /**
+     * Call the walker's isActive() on each of loci, splitting them into contiguous runs across the activity
+     * scoring threads
+     *
+     * @param loci the loci to score
+     * @return the isActive() result of each locus, in the same order as loci
+     */
+    private List<ActivityProfileState> scoreActivity(final List<PendingLocus> loci) {
+        final int nChunks = Math.min(nThreads, loci.size());
+        final List<Future<List<ActivityProfileState>>> futures = new ArrayList<>(nChunks);
+        for ( int i = 0; i < nChunks; i++ ) {
+            final List<PendingLocus> chunk = loci.subList(i * loci.size() / nChunks, (i + 1) * loci.size() / nChunks);
+            futures.add(activityScoringExecutor.submit(new Callable<List<ActivityProfileState>>() {
+                @Override
+                public List<ActivityProfileState> call() {
+                    final List<ActivityProfileState> states = new ArrayList<>(chunk.size());
+                    for ( final PendingLocus pending : chunk )
+                        states.add(callIsActive(pending.tracker, pending.refContext, pending.locus));
+                    return states;
+                }
+            }));
+        }
+
+        final List<ActivityProfileState> states = new ArrayList<>(loci.size());
+        try {
+            for ( final Future<List<ActivityProfileState>> future : futures )
+                states.addAll(future.get());
+        } catch ( InterruptedException e ) {
+            throw new ReviewedGATKException("Interrupted while waiting for isActive() results", e);
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException )
+                throw (RuntimeException)e.getCause();
+            throw new ReviewedGATKException("isActive() failed", e.getCause());
+        }
+        return states;
+    }
+
+    /**
+     * Have we moved across some interval boundary, so that the activity profile needs to be restarted before
+     * the state at location can be added to it?
+     *
+     * @param location the location of the next state
+     * @return true if the profile must be flushed
+     */
+    private boolean needToFlushProfile(final GenomeLoc location) {
+        return ! activityProfile.isEmpty()
+                && ( activityProfile.getContigIndex() != location.getContigIndex()
+                || location.getStart() != activityProfile.getStop() + 1);
     }
 
     // -------------------------------------------------------------------------------------
@@ -616,7 +771,28 @@ public final class TraverseActiveRegions<M, T> extends TraversalEngine<M,T,Activ
                                    final RefMetaDataTracker tracker, final ReferenceContext refContext,
                                    final AlignmentContext locus) {
         // must be called, even if we won't use the result, to satisfy walker contract
+        addIsActiveResult(callIsActive(tracker, refContext, locus));
+    }
+
+    /**
+     * Call the walker's isActive function, keeping track of the time spent in it
+     *
+     * @return the walker's activity state at locus
+     */
+    private ActivityProfileState callIsActive(final RefMetaDataTracker tracker, final ReferenceContext refContext,
+                                              final AlignmentContext locus) {
+        final long start = System.nanoTime();
         final ActivityProfileState state = walker.isActive( tracker, refContext, locus );
+        isActiveNanos.addAndGet(System.nanoTime() - start);
+        return state;
+    }
+
+    /**
+     * Incorporate the result of an isActive call into the activity profile
+     *
+     * @param state the state returned by the walker's isActive function
+     */
+    private void addIsActiveResult(final ActivityProfileState state) {
         if ( walker.forceActive) state.isActiveProb = 1.0;
         if ( ! walkerHasPresetRegions ) {
             activityProfile.add(state);
@@ -660,7 +836,8 @@ public final class TraverseActiveRegions<M, T> extends TraversalEngine<M,T,Activ
                                                   final ActiveRegionWalker<M, T> walker,
                                                   final IntervalReferenceOrderedView referenceOrderedDataView) {
         final List<GATKSAMRecord> stillLive = new LinkedList<>();
-        for ( final GATKSAMRecord read : myReads.popCurrentReads() ) {
+        // reads starting after the extended region can't be in it, so if they've spilled, leave them serialized
+        for ( final GATKSAMRecord read : myReads.popCurrentReads(activeRegion.getExtendedLoc()) ) {
             boolean killed = false;
             final GenomeLoc readLoc = this.engine.getGenomeLocParser().createGenomeLoc( read );
 
@@ -682,7 +859,7 @@ public final class TraverseActiveRegions<M, T> extends TraversalEngine<M,T,Activ
             // keep track of all of the still live active regions
             if ( ! killed ) stillLive.add(read);
         }
-        myReads.addAll(stillLive);
+        myReads.restoreLiveReads(stillLive);
 
         if ( logger.isDebugEnabled() ) {
             logger.debug(">> Map call with " + activeRegion.getReads().size() + " " + (activeRegion.isActive() ? "active" : "inactive") + " reads @ " + activeRegion.getLocation() + " with full extent: " + activeRegion.getReadSpanLoc());
@@ -706,7 +883,10 @@ public final class TraverseActiveRegions<M, T> extends TraversalEngine<M,T,Activ
         @Override
         public M apply(final MapData mapData) {
             if ( DEBUG ) logger.info("Executing walker.map for " + mapData.activeRegion + " in thread " + Thread.currentThread().getName());
-            return walker.map(mapData.activeRegion, mapData.tracker);
+            final long start = System.nanoTime();
+            final M result = walker.map(mapData.activeRegion, mapData.tracker);
+            mapNanos.addAndGet(System.nanoTime() - start);
+            return result;
         }
     }
 
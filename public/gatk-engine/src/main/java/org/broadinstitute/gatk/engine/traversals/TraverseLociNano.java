@@ -30,6 +30,7 @@ import org.broadinstitute.gatk.utils.contexts.AlignmentContext;
 import org.broadinstitute.gatk.utils.contexts.ReferenceContext;
 import org.broadinstitute.gatk.engine.datasources.providers.*;
 import org.broadinstitute.gatk.utils.refdata.RefMetaDataTracker;
+import org.broadinstitute.gatk.engine.walkers.BatchUncoveredLoci;
 import org.broadinstitute.gatk.engine.walkers.DataSource;
 import org.broadinstitute.gatk.engine.walkers.LocusWalker;
 import org.broadinstitute.gatk.engine.walkers.Walker;
@@ -123,8 +124,12 @@ public class TraverseLociNano<M,T> extends TraversalEngine<M,T,LocusWalker<M,T>,
         final DataSource dataSource = WalkerManager.getWalkerDataSource(walker);
         if( dataSource == DataSource.READS )
             return new CoveredLocusView(dataProvider);
-        else if( dataSource == DataSource.REFERENCE ) //|| ! GenomeAnalysisEngine.instance.getArguments().enableRodWalkers )
+        else if( dataSource == DataSource.REFERENCE ) { //|| ! GenomeAnalysisEngine.instance.getArguments().enableRodWalkers )
+            final BatchUncoveredLoci batchUncoveredLoci = WalkerManager.getWalkerAnnotation(walker, BatchUncoveredLoci.class);
+            if ( batchUncoveredLoci != null )
+                return new SparseLocusView(dataProvider, batchUncoveredLoci.stopAtRODs());
             return new AllLocusView(dataProvider);
+        }
         else if( dataSource == DataSource.REFERENCE_ORDERED_DATA )
             return new RodLocusView(dataProvider);
         else
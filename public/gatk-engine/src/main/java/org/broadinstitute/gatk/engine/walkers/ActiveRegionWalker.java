@@ -125,6 +125,40 @@ public abstract class ActiveRegionWalker<MapType, ReduceType> extends Walker<Map
     @Argument(fullName="maxTotalReadsInMemory", shortName="maxTotalReadsInMemory", doc="Maximum total reads given to traversal map() function", required = false)
     public int maxTotalReadsInMemory = 10000000;
 
+    /**
+     * Rather than downsampling the reads held in memory once there are more than maxReadsInMemoryPerSample or
+     * maxTotalReadsInMemory of them, keep the excess serialized in a buffer of this many megabytes, memory-mapped
+     * from a temporary file so that it takes neither heap nor direct memory, spilling to a second temporary file
+     * beyond that.  Spilled reads are only decoded once an active region reaches them.  No reads are discarded, at
+     * the cost of encoding and decoding the excess reads.  0 downsamples as usual.
+     */
+    @Advanced
+    @Argument(fullName="spillReadsBufferSizeInMB", shortName="spillReadsBufferSizeInMB", doc="Size, in MB, of the memory-mapped buffer holding reads beyond the in-memory maximum, which spill to disk when it fills; 0 downsamples them instead", required = false, minValue = 0, maxValue = 2047)
+    public int spillReadsBufferSizeInMB = 0;
+
+    /**
+     * With more than one CPU thread (-nct), call isActive() in parallel over blocks of this many loci rather than
+     * one locus at a time on the traversal thread.  isActive() must then be safe to call concurrently.  The states
+     * still enter the activity profile in genomic order, so the active regions are the same as with serial calls.
+     * 0 always calls isActive() serially.
+     */
+    @Advanced
+    @Argument(fullName="activityScoringBlockSize", shortName="activityScoringBlockSize", doc="Number of loci whose isActive() calls are made in parallel with -nct; 0 makes them serially", required = false, minValue = 0)
+    public int activityScoringBlockSize = 0;
+
+    /**
+     * Normally each contig is traversed as a single shard.  If this is positive, a contig's shards are also split
+     * wherever there's a gap of at least this many bp between the (extended) intervals being processed, so that with
+     * -nt separate parts of a contig, such as the targets of an exome, can be traversed at the same time.  The
+     * activity profile restarts at every gap, so the active regions are the same either way, provided that no read
+     * spans a gap: reads overlapping both sides of a split are only seen by the first shard.  The gap must therefore
+     * be at least the maximum read length plus the active region extension for results to be unchanged.  Ignored
+     * with preset active regions.
+     */
+    @Advanced
+    @Argument(fullName="activeRegionShardGap", shortName="activeRegionShardGap", doc="Split active region shards at gaps between intervals of at least this many bp; 0 uses one shard per contig. Must exceed the maximum read length plus the active region extension to leave results unchanged", required = false, minValue = 0)
+    public int activeRegionShardGap = 0;
+
     /*
      * For active region limits in ActivityProfile
 *   */
@@ -155,6 +189,17 @@ public abstract class ActiveRegionWalker<MapType, ReduceType> extends Walker<Map
         presetActiveRegions = IntervalUtils.sortAndMergeIntervals(this.getToolkit().getGenomeLocParser(), allIntervals, IntervalMergingRule.ALL);
     }
 
+    /**
+     * Get the minimum gap between intervals at which to split this walker's shards
+     *
+     * Preset active regions are loaded a contig at a time, so they require whole contig shards.
+     *
+     * @return the minimum gap in bp, or 0 if each contig must be a single shard
+     */
+    public int getMinGapBetweenShards() {
+        return activeRegionBindings == null ? activeRegionShardGap : 0;
+    }
+
     /**
      * Does this walker want us to use a set of preset action regions instead of dynamically using the result of isActive?
      * @return true if yes, false if no
@@ -0,0 +1,49 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.walkers;
+
+import java.lang.annotation.*;
+
+/**
+ * Indicates that a walker traversing by reference only needs to know how long each stretch of uncovered reference
+ * is, not to see each of its bases.  Rather than calling map() with an empty pileup at every base without reads,
+ * the engine calls map() once per contiguous run of uncovered bases in a shard, at the last base of the run.  The
+ * AlignmentContext of that call has an empty pileup, and its getSkippedBases() is the number of uncovered bases in
+ * the run before it.  Covered loci are still visited one at a time.
+ *
+ * Only has an effect on locus walkers with @By(DataSource.REFERENCE).
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface BatchUncoveredLoci {
+    /**
+     * If true, uncovered loci at which a reference-ordered data record starts are visited on their own, so that the
+     * walker sees the tracker there, and break up the runs around them.
+     */
+    boolean stopAtRODs() default false;
+}
@@ -0,0 +1,92 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.providers;
+
+import org.broadinstitute.gatk.utils.GenomeLoc;
+import org.broadinstitute.gatk.utils.contexts.AlignmentContext;
+import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
+import org.testng.Assert;
+
+import java.util.List;
+
+/**
+ * Test the view of all loci that batches uncovered runs.
+ */
+public class SparseLocusViewUnitTest extends LocusViewTemplate {
+
+    @Override
+    protected LocusView createView(LocusShardDataProvider provider) {
+        return new SparseLocusView(provider);
+    }
+
+    /**
+     * Test that the view accounts for every base in the range exactly once, that covered bases have the right reads,
+     * and that each uncovered run comes back as a single empty context at the run's last base.
+     * @param view
+     * @param range
+     * @param reads
+     */
+    @Override
+    protected void testReadsInContext( LocusView view, List<GenomeLoc> range, List<GATKSAMRecord> reads ) {
+        GenomeLoc firstLoc = range.get(0);
+        GenomeLoc lastLoc = range.get(range.size()-1);
+        GenomeLoc bounds = genomeLocParser.createGenomeLoc(firstLoc.getContig(),firstLoc.getStart(),lastLoc.getStop());
+
+        int nextExpectedPosition = bounds.getStart();
+        boolean previousWasUncovered = false;
+        while( view.hasNext() ) {
+            AlignmentContext locusContext = view.next();
+            final int runStart = (int)(locusContext.getLocation().getStart() - locusContext.getSkippedBases());
+            Assert.assertEquals(runStart, nextExpectedPosition, "Locus context doesn't pick up where the last one left off");
+
+            if( locusContext.getReads().isEmpty() ) {
+                Assert.assertFalse(previousWasUncovered, "Uncovered run at " + locusContext.getLocation() + " was split in two");
+                for( int i = runStart; i <= locusContext.getLocation().getStart(); i++ ) {
+                    GenomeLoc site = genomeLocParser.createGenomeLoc("chr1",i);
+                    for( GATKSAMRecord read: reads )
+                        Assert.assertFalse(genomeLocParser.createGenomeLoc(read).containsP(site), "Covered site " + site + " was folded into an uncovered run");
+                }
+                previousWasUncovered = true;
+            }
+            else {
+                Assert.assertEquals(locusContext.getSkippedBases(), 0, "Covered locus context skips bases");
+                int expectedReadsAtSite = 0;
+                for( GATKSAMRecord read: reads ) {
+                    if(genomeLocParser.createGenomeLoc(read).containsP(locusContext.getLocation())) {
+                        Assert.assertTrue(locusContext.getReads().contains(read),"Target locus context does not contain reads");
+                        expectedReadsAtSite++;
+                    }
+                }
+                Assert.assertEquals(locusContext.getReads().size(), expectedReadsAtSite, "Found wrong number of reads at site");
+                previousWasUncovered = false;
+            }
+
+            nextExpectedPosition = locusContext.getLocation().getStart() + 1;
+        }
+
+        Assert.assertEquals(nextExpectedPosition, bounds.getStop() + 1, "Sparse locus view didn't account for every base in the shard");
+    }
+}
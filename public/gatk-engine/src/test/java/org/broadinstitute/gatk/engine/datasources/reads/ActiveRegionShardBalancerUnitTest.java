@@ -36,6 +36,7 @@ import org.broadinstitute.gatk.utils.sam.ArtificialSAMUtils;
 import org.broadinstitute.gatk.utils.sam.SAMReaderID;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.FileNotFoundException;
@@ -70,6 +71,37 @@ public class ActiveRegionShardBalancerUnitTest extends BaseTest {
         executeTest(Arrays.asList(all.get(1), all.get(3)));
     }
 
+    @DataProvider(name = "SplitAtGapsData")
+    public Object[][] makeSplitAtGapsData() {
+        // intervals 1-100, 201-300 and 311-400 have gaps of 100 and 10 bp between them
+        return new Object[][]{
+                {0, Arrays.asList(3)},
+                {11, Arrays.asList(1, 2)},
+                {100, Arrays.asList(1, 2)},
+                {101, Arrays.asList(3)},
+                {10, Arrays.asList(1, 1, 1)},
+                {1, Arrays.asList(1, 1, 1)},
+        };
+    }
+
+    @Test(dataProvider = "SplitAtGapsData")
+    public void testSplittingAtGaps(final int minGapToSplit, final List<Integer> expectedLocsPerShard) {
+        final ActiveRegionShardBalancer balancer = new ActiveRegionShardBalancer(minGapToSplit);
+        final String contig = genomeLocParser.getContigs().getSequences().get(1).getSequenceName();
+        final Map<SAMReaderID, SAMFileSpan> fileSpans = Collections.emptyMap();
+
+        final List<FilePointer> pointers = new LinkedList<>();
+        for ( final int[] interval : new int[][]{{1, 100}, {201, 300}, {311, 400}} )
+            pointers.add(new FilePointer(fileSpans, IntervalMergingRule.ALL, Collections.singletonList(genomeLocParser.createGenomeLoc(contig, interval[0], interval[1]))));
+
+        balancer.initialize(readsDataSource, pointers.iterator(), genomeLocParser);
+
+        final List<Integer> locsPerShard = new LinkedList<>();
+        for ( final Shard shard : balancer )
+            locsPerShard.add(shard.getGenomeLocs().size());
+        Assert.assertEquals(locsPerShard, expectedLocsPerShard);
+    }
+
     private void executeTest(final Collection<SAMSequenceRecord> records) {
         final ActiveRegionShardBalancer balancer = new ActiveRegionShardBalancer();
 
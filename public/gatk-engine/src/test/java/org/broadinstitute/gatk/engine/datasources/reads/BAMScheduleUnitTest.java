@@ -0,0 +1,101 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import htsjdk.samtools.ValidationStringency;
+import org.broadinstitute.gatk.engine.filters.ReadFilter;
+import org.broadinstitute.gatk.engine.resourcemanagement.ThreadAllocation;
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.broadinstitute.gatk.utils.GenomeLoc;
+import org.broadinstitute.gatk.utils.GenomeLocParser;
+import org.broadinstitute.gatk.utils.ValidationExclusion;
+import org.broadinstitute.gatk.utils.commandline.Tags;
+import org.broadinstitute.gatk.utils.fasta.CachingIndexedFastaSequenceFile;
+import org.broadinstitute.gatk.utils.sam.SAMReaderID;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BAMScheduleUnitTest extends BaseTest {
+    private SAMDataSource dataSource;
+    private List<GenomeLoc> intervals;
+
+    @BeforeClass
+    public void init() throws FileNotFoundException {
+        final File referenceFile = new File(b36KGReference);
+        final GenomeLocParser genomeLocParser = new GenomeLocParser(new CachingIndexedFastaSequenceFile(referenceFile).getSequenceDictionary());
+        dataSource = new SAMDataSource(
+                referenceFile,
+                Collections.singletonList(new SAMReaderID(new File(validationDataLocation + "/NA12878.chrom6.SLX.SRP000032.2009_06.selected.bam"), new Tags())),
+                new ThreadAllocation(),
+                null,
+                genomeLocParser,
+                false,
+                ValidationStringency.SILENT,
+                null,
+                null,
+                new ValidationExclusion(),
+                new ArrayList<ReadFilter>(),
+                false);
+        intervals = Arrays.asList(
+                genomeLocParser.createGenomeLoc("6", 1, 1000000),
+                genomeLocParser.createGenomeLoc("6", 2000000, 2500000));
+    }
+
+    @Test
+    public void testInMemoryScheduleMatchesSpilledSchedule() {
+        final BAMSchedule inMemory = new BAMSchedule(dataSource, intervals, BAMSchedule.DEFAULT_SPILL_THRESHOLD);
+        final BAMSchedule spilled = new BAMSchedule(dataSource, intervals, 1);
+
+        Assert.assertFalse(inMemory.isSpilledToDisk(), "Small schedule should have stayed in memory");
+        Assert.assertTrue(spilled.isSpilledToDisk(), "Schedule should have been spilled to disk");
+
+        int numEntries = 0;
+        while ( inMemory.hasNext() ) {
+            Assert.assertTrue(spilled.hasNext(), "Spilled schedule ended early");
+            final BAMScheduleEntry expected = inMemory.next();
+            final BAMScheduleEntry actual = spilled.next();
+            Assert.assertEquals(actual.start, expected.start);
+            Assert.assertEquals(actual.stop, expected.stop);
+            Assert.assertEquals(actual.fileSpans.keySet(), expected.fileSpans.keySet());
+            for ( final SAMReaderID reader : expected.fileSpans.keySet() )
+                Assert.assertEquals(actual.fileSpans.get(reader).getGATKChunks(), expected.fileSpans.get(reader).getGATKChunks());
+            numEntries++;
+        }
+        Assert.assertFalse(spilled.hasNext(), "Spilled schedule has extra entries");
+        Assert.assertTrue(numEntries > 0, "Schedule should not be empty");
+
+        inMemory.close();
+        spilled.close();
+    }
+}
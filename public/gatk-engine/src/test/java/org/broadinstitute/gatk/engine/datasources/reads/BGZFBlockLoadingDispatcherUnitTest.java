@@ -0,0 +1,193 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import htsjdk.samtools.GATKBAMFileSpan;
+import htsjdk.samtools.GATKChunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.broadinstitute.gatk.utils.commandline.Tags;
+import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
+import org.broadinstitute.gatk.utils.sam.ArtificialSAMUtils;
+import org.broadinstitute.gatk.utils.sam.SAMReaderID;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class BGZFBlockLoadingDispatcherUnitTest extends BaseTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final SAMReaderID reader1 = new SAMReaderID("samFile1",new Tags());
+    private final SAMReaderID reader2 = new SAMReaderID("samFile2",new Tags());
+
+    private static BAMAccessPlan makeAccessPlan(final SAMReaderID reader) {
+        return new BAMAccessPlan(reader,null,new GATKBAMFileSpan(new GATKChunk(0,Long.MAX_VALUE)));
+    }
+
+    /**
+     * A dispatcher whose work requests are claimed and completed by the test rather than by block loaders.
+     */
+    private static BGZFBlockLoadingDispatcher makeManualDispatcher(final int numThreads, final int maxLoadsInFlightPerFile) {
+        return new BGZFBlockLoadingDispatcher(numThreads,1,maxLoadsInFlightPerFile,false,0,false);
+    }
+
+    @Test
+    public void testRequestsAreClaimedInOrder() {
+        final BGZFBlockLoadingDispatcher dispatcher = makeManualDispatcher(2,3);
+        final BAMAccessPlan first = makeAccessPlan(reader1);
+        final BAMAccessPlan second = makeAccessPlan(reader1);
+        final BAMAccessPlan third = makeAccessPlan(reader1);
+        final BAMAccessPlan other = makeAccessPlan(reader2);
+
+        dispatcher.queueBlockLoad(first);
+        dispatcher.queueBlockLoad(second);
+        dispatcher.queueBlockLoad(other);
+        dispatcher.queueBlockLoad(third);
+        Assert.assertEquals(dispatcher.getQueueDepth(),4);
+
+        // The second loader's home lane is the second file's; after draining it, it steals from the first file in order.
+        Assert.assertSame(dispatcher.claimNextWorkRequest(1),other);
+        Assert.assertEquals(dispatcher.getNumBlocksStolen(),0);
+        Assert.assertSame(dispatcher.claimNextWorkRequest(1),first);
+        Assert.assertEquals(dispatcher.getNumBlocksStolen(),1);
+        Assert.assertSame(dispatcher.claimNextWorkRequest(0),second);
+        Assert.assertSame(dispatcher.claimNextWorkRequest(0),third);
+
+        Assert.assertEquals(dispatcher.getQueueDepth(),0);
+        Assert.assertEquals(dispatcher.getMaxQueueDepth(),4);
+    }
+
+    @Test
+    public void testLoadsInFlightAreCappedPerFile() throws InterruptedException {
+        final int maxLoadsInFlightPerFile = 2;
+        final BGZFBlockLoadingDispatcher dispatcher = makeManualDispatcher(1,maxLoadsInFlightPerFile);
+        for(int i = 0; i < maxLoadsInFlightPerFile; i++)
+            dispatcher.queueBlockLoad(makeAccessPlan(reader1));
+
+        final BAMAccessPlan blocked = makeAccessPlan(reader1);
+        final Thread requester = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.queueBlockLoad(blocked);
+            }
+        });
+        requester.start();
+        requester.join(500);
+        Assert.assertTrue(requester.isAlive(),"Request beyond the per-file cap should block");
+
+        // A different file has its own capacity.
+        dispatcher.queueBlockLoad(makeAccessPlan(reader2));
+
+        // Claiming a request doesn't free capacity; only completing it does.
+        final BAMAccessPlan claimed = dispatcher.claimNextWorkRequest(0);
+        Assert.assertEquals(claimed.getReader(),reader1);
+        requester.join(500);
+        Assert.assertTrue(requester.isAlive(),"Claimed but incomplete loads should still count against the cap");
+
+        dispatcher.completeWorkRequest(claimed,true);
+        requester.join(TIMEOUT_MILLIS);
+        Assert.assertFalse(requester.isAlive(),"Completing a load should unblock the waiting request");
+        Assert.assertTrue(dispatcher.getStallTimeNanos() > 0);
+        Assert.assertEquals(dispatcher.getNumBlocksLoaded(),1);
+    }
+
+    @Test
+    public void testOnlySuccessfulLoadsAreCounted() {
+        final BGZFBlockLoadingDispatcher dispatcher = makeManualDispatcher(1,1);
+        dispatcher.queueBlockLoad(makeAccessPlan(reader1));
+        dispatcher.completeWorkRequest(dispatcher.claimNextWorkRequest(0),false);
+        dispatcher.queueBlockLoad(makeAccessPlan(reader1));
+        dispatcher.completeWorkRequest(dispatcher.claimNextWorkRequest(0),true);
+
+        Assert.assertEquals(dispatcher.getNumBlocksLoaded(),1);
+        Assert.assertEquals(dispatcher.getNumBlocksFailed(),1);
+    }
+
+    @Test
+    public void testStreamContentsMatchPicard() throws IOException {
+        final File bam = createTempFile("BGZFBlockLoadingDispatcherUnitTest",".bam");
+        final SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(1,1,1000000);
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header,true,bam);
+        for(int i = 0; i < 5000; i++)
+            writer.addAlignment(ArtificialSAMUtils.createArtificialRead(header,"read"+i,0,i+1,100));
+        writer.close();
+
+        final BGZFBlockLoadingDispatcher dispatcher = new BGZFBlockLoadingDispatcher(4,4,1,false);
+        final BlockInputStream stream = new BlockInputStream(dispatcher,new SAMReaderID(bam,new Tags()),false);
+        final byte[] loaded = readFully(stream);
+        final byte[] expected = readFully(new BlockCompressedInputStream(bam));
+
+        Assert.assertTrue(Arrays.equals(loaded,expected),"Blocks were delivered out of order or corrupted");
+        Assert.assertTrue(dispatcher.getNumBlocksLoaded() > 1);
+        Assert.assertEquals(dispatcher.getNumBlocksFailed(),0);
+    }
+
+    @Test
+    public void testLoadErrorsReachTheReader() throws IOException, InterruptedException {
+        final File notABAM = createTempFile("BGZFBlockLoadingDispatcherUnitTest",".bam");
+        final byte[] garbage = new byte[1024];
+        Arrays.fill(garbage,(byte)'x');
+        final FileOutputStream out = new FileOutputStream(notABAM);
+        out.write(garbage);
+        out.close();
+
+        final BGZFBlockLoadingDispatcher dispatcher = new BGZFBlockLoadingDispatcher(1,1);
+        final BlockInputStream stream = new BlockInputStream(dispatcher,new SAMReaderID(notABAM,new Tags()),false);
+        try {
+            stream.read(new byte[16]);
+            Assert.fail("A failed block load should surface as an error rather than as the end of the stream");
+        }
+        catch(ReviewedGATKException ex) {
+            // expected
+        }
+
+        // The loader completes its work request just after reporting the error.
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(dispatcher.getNumBlocksFailed() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(dispatcher.getNumBlocksFailed(),1);
+        Assert.assertEquals(dispatcher.getNumBlocksLoaded(),0);
+    }
+
+    private static byte[] readFully(final InputStream stream) throws IOException {
+        final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[4096];
+        int bytesRead;
+        while((bytesRead = stream.read(chunk)) > 0)
+            contents.write(chunk,0,bytesRead);
+        stream.close();
+        return contents.toByteArray();
+    }
+}
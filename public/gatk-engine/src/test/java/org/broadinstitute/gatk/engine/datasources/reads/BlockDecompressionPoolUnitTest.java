@@ -0,0 +1,94 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class BlockDecompressionPoolUnitTest extends BaseTest {
+
+    @Test
+    public void testBuffersAreReused() {
+        final BlockDecompressionPool pool = new BlockDecompressionPool(2);
+
+        final byte[] first = pool.claimBuffer();
+        Assert.assertTrue(first.length >= BlockDecompressionPool.BUFFER_SIZE, "Pooled buffer is too small to hold a BGZF block");
+        pool.releaseBuffer(first);
+
+        Assert.assertSame(pool.claimBuffer(), first, "Released buffer was not reused");
+        Assert.assertEquals(pool.getNumHits(), 1);
+        Assert.assertEquals(pool.getNumMisses(), 1);
+        Assert.assertEquals(pool.getHitRate(), 0.5, 1e-10);
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        final BlockDecompressionPool pool = new BlockDecompressionPool(1);
+
+        final byte[] first = pool.claimBuffer();
+        final byte[] second = pool.claimBuffer();
+        pool.releaseBuffer(first);
+        pool.releaseBuffer(second);
+
+        Assert.assertSame(pool.claimBuffer(), first, "First released buffer should have been retained");
+        Assert.assertNotSame(pool.claimBuffer(), second, "Buffer released beyond the pool capacity should have been dropped");
+    }
+
+    @Test
+    public void testReusedInflaterIsReset() throws Exception {
+        final BlockDecompressionPool pool = new BlockDecompressionPool(1);
+        final byte[] original = "ACGTACGTACGTNNNNACGT".getBytes();
+        final byte[] compressed = deflate(original);
+
+        for ( int i = 0; i < 3; i++ ) {
+            final Inflater inflater = pool.claimInflater();
+            inflater.setInput(compressed);
+            final byte[] inflated = new byte[original.length];
+            Assert.assertEquals(inflater.inflate(inflated), original.length);
+            Assert.assertEquals(inflated, original);
+            pool.releaseInflater(inflater);
+        }
+
+        Assert.assertEquals(pool.getNumMisses(), 1, "Only the first inflater claim should have allocated");
+    }
+
+    private static byte[] deflate(final byte[] input) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(input);
+        deflater.finish();
+        final byte[] output = new byte[1024];
+        final int length = deflater.deflate(output);
+        deflater.end();
+
+        final byte[] result = new byte[length];
+        System.arraycopy(output, 0, result, 0, length);
+        return result;
+    }
+}
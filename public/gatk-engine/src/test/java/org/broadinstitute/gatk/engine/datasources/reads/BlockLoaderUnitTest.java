@@ -0,0 +1,123 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.broadinstitute.gatk.utils.commandline.Tags;
+import org.broadinstitute.gatk.utils.sam.ArtificialSAMUtils;
+import org.broadinstitute.gatk.utils.sam.SAMReaderID;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BlockLoaderUnitTest extends BaseTest {
+    /**
+     * Deliberately small, and not a multiple of any block size, so that blocks straddle segment boundaries.
+     */
+    private static final long MAPPING_SEGMENT_SIZE = 100003;
+
+    private SAMReaderID testBAM;
+
+    @BeforeClass
+    public void createTestBAM() {
+        final SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(1, 1, 1000000);
+        final File testBAMFile = createTempFile("BlockLoaderUnitTest", ".bam");
+
+        // Random bases and quals keep the reads from compressing away to a handful of blocks.
+        final Random random = new Random(42);
+        final byte[] alphabet = new byte[] { 'A', 'C', 'G', 'T' };
+        final SAMFileWriter bamWriter = new SAMFileWriterFactory().makeBAMWriter(header, true, testBAMFile);
+        for ( int i = 0; i < 20000; i++ ) {
+            final byte[] bases = new byte[100];
+            final byte[] quals = new byte[100];
+            for ( int j = 0; j < bases.length; j++ ) {
+                bases[j] = alphabet[random.nextInt(alphabet.length)];
+                quals[j] = (byte)random.nextInt(40);
+            }
+            final SAMRecord read = ArtificialSAMUtils.createArtificialRead(header, "read" + i, 0, i + 1, bases, quals);
+            bamWriter.addAlignment(read);
+        }
+        bamWriter.close();
+
+        testBAM = new SAMReaderID(testBAMFile, new Tags());
+    }
+
+    @Test
+    public void testMappedBlocksMatchStreamedBlocks() throws IOException {
+        final FileHandleCache fileHandleCache = new FileHandleCache(1, MAPPING_SEGMENT_SIZE);
+        final BlockLoader streamLoader = new BlockLoader(null, fileHandleCache, null, false, 0, false);
+        final BlockLoader mappedLoader = new BlockLoader(null, fileHandleCache, null, false, 0, true);
+
+        final long fileLength = new File(testBAM.getSamFilePath()).length();
+        Assert.assertTrue(fileLength > 2 * MAPPING_SEGMENT_SIZE, "Test BAM should span several mapping segments");
+
+        int numBlocks = 0;
+        int numBlocksCrossingSegments = 0;
+        long blockAddress = 0;
+        long lastBlockAddress = -1;
+        while ( blockAddress < fileLength ) {
+            final byte[] streamed = toByteArray(streamLoader.readCompressedBlock(testBAM, blockAddress));
+            final long streamedEnd = streamLoader.getCompressedBlockEnd();
+            final byte[] mapped = toByteArray(mappedLoader.readCompressedBlock(testBAM, blockAddress));
+            final long mappedEnd = mappedLoader.getCompressedBlockEnd();
+
+            Assert.assertTrue(Arrays.equals(mapped, streamed), "Mapped and streamed contents differ for block at " + blockAddress);
+            Assert.assertEquals(mappedEnd, streamedEnd, "Mapped and streamed reads disagree on the address following block at " + blockAddress);
+            Assert.assertTrue(mappedEnd > blockAddress);
+
+            if ( blockAddress / MAPPING_SEGMENT_SIZE != (mappedEnd - 1) / MAPPING_SEGMENT_SIZE )
+                numBlocksCrossingSegments++;
+            numBlocks++;
+            lastBlockAddress = blockAddress;
+            blockAddress = mappedEnd;
+        }
+
+        Assert.assertEquals(blockAddress, fileLength, "Reading block by block should end exactly at the end of the file");
+        Assert.assertTrue(numBlocks > 2);
+        Assert.assertTrue(numBlocksCrossingSegments > 0, "No block crossed a mapping segment boundary");
+
+        // The final block is the empty BGZF terminator, which must be returned rather than skipped.
+        Assert.assertEquals(fileLength - lastBlockAddress, BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length);
+        Assert.assertTrue(Arrays.equals(toByteArray(mappedLoader.readCompressedBlock(testBAM, lastBlockAddress)), BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK));
+    }
+
+    private static byte[] toByteArray(final ByteBuffer buffer) {
+        final byte[] contents = new byte[buffer.remaining()];
+        buffer.duplicate().get(contents);
+        return contents;
+    }
+}
@@ -26,9 +26,25 @@
 package org.broadinstitute.gatk.engine.datasources.reads;
 
 import com.google.caliper.Param;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
 import org.broadinstitute.gatk.engine.WalkerManager;
 import org.broadinstitute.gatk.utils.downsampling.DownsamplingMethod;
 import org.broadinstitute.gatk.engine.walkers.LocusWalker;
+import org.broadinstitute.gatk.utils.downsampling.LevelingDownsampler;
+import org.broadinstitute.gatk.utils.downsampling.PerSampleDownsamplingReadsIterator;
+import org.broadinstitute.gatk.utils.downsampling.ReservoirDownsampler;
+import org.broadinstitute.gatk.utils.downsampling.SimplePositionalDownsamplerFactory;
+import org.broadinstitute.gatk.utils.iterators.GATKSAMIterator;
+import org.broadinstitute.gatk.utils.iterators.GATKSAMIteratorAdapter;
+import org.broadinstitute.gatk.utils.sam.ArtificialSAMUtils;
+import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Created by IntelliJ IDEA.
@@ -53,6 +69,180 @@ public class DownsamplerBenchmark extends ReadProcessingBenchmark {
     @Param
     private Downsampling downsampling;
 
+    // synthetic amplicon data: every read in a stack starts at the same position
+    private static final int AMPLICON_DEPTH = 1000;
+    private static final int AMPLICON_STACKS = 10;
+    private static final int DOWNSAMPLE_TO_COVERAGE = 250;
+
+    private static final List<GATKSAMRecord> ampliconReads = makeAmpliconReads();
+    private static final List<SAMRecord> ampliconSAMRecords = Collections.<SAMRecord>unmodifiableList(ampliconReads);
+
+    private static List<GATKSAMRecord> makeAmpliconReads() {
+        final SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(1, 1, 1000000);
+        final List<GATKSAMRecord> reads = new ArrayList<GATKSAMRecord>(AMPLICON_DEPTH * AMPLICON_STACKS);
+        for ( int i = 0; i < AMPLICON_DEPTH * AMPLICON_STACKS; i++ )
+            reads.add(ArtificialSAMUtils.createArtificialRead(header, "read" + i, 0, 1, 150));
+        return reads;
+    }
+
+    /**
+     * Each rep levels AMPLICON_STACKS LinkedList stacks of AMPLICON_DEPTH reads down to DOWNSAMPLE_TO_COVERAGE
+     * reads in total, as the LocusIteratorByState read state managers do.
+     *
+     * The downsampler removes reads from the stacks it's given, so each rep has to build them afresh; subtract
+     * timeBuildingAmpliconStacks to get the cost of the leveling itself.
+     */
+    public void timeLevelingAmpliconStacks(int reps) {
+        for ( int i = 0; i < reps; i++ )
+            levelAmpliconStacks(false);
+    }
+
+    /**
+     * Baseline for timeLevelingAmpliconStacks: each rep only builds the stacks that it levels
+     */
+    public void timeBuildingAmpliconStacks(int reps) {
+        for ( int i = 0; i < reps; i++ )
+            buildAmpliconStacks(false);
+    }
+
+    /**
+     * As timeLevelingAmpliconStacks, but with ArrayList stacks, which the downsampler compacts in place
+     */
+    public void timeLevelingAmpliconArrayStacks(int reps) {
+        for ( int i = 0; i < reps; i++ )
+            levelAmpliconStacks(true);
+    }
+
+    /**
+     * Baseline for timeLevelingAmpliconArrayStacks: each rep only builds the stacks that it levels
+     */
+    public void timeBuildingAmpliconArrayStacks(int reps) {
+        for ( int i = 0; i < reps; i++ )
+            buildAmpliconStacks(true);
+    }
+
+    /**
+     * Each rep streams AMPLICON_DEPTH * AMPLICON_STACKS reads through a reservoir of DOWNSAMPLE_TO_COVERAGE reads
+     */
+    public void timeReservoirAmplicon(int reps) {
+        for ( int i = 0; i < reps; i++ )
+            reservoirAmplicon();
+    }
+
+    /**
+     * Each rep downsamples the amplicon reads to DOWNSAMPLE_TO_COVERAGE through a PerSampleDownsamplingReadsIterator,
+     * set up as SAMDataSource does for BY_SAMPLE downsampling to coverage
+     */
+    public void timePerSampleIteratorAmplicon(int reps) {
+        for ( int i = 0; i < reps; i++ )
+            perSampleIteratorAmplicon();
+    }
+
+    private static List<List<GATKSAMRecord>> buildAmpliconStacks(final boolean arrayBacked) {
+        final List<List<GATKSAMRecord>> stacks = new ArrayList<List<GATKSAMRecord>>(AMPLICON_STACKS);
+        for ( int stack = 0; stack < AMPLICON_STACKS; stack++ ) {
+            final List<GATKSAMRecord> reads = ampliconReads.subList(stack * AMPLICON_DEPTH, (stack + 1) * AMPLICON_DEPTH);
+            stacks.add(arrayBacked ? new ArrayList<GATKSAMRecord>(reads) : new LinkedList<GATKSAMRecord>(reads));
+        }
+        return stacks;
+    }
+
+    private static int levelAmpliconStacks(final boolean arrayBacked) {
+        final LevelingDownsampler<List<GATKSAMRecord>, GATKSAMRecord> downsampler = new LevelingDownsampler<List<GATKSAMRecord>, GATKSAMRecord>(DOWNSAMPLE_TO_COVERAGE);
+        downsampler.submit(buildAmpliconStacks(arrayBacked));
+        downsampler.signalEndOfInput();
+        return downsampler.consumeFinalizedItems().size();
+    }
+
+    private static int reservoirAmplicon() {
+        final ReservoirDownsampler<GATKSAMRecord> downsampler = new ReservoirDownsampler<GATKSAMRecord>(DOWNSAMPLE_TO_COVERAGE);
+        downsampler.submit(ampliconReads);
+        downsampler.signalEndOfInput();
+        return downsampler.consumeFinalizedItems().size();
+    }
+
+    private static int perSampleIteratorAmplicon() {
+        final GATKSAMIterator iterator = new PerSampleDownsamplingReadsIterator(GATKSAMIteratorAdapter.adapt(ampliconSAMRecords.iterator()),
+                new SimplePositionalDownsamplerFactory<SAMRecord>(DOWNSAMPLE_TO_COVERAGE));
+        int nReads = 0;
+        while ( iterator.hasNext() ) {
+            iterator.next();
+            nReads++;
+        }
+        return nReads;
+    }
+
+    /**
+     * Caliper only reports time, so this prints the read throughput and the bytes allocated per read of the
+     * synthetic amplicon runs.  The leveling runs have their stack-building baseline subtracted, so that only
+     * the downsampler's own time and allocations are reported.
+     */
+    public static void main(String[] args) {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        final int nRuns = 1000;
+        final long nReads = (long)nRuns * AMPLICON_DEPTH * AMPLICON_STACKS;
+
+        for ( final AmpliconRun run : AmpliconRun.values() ) {
+            long elapsedNanos = 0;
+            long allocatedBytes = 0;
+            for ( final AmpliconRun part : run.baseline() == null ? new AmpliconRun[]{run} : new AmpliconRun[]{run, run.baseline()} ) {
+                final int sign = part == run ? 1 : -1;
+                // warm up, then measure
+                for ( int pass = 0; pass < 2; pass++ ) {
+                    final long startBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    final long startNanos = System.nanoTime();
+                    for ( int i = 0; i < nRuns; i++ )
+                        part.run();
+                    if ( pass == 1 ) {
+                        elapsedNanos += sign * (System.nanoTime() - startNanos);
+                        allocatedBytes += sign * (threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes);
+                    }
+                }
+            }
+
+            System.out.printf("%s at %dx: %.0f reads/s, %.1f bytes allocated per read%n", run, AMPLICON_DEPTH,
+                    nReads / (elapsedNanos / 1e9), allocatedBytes / (double)nReads);
+        }
+    }
+
+    private enum AmpliconRun {
+        BUILDING_LINKED_STACKS {
+            @Override
+            void run() { buildAmpliconStacks(false); }
+        },
+        LEVELING_LINKED_STACKS {
+            @Override
+            void run() { levelAmpliconStacks(false); }
+            @Override
+            AmpliconRun baseline() { return BUILDING_LINKED_STACKS; }
+        },
+        BUILDING_ARRAY_STACKS {
+            @Override
+            void run() { buildAmpliconStacks(true); }
+        },
+        LEVELING_ARRAY_STACKS {
+            @Override
+            void run() { levelAmpliconStacks(true); }
+            @Override
+            AmpliconRun baseline() { return BUILDING_ARRAY_STACKS; }
+        },
+        RESERVOIR {
+            @Override
+            void run() { reservoirAmplicon(); }
+        },
+        PER_SAMPLE_ITERATOR {
+            @Override
+            void run() { perSampleIteratorAmplicon(); }
+        };
+
+        abstract void run();
+
+        /**
+         * @return the run whose cost is included in this one and should be subtracted from it, or null if there is none
+         */
+        AmpliconRun baseline() { return null; }
+    }
+
 //    public void timeDownsampling(int reps) {
 //        for(int i = 0; i < reps; i++) {
 //            SamReader reader = SamReaderFactory.makeDefault().open(inputFile);
@@ -0,0 +1,163 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import htsjdk.samtools.GATKBin;
+import htsjdk.samtools.GATKChunk;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Tests that the flattened, cached BAM index answers queries identically to the .bai it was built from.
+ */
+public class GATKBAMIndexFromCacheUnitTest extends BaseTest {
+    private static File bamFile = new File(validationDataLocation+"MV1994.selected.bam");
+    private static File bamIndexFile = new File(validationDataLocation+"MV1994.selected.bam.bai");
+
+    private SAMSequenceDictionary sequenceDictionary;
+
+    @BeforeClass
+    public void init() throws IOException {
+        final SamReader reader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.CACHE_FILE_BASED_INDEXES).open(bamFile);
+        sequenceDictionary = reader.getFileHeader().getSequenceDictionary();
+        reader.close();
+    }
+
+    @Test
+    public void testCachedIndexMatchesIndexFile() throws IOException {
+        final File cacheFile = createTempFile("bamIndexCache", GATKBAMIndexFromCache.CACHE_FILE_EXTENSION);
+        Assert.assertTrue(cacheFile.delete());
+
+        final GATKBAMIndexFromFile fromFile = new GATKBAMIndexFromFile(bamIndexFile, sequenceDictionary);
+        final GATKBAMIndexFromCache fromNewCache = new GATKBAMIndexFromCache(bamFile, bamIndexFile, cacheFile, sequenceDictionary);
+        Assert.assertTrue(cacheFile.exists(), "Index cache was not written");
+        final long cacheLastModified = cacheFile.lastModified();
+
+        final GATKBAMIndexFromCache fromExistingCache = new GATKBAMIndexFromCache(bamFile, bamIndexFile, cacheFile, sequenceDictionary);
+        Assert.assertEquals(cacheFile.lastModified(), cacheLastModified, "Valid index cache should not have been rewritten");
+
+        for ( final GATKBAMIndexFromCache cached : Arrays.asList(fromNewCache, fromExistingCache) ) {
+            Assert.assertEquals(cached.getStartOfLastLinearBin(), fromFile.getStartOfLastLinearBin());
+            for ( int sequence = 0; sequence < sequenceDictionary.size(); sequence++ )
+                assertIndexDataEquals(cached.readReferenceSequence(sequence), fromFile.readReferenceSequence(sequence));
+        }
+    }
+
+    @Test
+    public void testStaleCacheIsRebuilt() throws IOException {
+        final File freshCacheFile = createTempFile("freshBamIndexCache", GATKBAMIndexFromCache.CACHE_FILE_EXTENSION);
+        Assert.assertTrue(freshCacheFile.delete());
+        new GATKBAMIndexFromCache(bamFile, bamIndexFile, freshCacheFile, sequenceDictionary);
+        final byte[] freshContents = Files.readAllBytes(freshCacheFile.toPath());
+
+        final File cacheFile = createTempFile("bamIndexCache", GATKBAMIndexFromCache.CACHE_FILE_EXTENSION);
+        Assert.assertTrue(cacheFile.delete());
+        new GATKBAMIndexFromCache(bamFile, bamIndexFile, cacheFile, sequenceDictionary);
+
+        // Corrupt the BAM modification time recorded in the cache header, so that the cache no longer matches
+        // the BAM, and backdate the cache so that rewriting it is visible.
+        final RandomAccessFile staleCache = new RandomAccessFile(cacheFile, "rw");
+        staleCache.seek(16);
+        staleCache.writeLong(bamFile.lastModified() + 1);
+        staleCache.close();
+        final long staleLastModified = cacheFile.lastModified() - 60 * 60 * 1000;
+        Assert.assertTrue(cacheFile.setLastModified(staleLastModified));
+        Assert.assertFalse(Arrays.equals(Files.readAllBytes(cacheFile.toPath()), freshContents), "Cache should be stale");
+
+        final GATKBAMIndexFromCache rebuilt = new GATKBAMIndexFromCache(bamFile, bamIndexFile, cacheFile, sequenceDictionary);
+        Assert.assertNotEquals(cacheFile.lastModified(), staleLastModified, "Stale cache was not rewritten");
+        Assert.assertEquals(Files.readAllBytes(cacheFile.toPath()), freshContents, "Rebuilt cache differs from a fresh build");
+
+        final GATKBAMIndexFromFile fromFile = new GATKBAMIndexFromFile(bamIndexFile, sequenceDictionary);
+        Assert.assertEquals(rebuilt.getStartOfLastLinearBin(), fromFile.getStartOfLastLinearBin());
+        for ( int sequence = 0; sequence < sequenceDictionary.size(); sequence++ )
+            assertIndexDataEquals(rebuilt.readReferenceSequence(sequence), fromFile.readReferenceSequence(sequence));
+    }
+
+    @Test
+    public void testOversizedCacheIsRebuilt() throws IOException {
+        // A sidecar too large to map in one piece, e.g. a foreign file at the cache location, must be replaced
+        // rather than crash the mapping.
+        final File cacheFile = createTempFile("oversizedBamIndexCache", GATKBAMIndexFromCache.CACHE_FILE_EXTENSION);
+        final RandomAccessFile oversizedCache = new RandomAccessFile(cacheFile, "rw");
+        oversizedCache.setLength(Integer.MAX_VALUE + 1L);
+        oversizedCache.close();
+
+        final GATKBAMIndexFromCache rebuilt = new GATKBAMIndexFromCache(bamFile, bamIndexFile, cacheFile, sequenceDictionary);
+        Assert.assertTrue(cacheFile.length() < Integer.MAX_VALUE, "Oversized cache was not rewritten");
+
+        final GATKBAMIndexFromFile fromFile = new GATKBAMIndexFromFile(bamIndexFile, sequenceDictionary);
+        for ( int sequence = 0; sequence < sequenceDictionary.size(); sequence++ )
+            assertIndexDataEquals(rebuilt.readReferenceSequence(sequence), fromFile.readReferenceSequence(sequence));
+    }
+
+    @Test
+    public void testRepeatedQueriesReuseDecodedSequence() throws IOException {
+        final File cacheFile = createTempFile("bamIndexCache", GATKBAMIndexFromCache.CACHE_FILE_EXTENSION);
+        Assert.assertTrue(cacheFile.delete());
+        final GATKBAMIndexFromCache cached = new GATKBAMIndexFromCache(bamFile, bamIndexFile, cacheFile, sequenceDictionary);
+
+        final GATKBAMIndexData first = cached.readReferenceSequence(0);
+        Assert.assertSame(cached.readReferenceSequence(0), first);
+        if ( sequenceDictionary.size() > 1 ) {
+            Assert.assertEquals(cached.readReferenceSequence(1).getReferenceSequence(), 1);
+            assertIndexDataEquals(cached.readReferenceSequence(0), first);
+        }
+    }
+
+    private void assertIndexDataEquals(final GATKBAMIndexData actual, final GATKBAMIndexData expected) {
+        Assert.assertEquals(actual.getReferenceSequence(), expected.getReferenceSequence());
+        Assert.assertEquals(actual.getLinearIndex().getIndexEntries(), expected.getLinearIndex().getIndexEntries());
+        Assert.assertEquals(actual.getBins().size(), expected.getBins().size());
+        for ( int binNumber = 0; binNumber < expected.getBins().size(); binNumber++ ) {
+            final GATKBin expectedBin = expected.getBins().get(binNumber);
+            final GATKBin actualBin = actual.getBins().get(binNumber);
+            if ( expectedBin == null ) {
+                Assert.assertNull(actualBin, "Unexpected bin " + binNumber);
+                continue;
+            }
+            Assert.assertNotNull(actualBin, "Missing bin " + binNumber);
+            final GATKChunk[] expectedChunks = expectedBin.getChunkList();
+            final GATKChunk[] actualChunks = actualBin.getChunkList();
+            Assert.assertEquals(actualChunks.length, expectedChunks.length);
+            for ( int i = 0; i < expectedChunks.length; i++ ) {
+                Assert.assertEquals(actualChunks[i].getChunkStart(), expectedChunks[i].getChunkStart());
+                Assert.assertEquals(actualChunks[i].getChunkEnd(), expectedChunks[i].getChunkEnd());
+            }
+        }
+    }
+}
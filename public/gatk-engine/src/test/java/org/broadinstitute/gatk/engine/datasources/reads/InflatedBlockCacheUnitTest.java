@@ -0,0 +1,120 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.broadinstitute.gatk.utils.commandline.Tags;
+import org.broadinstitute.gatk.utils.sam.SAMReaderID;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+public class InflatedBlockCacheUnitTest extends BaseTest {
+    private static final int BLOCK_SIZE = 50;
+
+    private final SAMReaderID reader1 = new SAMReaderID("samFile1",new Tags());
+    private final SAMReaderID reader2 = new SAMReaderID("samFile2",new Tags());
+
+    private static InflatedBlockCache.CachedBlock makeBlock(final long nextBlockAddress) {
+        return new InflatedBlockCache.CachedBlock(new byte[BLOCK_SIZE],nextBlockAddress);
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        final InflatedBlockCache cache = new InflatedBlockCache(1024*1024);
+        Assert.assertNull(cache.get(reader1,0));
+        cache.put(reader1,0,makeBlock(1000));
+
+        final InflatedBlockCache.CachedBlock block = cache.get(reader1,0);
+        Assert.assertNotNull(block);
+        Assert.assertEquals(block.nextBlockAddress,1000);
+
+        // The same address in a different file is a different block.
+        Assert.assertNull(cache.get(reader2,0));
+
+        Assert.assertEquals(cache.getNumHits(),1);
+        Assert.assertEquals(cache.getNumMisses(),2);
+        Assert.assertEquals(cache.getHitRate(),1.0/3,1e-9);
+    }
+
+    @Test
+    public void testSizeBoundedEviction() {
+        // Room for about two blocks in each of the cache's segments.
+        final InflatedBlockCache cache = new InflatedBlockCache(16*2*BLOCK_SIZE);
+        final int numBlocks = 1000;
+        for(int i = 0; i < numBlocks; i++)
+            cache.put(reader1,i*65536L,makeBlock((i+1)*65536L));
+
+        Assert.assertTrue(cache.getNumEvictions() >= numBlocks - 32, "Cache retained more blocks than its size budget allows");
+        Assert.assertNotNull(cache.get(reader1,(numBlocks-1)*65536L), "Most recently added block should be retained");
+        Assert.assertNull(cache.get(reader1,0), "Oldest block should have been evicted");
+    }
+
+    @Test
+    public void testRecentlyUsedBlocksSurviveEviction() {
+        final InflatedBlockCache cache = new InflatedBlockCache(16*2*BLOCK_SIZE);
+        cache.put(reader1,0,makeBlock(65536));
+        for(int i = 1; i < 1000; i++) {
+            Assert.assertNotNull(cache.get(reader1,0), "Repeatedly used block was evicted");
+            cache.put(reader2,i*65536L,makeBlock((i+1)*65536L));
+        }
+        Assert.assertNotNull(cache.get(reader1,0));
+    }
+
+    @Test
+    public void testEvictedBuffersReturnToPoolOnlyOnceReleased() {
+        final BlockDecompressionPool pool = new BlockDecompressionPool(2000);
+        final InflatedBlockCache cache = new InflatedBlockCache(16*2*BLOCK_SIZE,pool);
+
+        final InflatedBlockCache.CachedBlock released = makeBlock(65536);
+        cache.put(reader1,0,released);
+        cache.release(released);
+        final InflatedBlockCache.CachedBlock pinned = makeBlock(2*65536);
+        cache.put(reader1,65536,pinned);
+
+        for(int i = 2; i < 1000; i++) {
+            final InflatedBlockCache.CachedBlock block = makeBlock((i+1)*65536L);
+            cache.put(reader2,i*65536L,block);
+            cache.release(block);
+        }
+        Assert.assertNull(cache.get(reader1,0));
+        Assert.assertNull(cache.get(reader1,65536));
+
+        final Set<byte[]> recycled = Collections.newSetFromMap(new IdentityHashMap<byte[],Boolean>());
+        final long misses = pool.getNumMisses();
+        while(pool.getNumMisses() == misses)
+            recycled.add(pool.claimBuffer());
+        Assert.assertTrue(recycled.contains(released.data), "Evicted, released buffer was not returned to the pool");
+        Assert.assertFalse(recycled.contains(pinned.data), "Buffer was returned to the pool while still in use");
+
+        // Once its reader is done with it, the pinned buffer can be reused too.
+        cache.release(pinned);
+        Assert.assertSame(pool.claimBuffer(),pinned.data);
+    }
+}
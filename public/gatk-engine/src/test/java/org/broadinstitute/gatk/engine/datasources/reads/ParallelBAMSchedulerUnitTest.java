@@ -0,0 +1,116 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import htsjdk.samtools.ValidationStringency;
+import org.broadinstitute.gatk.engine.filters.ReadFilter;
+import org.broadinstitute.gatk.engine.resourcemanagement.ThreadAllocation;
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.broadinstitute.gatk.utils.GenomeLoc;
+import org.broadinstitute.gatk.utils.GenomeLocParser;
+import org.broadinstitute.gatk.utils.GenomeLocSortedSet;
+import org.broadinstitute.gatk.utils.ValidationExclusion;
+import org.broadinstitute.gatk.utils.commandline.Tags;
+import org.broadinstitute.gatk.utils.fasta.CachingIndexedFastaSequenceFile;
+import org.broadinstitute.gatk.utils.interval.IntervalMergingRule;
+import org.broadinstitute.gatk.utils.sam.SAMReaderID;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ParallelBAMSchedulerUnitTest extends BaseTest {
+    private File referenceFile;
+    private GenomeLocParser genomeLocParser;
+
+    @BeforeClass
+    public void init() throws FileNotFoundException {
+        referenceFile = new File(b36KGReference);
+        genomeLocParser = new GenomeLocParser(new CachingIndexedFastaSequenceFile(referenceFile).getSequenceDictionary());
+    }
+
+    @Test
+    public void testPartitionByContig() {
+        final GenomeLocSortedSet loci = new GenomeLocSortedSet(genomeLocParser, Arrays.asList(
+                genomeLocParser.createGenomeLoc("1", 100, 200),
+                genomeLocParser.createGenomeLoc("1", 500, 600),
+                genomeLocParser.createGenomeLoc("2", 1, 10),
+                genomeLocParser.createGenomeLoc("6", 1000, 2000)));
+
+        final List<GenomeLocSortedSet> partitions = ParallelBAMScheduler.partitionByContig(loci);
+        Assert.assertEquals(partitions.size(), 3);
+        Assert.assertEquals(partitions.get(0).size(), 2);
+        Assert.assertEquals(partitions.get(1).size(), 1);
+        Assert.assertEquals(partitions.get(2).size(), 1);
+
+        final List<GenomeLoc> rejoined = new ArrayList<GenomeLoc>();
+        for ( final GenomeLocSortedSet partition : partitions )
+            rejoined.addAll(partition.toList());
+        Assert.assertEquals(rejoined, loci.toList(), "Partitions should preserve interval order");
+    }
+
+    @Test
+    public void testParallelScheduleMatchesSequential() {
+        final SAMDataSource dataSource = new SAMDataSource(
+                referenceFile,
+                Collections.singletonList(new SAMReaderID(new File(validationDataLocation + "/NA12878.chrom6.SLX.SRP000032.2009_06.selected.bam"), new Tags())),
+                new ThreadAllocation(),
+                null,
+                genomeLocParser,
+                false,
+                ValidationStringency.SILENT,
+                null,
+                null,
+                new ValidationExclusion(),
+                new ArrayList<ReadFilter>(),
+                false);
+
+        final GenomeLocSortedSet loci = new GenomeLocSortedSet(genomeLocParser, Arrays.asList(
+                genomeLocParser.createGenomeLoc("5", 1, 100000),
+                genomeLocParser.createGenomeLoc("6", 1, 1000000),
+                genomeLocParser.createGenomeLoc("6", 2000000, 2500000),
+                genomeLocParser.createGenomeLoc("7", 1, 100000)));
+
+        final List<FilePointer> sequential = new ArrayList<FilePointer>();
+        final BAMScheduler scheduler = BAMScheduler.createOverIntervals(dataSource, IntervalMergingRule.ALL, loci);
+        while ( scheduler.hasNext() )
+            sequential.add(scheduler.next());
+        scheduler.close();
+
+        final List<FilePointer> parallel = new ArrayList<FilePointer>();
+        final ParallelBAMScheduler parallelScheduler = new ParallelBAMScheduler(dataSource, IntervalMergingRule.ALL, loci, 3);
+        while ( parallelScheduler.hasNext() )
+            parallel.add(parallelScheduler.next());
+
+        Assert.assertEquals(parallel, sequential, "Parallel schedule differs from sequential schedule");
+    }
+}
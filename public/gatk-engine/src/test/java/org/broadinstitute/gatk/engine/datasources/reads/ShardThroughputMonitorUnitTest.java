@@ -0,0 +1,72 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.datasources.reads;
+
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ShardThroughputMonitorUnitTest extends BaseTest {
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+
+    @Test
+    public void testNoEstimateUntilEnoughShards() {
+        final ShardThroughputMonitor monitor = new ShardThroughputMonitor(1.0);
+        Assert.assertEquals(monitor.getTargetWorkSize(), -1);
+        monitor.recordShard(1000, NANOS_PER_SECOND);
+        monitor.recordShard(1000, NANOS_PER_SECOND);
+        Assert.assertEquals(monitor.getTargetWorkSize(), -1);
+        monitor.recordShard(1000, NANOS_PER_SECOND);
+        Assert.assertEquals(monitor.getTargetWorkSize(), 1000);
+    }
+
+    @Test
+    public void testEmptyShardsIgnored() {
+        final ShardThroughputMonitor monitor = new ShardThroughputMonitor(1.0);
+        for ( int i = 0; i < 5; i++ )
+            monitor.recordShard(0, NANOS_PER_SECOND);
+        Assert.assertEquals(monitor.getNumShardsRecorded(), 0);
+        Assert.assertEquals(monitor.getTargetWorkSize(), -1);
+    }
+
+    @Test
+    public void testTargetScalesWithTimeAndTracksSlowdown() {
+        final ShardThroughputMonitor monitor = new ShardThroughputMonitor(10.0);
+        for ( int i = 0; i < 3; i++ )
+            monitor.recordShard(5000, NANOS_PER_SECOND);
+        Assert.assertEquals(monitor.getTargetWorkSize(), 50000);
+
+        // A run of much slower shards (e.g. a deep region) should pull the target down.
+        for ( int i = 0; i < 10; i++ )
+            monitor.recordShard(500, NANOS_PER_SECOND);
+        Assert.assertTrue(monitor.getTargetWorkSize() < 10000, "Target should follow the drop in throughput");
+    }
+
+    @Test(expectedExceptions = Exception.class)
+    public void testNonPositiveTargetRejected() {
+        new ShardThroughputMonitor(0);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.executive;
+
+import org.broadinstitute.gatk.engine.datasources.reads.MockLocusShard;
+import org.broadinstitute.gatk.engine.datasources.reads.Shard;
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.broadinstitute.gatk.utils.GenomeLocParser;
+import org.broadinstitute.gatk.utils.exceptions.UserException;
+import org.broadinstitute.gatk.utils.fasta.CachingIndexedFastaSequenceFile;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class PrefetchingShardIteratorUnitTest extends BaseTest {
+    private GenomeLocParser genomeLocParser;
+
+    @BeforeClass
+    public void init() throws FileNotFoundException {
+        genomeLocParser = new GenomeLocParser(new CachingIndexedFastaSequenceFile(new File(hg18Reference)).getSequenceDictionary());
+    }
+
+    private List<Shard> makeShards(final int numShards) {
+        final List<Shard> shards = new ArrayList<Shard>(numShards);
+        for ( int i = 0; i < numShards; i++ )
+            shards.add(new MockLocusShard(genomeLocParser, Collections.singletonList(genomeLocParser.createGenomeLoc("chr1", i * 100 + 1, i * 100 + 100))));
+        return shards;
+    }
+
+    @DataProvider(name = "PrefetchDepths")
+    public Object[][] makePrefetchDepths() {
+        final List<Object[]> tests = new ArrayList<Object[]>();
+        for ( final int numShards : new int[]{0, 1, 10} )
+            for ( final int prefetchDepth : new int[]{1, 2, 5} )
+                tests.add(new Object[]{numShards, prefetchDepth});
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(dataProvider = "PrefetchDepths")
+    public void testShardOrderPreserved(final int numShards, final int prefetchDepth) {
+        final List<Shard> expected = makeShards(numShards);
+        final PrefetchingShardIterator prefetcher = new PrefetchingShardIterator(expected.iterator(), prefetchDepth);
+
+        final List<Shard> actual = new ArrayList<Shard>();
+        while ( prefetcher.hasNext() )
+            actual.add(prefetcher.next());
+        prefetcher.close();
+
+        Assert.assertEquals(actual, expected);
+        Assert.assertTrue(prefetcher.getNumStarvations() <= numShards + 1);
+    }
+
+    @Test
+    public void testEarlyClose() {
+        final PrefetchingShardIterator prefetcher = new PrefetchingShardIterator(makeShards(10).iterator(), 1);
+        Assert.assertTrue(prefetcher.hasNext());
+        prefetcher.next();
+        prefetcher.close();
+    }
+
+    @Test(expectedExceptions = UserException.class)
+    public void testErrorPropagatedToConsumer() {
+        final Iterator<Shard> failingShards = new Iterator<Shard>() {
+            public boolean hasNext() { return true; }
+            public Shard next() { throw new UserException("Unable to fill shard"); }
+            public void remove() { throw new UnsupportedOperationException(); }
+        };
+
+        final PrefetchingShardIterator prefetcher = new PrefetchingShardIterator(failingShards, 2);
+        try {
+            prefetcher.hasNext();
+        }
+        finally {
+            prefetcher.close();
+        }
+    }
+}
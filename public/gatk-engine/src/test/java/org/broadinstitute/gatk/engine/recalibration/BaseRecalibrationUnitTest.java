@@ -25,9 +25,12 @@
 
 package org.broadinstitute.gatk.engine.recalibration;
 
+import org.broadinstitute.gatk.engine.recalibration.covariates.Covariate;
 import org.broadinstitute.gatk.utils.BaseTest;
+import org.broadinstitute.gatk.utils.MathUtils;
 import org.broadinstitute.gatk.utils.QualityUtils;
 import org.broadinstitute.gatk.utils.exceptions.UserException;
+import org.broadinstitute.gatk.utils.recalibration.EventType;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -35,6 +38,7 @@ import org.testng.annotations.Test;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 public class BaseRecalibrationUnitTest {
 
@@ -87,4 +91,61 @@ public class BaseRecalibrationUnitTest {
             }
         }
     }
+
+    @DataProvider(name = "LookupTableData")
+    public Object[][] makeLookupTableData() {
+        return new Object[][]{{0.0, false}, {0.0, true}, {30.0, false}};
+    }
+
+    @Test(dataProvider = "LookupTableData")
+    public void testLookupTableMatchesHierarchicalEstimate(final double globalQScorePrior, final boolean useStaticQuantization) {
+        final Covariate[] covariates = RecalibrationTestUtils.makeInitializedStandardCovariates();
+        final int numReadGroups = 3;
+        final RecalibrationTables tables = new RecalibrationTables(covariates, numReadGroups);
+        final Random random = new Random(42);
+
+        // read group 2 has no data, and so isn't recalibrated
+        for ( int i = 0; i < 100000; i++ ) {
+            final int rg = random.nextInt(numReadGroups - 1);
+            final int qual = 5 + random.nextInt(36);
+            final int event = random.nextInt(EventType.values().length);
+            final double isError = random.nextInt(qual) == 0 ? 1.0 : 0.0;
+            RecalUtils.incrementDatumOrPutIfNecessary(tables.getReadGroupTable(), (byte)qual, isError, rg, event);
+            RecalUtils.incrementDatumOrPutIfNecessary(tables.getQualityScoreTable(), (byte)qual, isError, rg, qual, event);
+            for ( int j = 2; j < covariates.length; j++ )
+                RecalUtils.incrementDatumOrPutIfNecessary(tables.getTable(j), (byte)qual, isError, rg, qual, random.nextInt(20), event);
+        }
+
+        final List<Byte> quantizedQuals = new ArrayList<Byte>();
+        for ( int qual = 0; qual <= QualityUtils.MAX_SAM_QUAL_SCORE; qual++ )
+            quantizedQuals.add((byte)(qual - qual % 5));
+        final byte[] staticQuantizedMapping = useStaticQuantization ? BaseRecalibration.constructStaticQuantizedMapping(Arrays.asList(10, 20, 30), false) : null;
+
+        final RecalibrationLookupTable lookupTable = new RecalibrationLookupTable(tables, covariates.length, globalQScorePrior, quantizedQuals, staticQuantizedMapping);
+        Assert.assertFalse(lookupTable.canRecalibrate(0, numReadGroups - 1));
+        Assert.assertFalse(lookupTable.canRecalibrate(0, numReadGroups));
+
+        for ( int i = 0; i < 10000; i++ ) {
+            final int[] keySet = new int[covariates.length];
+            keySet[0] = random.nextInt(numReadGroups - 1);
+            keySet[1] = random.nextInt(QualityUtils.MAX_SAM_QUAL_SCORE + 1);
+            for ( int j = 2; j < covariates.length; j++ )
+                keySet[j] = random.nextInt(25) - 1; // including keys without data, and skipped (negative) keys
+            final EventType event = EventType.values()[random.nextInt(EventType.values().length)];
+            Assert.assertTrue(lookupTable.canRecalibrate(event.ordinal(), keySet[0]));
+
+            final RecalDatum empiricalQualRG = tables.getReadGroupTable().get(keySet[0], event.ordinal());
+            final double epsilon = globalQScorePrior > 0.0 && event == EventType.BASE_SUBSTITUTION ? globalQScorePrior : empiricalQualRG.getEstimatedQReported();
+            final RecalDatum empiricalQualQS = tables.getQualityScoreTable().get(keySet[0], keySet[1], event.ordinal());
+            final List<RecalDatum> empiricalQualCovs = new ArrayList<RecalDatum>();
+            for ( int j = 2; j < covariates.length; j++ )
+                if ( keySet[j] >= 0 )
+                    empiricalQualCovs.add(tables.getTable(j).get(keySet[0], keySet[1], keySet[j], event.ordinal()));
+
+            final double estimate = BaseRecalibration.hierarchicalBayesianQualityEstimate(epsilon, empiricalQualRG, empiricalQualQS, empiricalQualCovs);
+            final byte quantized = quantizedQuals.get(QualityUtils.boundQual(MathUtils.fastRound(estimate), RecalDatum.MAX_RECALIBRATED_Q_SCORE));
+            final byte expected = staticQuantizedMapping == null ? quantized : staticQuantizedMapping[quantized];
+            Assert.assertEquals(lookupTable.getRecalibratedQual(event.ordinal(), keySet), expected, "Wrong quality for keys " + Arrays.toString(keySet) + " and event " + event);
+        }
+    }
 }
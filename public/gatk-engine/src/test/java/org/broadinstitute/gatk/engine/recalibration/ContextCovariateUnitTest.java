@@ -27,6 +27,7 @@ package org.broadinstitute.gatk.engine.recalibration;
 
 import org.broadinstitute.gatk.engine.recalibration.covariates.ContextCovariate;
 import org.broadinstitute.gatk.engine.recalibration.covariates.Covariate;
+import org.broadinstitute.gatk.utils.BaseUtils;
 import org.broadinstitute.gatk.utils.clipping.ClippingRepresentation;
 import org.broadinstitute.gatk.utils.clipping.ReadClipper;
 import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
@@ -36,6 +37,8 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
+
 /**
  * @author Mauricio Carneiro
  * @since 3/1/12
@@ -68,6 +71,38 @@ public class ContextCovariateUnitTest {
         verifyCovariateArray(readCovariates.getDeletionsKeySet(),  RAC.INDELS_CONTEXT_SIZE,  clippedRead, covariate);
     }
 
+    @Test(enabled = true)
+    public void testNegativeStrandContextsWithLowQualityTails() {
+        final int length = 1000;
+        final GATKSAMRecord read = ReadUtils.createRandomRead(length, false);
+        final byte[] quals = new byte[length];
+        Arrays.fill(quals, (byte)30);
+        Arrays.fill(quals, 0, 5, RAC.LOW_QUAL_TAIL);
+        Arrays.fill(quals, length - 7, length, RAC.LOW_QUAL_TAIL);
+        read.setBaseQualities(quals);
+        read.setReadNegativeStrandFlag(true);
+
+        // the contexts are those of the reverse complement of the read with its low quality tails written as Ns,
+        // stored at the offsets of the bases in the read as it is
+        final byte[] originalBases = read.getReadBases().clone();
+        final GATKSAMRecord clippedRead = ReadClipper.clipLowQualEnds(read, RAC.LOW_QUAL_TAIL, ClippingRepresentation.WRITE_NS);
+        final String reverseComplement = stringFrom(BaseUtils.simpleReverseComplement(clippedRead.getReadBases()));
+        read.setReadBases(originalBases.clone());
+
+        final ReadCovariates readCovariates = new ReadCovariates(length, 1);
+        covariate.recordValues(read, readCovariates);
+        Assert.assertEquals(read.getReadBases(), originalBases, "recordValues should leave the read's bases unchanged");
+
+        verifyReverseStrandCovariateArray(readCovariates.getMismatchesKeySet(), RAC.MISMATCHES_CONTEXT_SIZE, reverseComplement, covariate);
+        verifyReverseStrandCovariateArray(readCovariates.getInsertionsKeySet(), RAC.INDELS_CONTEXT_SIZE, reverseComplement, covariate);
+        verifyReverseStrandCovariateArray(readCovariates.getDeletionsKeySet(), RAC.INDELS_CONTEXT_SIZE, reverseComplement, covariate);
+    }
+
+    private static void verifyReverseStrandCovariateArray(final int[][] values, final int contextSize, final String reverseComplementBases, final Covariate contextCovariate) {
+        for (int i = 0; i < values.length; i++)
+            Assert.assertEquals(contextCovariate.formatKey(values[values.length - 1 - i][0]), expectedContext(reverseComplementBases, i, contextSize), "Wrong context at offset " + i + " of the reverse complement");
+    }
+
     public static void verifyCovariateArray(int[][] values, int contextSize, GATKSAMRecord read, Covariate contextCovariate) {
         for (int i = 0; i < values.length; i++)
             Assert.assertEquals(contextCovariate.formatKey(values[i][0]), expectedContext(read, i, contextSize));
@@ -75,7 +110,10 @@ public class ContextCovariateUnitTest {
     }
 
     public static String expectedContext (GATKSAMRecord read, int offset, int contextSize) {
-        final String bases = stringFrom(read.getReadBases());
+        return expectedContext(stringFrom(read.getReadBases()), offset, contextSize);
+    }
+
+    private static String expectedContext (final String bases, int offset, int contextSize) {
         String expectedContext = null;
         if (offset - contextSize + 1 >= 0) {
             String context = bases.substring(offset - contextSize + 1, offset + 1);
@@ -0,0 +1,95 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.engine.recalibration;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+import org.broadinstitute.gatk.engine.recalibration.covariates.Covariate;
+import org.broadinstitute.gatk.utils.recalibration.EventType;
+import org.broadinstitute.gatk.utils.sam.GATKSAMReadGroupRecord;
+import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
+import org.broadinstitute.gatk.utils.sam.ReadUtils;
+
+import java.util.Random;
+
+/**
+ * Caliper microbenchmark of computing the standard covariates of reads and visiting every key, as the
+ * BaseRecalibrator does, with the reusable thread local ReadCovariates or a newly allocated one per read
+ */
+public class ReadCovariatesBenchmark extends SimpleBenchmark {
+    private final static int N_READS = 10000;
+
+    @Param({"150", "250"})
+    int readLength; // set automatically by framework
+
+    @Param({"true", "false"})
+    boolean reuseWorkspace; // set automatically by framework
+
+    private Covariate[] covariates;
+    private GATKSAMRecord[] reads;
+
+    @Override protected void setUp() {
+        ReadCovariates.clearKeysCache();
+        covariates = RecalibrationTestUtils.makeInitializedStandardCovariates();
+
+        final Random random = new Random(42);
+        final GATKSAMReadGroupRecord readGroup = new GATKSAMReadGroupRecord("RG1");
+        readGroup.setPlatform("illumina");
+        reads = new GATKSAMRecord[N_READS];
+        for ( int i = 0; i < N_READS; i++ ) {
+            reads[i] = ReadUtils.createRandomRead(readLength, false);
+            reads[i].setReadGroup(readGroup);
+            reads[i].setReadNegativeStrandFlag(random.nextBoolean());
+        }
+    }
+
+    public void timeComputeCovariates(int rep) {
+        long sum = 0;
+        for ( int i = 0; i < rep; i++ ) {
+            for ( final GATKSAMRecord read : reads ) {
+                final ReadCovariates readCovariates;
+                if ( reuseWorkspace ) {
+                    readCovariates = RecalUtils.computeCovariates(read, covariates);
+                } else {
+                    readCovariates = new ReadCovariates(read.getReadLength(), covariates.length);
+                    RecalUtils.computeCovariates(read, covariates, readCovariates);
+                }
+
+                for ( final EventType event : EventType.values() ) {
+                    final int[][] keySets = readCovariates.getKeySet(event);
+                    for ( int offset = 0; offset < read.getReadLength(); offset++ )
+                        for ( final int key : keySets[offset] )
+                            sum += key;
+                }
+            }
+        }
+        if ( sum == 0 ) throw new IllegalStateException("Expected some non-zero keys");
+    }
+
+    public static void main(String[] args) {
+        com.google.caliper.Runner.main(ReadCovariatesBenchmark.class, args);
+    }
+}
@@ -48,6 +48,40 @@ public class ReadCovariatesUnitTest {
         ReadCovariates.clearKeysCache();
     }
 
+    @Test
+    public void testThreadLocalWorkspaceIsReused() {
+        final ReadCovariates first = ReadCovariates.getThreadLocal(100, 4);
+        Assert.assertEquals(first.getMismatchesKeySet().length, 100);
+
+        // shorter reads reuse the workspace, with key sets of exactly their length sharing its rows
+        final ReadCovariates second = ReadCovariates.getThreadLocal(50, 4);
+        Assert.assertSame(second, first);
+        Assert.assertEquals(second.getMismatchesKeySet().length, 50);
+        second.setCovariateIndex(3);
+        second.addCovariate(1, 2, 3, 49);
+        Assert.assertSame(ReadCovariates.getThreadLocal(100, 4).getInsertionsKeySet(49), second.getInsertionsKeySet(49));
+        Assert.assertEquals(ReadCovariates.getThreadLocal(50, 4).getDeletionsKeySet(49)[3], 3);
+
+        // but longer reads, or a different number of covariates, need a new one
+        Assert.assertNotSame(ReadCovariates.getThreadLocal(101, 4), first);
+        Assert.assertEquals(ReadCovariates.getThreadLocal(101, 2).getMismatchesKeySet(0).length, 2);
+    }
+
+    @Test
+    public void testCachedViewsAreBounded() {
+        final int capacity = 10000;
+        final ReadCovariates workspace = ReadCovariates.getThreadLocal(capacity, 4);
+        for ( int readLength = capacity / 2; readLength < capacity; readLength++ ) {
+            Assert.assertSame(ReadCovariates.getThreadLocal(readLength, 4), workspace);
+            Assert.assertEquals(workspace.getMismatchesKeySet().length, readLength);
+            Assert.assertTrue(workspace.getNumCachedViewRows() <= ReadCovariates.MAX_CACHED_VIEW_ROWS, "Cached views refer to " + workspace.getNumCachedViewRows() + " rows");
+        }
+
+        // views that were evicted are simply rebuilt
+        Assert.assertEquals(ReadCovariates.getThreadLocal(capacity / 2, 4).getDeletionsKeySet().length, capacity / 2);
+        Assert.assertSame(ReadCovariates.getThreadLocal(capacity / 2, 4).getDeletionsKeySet(0), ReadCovariates.getThreadLocal(capacity, 4).getDeletionsKeySet(0));
+    }
+
     @Test(enabled = false)
     public void testCovariateGeneration() {
         final RecalibrationArgumentCollection RAC = new RecalibrationArgumentCollection();
@@ -26,9 +26,11 @@
 package org.broadinstitute.gatk.engine.recalibration;
 
 import org.broadinstitute.gatk.engine.recalibration.covariates.*;
+import org.broadinstitute.gatk.utils.BaseTest;
 import org.broadinstitute.gatk.utils.recalibration.EventType;
 import org.broadinstitute.gatk.utils.QualityUtils;
 import org.broadinstitute.gatk.utils.collections.NestedIntegerArray;
+import org.broadinstitute.gatk.utils.collections.Pair;
 import org.broadinstitute.gatk.utils.sam.GATKSAMReadGroupRecord;
 import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
 import org.broadinstitute.gatk.utils.sam.ReadUtils;
@@ -36,6 +38,9 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.*;
 
 /**
@@ -137,6 +142,134 @@ public class RecalibrationReportUnitTest {
         Assert.assertEquals(nKeys, expectedKeys);
     }
 
+    @Test
+    public void testBinaryReportRoundTrip() {
+        final File textReport = new File(BaseTest.publicTestDir + "exampleGRP.grp");
+        final RecalibrationReport original = new RecalibrationReport(textReport);
+
+        final File binaryReport = BaseTest.createTempFile("testBinaryReportRoundTrip", BinaryRecalibrationReport.BINARY_REPORT_EXTENSION);
+        original.writeBinaryReport(binaryReport);
+        Assert.assertTrue(BinaryRecalibrationReport.isBinaryReport(binaryReport));
+        Assert.assertFalse(BinaryRecalibrationReport.isBinaryReport(textReport));
+        Assert.assertEquals(RecalibrationReport.getReadGroups(binaryReport), RecalibrationReport.getReadGroups(textReport));
+
+        final RecalibrationReport roundTrip = new RecalibrationReport(binaryReport);
+        Assert.assertEquals(roundTrip.getQuantizationInfo().getQuantizedQuals(), original.getQuantizationInfo().getQuantizedQuals());
+        Assert.assertEquals(roundTrip.getQuantizationInfo().getEmpiricalQualCounts(), original.getQuantizationInfo().getEmpiricalQualCounts());
+        Assert.assertEquals(roundTrip.getRAC().COVARIATES, original.getRAC().COVARIATES);
+        Assert.assertEquals(roundTrip.getRAC().MISMATCHES_CONTEXT_SIZE, original.getRAC().MISMATCHES_CONTEXT_SIZE);
+        Assert.assertEquals(roundTrip.getRAC().QUANTIZING_LEVELS, original.getRAC().QUANTIZING_LEVELS);
+        assertTablesEqual(roundTrip.getRecalibrationTables(), original.getRecalibrationTables());
+
+        // gathering binary reports, streamed into the combined tables, must give the same result as gathering the text reports
+        final RecalibrationReport gatheredText = BQSRGatherer.gatherRecalibrationReport(Arrays.asList(textReport, textReport));
+        final RecalibrationReport gatheredMixed = BQSRGatherer.gatherRecalibrationReport(Arrays.asList(textReport, binaryReport));
+        final RecalibrationReport gatheredBinary = BQSRGatherer.gatherRecalibrationReport(Arrays.asList(binaryReport, binaryReport));
+        assertTablesEqual(gatheredMixed.getRecalibrationTables(), gatheredText.getRecalibrationTables());
+        assertTablesEqual(gatheredBinary.getRecalibrationTables(), gatheredText.getRecalibrationTables());
+        Assert.assertEquals(gatheredBinary.getQuantizationInfo().getQuantizedQuals(), gatheredText.getQuantizationInfo().getQuantizedQuals());
+    }
+
+    @Test
+    public void testGatherBinaryShardsWithDifferentReadGroups() throws IOException {
+        final RecalibrationReport template = new RecalibrationReport(new File(BaseTest.publicTestDir + "exampleGRP.grp"));
+
+        // the shards share read group rgB, and each numbers its read groups differently from the gathered report
+        final File[] shard1 = writeShard(template, Arrays.asList("rgC", "rgB"), 1);
+        final File[] shard2 = writeShard(template, Arrays.asList("rgB", "rgA"), 2);
+
+        final RecalibrationReport gatheredText = BQSRGatherer.gatherRecalibrationReport(Arrays.asList(shard1[0], shard2[0]));
+        final RecalibrationReport gatheredBinary = BQSRGatherer.gatherRecalibrationReport(Arrays.asList(shard1[1], shard2[1]));
+        Assert.assertEquals(RecalibrationReport.getReadGroups(shard2[1]), new TreeSet<String>(Arrays.asList("rgA", "rgB")));
+        Assert.assertEquals(gatheredText.getRecalibrationTables().getReadGroupTable().getAllLeaves().size(), 3 * template.getRecalibrationTables().getReadGroupTable().getAllLeaves().size());
+        assertTablesEqual(gatheredBinary.getRecalibrationTables(), gatheredText.getRecalibrationTables());
+        Assert.assertEquals(gatheredBinary.getQuantizationInfo().getQuantizedQuals(), gatheredText.getQuantizationInfo().getQuantizedQuals());
+
+        // gathering into a .bqsr output writes the combined report in the binary format
+        final File gatheredOutput = BaseTest.createTempFile("testGatherBinaryShards", BinaryRecalibrationReport.BINARY_REPORT_EXTENSION);
+        new BQSRGatherer().gather(Arrays.asList(shard1[1], shard2[1]), gatheredOutput);
+        Assert.assertTrue(BinaryRecalibrationReport.isBinaryReport(gatheredOutput));
+        final RecalibrationReport gatheredFromOutput = new RecalibrationReport(gatheredOutput);
+
+        // reading a report back from disk recomputes estimated Q reported from the reported quality keys, so compare
+        // against the text gather after the same round trip rather than against the in-memory report.  The text
+        // report rounds errors and estimated Q reported, so those are compared to the precision it stores them with.
+        final File gatheredTextOutput = BaseTest.createTempFile("testGatherTextShards", ".grp");
+        new BQSRGatherer().gather(Arrays.asList(shard1[0], shard2[0]), gatheredTextOutput);
+        final RecalibrationReport gatheredTextFromOutput = new RecalibrationReport(gatheredTextOutput);
+        assertTablesEqual(gatheredFromOutput.getRecalibrationTables(), gatheredTextFromOutput.getRecalibrationTables(), TEXT_REPORT_PRECISION);
+        Assert.assertEquals(gatheredFromOutput.getQuantizationInfo().getQuantizedQuals(), gatheredTextFromOutput.getQuantizationInfo().getQuantizedQuals());
+        Assert.assertEquals(gatheredFromOutput.getQuantizationInfo().getEmpiricalQualCounts(), gatheredTextFromOutput.getQuantizationInfo().getEmpiricalQualCounts());
+    }
+
+    /**
+     * Writes a text and a binary recalibration report with the data of template copied to each of readGroups,
+     * with the observations scaled so that every read group and shard has different counts.  Errors and estimated
+     * Q reported are copied as they are, so that the text report stores them exactly.
+     *
+     * @return the text report and the binary report
+     */
+    private static File[] writeShard(final RecalibrationReport template, final List<String> readGroups, final int shard) throws IOException {
+        final RecalibrationArgumentCollection RAC = template.getRAC();
+        final Pair<ArrayList<Covariate>, ArrayList<Covariate>> covariateLists = RecalUtils.initializeCovariates(RAC);
+        final List<Covariate> covariateList = new ArrayList<Covariate>(covariateLists.getFirst());
+        covariateList.addAll(covariateLists.getSecond());
+        final Covariate[] covariates = covariateList.toArray(new Covariate[covariateList.size()]);
+        for ( final Covariate covariate : covariates )
+            covariate.initialize(RAC);
+
+        final RecalibrationTables tables = new RecalibrationTables(covariates, readGroups.size());
+        for ( int tableIndex = 0; tableIndex < tables.numTables(); tableIndex++ ) {
+            for ( final NestedIntegerArray.Leaf<RecalDatum> leaf : template.getRecalibrationTables().getTable(tableIndex).getAllLeaves() ) {
+                for ( int i = 0; i < readGroups.size(); i++ ) {
+                    final int[] keys = leaf.keys.clone();
+                    keys[0] = covariates[0].keyFromValue(readGroups.get(i));
+                    final RecalDatum datum = new RecalDatum(leaf.value.getNumObservations() * (shard + i + 1), leaf.value.getNumMismatches(), (byte)1);
+                    datum.setEstimatedQReported(leaf.value.getEstimatedQReported());
+                    tables.getTable(tableIndex).put(datum, keys);
+                }
+            }
+        }
+
+        final File textReport = BaseTest.createTempFile("shard" + shard, ".grp");
+        RAC.RECAL_TABLE = new PrintStream(textReport);
+        RecalUtils.outputRecalibrationReport(RAC, template.getQuantizationInfo(), tables, covariates, false);
+        RAC.RECAL_TABLE.close();
+
+        final File binaryReport = BaseTest.createTempFile("shard" + shard, BinaryRecalibrationReport.BINARY_REPORT_EXTENSION);
+        RecalUtils.outputBinaryRecalibrationReport(RAC, template.getQuantizationInfo(), tables, covariates, binaryReport);
+
+        return new File[]{textReport, binaryReport};
+    }
+
+    /**
+     * Largest difference between a value and its rounded form in a text report, whose errors are written with two
+     * decimal places and estimated Q reported with four.
+     */
+    private static final double TEXT_REPORT_PRECISION = 0.005;
+
+    private static void assertTablesEqual(final RecalibrationTables actual, final RecalibrationTables expected) {
+        assertTablesEqual(actual, expected, 0.0);
+    }
+
+    private static void assertTablesEqual(final RecalibrationTables actual, final RecalibrationTables expected, final double tolerance) {
+        Assert.assertEquals(actual.numTables(), expected.numTables());
+        for ( int tableIndex = 0; tableIndex < expected.numTables(); tableIndex++ ) {
+            final List<NestedIntegerArray.Leaf<RecalDatum>> actualLeaves = actual.getTable(tableIndex).getAllLeaves();
+            final List<NestedIntegerArray.Leaf<RecalDatum>> expectedLeaves = expected.getTable(tableIndex).getAllLeaves();
+            Assert.assertEquals(actualLeaves.size(), expectedLeaves.size(), "Wrong number of rows in table " + tableIndex);
+            for ( int i = 0; i < expectedLeaves.size(); i++ ) {
+                final RecalDatum actualDatum = actualLeaves.get(i).value;
+                final RecalDatum expectedDatum = expectedLeaves.get(i).value;
+                Assert.assertEquals(actualLeaves.get(i).keys, expectedLeaves.get(i).keys);
+                Assert.assertEquals(actualDatum.getNumObservations(), expectedDatum.getNumObservations());
+                Assert.assertEquals(actualDatum.getNumMismatches(), expectedDatum.getNumMismatches(), tolerance);
+                Assert.assertEquals(actualDatum.getEstimatedQReported(), expectedDatum.getEstimatedQReported(), tolerance);
+                Assert.assertEquals(actualDatum.getEmpiricalQuality(), expectedDatum.getEmpiricalQuality(), tolerance);
+            }
+        }
+    }
+
     private static int expectedNumberOfKeys (int readLength, int indelContextSize, int mismatchesContextSize) {
         final int numCovariates = 4;
         final int numTables = 3;
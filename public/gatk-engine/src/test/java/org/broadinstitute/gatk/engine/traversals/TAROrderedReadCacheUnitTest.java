@@ -27,6 +27,7 @@ package org.broadinstitute.gatk.engine.traversals;
 
 import htsjdk.samtools.reference.ReferenceSequenceFile;
 import org.broadinstitute.gatk.utils.BaseTest;
+import org.broadinstitute.gatk.utils.GenomeLoc;
 import org.broadinstitute.gatk.utils.fasta.CachingIndexedFastaSequenceFile;
 import org.broadinstitute.gatk.utils.sam.ArtificialBAMBuilder;
 import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
@@ -39,7 +40,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class TAROrderedReadCacheUnitTest extends BaseTest {
     // example fasta index file, can be deleted if you don't use the reference
@@ -101,6 +104,107 @@ public class TAROrderedReadCacheUnitTest extends BaseTest {
         verifySortednessOfReads(cacheReads);
     }
 
+    @DataProvider(name = "SpillingReadCacheTestData")
+    public Object[][] makeSpillingReadCacheTestData() {
+        List<Object[]> tests = new ArrayList<Object[]>();
+
+        for ( final int nReadsPerLocus : Arrays.asList(0, 1, 10, 100) ) {
+            for ( final int max : Arrays.asList(0, 10, 1000) ) {
+                // no buffer at all, a buffer that overflows to disk, and one that holds everything
+                for ( final int spillBufferSize : Arrays.asList(0, 1000, 10 * 1024 * 1024) ) {
+                    tests.add(new Object[]{nReadsPerLocus, max, spillBufferSize});
+                }
+            }
+        }
+
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(dataProvider = "SpillingReadCacheTestData")
+    public void testSpillingReadCache(final int nReadsPerLocus, final int max, final int spillBufferSize) {
+        final ArtificialBAMBuilder bamBuilder = new ArtificialBAMBuilder(seq, nReadsPerLocus, 10);
+        final List<GATKSAMRecord> reads = bamBuilder.makeReads();
+        final TAROrderedReadCache cache = new TAROrderedReadCache(max, bamBuilder.getHeader(), spillBufferSize);
+        Assert.assertTrue(cache.isSpilling());
+
+        // go around twice, to make sure the cache is reusable after reads come back from the spill buffer
+        for ( int round = 0; round < 2; round++ ) {
+            cache.addAll(reads);
+            Assert.assertEquals(cache.getNumDiscarded(), 0, "spilling cache shouldn't discard reads");
+            Assert.assertEquals(cache.size(), reads.size(), "wrong number of reads kept");
+
+            final List<GATKSAMRecord> cacheReads = cache.popCurrentReads();
+            Assert.assertEquals(cache.size(), 0, "Should be no reads left");
+            Assert.assertEquals(cacheReads.size(), reads.size(), "should get back every read we added");
+            for ( int i = 0; i < reads.size(); i++ ) {
+                final GATKSAMRecord expected = reads.get(i);
+                final GATKSAMRecord actual = cacheReads.get(i);
+                Assert.assertEquals(actual.getReadName(), expected.getReadName());
+                Assert.assertEquals(actual.getAlignmentStart(), expected.getAlignmentStart());
+                Assert.assertEquals(actual.getCigarString(), expected.getCigarString());
+                Assert.assertEquals(actual.getReadBases(), expected.getReadBases());
+                Assert.assertEquals(actual.getBaseQualities(), expected.getBaseQualities());
+                Assert.assertEquals(actual.getReadGroup().getReadGroupId(), expected.getReadGroup().getReadGroupId());
+            }
+        }
+
+        if ( reads.size() > max && spillBufferSize == 0 )
+            Assert.assertTrue(cache.getNumSpilledToDisk() > 0, "reads beyond capacity should have gone to disk");
+        if ( spillBufferSize > 1024 * 1024 )
+            Assert.assertEquals(cache.getNumSpilledToDisk(), 0, "reads should all have fit in the spill buffer");
+    }
+
+    @Test
+    public void testSpilledReadsOnlyComeBackForRegionsThatReachThem() {
+        final int nReadsPerLocus = 20;
+        final int readLength = 50;
+        final int maxCapacity = 100;
+        final int regionSize = 25;
+        final int extension = 10;
+
+        final ArtificialBAMBuilder bamBuilder = new ArtificialBAMBuilder(seq, nReadsPerLocus, 2000);
+        bamBuilder.setReadLength(readLength);
+        final List<GATKSAMRecord> reads = bamBuilder.makeReads();
+        final TAROrderedReadCache cache = new TAROrderedReadCache(maxCapacity, bamBuilder.getHeader(), 64 * 1024);
+
+        // worst case for the heap: every read arrives before the first region is processed
+        cache.addAll(reads);
+        Assert.assertTrue(cache.getNumSpilledToDisk() > 0, "reads should overflow the spill buffer to disk");
+
+        final String contig = bamBuilder.getHeader().getSequence(0).getSequenceName();
+        final Set<String> seen = new HashSet<String>();
+        int maxPopped = 0;
+        int nRegions = 0;
+        for ( int start = bamBuilder.getAlignmentStart(); start <= bamBuilder.getAlignmentEnd(); start += regionSize ) {
+            final int stop = start + regionSize - 1;
+            final GenomeLoc extendedLoc = bamBuilder.getGenomeLocParser().createGenomeLoc(contig, Math.max(1, start - extension), stop + extension);
+
+            final List<GATKSAMRecord> popped = cache.popCurrentReads(extendedLoc);
+            maxPopped = Math.max(maxPopped, popped.size());
+            verifySortednessOfReads(popped);
+
+            final List<GATKSAMRecord> stillLive = new ArrayList<GATKSAMRecord>();
+            for ( final GATKSAMRecord read : popped ) {
+                Assert.assertTrue(read.getAlignmentStart() <= extendedLoc.getStop(), "read " + read + " can't reach region " + extendedLoc + " and should have stayed spilled");
+                seen.add(read.getReadName());
+                if ( read.getAlignmentEnd() + extension >= stop )
+                    stillLive.add(read);
+            }
+            cache.restoreLiveReads(stillLive);
+            nRegions++;
+        }
+
+        for ( final GATKSAMRecord read : cache.popCurrentReads() )
+            seen.add(read.getReadName());
+        Assert.assertEquals(seen.size(), reads.size(), "every read should have been returned");
+
+        // the heap only ever holds the reads that could overlap the current region, plus those added before spilling began
+        final int maxReadsReachingARegion = nReadsPerLocus * (regionSize + 2 * extension + readLength);
+        Assert.assertTrue(nRegions > 50);
+        Assert.assertTrue(maxPopped <= maxCapacity + maxReadsReachingARegion,
+                "popped " + maxPopped + " reads at once from a cache of " + reads.size() + " reads, more than could reach any region");
+    }
+
     private void verifySortednessOfReads( final List<GATKSAMRecord> reads) {
         int lastStart = -1;
         for ( GATKSAMRecord read : reads ) {
@@ -37,6 +37,10 @@ import org.broadinstitute.gatk.engine.resourcemanagement.ThreadAllocation;
 import org.broadinstitute.gatk.engine.walkers.Walker;
 import org.broadinstitute.gatk.utils.GenomeLocSortedSet;
 import org.broadinstitute.gatk.utils.activeregion.ActiveRegionReadState;
+import org.broadinstitute.gatk.utils.activeregion.ActivityProfileState;
+import org.broadinstitute.gatk.utils.contexts.AlignmentContext;
+import org.broadinstitute.gatk.utils.contexts.ReferenceContext;
+import org.broadinstitute.gatk.utils.refdata.RefMetaDataTracker;
 import org.broadinstitute.gatk.utils.interval.IntervalMergingRule;
 import org.broadinstitute.gatk.utils.interval.IntervalUtils;
 import org.broadinstitute.gatk.utils.sam.*;
@@ -58,6 +62,8 @@ import org.testng.annotations.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created with IntelliJ IDEA.
@@ -677,4 +683,102 @@ public class TraverseActiveRegionsUnitTest extends BaseTest {
 
         Assert.assertEquals(region.size(), nReadsExpectedInRegion, "There are more reads in active region " + region + "than expected");
     }
+
+    // ---------------------------------------------------------------------------------------------------------
+    //
+    // Make sure scoring isActive() over blocks of loci in parallel doesn't change the traversal
+    //
+    // ---------------------------------------------------------------------------------------------------------
+
+    /**
+     * Walker whose isActive() and map() may be called from several threads at once, and which records
+     * everything needed to compare one traversal against another
+     */
+    private static class ThreadSafeActiveRegionWalker extends DummyActiveRegionWalker {
+        private final Map<GenomeLoc, Double> isActiveProbs = new ConcurrentSkipListMap<GenomeLoc, Double>();
+        private final Map<GenomeLoc, ActiveRegion> regions = new ConcurrentSkipListMap<GenomeLoc, ActiveRegion>();
+        private final AtomicInteger nDuplicateIsActiveCalls = new AtomicInteger();
+
+        @Override
+        public ActivityProfileState isActive(RefMetaDataTracker tracker, ReferenceContext ref, AlignmentContext context) {
+            // alternate stretches of active and inactive loci of varying lengths, so regions start and stop
+            // throughout the interval and across scoring block boundaries
+            final int start = ref.getLocus().getStart();
+            final double p = (start / 37) % 3 == 0 || (start / 101) % 4 == 1 ? 1.0 : 0.0;
+            if ( isActiveProbs.put(ref.getLocus(), p) != null )
+                nDuplicateIsActiveCalls.incrementAndGet();
+            return new ActivityProfileState(ref.getLocus(), p);
+        }
+
+        @Override
+        public Integer map(ActiveRegion activeRegion, RefMetaDataTracker metaDataTracker) {
+            regions.put(activeRegion.getLocation(), activeRegion);
+            return activeRegion.size() + (activeRegion.isActive() ? activeRegion.getLocation().size() : 0);
+        }
+
+        @Override
+        public Integer reduce(Integer value, Integer sum) {
+            return value + sum;
+        }
+    }
+
+    @DataProvider(name = "ParallelActivityScoringProvider")
+    public Object[][] makeParallelActivityScoringProvider() {
+        final List<Object[]> tests = new LinkedList<Object[]>();
+        for ( final int nThreads : Arrays.asList(2, 4) )
+            // a single locus, a block that doesn't divide the intervals evenly, and a block larger than any window
+            for ( final int activityScoringBlockSize : Arrays.asList(1, 50, 100000) )
+                tests.add(new Object[]{nThreads, activityScoringBlockSize});
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(enabled = true && ! DEBUG, dataProvider = "ParallelActivityScoringProvider")
+    public void testParallelActivityScoringMatchesSerialScoring(final int nThreads, final int activityScoringBlockSize) {
+        final ArtificialBAMBuilder bamBuilder = new ArtificialBAMBuilder(reference, 2, 2000);
+        bamBuilder.setReadLength(50);
+        bamBuilder.setSkipNLoci(1);
+        bamBuilder.setAlignmentStart(1000);
+        final File bam = bamBuilder.makeTemporarilyBAMFile();
+
+        // the gap between the intervals forces the activity profile to be flushed mid-traversal
+        final int start = bamBuilder.getAlignmentStart();
+        final int stop = bamBuilder.getAlignmentEnd();
+        final List<GenomeLoc> intervals = Arrays.asList(
+                genomeLocParser.createGenomeLoc("1", start, start + 1499),
+                genomeLocParser.createGenomeLoc("1", start + 1700, stop));
+
+        final ThreadSafeActiveRegionWalker serialWalker = new ThreadSafeActiveRegionWalker();
+        serialWalker.activityScoringBlockSize = 0;
+        final int serialResult = traverseAll(new TraverseActiveRegions<Integer, Integer>(nThreads), serialWalker, intervals, bam);
+
+        final ThreadSafeActiveRegionWalker parallelWalker = new ThreadSafeActiveRegionWalker();
+        parallelWalker.activityScoringBlockSize = activityScoringBlockSize;
+        final int parallelResult = traverseAll(new TraverseActiveRegions<Integer, Integer>(nThreads), parallelWalker, intervals, bam);
+
+        Assert.assertEquals(parallelWalker.nDuplicateIsActiveCalls.get(), 0, "isActive() was called more than once on some locus");
+        Assert.assertEquals(parallelWalker.isActiveProbs, serialWalker.isActiveProbs, "isActive() was called on different loci");
+        Assert.assertTrue(serialWalker.regions.size() > 2, "Test should produce several active regions");
+        Assert.assertEquals(parallelWalker.regions.keySet(), serialWalker.regions.keySet(), "Active regions differ");
+
+        for ( final GenomeLoc loc : serialWalker.regions.keySet() ) {
+            final ActiveRegion serialRegion = serialWalker.regions.get(loc);
+            final ActiveRegion parallelRegion = parallelWalker.regions.get(loc);
+            Assert.assertEquals(parallelRegion.isActive(), serialRegion.isActive(), "isActive state differs for region " + loc);
+            Assert.assertEquals(parallelRegion.getExtendedLoc(), serialRegion.getExtendedLoc(), "Extended span differs for region " + loc);
+            Assert.assertEquals(new ArrayList<String>(readNamesInRegion(parallelRegion)), new ArrayList<String>(readNamesInRegion(serialRegion)), "Reads differ for region " + loc);
+        }
+
+        Assert.assertEquals(parallelResult, serialResult, "Reduced results differ");
+    }
+
+    private int traverseAll(final TraverseActiveRegions<Integer, Integer> t, final ThreadSafeActiveRegionWalker walker, final List<GenomeLoc> intervals, final File bam) {
+        Integer sum = walker.reduceInit();
+        try {
+            for (LocusShardDataProvider dataProvider : createDataProviders(t, walker, intervals, bam))
+                sum = t.traverse(walker, dataProvider, sum);
+        } finally {
+            t.shutdown();
+        }
+        return sum;
+    }
 }
@@ -1167,6 +1167,37 @@ public class MathUtils {
         return new ArrayList<Integer>(chosen_balls.subList(0, k));
     }
 
+    /**
+     * Marks k random indices drawn without replacement from the range 0..(n-1) in chosen
+     *
+     * Draws the same random numbers, and so selects the same indices, as sampleIndicesWithoutReplacement(n, k),
+     * but without boxing an Integer per index.
+     *
+     * @param n the total number of indices sampled from
+     * @param k the number of random indices to draw (without replacement)
+     * @param scratch work space, which must have room for at least n indices
+     * @param chosen cleared, then has the k chosen indices set
+     */
+    static public void sampleIndicesWithoutReplacement(final int n, final int k, final int[] scratch, final BitSet chosen) {
+        if ( scratch.length < n ) throw new IllegalArgumentException("scratch must have room for " + n + " indices but has length " + scratch.length);
+
+        for ( int i = 0; i < n; i++ )
+            scratch[i] = i;
+
+        // the same swaps Collections.shuffle makes on a random access list
+        final Random random = Utils.getRandomGenerator();
+        for ( int i = n; i > 1; i-- ) {
+            final int j = random.nextInt(i);
+            final int tmp = scratch[i - 1];
+            scratch[i - 1] = scratch[j];
+            scratch[j] = tmp;
+        }
+
+        chosen.clear();
+        for ( int i = 0; i < k; i++ )
+            chosen.set(scratch[i]);
+    }
+
     /**
      * Given a list of indices into a list, return those elements of the list with the possibility of drawing list elements multiple times
      *
@@ -220,8 +220,21 @@ public class ActivityProfile {
             regionStopLoc = loc;
         }
 
-        final Collection<ActivityProfileState> processedStates = processState(state);
-        for ( final ActivityProfileState processedState : processedStates ) {
+        incorporateState(state);
+    }
+
+    /**
+     * Incorporate justAddedState, whose location has already been recorded in this profile, into the state list
+     *
+     * By default passes justAddedState through processState and incorporates each of the resulting states
+     * in turn.  Subclasses that derive many states from each added state can override this to update the
+     * state list directly instead.
+     *
+     * @param justAddedState the state our client provided to use to add to the list
+     */
+    @Requires("justAddedState != null")
+    protected void incorporateState(final ActivityProfileState justAddedState) {
+        for ( final ActivityProfileState processedState : processState(justAddedState) ) {
             incorporateSingleState(processedState);
         }
     }
@@ -237,7 +250,7 @@ public class ActivityProfile {
      * @param stateToAdd the state we want to add to the states list
      */
     @Requires("stateToAdd != null")
-    private void incorporateSingleState(final ActivityProfileState stateToAdd) {
+    protected void incorporateSingleState(final ActivityProfileState stateToAdd) {
         final int position = stateToAdd.getOffset(regionStartLoc);
 
         if ( position > size() )
@@ -26,14 +26,12 @@
 package org.broadinstitute.gatk.utils.activeregion;
 
 import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
 import org.broadinstitute.gatk.utils.GenomeLoc;
 import org.broadinstitute.gatk.utils.GenomeLocParser;
 import org.broadinstitute.gatk.utils.GenomeLocSortedSet;
 import org.broadinstitute.gatk.utils.MathUtils;
 
-import java.util.Collection;
-import java.util.LinkedList;
-
 /**
  * A band pass filtering version of the activity profile
  *
@@ -52,6 +50,11 @@ public class BandPassActivityProfile extends ActivityProfile {
     private final double sigma;
     private final double[] GaussianKernel;
 
+    /**
+     * Scratch space for the kernel scaled by the probability being filtered, reused for every added state
+     */
+    private final double[] scaledKernel;
+
     /**
      * Create a new BandPassActivityProfile with default sigma and filter sizes
      *
@@ -95,6 +98,7 @@ public class BandPassActivityProfile extends ActivityProfile {
         final double[] fullKernel = makeKernel(maxFilterSize, sigma);
         this.filterSize = adaptiveFilterSize ? determineFilterSize(fullKernel, MIN_PROB_TO_KEEP_IN_FILTER) : maxFilterSize;
         this.GaussianKernel = makeKernel(this.filterSize, sigma);
+        this.scaledKernel = new double[GaussianKernel.length];
     }
 
     protected static int determineFilterSize(final double[] kernel, final double minProbToKeepInFilter) {
@@ -168,27 +172,61 @@ public class BandPassActivityProfile extends ActivityProfile {
     }
 
     /**
-     * Band pass the probabilities in the ActivityProfile, producing a new profile that's band pass filtered
-     * @return a new double[] that's the band-pass filtered version of this profile
+     * Band pass the probabilities of the states derived from justAddedState into the profile
+     *
+     * Rather than creating a state for every site the band touches, the kernel is scaled into a primitive
+     * buffer and added in place to the states already in the profile, so only the sites that extend the
+     * profile need new states.
+     *
+     * @param justAddedState the state our client provided to use to add to the list
      */
     @Override
-    protected Collection<ActivityProfileState> processState(final ActivityProfileState justAddedState) {
-        final Collection<ActivityProfileState> states = new LinkedList<ActivityProfileState>();
-
+    protected void incorporateState(final ActivityProfileState justAddedState) {
         for ( final ActivityProfileState superState : super.processState(justAddedState) ) {
             if ( superState.isActiveProb > 0.0 ) {
-                for( int jjj = -filterSize; jjj <= filterSize; jjj++ ) {
-                    final GenomeLoc loc = getLocForOffset(justAddedState.getLoc(), jjj);
-                    if ( loc != null ) {
-                        final double newProb = superState.isActiveProb * GaussianKernel[jjj + filterSize];
-                        states.add(new ActivityProfileState(loc, newProb));
-                    }
-                }
+                bandPass(justAddedState.getLoc(), superState.isActiveProb);
             } else {
-                states.add(justAddedState);
+                incorporateSingleState(justAddedState);
             }
         }
+    }
+
+    /**
+     * Add prob, spread over the band around center by our Gaussian kernel, to the states in this profile
+     *
+     * Sites off the contig, or before the start of this profile, are skipped.
+     *
+     * @param center the location at the center of the band
+     * @param prob the probability to spread
+     */
+    @Requires({"center != null", "prob > 0.0"})
+    private void bandPass(final GenomeLoc center, final double prob) {
+        final int centerStart = center.getStart();
+        final int firstOffset = Math.max(-filterSize, Math.max(-centerStart, regionStartLoc.getStart() - centerStart));
+        final int lastOffset = Math.min(filterSize, contigLength - centerStart);
+        if ( firstOffset > lastOffset )
+            return;
+
+        final int from = firstOffset + filterSize;
+        final int to = lastOffset + filterSize + 1;
+        scale(GaussianKernel, prob, scaledKernel, from, to);
+
+        int position = centerStart + firstOffset - regionStartLoc.getStart();
+        for ( int i = from; i < to; i++, position++ ) {
+            if ( position < stateList.size() )
+                stateList.get(position).isActiveProb += scaledKernel[i];
+            else
+                incorporateSingleState(new ActivityProfileState(getLocForOffset(center, i - filterSize), scaledKernel[i]));
+        }
+    }
 
-        return states;
+    /**
+     * Set dest[i] = factor * values[i] for i in [from, to)
+     *
+     * Kept as a simple counted loop over primitive arrays so the JIT can vectorize it.
+     */
+    protected static void scale(final double[] values, final double factor, final double[] dest, final int from, final int to) {
+        for ( int i = from; i < to; i++ )
+            dest[i] = factor * values[i];
     }
 }
@@ -0,0 +1,311 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.utils.collections;
+
+import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Dense, primitive counterpart of NestedIntegerArray for tables of counts keyed by small integers
+ *
+ * Rather than a tree of Object[]s with a boxed value at each leaf, every cell of the table has a slot
+ * in two flat columns, one of longs and one of doubles (e.g. the number of observations and mismatches
+ * of a recalibration datum), at an index computed from the keys with the strides of the dimensions.
+ * A get or an update is then a few multiply-adds and a single array access, and the table costs 16 bytes
+ * per possible cell, with no per-leaf object.  That's a good trade for tables where most of the cells get
+ * used; for very sparse key spaces NestedIntegerArray remains much smaller.
+ *
+ * The columns can optionally be stored off heap, in direct buffers, to keep large tables out of the
+ * garbage collector's way.
+ *
+ * As with NestedIntegerArray, a cell is only a leaf once something has been written to it, even if
+ * the values written were zero.
+ *
+ * Unlike NestedIntegerArray, this class isn't thread-safe.  Threads should each update their own table,
+ * combining them afterwards with addAll().
+ */
+public class FlatNestedIntegerArray {
+    private static final int LONG_BYTES = 8;
+    private static final int DOUBLE_BYTES = 8;
+
+    protected final int numDimensions;
+    protected final int[] dimensions;
+
+    /**
+     * The distance between consecutive values of each key in the columns
+     */
+    private final int[] strides;
+
+    private final int size;
+
+    /**
+     * Which cells have been written to
+     */
+    private final BitSet leaves;
+
+    // exactly one of the pairs of on and off heap columns is non-null
+    private final long[] longs;
+    private final double[] doubles;
+    private final LongBuffer offHeapLongs;
+    private final DoubleBuffer offHeapDoubles;
+
+    public FlatNestedIntegerArray(final int... dimensions) {
+        this(false, dimensions);
+    }
+
+    /**
+     * @param offHeap if true, store the values in direct buffers outside of the java heap
+     * @param dimensions the number of distinct values of each key
+     */
+    public FlatNestedIntegerArray(final boolean offHeap, final int... dimensions) {
+        numDimensions = dimensions.length;
+        if ( numDimensions == 0 )
+            throw new ReviewedGATKException("There must be at least one dimension to a FlatNestedIntegerArray");
+        this.dimensions = dimensions.clone();
+
+        strides = new int[numDimensions];
+        long cells = 1;
+        for ( int i = numDimensions - 1; i >= 0; i-- ) {
+            if ( dimensions[i] <= 0 )
+                throw new ReviewedGATKException("Dimension " + i + " of a FlatNestedIntegerArray must be positive but was " + dimensions[i]);
+            strides[i] = (int)cells;
+            cells *= dimensions[i];
+            if ( cells > maxCells(offHeap) )
+                throw new ReviewedGATKException("A FlatNestedIntegerArray with dimensions " + Arrays.toString(dimensions) + " has too many cells, the maximum is " + maxCells(offHeap));
+        }
+        size = (int)cells;
+        leaves = new BitSet(size);
+
+        if ( offHeap ) {
+            longs = null;
+            doubles = null;
+            offHeapLongs = ByteBuffer.allocateDirect(size * LONG_BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+            offHeapDoubles = ByteBuffer.allocateDirect(size * DOUBLE_BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        } else {
+            longs = new long[size];
+            doubles = new double[size];
+            offHeapLongs = null;
+            offHeapDoubles = null;
+        }
+    }
+
+    private static long maxCells(final boolean offHeap) {
+        // a direct buffer is indexed by bytes, an array by elements
+        return offHeap ? Integer.MAX_VALUE / Math.max(LONG_BYTES, DOUBLE_BYTES) : Integer.MAX_VALUE - 8;
+    }
+
+    /**
+     * @return the dimensions of this nested integer array.  DO NOT MODIFY
+     */
+    public int[] getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return the total number of cells in this array, used or not
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the values are stored off heap
+     */
+    public boolean isOffHeap() {
+        return longs == null;
+    }
+
+    /**
+     * Get the index in the columns of the cell with keys
+     *
+     * Callers updating the same cell repeatedly can compute its index once and use the *AtIndex methods.
+     *
+     * @param keys one key per dimension
+     * @return the index of keys' cell, or -1 if any of the keys is out of range
+     */
+    public int getIndex(final int... keys) {
+        if ( keys.length != numDimensions )
+            throw new ReviewedGATKException("Exactly " + numDimensions + " keys should be passed to this FlatNestedIntegerArray but " + keys.length + " were provided");
+
+        int index = 0;
+        for ( int i = 0; i < numDimensions; i++ ) {
+            final int key = keys[i];
+            if ( key < 0 || key >= dimensions[i] )
+                return -1;
+            index += key * strides[i];
+        }
+        return index;
+    }
+
+    /**
+     * @return the keys of the cell at index, the inverse of getIndex()
+     */
+    public int[] getKeys(final int index) {
+        final int[] keys = new int[numDimensions];
+        int remainder = index;
+        for ( int i = 0; i < numDimensions; i++ ) {
+            keys[i] = remainder / strides[i];
+            remainder -= keys[i] * strides[i];
+        }
+        return keys;
+    }
+
+    /**
+     * @return true if a value has been written to the cell with keys
+     */
+    public boolean contains(final int... keys) {
+        final int index = getIndex(keys);
+        return index >= 0 && leaves.get(index);
+    }
+
+    /**
+     * @return the long value of the cell with keys, or 0 if the keys are out of range
+     */
+    public long getLong(final int... keys) {
+        final int index = getIndex(keys);
+        return index < 0 ? 0 : getLongAtIndex(index);
+    }
+
+    /**
+     * @return the double value of the cell with keys, or 0.0 if the keys are out of range
+     */
+    public double getDouble(final int... keys) {
+        final int index = getIndex(keys);
+        return index < 0 ? 0.0 : getDoubleAtIndex(index);
+    }
+
+    /**
+     * Add longValue and doubleValue to the values of the cell with keys
+     *
+     * @param longValue amount to add to the long value
+     * @param doubleValue amount to add to the double value
+     * @param keys keys specifying the cell
+     */
+    public void add(final long longValue, final double doubleValue, final int... keys) { // WARNING! values come before the keys!
+        addAtIndex(checkedIndex(keys), longValue, doubleValue);
+    }
+
+    /**
+     * Set the values of the cell with keys, replacing whatever was there
+     *
+     * @param longValue the new long value
+     * @param doubleValue the new double value
+     * @param keys keys specifying the cell
+     */
+    public void set(final long longValue, final double doubleValue, final int... keys) { // WARNING! values come before the keys!
+        setAtIndex(checkedIndex(keys), longValue, doubleValue);
+    }
+
+    private int checkedIndex(final int[] keys) {
+        final int index = getIndex(keys);
+        if ( index < 0 )
+            throw new ReviewedGATKException("Keys " + Arrays.toString(keys) + " are out of range for dimensions " + Arrays.toString(dimensions));
+        return index;
+    }
+
+    public long getLongAtIndex(final int index) {
+        return longs != null ? longs[index] : offHeapLongs.get(index);
+    }
+
+    public double getDoubleAtIndex(final int index) {
+        return doubles != null ? doubles[index] : offHeapDoubles.get(index);
+    }
+
+    public void addAtIndex(final int index, final long longValue, final double doubleValue) {
+        if ( longs != null ) {
+            longs[index] += longValue;
+            doubles[index] += doubleValue;
+        } else {
+            offHeapLongs.put(index, offHeapLongs.get(index) + longValue);
+            offHeapDoubles.put(index, offHeapDoubles.get(index) + doubleValue);
+        }
+        leaves.set(index);
+    }
+
+    public void setAtIndex(final int index, final long longValue, final double doubleValue) {
+        if ( longs != null ) {
+            longs[index] = longValue;
+            doubles[index] = doubleValue;
+        } else {
+            offHeapLongs.put(index, longValue);
+            offHeapDoubles.put(index, doubleValue);
+        }
+        leaves.set(index);
+    }
+
+    /**
+     * Add all of the values of other, which must have the same dimensions, into this array
+     *
+     * @param other the array to add into this one
+     */
+    public void addAll(final FlatNestedIntegerArray other) {
+        if ( ! Arrays.equals(dimensions, other.dimensions) )
+            throw new ReviewedGATKException("Cannot add a FlatNestedIntegerArray with dimensions " + Arrays.toString(other.dimensions) + " to one with dimensions " + Arrays.toString(dimensions));
+
+        for ( int index = other.leaves.nextSetBit(0); index >= 0; index = other.leaves.nextSetBit(index + 1) )
+            addAtIndex(index, other.getLongAtIndex(index), other.getDoubleAtIndex(index));
+    }
+
+    /**
+     * @return the number of cells that have been written to
+     */
+    public int getNumLeaves() {
+        return leaves.cardinality();
+    }
+
+    public static class Leaf {
+        public final int[] keys;
+        public final long longValue;
+        public final double doubleValue;
+
+        public Leaf(final int[] keys, final long longValue, final double doubleValue) {
+            this.keys = keys;
+            this.longValue = longValue;
+            this.doubleValue = doubleValue;
+        }
+    }
+
+    /**
+     * Get all of the cells that have been written to, in the same order as NestedIntegerArray.getAllLeaves()
+     * (ascending keys, the first key varying slowest)
+     *
+     * @return a list of leaves, one for each cell written to
+     */
+    public List<Leaf> getAllLeaves() {
+        final List<Leaf> result = new ArrayList<Leaf>(getNumLeaves());
+        for ( int index = leaves.nextSetBit(0); index >= 0; index = leaves.nextSetBit(index + 1) )
+            result.add(new Leaf(getKeys(index), getLongAtIndex(index), getDoubleAtIndex(index)));
+        return result;
+    }
+}
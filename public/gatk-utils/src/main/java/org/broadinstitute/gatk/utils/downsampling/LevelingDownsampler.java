@@ -34,7 +34,7 @@ import java.util.*;
  * the Lists in an even fashion until the total size of all Lists is <= the target size. Leveling
  * does not occur until all Lists have been submitted and signalEndOfInput() is called.
  *
- * The Lists should be LinkedLists for maximum efficiency during item removal, however other
+ * The Lists should be LinkedLists or ArrayLists for maximum efficiency during item removal, however other
  * kinds of Lists are also accepted (albeit at a slight performance penalty).
  *
  * Since this downsampler extends the Downsampler interface rather than the ReadsDownsampler interface,
@@ -55,6 +55,12 @@ public class LevelingDownsampler<T extends List<E>, E> extends Downsampler<T> {
 
     private boolean groupsAreFinalized;
 
+    /**
+     * Work space for choosing the items to keep in a group, reused from group to group
+     */
+    private int[] indexScratch = new int[0];
+    private final BitSet itemsToKeep = new BitSet();
+
     /**
      * Construct a LevelingDownsampler
      *
@@ -153,42 +159,17 @@ public class LevelingDownsampler<T extends List<E>, E> extends Downsampler<T> {
 
     private void levelGroups() {
         final int[] groupSizes = new int[groups.size()];
-        int totalSize = 0;
         int currentGroupIndex = 0;
 
         for ( final T group : groups ) {
             groupSizes[currentGroupIndex] = group.size();
-            totalSize += groupSizes[currentGroupIndex];
             currentGroupIndex++;
         }
 
-        if ( totalSize <= targetSize ) {
+        if ( ! levelGroupSizes(groupSizes, groupSizes.length, targetSize, minElementsPerStack) ) {
             return;    // no need to eliminate any items
         }
 
-        // We will try to remove exactly this many items, however we will refuse to allow any
-        // one group to fall below size 1, and so might end up removing fewer items than this
-        int numItemsToRemove = totalSize - targetSize;
-
-        currentGroupIndex = 0;
-        int numConsecutiveUmodifiableGroups = 0;
-
-        // Continue until we've either removed all the items we wanted to, or we can't
-        // remove any more items without violating the constraint that all groups must
-        // be left with at least one item
-        while ( numItemsToRemove > 0 && numConsecutiveUmodifiableGroups < groupSizes.length ) {
-            if ( groupSizes[currentGroupIndex] > minElementsPerStack ) {
-                groupSizes[currentGroupIndex]--;
-                numItemsToRemove--;
-                numConsecutiveUmodifiableGroups = 0;
-            }
-            else {
-                numConsecutiveUmodifiableGroups++;
-            }
-
-            currentGroupIndex = (currentGroupIndex + 1) % groupSizes.length;
-        }
-
         // Now we actually go through and reduce each group to its new count as specified in groupSizes
         currentGroupIndex = 0;
         for ( final T group : groups ) {
@@ -197,15 +178,88 @@ public class LevelingDownsampler<T extends List<E>, E> extends Downsampler<T> {
         }
     }
 
+    /**
+     * Computes the sizes to which a LevelingDownsampler would reduce groups of the given sizes, for callers that
+     * keep their groups in some other form than Lists.
+     *
+     * @param groupSizes the sizes of the groups, which are replaced by their sizes after leveling
+     * @param numGroups the number of groups, which are the first numGroups entries of groupSizes
+     * @param targetSize the total size to level the groups down to
+     * @param minElementsPerStack no group will be reduced below this size
+     * @return true if any group needs to be reduced, false if the groups already fit within targetSize
+     */
+    public static boolean levelGroupSizes( final int[] groupSizes, final int numGroups, final int targetSize, final int minElementsPerStack ) {
+        int totalSize = 0;
+        int maxGroupSize = 0;
+        for ( int i = 0; i < numGroups; i++ ) {
+            totalSize += groupSizes[i];
+            maxGroupSize = Math.max(maxGroupSize, groupSizes[i]);
+        }
+
+        if ( totalSize <= targetSize ) {
+            return false;
+        }
+
+        // We will try to remove exactly this many items, however we will refuse to allow any
+        // one group to fall below minElementsPerStack, and so might end up removing fewer items than this
+        final int numItemsToRemove = totalSize - targetSize;
+
+        // We remove items one at a time from each group in turn, skipping groups already down to
+        // minElementsPerStack, until we've either removed all the items we wanted to or can't remove any more.
+        // Each complete pass over the groups takes one item from every group still above the minimum, so
+        // rather than stepping through the passes item by item we binary search for the number of complete
+        // passes we can make, and then make the final, partial pass.
+        int lo = 0;
+        int hi = Math.max(0, maxGroupSize - minElementsPerStack);
+        while ( lo < hi ) {
+            final int mid = lo + (hi - lo + 1) / 2;
+            if ( numItemsRemovedByPasses(groupSizes, numGroups, minElementsPerStack, mid) <= numItemsToRemove )
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        int numItemsLeftToRemove = numItemsToRemove - numItemsRemovedByPasses(groupSizes, numGroups, minElementsPerStack, lo);
+        for ( int i = 0; i < numGroups; i++ ) {
+            if ( groupSizes[i] > minElementsPerStack )
+                groupSizes[i] -= Math.min(lo, groupSizes[i] - minElementsPerStack);
+        }
+        for ( int i = 0; i < numGroups && numItemsLeftToRemove > 0; i++ ) {
+            if ( groupSizes[i] > minElementsPerStack ) {
+                groupSizes[i]--;
+                numItemsLeftToRemove--;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * How many items would we remove from groups of groupSizes by making numPasses complete passes over them?
+     *
+     * @param groupSizes the sizes of the groups before leveling
+     * @param numGroups the number of groups in groupSizes
+     * @param minElementsPerStack no group will be reduced below this size
+     * @param numPasses the number of passes, each of which takes one item from every group still above minElementsPerStack
+     * @return the number of items removed
+     */
+    private static int numItemsRemovedByPasses( final int[] groupSizes, final int numGroups, final int minElementsPerStack, final int numPasses ) {
+        int numRemoved = 0;
+        for ( int i = 0; i < numGroups; i++ ) {
+            if ( groupSizes[i] > minElementsPerStack )
+                numRemoved += Math.min(numPasses, groupSizes[i] - minElementsPerStack);
+        }
+        return numRemoved;
+    }
+
     private void downsampleOneGroup( final T group, final int numItemsToKeep ) {
         if ( numItemsToKeep >= group.size() ) {
             return;
         }
 
-        final BitSet itemsToKeep = new BitSet(group.size());
-        for ( Integer selectedIndex : MathUtils.sampleIndicesWithoutReplacement(group.size(), numItemsToKeep) ) {
-            itemsToKeep.set(selectedIndex);
+        if ( indexScratch.length < group.size() ) {
+            indexScratch = new int[group.size()];
         }
+        MathUtils.sampleIndicesWithoutReplacement(group.size(), numItemsToKeep, indexScratch, itemsToKeep);
 
         int currentIndex = 0;
 
@@ -223,7 +277,20 @@ public class LevelingDownsampler<T extends List<E>, E> extends Downsampler<T> {
                 currentIndex++;
             }
         }
-        // If it's not a linked list, it's more efficient to copy the desired items into a new list and back rather
+        // If it's an array-backed list, we can slide the items we keep down over the ones we don't in a
+        // single O(n) pass, and then chop off the end
+        else if ( group instanceof RandomAccess ) {
+            int numKept = 0;
+            for ( ; currentIndex < group.size(); currentIndex++ ) {
+                final E item = group.get(currentIndex);
+                if ( itemsToKeep.get(currentIndex) || doNotDiscardItem(item) ) {
+                    group.set(numKept++, item);
+                }
+            }
+            numDiscardedItems += group.size() - numKept;
+            group.subList(numKept, group.size()).clear();
+        }
+        // Otherwise it's more efficient to copy the desired items into a new list and back rather
         // than suffer O(n^2) of item shifting
         else {
             final List<E> keptItems = new ArrayList<E>(group.size());
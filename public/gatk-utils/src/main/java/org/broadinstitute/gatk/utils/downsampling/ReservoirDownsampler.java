@@ -69,7 +69,7 @@ public class ReservoirDownsampler<T extends SAMRecord> extends ReadsDownsampler<
      * reservoir. These items are returned (and cleared) along with any items in the reservoir in
      * calls to consumeFinalizedItems().
      */
-    private List<T> undiscardableItems;
+    private final List<T> undiscardableItems = new ArrayList<>();
 
     /**
      * Are we currently using a linked list for the reservoir?
@@ -197,8 +197,8 @@ public class ReservoirDownsampler<T extends SAMRecord> extends ReadsDownsampler<
         // if we aren't expecting many overflows, allocate a linked list not an arraylist
         reservoir = expectFewOverflows ? new LinkedList<T>() : new ArrayList<T>(targetSampleSize);
 
-        // there's no possibility of overflow with the undiscardable items, so we always use a linked list for them
-        undiscardableItems = new LinkedList<>();
+        // the undiscardable items are copied out when consumed, so we can hang on to their list
+        undiscardableItems.clear();
 
         // it's a linked list if we allocate one
         isLinkedList = expectFewOverflows;
@@ -0,0 +1,174 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.utils.fragments;
+
+import htsjdk.samtools.SAMRecord;
+import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Pairs up reads with their overlapping mates as the reads enter a stream of pileups, so that the
+ * fragments of each pileup can be found without matching read names at every locus.
+ *
+ * Reads are added in coordinate order as they come into the active set.  Each read that might overlap
+ * its mate gets a Link, shared with its mate once the mate arrives.  Reads whose mates never arrive
+ * while they could still share a pileup are dropped from the index periodically, so its size is bounded
+ * by the number of unpaired reads in flight.
+ *
+ * Not thread-safe.
+ */
+public final class FragmentIndex {
+    private final static int MIN_SWEEP_THRESHOLD = 1024;
+
+    /**
+     * Links of reads still waiting for their mates, by read name
+     */
+    private final Map<String, Link> unpairedLinks = new HashMap<String, Link>();
+
+    /**
+     * Sweep out stale unpaired links once there are this many of them
+     */
+    private int sweepThreshold = MIN_SWEEP_THRESHOLD;
+
+    /**
+     * The connection between the two reads of a fragment that might overlap each other
+     *
+     * Also records where each of the reads was placed in the last pileup built over them, so that
+     * a pileup builder can find each element's mate in one pass over its elements.
+     */
+    public static final class Link {
+        private final GATKSAMRecord first;
+        private GATKSAMRecord second = null;
+
+        private int generation = -1;
+        private int firstElement = -1;
+        private int secondElement = -1;
+
+        private Link(final GATKSAMRecord first) {
+            this.first = first;
+        }
+
+        /**
+         * @return true if both reads of the fragment have been seen
+         */
+        public boolean isPaired() {
+            return second != null;
+        }
+
+        /**
+         * Record that read, one of the reads of this link, is element of the pileup built in generation
+         *
+         * @param read one of the two reads of this link
+         * @param element the index of read's element in the pileup
+         * @param generation the generation of the pileup being built, which must differ from that of the last pileup
+         */
+        public void setElement(final GATKSAMRecord read, final int element, final int generation) {
+            if ( this.generation != generation ) {
+                this.generation = generation;
+                firstElement = secondElement = -1;
+            }
+            if ( read == first )
+                firstElement = element;
+            else
+                secondElement = element;
+        }
+
+        /**
+         * Get the element of read's mate in the pileup built in generation
+         *
+         * @param read one of the two reads of this link
+         * @param generation the generation of the pileup being built
+         * @return the index of the mate's element, or -1 if the mate isn't in the pileup
+         */
+        public int getMateElement(final GATKSAMRecord read, final int generation) {
+            if ( this.generation != generation )
+                return -1;
+            return read == first ? secondElement : firstElement;
+        }
+    }
+
+    /**
+     * Might read overlap its mate?
+     *
+     * @param read a read
+     * @return false if we know read doesn't overlap its mate, or doesn't have one
+     */
+    public static boolean mightOverlapMate(final SAMRecord read) {
+        final int mateStart = read.getMateAlignmentStart();
+        return mateStart != 0 && mateStart <= read.getAlignmentEnd();
+    }
+
+    /**
+     * Add the next read, in coordinate order, to this index
+     *
+     * @param read the read entering the active set
+     * @return the link between read and its mate, or null if read can't overlap its mate
+     */
+    public Link add(final GATKSAMRecord read) {
+        if ( ! mightOverlapMate(read) )
+            return null;
+
+        final String readName = read.getReadName();
+        final Link mateLink = unpairedLinks.remove(readName);
+        if ( mateLink != null ) {
+            // assumes we have at most 2 reads per fragment
+            mateLink.second = read;
+            return mateLink;
+        }
+
+        if ( unpairedLinks.size() >= sweepThreshold )
+            sweep(read);
+
+        final Link link = new Link(read);
+        unpairedLinks.put(readName, link);
+        return link;
+    }
+
+    /**
+     * @return the number of reads waiting for their mates
+     */
+    public int getNumUnpaired() {
+        return unpairedLinks.size();
+    }
+
+    /**
+     * Drop the unpaired reads that end before read starts, as no later read can share a pileup with them
+     *
+     * @param read the read being added
+     */
+    private void sweep(final GATKSAMRecord read) {
+        final Iterator<Link> it = unpairedLinks.values().iterator();
+        while ( it.hasNext() ) {
+            final GATKSAMRecord unpaired = it.next().first;
+            if ( ! unpaired.getReferenceIndex().equals(read.getReferenceIndex()) || unpaired.getAlignmentEnd() < read.getAlignmentStart() )
+                it.remove();
+        }
+        sweepThreshold = Math.max(MIN_SWEEP_THRESHOLD, 2 * unpairedLinks.size());
+    }
+}
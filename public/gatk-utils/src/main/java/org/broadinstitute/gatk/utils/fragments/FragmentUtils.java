@@ -195,6 +195,43 @@ public final class FragmentUtils {
         return create(reads, reads.size(), SamRecordGetter);
     }
 
+    /**
+     * Create a FragmentCollection from objects whose overlapping mates are already known, such as the
+     * elements of a pileup built with a FragmentIndex
+     *
+     * Unlike the name-based create() methods, which put the reads whose mates never showed up after all the
+     * others in hash order, this returns every singleton in the order of readContainingObjects.
+     *
+     * @param readContainingObjects the objects to split into fragments
+     * @param mates mates[i] is the index in readContainingObjects of the overlapping mate of object i, or -1 if it
+     *              has none there
+     * @param <T>
+     * @return a fragment collection
+     */
+    @Requires({
+            "readContainingObjects != null",
+            "mates != null",
+            "mates.length == readContainingObjects.size()"
+    })
+    @Ensures("result != null")
+    public static <T> FragmentCollection<T> create(final List<T> readContainingObjects, final int[] mates) {
+        Collection<T> singletons = null;
+        Collection<List<T>> overlapping = null;
+
+        for ( int i = 0; i < mates.length; i++ ) {
+            if ( mates[i] < 0 ) {
+                if ( singletons == null ) singletons = new ArrayList<T>(mates.length); // lazy init
+                singletons.add(readContainingObjects.get(i));
+            } else if ( mates[i] < i ) {
+                // the pair is added when we reach its second object
+                if ( overlapping == null ) overlapping = new ArrayList<List<T>>(); // lazy init
+                overlapping.add(Arrays.asList(readContainingObjects.get(mates[i]), readContainingObjects.get(i)));
+            }
+        }
+
+        return new FragmentCollection<T>(singletons, overlapping);
+    }
+
     public static void adjustQualsOfOverlappingPairedFragments( final List<GATKSAMRecord> overlappingPair ) {
         if( overlappingPair.size() != 2 ) { throw new ReviewedGATKException("Found overlapping pair with " + overlappingPair.size() + " reads, but expecting exactly 2."); }
 
@@ -95,6 +95,28 @@ public class AlignmentStateMachine {
         initializeAsLeftEdge();
     }
 
+    /**
+     * Create a machine in an arbitrary state, such as one copied from the arrays of a PerSampleReadStateManager
+     *
+     * @param read the read being aligned
+     * @param currentElement the current cigar element, or null on an edge
+     * @param currentCigarElementOffset see getCurrentCigarElementOffset()
+     * @param offsetIntoCurrentCigarElement see getOffsetIntoCurrentCigarElement()
+     * @param readOffset see getReadOffset()
+     * @param genomeOffset see getGenomeOffset()
+     */
+    AlignmentStateMachine(final GATKSAMRecord read, final CigarElement currentElement, final int currentCigarElementOffset,
+                          final int offsetIntoCurrentCigarElement, final int readOffset, final int genomeOffset) {
+        this.read = read;
+        this.cigar = read.getCigar();
+        this.nCigarElements = cigar.numCigarElements();
+        this.currentElement = currentElement;
+        this.currentCigarElementOffset = currentCigarElementOffset;
+        this.offsetIntoCurrentCigarElement = offsetIntoCurrentCigarElement;
+        this.readOffset = readOffset;
+        this.genomeOffset = genomeOffset;
+    }
+
     /**
      * Initialize the state variables to put this machine one bp before the
      * start of the alignment, so that a call to stepForwardOnGenome() will advance
@@ -278,6 +300,8 @@ public class AlignmentStateMachine {
      */
     @Ensures("result != null || isRightEdge()")
     public CigarOperator stepForwardOnGenome() {
+        // NOTE: PerSampleReadStateManager.stepForwardOnGenome() replicates this logic over its state arrays;
+        // changes here must be made there as well.
         // loop until we either find a cigar element step that moves us one base on the genome, or we run
         // out of cigar elements
         while ( true ) {
@@ -38,12 +38,15 @@ import org.broadinstitute.gatk.utils.sam.GATKSAMRecordIterator;
 import org.broadinstitute.gatk.utils.GenomeLoc;
 import org.broadinstitute.gatk.utils.GenomeLocParser;
 import org.broadinstitute.gatk.utils.downsampling.DownsamplingMethod;
+import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
 import org.broadinstitute.gatk.utils.pileup.PileupElement;
-import org.broadinstitute.gatk.utils.pileup.ReadBackedPileupImpl;
+import org.broadinstitute.gatk.utils.pileup2.ColumnarPileupBuilder;
 import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
 import org.broadinstitute.gatk.utils.sam.ReadUtils;
+import org.broadinstitute.gatk.utils.threading.NamedThreadFactory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Iterator that traverses a SAM File, accumulating information on a per-locus basis
@@ -69,6 +72,11 @@ import java.util.*;
  * -- LIBS can optionally capture all of the reads that come off the iterator, before any leveling downsampling
  * occurs, if requested.  This allows users of LIBS to see both a ReadBackedPileup view of the data as well as
  * a stream of unique, sorted reads
+ * -- LIBS can optionally assemble the pileups of different samples on a small pool of threads.  Samples are split
+ * into contiguous partitions in sample order and the partitions' pileups are stitched back together in that same
+ * order, so the resulting pileups are identical to those built on a single thread.  Each dispatch to the threads
+ * covers every locus up to the start of the next read, and loci with too few read states to be worth splitting
+ * are assembled on the calling thread.
  */
 public final class LocusIteratorByState extends LocusIterator {
     /** Indicates that we shouldn't do any downsampling */
@@ -114,6 +122,49 @@ public final class LocusIteratorByState extends LocusIterator {
      */
     private AlignmentContext nextAlignmentContext;
 
+    /**
+     * Accumulates the columnar pileup of each locus; reused from locus to locus.
+     */
+    private final ColumnarPileupBuilder pileupBuilder = new ColumnarPileupBuilder();
+
+    /**
+     * Number of threads across which the samples of each locus are partitioned; 1 means all of the pileup is
+     * assembled on the calling thread.
+     */
+    private final int nSampleThreads;
+
+    /**
+     * Partitions of the samples, each advancing and assembling its samples' states independently of the others.
+     * Created lazily, only once there are enough samples with reads to be worth splitting.
+     */
+    private List<SamplePartition> samplePartitions = null;
+
+    /**
+     * Runs all but the first sample partition; the first is always run on the calling thread.
+     */
+    private ExecutorService samplePartitionExecutor = null;
+
+    /**
+     * The futures of the sample partitions being run by samplePartitionExecutor; reused from batch to batch.
+     */
+    private final List<Future<Integer>> samplePartitionFutures = new ArrayList<Future<Integer>>();
+
+    /**
+     * Alignment contexts assembled by the sample partitions but not yet handed out, in locus order
+     */
+    private final LinkedList<AlignmentContext> partitionedAlignmentContexts = new LinkedList<AlignmentContext>();
+
+    /**
+     * The most loci the sample partitions assemble per dispatch; bounds the pileups each partition holds at once.
+     */
+    private static final int MAX_LOCI_PER_SAMPLE_PARTITION_BATCH = 100;
+
+    /**
+     * Splitting the samples only pays for the hand-off to the threads when each thread has at least this many
+     * read states to step at every locus.  Not final so that tests can exercise the threads with small data.
+     */
+    int minReadStatesPerSampleThread = 1000;
+
     // -----------------------------------------------------------------------------------------------------------------
     //
     // constructors and other basic operations
@@ -140,12 +191,40 @@ public final class LocusIteratorByState extends LocusIterator {
                                 final boolean keepUniqueReadListInLIBS,
                                 final GenomeLocParser genomeLocParser,
                                 final Collection<String> samples) {
+        this(samIterator, downsamplingMethod, includeReadsWithDeletionAtLoci, keepUniqueReadListInLIBS,
+                genomeLocParser, samples, 1);
+    }
+
+    /**
+     * Create a new LocusIteratorByState
+     *
+     * @param samIterator the iterator of reads to process into pileups.  Reads must be ordered
+     *                    according to standard coordinate-sorted BAM conventions
+     * @param downsamplingMethod information about how to downsample the reads
+     * @param includeReadsWithDeletionAtLoci Include reads with deletion at loci
+     * @param keepUniqueReadListInLIBS Keep unique read list in LIBS
+     * @param genomeLocParser used to create genome locs
+     * @param samples a complete list of samples present in the read groups for the reads coming from samIterator.
+     *                This is generally just the set of read group sample fields in the SAMFileHeader.  This
+     *                list of samples may contain a null element, and all reads without read groups will
+     *                be mapped to this null sample
+     * @param nSampleThreads number of threads across which to partition the samples when assembling each pileup;
+     *                       1 assembles every pileup on the calling thread
+     */
+    public LocusIteratorByState(final Iterator<GATKSAMRecord> samIterator,
+                                final DownsamplingMethod downsamplingMethod,
+                                final boolean includeReadsWithDeletionAtLoci,
+                                final boolean keepUniqueReadListInLIBS,
+                                final GenomeLocParser genomeLocParser,
+                                final Collection<String> samples,
+                                final int nSampleThreads) {
         this(samIterator,
                 toDownsamplingInfo(downsamplingMethod),
                 includeReadsWithDeletionAtLoci,
                 genomeLocParser,
                 samples,
-                keepUniqueReadListInLIBS);
+                keepUniqueReadListInLIBS,
+                nSampleThreads);
     }
 
     /**
@@ -187,10 +266,67 @@ public final class LocusIteratorByState extends LocusIterator {
                                 final GenomeLocParser genomeLocParser,
                                 final Collection<String> samples,
                                 final boolean maintainUniqueReadsList) {
+        this(samIterator, downsamplingInfo, includeReadsWithDeletionAtLoci, genomeLocParser, samples, maintainUniqueReadsList, 1);
+    }
+
+    /**
+     * Create a new LocusIteratorByState
+     *
+     * @param samIterator the iterator of reads to process into pileups.  Reads must be ordered
+     *                    according to standard coordinate-sorted BAM conventions
+     * @param downsamplingInfo meta-information about how to downsampling the reads
+     * @param genomeLocParser used to create genome locs
+     * @param samples a complete list of samples present in the read groups for the reads coming from samIterator.
+     *                This is generally just the set of read group sample fields in the SAMFileHeader.  This
+     *                list of samples may contain a null element, and all reads without read groups will
+     *                be mapped to this null sample
+     * @param maintainUniqueReadsList if true, we will keep the unique reads from off the samIterator and make them
+     *                                available via the transferReadsFromAllPreviousPileups interface
+     * @param nSampleThreads number of threads across which to partition the samples when assembling each pileup;
+     *                       1 assembles every pileup on the calling thread
+     */
+    public LocusIteratorByState(final Iterator<GATKSAMRecord> samIterator,
+                                final LIBSDownsamplingInfo downsamplingInfo,
+                                final boolean includeReadsWithDeletionAtLoci,
+                                final GenomeLocParser genomeLocParser,
+                                final Collection<String> samples,
+                                final boolean maintainUniqueReadsList,
+                                final int nSampleThreads) {
+        this(samIterator, downsamplingInfo, includeReadsWithDeletionAtLoci, genomeLocParser, samples, maintainUniqueReadsList, nSampleThreads, false);
+    }
+
+    /**
+     * Create a new LocusIteratorByState
+     *
+     * @param samIterator the iterator of reads to process into pileups.  Reads must be ordered
+     *                    according to standard coordinate-sorted BAM conventions
+     * @param downsamplingInfo meta-information about how to downsampling the reads
+     * @param genomeLocParser used to create genome locs
+     * @param samples a complete list of samples present in the read groups for the reads coming from samIterator.
+     *                This is generally just the set of read group sample fields in the SAMFileHeader.  This
+     *                list of samples may contain a null element, and all reads without read groups will
+     *                be mapped to this null sample
+     * @param maintainUniqueReadsList if true, we will keep the unique reads from off the samIterator and make them
+     *                                available via the transferReadsFromAllPreviousPileups interface
+     * @param nSampleThreads number of threads across which to partition the samples when assembling each pileup;
+     *                       1 assembles every pileup on the calling thread
+     * @param trackFragments if true, pair each read with its overlapping mate as it arrives, so that toFragments()
+     *                       on our pileups doesn't have to match read names.  Costs a lookup per read and a pass
+     *                       per pileup, so only worth it if most pileups will be split into fragments.
+     */
+    public LocusIteratorByState(final Iterator<GATKSAMRecord> samIterator,
+                                final LIBSDownsamplingInfo downsamplingInfo,
+                                final boolean includeReadsWithDeletionAtLoci,
+                                final GenomeLocParser genomeLocParser,
+                                final Collection<String> samples,
+                                final boolean maintainUniqueReadsList,
+                                final int nSampleThreads,
+                                final boolean trackFragments) {
         if ( samIterator == null ) throw new IllegalArgumentException("samIterator cannot be null");
         if ( downsamplingInfo == null ) throw new IllegalArgumentException("downsamplingInfo cannot be null");
         if ( genomeLocParser == null ) throw new IllegalArgumentException("genomeLocParser cannot be null");
         if ( samples == null ) throw new IllegalArgumentException("Samples cannot be null");
+        if ( nSampleThreads < 1 ) throw new IllegalArgumentException("nSampleThreads must be at least 1 but got " + nSampleThreads);
 
         // currently the GATK expects this LocusIteratorByState to accept empty sample lists, when
         // there's no read data.  So we need to throw this error only when samIterator.hasNext() is true
@@ -201,7 +337,19 @@ public final class LocusIteratorByState extends LocusIterator {
         this.genomeLocParser = genomeLocParser;
         this.includeReadsWithDeletionAtLoci = includeReadsWithDeletionAtLoci;
         this.samples = new ArrayList<String>(samples);
-        this.readStates = new ReadStateManager(samIterator, this.samples, downsamplingInfo, maintainUniqueReadsList);
+        this.readStates = new ReadStateManager(samIterator, this.samples, downsamplingInfo, maintainUniqueReadsList, trackFragments);
+        this.nSampleThreads = nSampleThreads;
+    }
+
+    /**
+     * Releases the threads used to assemble pileups in parallel, if any
+     */
+    @Override
+    public void close() {
+        if ( samplePartitionExecutor != null ) {
+            samplePartitionExecutor.shutdownNow();
+            samplePartitionExecutor = null;
+        }
     }
 
     @Override
@@ -218,7 +366,7 @@ public final class LocusIteratorByState extends LocusIterator {
      * @return the location of the current pileup, or null if we're after all reads
      */
     private GenomeLoc getLocation() {
-        return readStates.isEmpty() ? null : readStates.getFirst().getLocation(genomeLocParser);
+        return readStates.isEmpty() ? null : genomeLocParser.createGenomeLoc(readStates.getFirstRead().getReferenceName(), readStates.getFirstGenomePosition());
     }
 
     // -----------------------------------------------------------------------------------------------------------------
@@ -291,43 +439,239 @@ public final class LocusIteratorByState extends LocusIterator {
      * next entry.
      */
     private void lazyLoadNextAlignmentContext() {
-        while (nextAlignmentContext == null && readStates.hasNext()) {
+        while (nextAlignmentContext == null && (! partitionedAlignmentContexts.isEmpty() || readStates.hasNext())) {
+            if ( ! partitionedAlignmentContexts.isEmpty() ) {
+                nextAlignmentContext = partitionedAlignmentContexts.removeFirst();
+                continue;
+            }
+
             readStates.collectPendingReads();
 
             final GenomeLoc location = getLocation();
-            final Map<String, ReadBackedPileupImpl> fullPileup = new HashMap<String, ReadBackedPileupImpl>();
-
-            for (final Map.Entry<String, PerSampleReadStateManager> sampleStatePair : readStates ) {
-                final String sample = sampleStatePair.getKey();
-                final PerSampleReadStateManager readState = sampleStatePair.getValue();
-                final Iterator<AlignmentStateMachine> iterator = readState.iterator();
-                final List<PileupElement> pile = new ArrayList<PileupElement>(readState.size());
-
-                while (iterator.hasNext()) {
-                    // state object with the read/offset information
-                    final AlignmentStateMachine state = iterator.next();
-                    final GATKSAMRecord read = state.getRead();
-                    final CigarOperator op = state.getCigarOperator();
-
-                    if (op == CigarOperator.N) // N's are never added to any pileup
-                        continue;
-
-                    if (!dontIncludeReadInPileup(read, location.getStart())) {
-                        if ( ! includeReadsWithDeletionAtLoci && op == CigarOperator.D ) {
-                            continue;
-                        }
-
-                        pile.add(state.makePileupElement());
-                    }
-                }
 
-                if (! pile.isEmpty() ) // if this pileup added at least one base, add it to the full pileup
-                    fullPileup.put(sample, new ReadBackedPileupImpl(location, pile));
+            if ( usePartitionedSamples() ) {
+                assemblePartitionedPileups(location);
+                continue;
             }
 
+            if ( location != null ) {
+                for (final Map.Entry<String, PerSampleReadStateManager> sampleStatePair : readStates )
+                    addSampleToPileup(pileupBuilder, sampleStatePair.getKey(), sampleStatePair.getValue(), location.getStart());
+            }
             readStates.updateReadStates(); // critical - must be called after we get the current state offsets and location
-            if (!fullPileup.isEmpty()) // if we got reads with non-D/N over the current position, we are done
-                nextAlignmentContext = new AlignmentContext(location, new ReadBackedPileupImpl(location, fullPileup), false);
+
+            if (!pileupBuilder.isEmpty()) // if we got reads with non-D/N over the current position, we are done
+                nextAlignmentContext = new AlignmentContext(location, pileupBuilder.build(location), false);
+            else
+                pileupBuilder.reset();
+        }
+    }
+
+    /**
+     * Adds the pileup elements of one sample's read states at location to builder
+     *
+     * Touches only the given builder and per-sample manager, so samples may be added concurrently to
+     * different builders.
+     *
+     * @param builder the builder to add the sample's elements to
+     * @param sample the name of the sample
+     * @param readState the read states of sample, positioned over position
+     * @param position the position on the genome of the pileup
+     */
+    private void addSampleToPileup(final ColumnarPileupBuilder builder, final String sample,
+                                   final PerSampleReadStateManager readState, final int position) {
+        final int nStates = readState.size();
+        builder.startSample(sample);
+
+        for (int i = 0; i < nStates; i++) {
+            // the read/offset information of the i-th read state
+            final GATKSAMRecord read = readState.getRead(i);
+            final CigarOperator op = readState.getCigarOperator(i);
+
+            if (op == CigarOperator.N) // N's are never added to any pileup
+                continue;
+
+            if (!dontIncludeReadInPileup(read, position)) {
+                if ( ! includeReadsWithDeletionAtLoci && op == CigarOperator.D ) {
+                    continue;
+                }
+
+                builder.add(read, readState.getReadOffset(i), readState.getCurrentCigarElement(i),
+                        readState.getCurrentCigarElementOffset(i), readState.getOffsetIntoCurrentCigarElement(i),
+                        readState.getFragmentLink(i));
+            }
+        }
+    }
+
+    /**
+     * Should the samples at the current locus be split across threads?
+     *
+     * Splitting only pays off when each thread gets a few samples' and enough read states' worth of work, so
+     * we stick with the sequential path unless there are at least two samples and minReadStatesPerSampleThread
+     * read states per thread.
+     *
+     * @return true if the pileups should be assembled by assemblePartitionedPileups
+     */
+    private boolean usePartitionedSamples() {
+        return nSampleThreads > 1 && samples.size() >= 2 * nSampleThreads
+                && ! readStates.isEmpty() && readStates.size() >= (long)minReadStatesPerSampleThread * nSampleThreads;
+    }
+
+    /**
+     * Assembles the pileups from location up to the start of the next read, and advances the read states past
+     * them, by running each sample partition concurrently
+     *
+     * No reads are collected until the next read's start, so the read states step through those loci
+     * without any input from the calling thread and each partition can assemble all of them in one go.
+     * The partitions' builders are appended to pileupBuilder in partition order, which is sample order, so
+     * the resulting contexts, queued in partitionedAlignmentContexts, are exactly what the sequential path
+     * would have built.
+     *
+     * @param location the first locus to assemble
+     */
+    private void assemblePartitionedPileups(final GenomeLoc location) {
+        if ( samplePartitions == null )
+            initializeSamplePartitions();
+
+        final int nLoci = lociBeforeNextRead(location);
+
+        samplePartitionFutures.clear();
+        for ( final SamplePartition partition : samplePartitions.subList(1, samplePartitions.size()) ) {
+            partition.setLoci(location.getStart(), nLoci);
+            samplePartitionFutures.add(samplePartitionExecutor.submit(partition));
+        }
+
+        final SamplePartition first = samplePartitions.get(0);
+        first.setLoci(location.getStart(), nLoci);
+        int nStatesRemoved = first.call();
+
+        try {
+            for ( final Future<Integer> future : samplePartitionFutures )
+                nStatesRemoved += future.get();
+        } catch ( InterruptedException e ) {
+            throw new ReviewedGATKException("Interrupted while assembling pileups at " + location, e);
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException )
+                throw (RuntimeException)e.getCause();
+            throw new ReviewedGATKException("Failed to assemble pileups at " + location, e.getCause());
+        } finally {
+            samplePartitionFutures.clear();
+        }
+
+        for ( int i = 0; i < nLoci; i++ ) {
+            for ( final SamplePartition partition : samplePartitions )
+                pileupBuilder.append(partition.getBuilder(i));
+
+            if ( pileupBuilder.isEmpty() ) {
+                pileupBuilder.reset();
+                continue;
+            }
+
+            final GenomeLoc locus = i == 0 ? location : genomeLocParser.createGenomeLoc(location.getContig(), location.getStart() + i);
+            partitionedAlignmentContexts.add(new AlignmentContext(locus, pileupBuilder.build(locus), false));
+        }
+        readStates.readStatesUpdatedBySample(nStatesRemoved);
+    }
+
+    /**
+     * How many loci, starting at location, can be assembled before the next read has to be collected?
+     *
+     * @param location the locus the read states are positioned over
+     * @return the number of loci, between 1 and MAX_LOCI_PER_SAMPLE_PARTITION_BATCH
+     */
+    private int lociBeforeNextRead(final GenomeLoc location) {
+        final GATKSAMRecord nextRead = readStates.peekNextRead();
+        if ( nextRead == null || nextRead.getReferenceIndex() != location.getContigIndex() )
+            return MAX_LOCI_PER_SAMPLE_PARTITION_BATCH;
+        return Math.max(1, Math.min(nextRead.getAlignmentStart() - location.getStart(), MAX_LOCI_PER_SAMPLE_PARTITION_BATCH));
+    }
+
+    /**
+     * Splits the samples, in sample order, into nSampleThreads contiguous partitions of near equal size, and
+     * starts the threads that run them
+     */
+    private void initializeSamplePartitions() {
+        final List<Map.Entry<String, PerSampleReadStateManager>> entries = new ArrayList<Map.Entry<String, PerSampleReadStateManager>>();
+        for ( final Map.Entry<String, PerSampleReadStateManager> sampleStatePair : readStates )
+            entries.add(sampleStatePair);
+
+        samplePartitions = new ArrayList<SamplePartition>(nSampleThreads);
+        for ( int i = 0; i < nSampleThreads; i++ ) {
+            final int start = (int)((long)i * entries.size() / nSampleThreads);
+            final int stop = (int)((long)(i + 1) * entries.size() / nSampleThreads);
+            samplePartitions.add(new SamplePartition(entries.subList(start, stop)));
+        }
+
+        final ThreadFactory threadFactory = new NamedThreadFactory("LIBS-sample-thread-%d");
+        samplePartitionExecutor = Executors.newFixedThreadPool(nSampleThreads - 1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                // never hold up the JVM if a client forgets to close us
+                final Thread thread = threadFactory.newThread(r);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * A contiguous run of samples whose pileup elements at a run of loci are gathered into private builders,
+     * one per locus, advancing the samples' read states past each locus in turn
+     */
+    private final class SamplePartition implements Callable<Integer> {
+        private final String[] sampleNames;
+        private final PerSampleReadStateManager[] managers;
+        private final List<ColumnarPileupBuilder> builders = new ArrayList<ColumnarPileupBuilder>();
+        private int firstPosition;
+        private int nLoci;
+
+        private SamplePartition(final List<Map.Entry<String, PerSampleReadStateManager>> entries) {
+            sampleNames = new String[entries.size()];
+            managers = new PerSampleReadStateManager[entries.size()];
+            for ( int i = 0; i < entries.size(); i++ ) {
+                sampleNames[i] = entries.get(i).getKey();
+                managers[i] = entries.get(i).getValue();
+            }
+        }
+
+        private void setLoci(final int firstPosition, final int nLoci) {
+            this.firstPosition = firstPosition;
+            this.nLoci = nLoci;
+            while ( builders.size() < nLoci )
+                builders.add(new ColumnarPileupBuilder());
+        }
+
+        /**
+         * @param i the index of the locus, counting from the first one assembled by the last call()
+         * @return the builder holding this partition's elements at locus i, empty if there are none
+         */
+        private ColumnarPileupBuilder getBuilder(final int i) {
+            return builders.get(i);
+        }
+
+        /**
+         * @return the number of read states removed from this partition's samples
+         */
+        @Override
+        public Integer call() {
+            int nStatesRemoved = 0;
+            for ( int locus = 0; locus < nLoci && hasReadStates(); locus++ ) {
+                final ColumnarPileupBuilder builder = builders.get(locus);
+                for ( int i = 0; i < managers.length; i++ )
+                    addSampleToPileup(builder, sampleNames[i], managers[i], firstPosition + locus);
+
+                for ( final PerSampleReadStateManager manager : managers )
+                    nStatesRemoved += manager.updateReadStates();
+            }
+            return nStatesRemoved;
+        }
+
+        private boolean hasReadStates() {
+            for ( final PerSampleReadStateManager manager : managers ) {
+                if ( ! manager.isEmpty() )
+                    return true;
+            }
+            return false;
         }
     }
 
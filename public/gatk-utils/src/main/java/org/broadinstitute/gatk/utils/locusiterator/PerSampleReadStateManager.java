@@ -28,18 +28,29 @@ package org.broadinstitute.gatk.utils.locusiterator;
 import com.google.java.contract.Ensures;
 import com.google.java.contract.Invariant;
 import com.google.java.contract.Requires;
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
 import org.apache.log4j.Logger;
-import org.broadinstitute.gatk.utils.downsampling.Downsampler;
+import org.broadinstitute.gatk.utils.MathUtils;
 import org.broadinstitute.gatk.utils.downsampling.LevelingDownsampler;
+import org.broadinstitute.gatk.utils.exceptions.UserException;
+import org.broadinstitute.gatk.utils.fragments.FragmentIndex;
+import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 /**
  * ReadStateManager for a single sample
  *
+ * The alignment state of each active read is kept in a set of parallel primitive arrays (a struct of arrays),
+ * in the order of the reads' alignment starts.  Reads are appended as LocusIteratorByState reaches their
+ * alignment start, and the survivors are compacted towards the front in a single pass as reads step off the
+ * genome or are downsampled away, so stepping every read forward at each locus allocates nothing.  The stepping itself mirrors
+ * AlignmentStateMachine.stepForwardOnGenome() exactly; AlignmentStateMachine remains the reference model
+ * for a single read, and is used here only at the boundaries of this class, for callers that want states as
+ * objects.
+ *
  * User: depristo
  * Date: 1/13/13
  * Time: 12:28 PM
@@ -55,17 +66,41 @@ final class PerSampleReadStateManager implements Iterable<AlignmentStateMachine>
     private final static Logger logger = Logger.getLogger(ReadStateManager.class);
     private final static boolean CAPTURE_DOWNSAMPLING_STATS = false;
 
+    private final static int INITIAL_CAPACITY = 64;
+
+    // -----------------------------------------------------------------------------------------------
+    //
+    // Read states, one slot per active read.  The state of the i-th read in alignment start order
+    // is in slot i of each array.
+    //
+    // -----------------------------------------------------------------------------------------------
+
+    private GATKSAMRecord[] reads;
+    private Cigar[] cigars;
+    private int[] nCigarElements;
+    private CigarElement[] currentElements;
+    private int[] currentCigarElementOffsets;
+    private int[] offsetsIntoCurrentCigarElement;
+    private int[] readOffsets;
+    private int[] genomeOffsets;
+    private FragmentIndex.Link[] fragmentLinks;
+
+    private int size = 0;
+
     /**
-     * A list (potentially empty) of alignment state machines.
-     *
-     * The state machines must be ordered by the alignment start of their underlying reads, with the
-     * lowest alignment starts on the left, and the largest on the right
+     * The coverage to downsample to, or -1 if we aren't downsampling
      */
-    private LinkedList<AlignmentStateMachine> readStatesByAlignmentStart = new LinkedList<AlignmentStateMachine>();
-
-    private final Downsampler<LinkedList<AlignmentStateMachine>> levelingDownsampler;
     private final int downsamplingTarget;
 
+    /**
+     * Work space for leveling, reused from site to site: the sizes of the stacks of states sharing a genome
+     * offset before and after leveling, and the states chosen to survive within a stack
+     */
+    private int[] stackSizes = new int[0];
+    private int[] leveledStackSizes = new int[0];
+    private int[] indexScratch = new int[0];
+    private final BitSet statesToKeep = new BitSet();
+
     /**
      * The number of sites where downsampling has been invoked
      */
@@ -76,55 +111,105 @@ final class PerSampleReadStateManager implements Iterable<AlignmentStateMachine>
      */
     private int nSites = 0;
 
+    /**
+     * Links the reads entering this manager to their mates, or null if we aren't tracking fragments
+     */
+    private final FragmentIndex fragmentIndex;
+
     /**
      * Create a new PerSampleReadStateManager with downsampling parameters as requested by LIBSDownsamplingInfo
      * @param LIBSDownsamplingInfo the downsampling params we want to use
      */
     public PerSampleReadStateManager(final LIBSDownsamplingInfo LIBSDownsamplingInfo) {
+        this(LIBSDownsamplingInfo, null);
+    }
+
+    /**
+     * Create a new PerSampleReadStateManager with downsampling parameters as requested by LIBSDownsamplingInfo
+     * @param LIBSDownsamplingInfo the downsampling params we want to use
+     * @param fragmentIndex index to add our reads to as they arrive, so their mates can be found, or null if
+     *                      we don't track fragments.  May be shared with the managers of other samples.
+     */
+    public PerSampleReadStateManager(final LIBSDownsamplingInfo LIBSDownsamplingInfo, final FragmentIndex fragmentIndex) {
+        this.fragmentIndex = fragmentIndex;
         this.downsamplingTarget = LIBSDownsamplingInfo.isPerformDownsampling() ? LIBSDownsamplingInfo.getToCoverage() : -1;
-        this.levelingDownsampler = LIBSDownsamplingInfo.isPerformDownsampling()
-                ? new LevelingDownsampler<LinkedList<AlignmentStateMachine>, AlignmentStateMachine>(LIBSDownsamplingInfo.getToCoverage())
-                : null;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(final int capacity) {
+        reads = new GATKSAMRecord[capacity];
+        cigars = new Cigar[capacity];
+        nCigarElements = new int[capacity];
+        currentElements = new CigarElement[capacity];
+        currentCigarElementOffsets = new int[capacity];
+        offsetsIntoCurrentCigarElement = new int[capacity];
+        readOffsets = new int[capacity];
+        genomeOffsets = new int[capacity];
+        fragmentLinks = new FragmentIndex.Link[capacity];
     }
 
     /**
-     * Group the underlying readStatesByAlignmentStart into a list of list of alignment state machines,
-     * where each list contains machines with a unique genome site.  The outer list is ordered
-     * by alignment start.
-     *
-     * For example, if the flat list has alignment starts [10, 10, 11, 12, 12, 13] then
-     * the resulting grouping will be [[10, 10], [11], [12, 12], [13]].
-     *
-     * @return a non-null list of lists
+     * Doubles the capacity of the state arrays
      */
-    @Ensures("result != null")
-    private List<LinkedList<AlignmentStateMachine>> groupByAlignmentStart() {
-        final LinkedList<LinkedList<AlignmentStateMachine>> grouped = new LinkedList<LinkedList<AlignmentStateMachine>>();
-
-        AlignmentStateMachine last = null;
-        for ( final AlignmentStateMachine stateMachine : readStatesByAlignmentStart ) {
-            if ( last == null || stateMachine.getGenomeOffset() != last.getGenomeOffset() ) {
-                // we've advanced to a place where the state machine has a different state,
-                // so start a new list
-                grouped.add(new LinkedList<AlignmentStateMachine>());
-                last = stateMachine;
-            }
-            grouped.getLast().add(stateMachine);
-        }
+    private void grow() {
+        final GATKSAMRecord[] oldReads = reads;
+        final Cigar[] oldCigars = cigars;
+        final int[] oldNCigarElements = nCigarElements;
+        final CigarElement[] oldCurrentElements = currentElements;
+        final int[] oldCurrentCigarElementOffsets = currentCigarElementOffsets;
+        final int[] oldOffsetsIntoCurrentCigarElement = offsetsIntoCurrentCigarElement;
+        final int[] oldReadOffsets = readOffsets;
+        final int[] oldGenomeOffsets = genomeOffsets;
+        final FragmentIndex.Link[] oldFragmentLinks = fragmentLinks;
 
-        return grouped;
+        allocate(2 * reads.length);
+        System.arraycopy(oldReads, 0, reads, 0, size);
+        System.arraycopy(oldCigars, 0, cigars, 0, size);
+        System.arraycopy(oldNCigarElements, 0, nCigarElements, 0, size);
+        System.arraycopy(oldCurrentElements, 0, currentElements, 0, size);
+        System.arraycopy(oldCurrentCigarElementOffsets, 0, currentCigarElementOffsets, 0, size);
+        System.arraycopy(oldOffsetsIntoCurrentCigarElement, 0, offsetsIntoCurrentCigarElement, 0, size);
+        System.arraycopy(oldReadOffsets, 0, readOffsets, 0, size);
+        System.arraycopy(oldGenomeOffsets, 0, genomeOffsets, 0, size);
+        System.arraycopy(oldFragmentLinks, 0, fragmentLinks, 0, size);
     }
 
     /**
-     * Flattens the grouped list of list of alignment state machines into a single list in order
-     * @return a non-null list contains the state machines
+     * Copies the state in one slot to another
      */
-    @Ensures("result != null")
-    private LinkedList<AlignmentStateMachine> flattenByAlignmentStart(final List<LinkedList<AlignmentStateMachine>> grouped) {
-        final LinkedList<AlignmentStateMachine> flat = new LinkedList<AlignmentStateMachine>();
-        for ( final List<AlignmentStateMachine> l : grouped )
-            flat.addAll(l);
-        return flat;
+    private void moveState(final int from, final int to) {
+        reads[to] = reads[from];
+        cigars[to] = cigars[from];
+        nCigarElements[to] = nCigarElements[from];
+        currentElements[to] = currentElements[from];
+        currentCigarElementOffsets[to] = currentCigarElementOffsets[from];
+        offsetsIntoCurrentCigarElement[to] = offsetsIntoCurrentCigarElement[from];
+        readOffsets[to] = readOffsets[from];
+        genomeOffsets[to] = genomeOffsets[from];
+        fragmentLinks[to] = fragmentLinks[from];
+    }
+
+    /**
+     * Drops the states from logical position newSize onwards, releasing their reads
+     */
+    private void truncate(final int newSize) {
+        for ( int i = newSize; i < size; i++ ) {
+            reads[i] = null;
+            cigars[i] = null;
+            currentElements[i] = null;
+            fragmentLinks[i] = null;
+        }
+        size = newSize;
+    }
+
+    /**
+     * Appends a new slot after the last state
+     * @return the slot
+     */
+    private int appendSlot() {
+        if ( size == reads.length )
+            grow();
+        return size++;
     }
 
     /**
@@ -133,16 +218,58 @@ final class PerSampleReadStateManager implements Iterable<AlignmentStateMachine>
      */
     private boolean readStartsAreWellOrdered() {
         int lastStart = -1;
-        for ( final AlignmentStateMachine machine : readStatesByAlignmentStart ) {
-            if ( lastStart > machine.getRead().getAlignmentStart() )
+        for ( int i = 0; i < size; i++ ) {
+            final int start = reads[i].getAlignmentStart();
+            if ( lastStart > start )
                 return false;
-            lastStart = machine.getRead().getAlignmentStart();
+            lastStart = start;
         }
         return true;
     }
 
     /**
-     * Assumes it can just keep the states linked lists without making a copy
+     * Add new reads, all starting at the next alignment start, to this manager.  Each read is stepped onto
+     * its first position on the genome; reads that have no such position (all insertions / soft clips) are
+     * dropped.
+     *
+     * @param newReads the reads to add, in order
+     * @return The change in the number of states, after including states and potentially downsampling.  Note
+     * that this return result might be negative, if downsampling is enabled, as we might drop
+     * more sites than have been added by the downsampler
+     */
+    @Requires("newReads != null")
+    public int addReadsAtNextAlignmentStart(final Collection<GATKSAMRecord> newReads) {
+        if ( newReads.isEmpty() ) {
+            return 0;
+        }
+
+        int nStatesAdded = 0;
+        for ( final GATKSAMRecord read : newReads ) {
+            final int slot = appendSlot();
+            reads[slot] = read;
+            cigars[slot] = read.getCigar();
+            nCigarElements[slot] = cigars[slot].numCigarElements();
+            currentElements[slot] = null;
+            currentCigarElementOffsets[slot] = -1;
+            offsetsIntoCurrentCigarElement[slot] = readOffsets[slot] = genomeOffsets[slot] = -1;
+            fragmentLinks[slot] = null;
+
+            if ( stepForwardOnGenome(slot) != null ) {
+                if ( fragmentIndex != null )
+                    fragmentLinks[slot] = fragmentIndex.add(read);
+                nStatesAdded++;
+            }
+            else
+                // explicitly filter out reads that are all insertions / soft clips
+                truncate(size - 1);
+        }
+
+        return nStatesAdded - downsampleIfNecessary();
+    }
+
+    /**
+     * Add the states of existing alignment state machines, which must already have been stepped onto the genome
+     *
      * @param states the new states to add to this manager
      * @return The change in the number of states, after including states and potentially downsampling.  Note
      * that this return result might be negative, if downsampling is enabled, as we might drop
@@ -154,23 +281,74 @@ final class PerSampleReadStateManager implements Iterable<AlignmentStateMachine>
             return 0;
         }
 
-        readStatesByAlignmentStart.addAll(states);
-        int nStatesAdded = states.size();
+        for ( final AlignmentStateMachine state : states ) {
+            final int slot = appendSlot();
+            reads[slot] = state.getRead();
+            cigars[slot] = state.getRead().getCigar();
+            nCigarElements[slot] = cigars[slot].numCigarElements();
+            currentElements[slot] = state.getCurrentCigarElement();
+            currentCigarElementOffsets[slot] = state.getCurrentCigarElementOffset();
+            offsetsIntoCurrentCigarElement[slot] = state.getOffsetIntoCurrentCigarElement();
+            readOffsets[slot] = state.getReadOffset();
+            genomeOffsets[slot] = state.getGenomeOffset();
+            fragmentLinks[slot] = fragmentIndex == null ? null : fragmentIndex.add(state.getRead());
+        }
 
-        if ( isDownsampling() && readStatesByAlignmentStart.size() > downsamplingTarget ) {
-            // only go into the downsampling branch if we are downsampling and the coverage > the target
-            captureDownsamplingStats();
-            levelingDownsampler.submit(groupByAlignmentStart());
-            levelingDownsampler.signalEndOfInput();
+        return states.size() - downsampleIfNecessary();
+    }
 
-            nStatesAdded -= levelingDownsampler.getNumberOfDiscardedItems();
+    /**
+     * Level the stacks of read states down to the downsampling target, if we are downsampling and the coverage
+     * exceeds it
+     *
+     * @return the number of states discarded
+     */
+    private int downsampleIfNecessary() {
+        if ( ! isDownsampling() || size <= downsamplingTarget )
+            return 0;
+
+        captureDownsamplingStats();
+
+        // Group the states into stacks of states sharing the same genome offset.  The states are in order, so each
+        // stack is a run of consecutive states and only its size needs recording.  For example, if the states have
+        // genome offsets [10, 10, 11, 12, 12, 13] the stack sizes will be [2, 1, 2, 1].
+        if ( stackSizes.length < size ) {
+            stackSizes = new int[size];
+            leveledStackSizes = new int[size];
+            indexScratch = new int[size];
+        }
+        int nStacks = 0;
+        for ( int i = 0; i < size; i++ ) {
+            if ( i == 0 || genomeOffsets[i] != genomeOffsets[i - 1] )
+                stackSizes[nStacks++] = 0;
+            stackSizes[nStacks - 1]++;
+        }
+
+        System.arraycopy(stackSizes, 0, leveledStackSizes, 0, nStacks);
+        LevelingDownsampler.levelGroupSizes(leveledStackSizes, nStacks, downsamplingTarget, 1);
 
-            // use returned List directly rather than make a copy, for efficiency's sake
-            readStatesByAlignmentStart = flattenByAlignmentStart(levelingDownsampler.consumeFinalizedItems());
-            levelingDownsampler.resetStats();
+        // compact the surviving states of each stack, which remain in order, towards the front, choosing them
+        // exactly as LevelingDownsampler would
+        int nKept = 0;
+        int stackStart = 0;
+        for ( int stack = 0; stack < nStacks; stack++ ) {
+            final int stackSize = stackSizes[stack];
+            final boolean keepAll = leveledStackSizes[stack] >= stackSize;
+            if ( ! keepAll )
+                MathUtils.sampleIndicesWithoutReplacement(stackSize, leveledStackSizes[stack], indexScratch, statesToKeep);
+            for ( int j = 0; j < stackSize; j++ ) {
+                if ( keepAll || statesToKeep.get(j) ) {
+                    if ( stackStart + j != nKept )
+                        moveState(stackStart + j, nKept);
+                    nKept++;
+                }
+            }
+            stackStart += stackSize;
         }
 
-        return nStatesAdded;
+        final int nDiscarded = size - nKept;
+        truncate(nKept);
+        return nDiscarded;
     }
 
     /**
@@ -178,15 +356,7 @@ final class PerSampleReadStateManager implements Iterable<AlignmentStateMachine>
      * @return true if we are downsampling, false otherwise
      */
     private boolean isDownsampling() {
-        return levelingDownsampler != null;
-    }
-
-    /**
-     * Get the leftmost alignment state machine, or null if the read states is empty
-     * @return a potentially null AlignmentStateMachine
-     */
-    public AlignmentStateMachine getFirst() {
-        return isEmpty() ? null : readStatesByAlignmentStart.getFirst();
+        return downsamplingTarget != -1;
     }
 
     /**
@@ -196,7 +366,7 @@ final class PerSampleReadStateManager implements Iterable<AlignmentStateMachine>
     private void captureDownsamplingStats() {
         if ( CAPTURE_DOWNSAMPLING_STATS ) {
             nSites++;
-            final int loc = getFirst().getGenomePosition();
+            final int loc = getGenomePosition(0);
             String message = "Pass through";
             final boolean downsampling = size() > downsamplingTarget;
             if ( downsampling ) {
@@ -215,7 +385,7 @@ final class PerSampleReadStateManager implements Iterable<AlignmentStateMachine>
      * @return true if there's at least one alignment, false otherwise
      */
     public boolean isEmpty() {
-        return readStatesByAlignmentStart.isEmpty();
+        return size == 0;
     }
 
     /**
@@ -224,7 +394,54 @@ final class PerSampleReadStateManager implements Iterable<AlignmentStateMachine>
      */
     @Ensures("result >= 0")
     public int size() {
-        return readStatesByAlignmentStart.size();
+        return size;
+    }
+
+    // -----------------------------------------------------------------------------------------------
+    //
+    // Accessors for the i-th read state in alignment start order.  See the accessors of the same
+    // names in AlignmentStateMachine for their meaning.
+    //
+    // -----------------------------------------------------------------------------------------------
+
+    public GATKSAMRecord getRead(final int i) {
+        return reads[i];
+    }
+
+    public int getReadOffset(final int i) {
+        return readOffsets[i];
+    }
+
+    public int getGenomeOffset(final int i) {
+        return genomeOffsets[i];
+    }
+
+    public int getGenomePosition(final int i) {
+        return reads[i].getAlignmentStart() + genomeOffsets[i];
+    }
+
+    public CigarElement getCurrentCigarElement(final int i) {
+        return currentElements[i];
+    }
+
+    public int getCurrentCigarElementOffset(final int i) {
+        return currentCigarElementOffsets[i];
+    }
+
+    public int getOffsetIntoCurrentCigarElement(final int i) {
+        return offsetsIntoCurrentCigarElement[i];
+    }
+
+    /**
+     * @return the link between the i-th read and its mate, or null if it can't overlap its mate or we don't track fragments
+     */
+    public FragmentIndex.Link getFragmentLink(final int i) {
+        return fragmentLinks[i];
+    }
+
+    public CigarOperator getCigarOperator(final int i) {
+        final CigarElement element = currentElements[i];
+        return element == null ? null : element.getOperator();
     }
 
     /**
@@ -233,29 +450,134 @@ final class PerSampleReadStateManager implements Iterable<AlignmentStateMachine>
      * @return the number of states we're removed after advancing
      */
     public int updateReadStates() {
-        int nRemoved = 0;
-        final Iterator<AlignmentStateMachine> it = iterator();
-        while (it.hasNext()) {
-            final AlignmentStateMachine state = it.next();
-            final CigarOperator op = state.stepForwardOnGenome();
-            if (op == null) {
-                // we discard the read only when we are past its end AND indel at the end of the read (if any) was
-                // already processed. Keeping the read state that returned null upon stepForwardOnGenome() is safe
-                // as the next call to stepForwardOnGenome() will return null again AND will clear hadIndel() flag.
-                it.remove();                                                // we've stepped off the end of the object
-                nRemoved++;
+        int nKept = 0;
+        for ( int i = 0; i < size; i++ ) {
+            if ( stepForwardOnGenome(i) != null ) {
+                if ( i != nKept )
+                    moveState(i, nKept);
+                nKept++;
             }
+            // otherwise we've stepped off the end of the read, so its state is dropped
         }
 
+        final int nRemoved = size - nKept;
+        truncate(nKept);
         return nRemoved;
     }
 
     /**
-     * Iterate over the AlignmentStateMachine in this manager in alignment start order.
+     * Step the read state in the given slot forward one unit on the genome.
+     *
+     * This is AlignmentStateMachine.stepForwardOnGenome(), operating on the state arrays; the two must be
+     * kept in sync.
+     *
+     * @param slot the slot of the read state to advance
+     * @return the operator of the cigar element that the state stopped at, null if we advanced off the end of the read
+     */
+    private CigarOperator stepForwardOnGenome(final int slot) {
+        final GATKSAMRecord read = reads[slot];
+        CigarElement currentElement = currentElements[slot];
+        int offsetIntoCurrentCigarElement = offsetsIntoCurrentCigarElement[slot];
+
+        // loop until we either find a cigar element step that moves us one base on the genome, or we run
+        // out of cigar elements
+        while ( true ) {
+            if (currentElement == null || (offsetIntoCurrentCigarElement + 1) >= currentElement.getLength()) {
+                final int currentCigarElementOffset = ++currentCigarElementOffsets[slot];
+                if (currentCigarElementOffset < nCigarElements[slot]) {
+                    currentElement = currentElements[slot] = cigars[slot].getCigarElement(currentCigarElementOffset);
+                    offsetIntoCurrentCigarElement = -1;
+                    // guards against cigar elements of length 0
+                    continue;
+                } else {
+                    if (currentElement != null && currentElement.getOperator() == CigarOperator.D)
+                        throw new UserException.MalformedBAM(read, "read ends with deletion. Cigar: " + read.getCigarString() + ". Although the SAM spec technically permits such reads, this is often indicative of malformed files. If you are sure you want to use this file, re-run your analysis with the extra option: -rf BadCigar");
+
+                    offsetsIntoCurrentCigarElement[slot] = 0;
+                    readOffsets[slot] = read.getReadLength();
+                    currentElements[slot] = null;
+                    genomeOffsets[slot]++;
+                    return null;
+                }
+            }
+
+            offsetIntoCurrentCigarElement++;
+            boolean done = false;
+            switch (currentElement.getOperator()) {
+                case H: // ignore hard clips
+                case P: // ignore pads
+                    offsetIntoCurrentCigarElement = currentElement.getLength();
+                    break;
+                case I: // insertion w.r.t. the reference
+                case S: // soft clip
+                    offsetIntoCurrentCigarElement = currentElement.getLength();
+                    readOffsets[slot] += currentElement.getLength();
+                    break;
+                case D: // deletion w.r.t. the reference
+                    if (readOffsets[slot] < 0)             // we don't want reads starting with deletion, this is a malformed cigar string
+                        throw new UserException.MalformedBAM(read, "read starts with deletion. Cigar: " + read.getCigarString() + ". Although the SAM spec technically permits such reads, this is often indicative of malformed files. If you are sure you want to use this file, re-run your analysis with the extra option: -rf BadCigar");
+                    genomeOffsets[slot]++;
+                    done = true;
+                    break;
+                case N: // reference skip
+                    genomeOffsets[slot]++;
+                    done = true;
+                    break;
+                case M:
+                case EQ:
+                case X:
+                    readOffsets[slot]++;
+                    genomeOffsets[slot]++;
+                    done = true;
+                    break;
+                default:
+                    throw new IllegalStateException("Case statement didn't deal with cigar op: " + currentElement.getOperator());
+            }
+
+            if ( done ) {
+                offsetsIntoCurrentCigarElement[slot] = offsetIntoCurrentCigarElement;
+                return currentElement.getOperator();
+            }
+        }
+    }
+
+    /**
+     * Iterate over the read states in this manager in alignment start order.
+     *
+     * Each state is returned as a new AlignmentStateMachine holding a copy of the state; stepping it has no
+     * effect on this manager.  Removal through the iterator is supported.  Intended for testing and for
+     * callers outside the locus traversal hot path; LocusIteratorByState uses the indexed accessors.
+     *
      * @return a valid iterator
      */
     @Ensures("result != null")
     public Iterator<AlignmentStateMachine> iterator() {
-        return readStatesByAlignmentStart.iterator();
+        return new Iterator<AlignmentStateMachine>() {
+            private int next = 0;
+            private boolean canRemove = false;
+
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            public AlignmentStateMachine next() {
+                if ( ! hasNext() )
+                    throw new NoSuchElementException();
+                final int slot = next++;
+                canRemove = true;
+                return new AlignmentStateMachine(reads[slot], currentElements[slot], currentCigarElementOffsets[slot],
+                        offsetsIntoCurrentCigarElement[slot], readOffsets[slot], genomeOffsets[slot]);
+            }
+
+            public void remove() {
+                if ( ! canRemove )
+                    throw new IllegalStateException("next() must be called before remove()");
+                canRemove = false;
+                next--;
+                for ( int i = next; i + 1 < size; i++ )
+                    moveState(i + 1, i);
+                truncate(size - 1);
+            }
+        };
     }
 }
@@ -28,6 +28,7 @@ package org.broadinstitute.gatk.utils.locusiterator;
 import com.google.java.contract.Ensures;
 import com.google.java.contract.Requires;
 import htsjdk.samtools.util.PeekableIterator;
+import org.broadinstitute.gatk.utils.fragments.FragmentIndex;
 import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
 
 import java.util.*;
@@ -51,6 +52,13 @@ final class ReadStateManager implements Iterable<Map.Entry<String, PerSampleRead
     private final PeekableIterator<GATKSAMRecord> iterator;
     private final SamplePartitioner<GATKSAMRecord> samplePartitioner;
 
+    /**
+     * Pairs reads with their overlapping mates as they enter the read states of any sample, so that the
+     * fragments of our pileups are known without matching read names at each locus.  Null unless requested,
+     * as most callers never split their pileups into fragments.
+     */
+    private final FragmentIndex fragmentIndex;
+
     /**
      * A mapping from sample name -> the per sample read state manager that manages
      *
@@ -67,8 +75,10 @@ final class ReadStateManager implements Iterable<Map.Entry<String, PerSampleRead
     public ReadStateManager(final Iterator<GATKSAMRecord> source,
                             final List<String> samples,
                             final LIBSDownsamplingInfo LIBSDownsamplingInfo,
-                            final boolean keepSubmittedReads) {
+                            final boolean keepSubmittedReads,
+                            final boolean trackFragments) {
         this.samples = samples;
+        this.fragmentIndex = trackFragments ? new FragmentIndex() : null;
         this.iterator = new PeekableIterator<GATKSAMRecord>(source);
 
         this.keepSubmittedReads = keepSubmittedReads;
@@ -76,7 +86,7 @@ final class ReadStateManager implements Iterable<Map.Entry<String, PerSampleRead
 
         for (final String sample : samples) {
             // because this is a linked hash map the order of iteration will be in sample order
-            readStatesBySample.put(sample, new PerSampleReadStateManager(LIBSDownsamplingInfo));
+            readStatesBySample.put(sample, new PerSampleReadStateManager(LIBSDownsamplingInfo, fragmentIndex));
         }
 
         samplePartitioner = new SamplePartitioner<GATKSAMRecord>(LIBSDownsamplingInfo, samples);
@@ -118,18 +128,48 @@ final class ReadStateManager implements Iterable<Map.Entry<String, PerSampleRead
         return readStatesBySample.get(sample).size();
     }
 
-    public AlignmentStateMachine getFirst() {
+    /**
+     * Get the manager of the first sample, in sample order, with any read states
+     * @return a non-empty per-sample manager, or null if there are no read states
+     */
+    private PerSampleReadStateManager getFirstNonEmptySample() {
         for ( final PerSampleReadStateManager manager : readStatesBySample.values() ) {
             if ( ! manager.isEmpty() )
-                return manager.getFirst();
+                return manager;
         }
         return null;
     }
 
+    /**
+     * Get the read of the leftmost read state of the first non-empty sample
+     * @return a read, or null if there are no read states
+     */
+    public GATKSAMRecord getFirstRead() {
+        final PerSampleReadStateManager manager = getFirstNonEmptySample();
+        return manager == null ? null : manager.getRead(0);
+    }
+
+    /**
+     * Get the genome position of the leftmost read state of the first non-empty sample
+     * @return a position on the genome, or -1 if there are no read states
+     */
+    public int getFirstGenomePosition() {
+        final PerSampleReadStateManager manager = getFirstNonEmptySample();
+        return manager == null ? -1 : manager.getGenomePosition(0);
+    }
+
     public boolean hasNext() {
         return totalReadStates > 0 || iterator.hasNext();
     }
 
+    /**
+     * Get the next read that collectPendingReads() will pull off the iterator, without pulling it
+     * @return a read, or null if the iterator is exhausted
+     */
+    GATKSAMRecord peekNextRead() {
+        return iterator.hasNext() ? iterator.peek() : null;
+    }
+
     /**
      * Advances all fo the read states by one bp.  After this call the read states are reflective
      * of the next pileup.
@@ -140,6 +180,16 @@ final class ReadStateManager implements Iterable<Map.Entry<String, PerSampleRead
         }
     }
 
+    /**
+     * Accounts for read states dropped when the per-sample managers are advanced directly, rather than through
+     * updateReadStates(), as LIBS does when it assembles the pileups of several samples in parallel.
+     *
+     * @param nStatesRemoved the total number of read states removed across all samples by their updateReadStates()
+     */
+    void readStatesUpdatedBySample(final int nStatesRemoved) {
+        totalReadStates -= nStatesRemoved;
+    }
+
     /**
      * Does read start at the same position as described by currentContextIndex and currentAlignmentStart?
      *
@@ -170,10 +220,10 @@ final class ReadStateManager implements Iterable<Map.Entry<String, PerSampleRead
             firstAlignmentStart = iterator.peek().getAlignmentStart();
         } else {
             // there's a read in the system, so it's our targeted first read
-            final AlignmentStateMachine firstState = getFirst();
-            firstContigIndex = firstState.getReferenceIndex();
+            final PerSampleReadStateManager firstSample = getFirstNonEmptySample();
+            firstContigIndex = firstSample.getRead(0).getReferenceIndex();
             // note this isn't the alignment start of the read, but rather the alignment start position
-            firstAlignmentStart = firstState.getGenomePosition();
+            firstAlignmentStart = firstSample.getGenomePosition(0);
         }
 
         while ( iterator.hasNext() && readStartsAtCurrentPosition(iterator.peek(), firstContigIndex, firstAlignmentStart) ) {
@@ -272,18 +322,6 @@ final class ReadStateManager implements Iterable<Map.Entry<String, PerSampleRead
      * @param reads      Reads to add.  Selected reads will be pulled from this source.
      */
     private void addReadsToSample(final PerSampleReadStateManager readStates, final Collection<GATKSAMRecord> reads) {
-        if (reads.isEmpty())
-            return;
-
-        final LinkedList<AlignmentStateMachine> newReadStates = new LinkedList<AlignmentStateMachine>();
-
-        for (final GATKSAMRecord read : reads) {
-            final AlignmentStateMachine state = new AlignmentStateMachine(read);
-            if ( state.stepForwardOnGenome() != null ) // todo -- should be an assertion not a skip
-                // explicitly filter out reads that are all insertions / soft clips
-                newReadStates.add(state);
-        }
-
-        totalReadStates += readStates.addStatesAtNextAlignmentStart(newReadStates);
+        totalReadStates += readStates.addReadsAtNextAlignmentStart(reads);
     }
 }
@@ -0,0 +1,314 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.utils.pileup2;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import org.broadinstitute.gatk.utils.GenomeLoc;
+import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
+import org.broadinstitute.gatk.utils.fragments.FragmentIndex;
+import org.broadinstitute.gatk.utils.pileup.PileupElement;
+import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates the elements of a locus, sample by sample, into a ColumnarReadBackedPileup.
+ *
+ * Builders are meant to be reused from locus to locus: build() copies the accumulated columns into a right-sized
+ * store and resets the builder, keeping its working arrays for the next locus.
+ *
+ * Usage:
+ *
+ *   builder.startSample("NA12878");
+ *   builder.add(read, offset, cigarElement, cigarElementOffset, offsetIntoCigarElement);
+ *   ...
+ *   builder.startSample("NA12891");
+ *   ...
+ *   ColumnarReadBackedPileup pileup = builder.build(location);
+ */
+public class ColumnarPileupBuilder {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private GATKSAMRecord[] reads;
+    private int[] offsets;
+    private byte[] bases;
+    private byte[] quals;
+    private int[] mappingQuals;
+    private byte[] flags;
+    private CigarElement[] cigarElements;
+    private int[] cigarElementOffsets;
+    private int[] offsetsIntoCigarElements;
+    private FragmentIndex.Link[] fragmentLinks;
+
+    private int size = 0;
+
+    /**
+     * Have any of the accumulated elements come with a link to their mates?
+     */
+    private boolean hasFragmentLinks = false;
+
+    /**
+     * Distinguishes the pileups built by this builder when resolving fragment links.
+     */
+    private int generation = 0;
+
+    private final List<String> sampleNames = new ArrayList<String>();
+    private int[] sampleStarts = new int[16];
+
+    private boolean inSample = false;
+    private String currentSample = null;
+    private int currentSampleStart = 0;
+
+    public ColumnarPileupBuilder() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Create a new builder.
+     * @param initialCapacity number of elements to size the working arrays for; they grow as necessary.
+     */
+    public ColumnarPileupBuilder(final int initialCapacity) {
+        allocate(Math.max(1,initialCapacity));
+    }
+
+    /**
+     * Starts accumulating elements for the given sample, finishing the previous sample if any.  A sample may only
+     * be started once per locus; samples to which no elements are added are left out of the pileup.
+     * @param sample name of the sample; may be null for reads without a sample.
+     */
+    public void startSample(final String sample) {
+        finishSample();
+        inSample = true;
+        currentSample = sample;
+        currentSampleStart = size;
+    }
+
+    /**
+     * Adds an element to the current sample.
+     *
+     * @param read a non-null read to pileup
+     * @param baseOffset the offset into the read's base / qual vector aligned to this position on the genome.
+     * @param cigarElement the cigar element aligning the read to the genome at this position
+     * @param cigarElementOffset the offset of cigarElement within the read's cigar
+     * @param offsetIntoCigarElement how far into cigarElement this position is
+     * @see PileupElement#PileupElement(GATKSAMRecord, int, CigarElement, int, int)
+     */
+    public void add(final GATKSAMRecord read, final int baseOffset, final CigarElement cigarElement,
+                    final int cigarElementOffset, final int offsetIntoCigarElement) {
+        add(read, baseOffset, cigarElement, cigarElementOffset, offsetIntoCigarElement, null);
+    }
+
+    /**
+     * Adds an element to the current sample, along with the read's link to its mate.  If every element of a
+     * pileup is added with the link from a FragmentIndex, the pileup's fragments are found without matching
+     * read names.
+     *
+     * @param read a non-null read to pileup
+     * @param baseOffset the offset into the read's base / qual vector aligned to this position on the genome.
+     * @param cigarElement the cigar element aligning the read to the genome at this position
+     * @param cigarElementOffset the offset of cigarElement within the read's cigar
+     * @param offsetIntoCigarElement how far into cigarElement this position is
+     * @param fragmentLink the read's link to its mate, or null if the read can't overlap its mate
+     */
+    public void add(final GATKSAMRecord read, final int baseOffset, final CigarElement cigarElement,
+                    final int cigarElementOffset, final int offsetIntoCigarElement, final FragmentIndex.Link fragmentLink) {
+        if(!inSample)
+            throw new ReviewedGATKException("BUG: elements must be added to a sample; call startSample first");
+        if(size == reads.length)
+            grow();
+
+        final boolean isDeletion = cigarElement.getOperator() == CigarOperator.D;
+        reads[size] = read;
+        offsets[size] = baseOffset;
+        bases[size] = isDeletion ? PileupElement.DELETION_BASE : read.getReadBases()[baseOffset];
+        quals[size] = isDeletion ? PileupElement.DELETION_QUAL : read.getBaseQualities()[baseOffset];
+        mappingQuals[size] = read.getMappingQuality();
+        flags[size] = (byte)((isDeletion ? ColumnarPileupStore.FLAG_DELETION : 0) |
+                (read.getReadNegativeStrandFlag() ? ColumnarPileupStore.FLAG_NEGATIVE_STRAND : 0));
+        cigarElements[size] = cigarElement;
+        cigarElementOffsets[size] = cigarElementOffset;
+        offsetsIntoCigarElements[size] = offsetIntoCigarElement;
+        fragmentLinks[size] = fragmentLink;
+        hasFragmentLinks |= fragmentLink != null;
+        size++;
+    }
+
+    /**
+     * @return true if no elements have been added since the last build.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Creates a pileup of all the elements added since the last build, and resets the builder.
+     * @param location the locus of the pileup.
+     * @return a new pileup over the accumulated elements.
+     */
+    public ColumnarReadBackedPileup build(final GenomeLoc location) {
+        finishSample();
+
+        final int numSamples = sampleNames.size();
+        final String[] storeSampleNames = sampleNames.toArray(new String[numSamples]);
+        final int[] storeSampleStarts = Arrays.copyOf(sampleStarts,numSamples+1);
+        storeSampleStarts[numSamples] = size;
+
+        // Walk the samples in the order that a hash map keyed by sample yields them, so that elements are merged
+        // in the same order as the per-sample pileups assembled by LocusIteratorByState always have been.
+        final Map<String,Integer> sampleIds = new HashMap<String,Integer>();
+        for(int i = 0; i < numSamples; i++)
+            sampleIds.put(storeSampleNames[i],i);
+        final int[] sampleIterationOrder = new int[numSamples];
+        int next = 0;
+        for(final Integer sampleId: sampleIds.values())
+            sampleIterationOrder[next++] = sampleId;
+
+        final ColumnarPileupStore store = new ColumnarPileupStore(Arrays.copyOf(reads,size), Arrays.copyOf(offsets,size),
+                Arrays.copyOf(bases,size), Arrays.copyOf(quals,size), Arrays.copyOf(mappingQuals,size), Arrays.copyOf(flags,size),
+                Arrays.copyOf(cigarElements,size), Arrays.copyOf(cigarElementOffsets,size), Arrays.copyOf(offsetsIntoCigarElements,size),
+                storeSampleNames, storeSampleStarts, sampleIds, sampleIterationOrder,
+                hasFragmentLinks ? findMateElements() : null);
+
+        reset();
+        return new ColumnarReadBackedPileup(location, store);
+    }
+
+    /**
+     * Finds the element of each element's overlapping mate using the elements' fragment links.
+     * @return for each element, the element of its mate, or -1 if its mate isn't among the elements.
+     */
+    private int[] findMateElements() {
+        generation++;
+        for(int i = 0; i < size; i++) {
+            if(fragmentLinks[i] != null && fragmentLinks[i].isPaired())
+                fragmentLinks[i].setElement(reads[i],i,generation);
+        }
+
+        final int[] mateElements = new int[size];
+        for(int i = 0; i < size; i++)
+            mateElements[i] = fragmentLinks[i] != null && fragmentLinks[i].isPaired() ? fragmentLinks[i].getMateElement(reads[i],generation) : -1;
+        return mateElements;
+    }
+
+    /**
+     * Moves the elements accumulated by another builder onto the end of this one, sample by sample, and resets the
+     * other builder.  Lets the samples of a locus be gathered independently and then stitched back together in a
+     * fixed order, so the resulting pileup is identical to one built sample by sample on a single builder.
+     *
+     * @param other a builder holding samples distinct from those already added to this one; may not be this builder.
+     */
+    public void append(final ColumnarPileupBuilder other) {
+        if(other == this)
+            throw new ReviewedGATKException("BUG: cannot append a builder to itself");
+        finishSample();
+        other.finishSample();
+
+        final int otherSize = other.size;
+        final int otherNumSamples = other.sampleNames.size();
+        if(otherSize > 0) {
+            while(reads.length < size+otherSize)
+                grow();
+            System.arraycopy(other.reads,0,reads,size,otherSize);
+            System.arraycopy(other.offsets,0,offsets,size,otherSize);
+            System.arraycopy(other.bases,0,bases,size,otherSize);
+            System.arraycopy(other.quals,0,quals,size,otherSize);
+            System.arraycopy(other.mappingQuals,0,mappingQuals,size,otherSize);
+            System.arraycopy(other.flags,0,flags,size,otherSize);
+            System.arraycopy(other.cigarElements,0,cigarElements,size,otherSize);
+            System.arraycopy(other.cigarElementOffsets,0,cigarElementOffsets,size,otherSize);
+            System.arraycopy(other.offsetsIntoCigarElements,0,offsetsIntoCigarElements,size,otherSize);
+            System.arraycopy(other.fragmentLinks,0,fragmentLinks,size,otherSize);
+            hasFragmentLinks |= other.hasFragmentLinks;
+
+            while(sampleNames.size()+otherNumSamples+1 >= sampleStarts.length)
+                sampleStarts = Arrays.copyOf(sampleStarts,2*sampleStarts.length);
+            for(int i = 0; i < otherNumSamples; i++) {
+                sampleStarts[sampleNames.size()] = size + other.sampleStarts[i];
+                sampleNames.add(other.sampleNames.get(i));
+            }
+            size += otherSize;
+        }
+
+        other.reset();
+    }
+
+    /**
+     * Discards all accumulated elements.
+     */
+    public void reset() {
+        // Drop references to the reads so they can be collected once they fall out of the active region.
+        Arrays.fill(reads,0,size,null);
+        Arrays.fill(cigarElements,0,size,null);
+        Arrays.fill(fragmentLinks,0,size,null);
+        hasFragmentLinks = false;
+        size = 0;
+        sampleNames.clear();
+        inSample = false;
+        currentSample = null;
+    }
+
+    private void finishSample() {
+        if(inSample && size > currentSampleStart) {
+            if(sampleNames.size()+1 >= sampleStarts.length)
+                sampleStarts = Arrays.copyOf(sampleStarts,2*sampleStarts.length);
+            sampleStarts[sampleNames.size()] = currentSampleStart;
+            sampleNames.add(currentSample);
+        }
+        inSample = false;
+    }
+
+    private void allocate(final int capacity) {
+        reads = new GATKSAMRecord[capacity];
+        offsets = new int[capacity];
+        bases = new byte[capacity];
+        quals = new byte[capacity];
+        mappingQuals = new int[capacity];
+        flags = new byte[capacity];
+        cigarElements = new CigarElement[capacity];
+        cigarElementOffsets = new int[capacity];
+        offsetsIntoCigarElements = new int[capacity];
+        fragmentLinks = new FragmentIndex.Link[capacity];
+    }
+
+    private void grow() {
+        final int capacity = 2*reads.length;
+        reads = Arrays.copyOf(reads,capacity);
+        offsets = Arrays.copyOf(offsets,capacity);
+        bases = Arrays.copyOf(bases,capacity);
+        quals = Arrays.copyOf(quals,capacity);
+        mappingQuals = Arrays.copyOf(mappingQuals,capacity);
+        flags = Arrays.copyOf(flags,capacity);
+        cigarElements = Arrays.copyOf(cigarElements,capacity);
+        cigarElementOffsets = Arrays.copyOf(cigarElementOffsets,capacity);
+        offsetsIntoCigarElements = Arrays.copyOf(offsetsIntoCigarElements,capacity);
+        fragmentLinks = Arrays.copyOf(fragmentLinks,capacity);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.utils.pileup2;
+
+import htsjdk.samtools.CigarElement;
+import org.broadinstitute.gatk.utils.pileup.PileupElement;
+import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
+
+import java.util.Map;
+
+/**
+ * The immutable element data behind a set of ColumnarReadBackedPileups at a single locus.
+ *
+ * Elements are stored column-wise in parallel primitive arrays, with the elements of each sample stored
+ * contiguously.  Pileups are views onto a store, so filtering or splitting a pileup by sample never copies
+ * element data.  PileupElement objects are only created on demand, for callers that iterate over the pileup,
+ * and are cached so that every view over the store hands out the same element instances.
+ */
+class ColumnarPileupStore {
+    static final byte FLAG_DELETION = 0x1;
+    static final byte FLAG_NEGATIVE_STRAND = 0x2;
+
+    final GATKSAMRecord[] reads;
+    final int[] offsets;
+    final byte[] bases;
+    final byte[] quals;
+    final int[] mappingQuals;
+    final byte[] flags;
+
+    // Alignment state needed to materialize PileupElements.
+    final CigarElement[] cigarElements;
+    final int[] cigarElementOffsets;
+    final int[] offsetsIntoCigarElements;
+
+    /**
+     * Names of the samples in the store, indexed by sample id.
+     */
+    final String[] sampleNames;
+
+    /**
+     * Elements of sample i occupy [sampleStarts[i], sampleStarts[i+1]).
+     */
+    final int[] sampleStarts;
+
+    /**
+     * Sample ids by name.
+     */
+    final Map<String,Integer> sampleIds;
+
+    /**
+     * Sample ids in the order in which their elements are merged during iteration.
+     */
+    final int[] sampleIterationOrder;
+
+    /**
+     * Element of each element's overlapping mate, or -1 if its mate isn't in the store; null if the mates aren't known.
+     */
+    final int[] mateElements;
+
+    /**
+     * Lazily created PileupElements, indexed by element.
+     */
+    private final PileupElement[] elements;
+
+    ColumnarPileupStore(final GATKSAMRecord[] reads, final int[] offsets, final byte[] bases, final byte[] quals,
+                        final int[] mappingQuals, final byte[] flags, final CigarElement[] cigarElements,
+                        final int[] cigarElementOffsets, final int[] offsetsIntoCigarElements,
+                        final String[] sampleNames, final int[] sampleStarts, final Map<String,Integer> sampleIds,
+                        final int[] sampleIterationOrder, final int[] mateElements) {
+        this.reads = reads;
+        this.offsets = offsets;
+        this.bases = bases;
+        this.quals = quals;
+        this.mappingQuals = mappingQuals;
+        this.flags = flags;
+        this.cigarElements = cigarElements;
+        this.cigarElementOffsets = cigarElementOffsets;
+        this.offsetsIntoCigarElements = offsetsIntoCigarElements;
+        this.sampleNames = sampleNames;
+        this.sampleStarts = sampleStarts;
+        this.sampleIds = sampleIds;
+        this.sampleIterationOrder = sampleIterationOrder;
+        this.mateElements = mateElements;
+        this.elements = new PileupElement[reads.length];
+    }
+
+    int size() {
+        return reads.length;
+    }
+
+    int getNumSamples() {
+        return sampleNames.length;
+    }
+
+    boolean isDeletion(final int element) {
+        return (flags[element] & FLAG_DELETION) != 0;
+    }
+
+    boolean isNegativeStrand(final int element) {
+        return (flags[element] & FLAG_NEGATIVE_STRAND) != 0;
+    }
+
+    /**
+     * Gets the PileupElement for the given element, creating it on first access.
+     * @param element index of the element within the store.
+     * @return the element's PileupElement; always the same instance for a given element.
+     */
+    PileupElement getElement(final int element) {
+        PileupElement pileupElement = elements[element];
+        if(pileupElement == null) {
+            pileupElement = new PileupElement(reads[element], offsets[element], cigarElements[element],
+                    cigarElementOffsets[element], offsetsIntoCigarElements[element]);
+            elements[element] = pileupElement;
+        }
+        return pileupElement;
+    }
+}
@@ -0,0 +1,681 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.utils.pileup2;
+
+import htsjdk.samtools.SAMReadGroupRecord;
+import org.broadinstitute.gatk.utils.BaseUtils;
+import org.broadinstitute.gatk.utils.GenomeLoc;
+import org.broadinstitute.gatk.utils.Utils;
+import org.broadinstitute.gatk.utils.fragments.FragmentCollection;
+import org.broadinstitute.gatk.utils.fragments.FragmentUtils;
+import org.broadinstitute.gatk.utils.pileup.PileupElement;
+import org.broadinstitute.gatk.utils.pileup.PileupElementFilter;
+import org.broadinstitute.gatk.utils.pileup.ReadBackedPileup;
+import org.broadinstitute.gatk.utils.pileup.ReadBackedPileupImpl;
+import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
+
+import java.util.*;
+
+/**
+ * An immutable, sample-partitioned pileup backed by column-wise element data.
+ *
+ * A pileup is a view onto a ColumnarPileupStore: an optional index of the store elements it includes, grouped by
+ * sample, along with the bounds of each sample's group within that index.  Splitting a pileup by sample creates a
+ * new view over the same index, and filtering creates a single index array; neither creates PileupElements.  Counts
+ * and the base, qual and mapping quality accessors read the store's primitive columns directly.
+ *
+ * Iterating over a pileup yields the elements of its samples merged in the same order as ReadBackedPileupImpl's
+ * per-sample pileups, so that walkers see identical pileups whichever implementation backs them.
+ */
+public class ColumnarReadBackedPileup implements ReadBackedPileup {
+    private final static int UNINITIALIZED_CACHED_INT_VALUE = -1;
+
+    private final GenomeLoc loc;
+    private final ColumnarPileupStore store;
+
+    /**
+     * Store ids of the samples in this pileup, in iteration order.
+     */
+    private final int[] sampleIds;
+
+    /**
+     * The j-th sample's elements occupy positions [sampleBounds[2j], sampleBounds[2j+1]) of this pileup.
+     */
+    private final int[] sampleBounds;
+
+    /**
+     * Store element at each position of this pileup, or null if positions are store elements.
+     */
+    private final int[] index;
+
+    private final int size;
+
+    private int nDeletions = UNINITIALIZED_CACHED_INT_VALUE;
+    private int nMQ0Reads = UNINITIALIZED_CACHED_INT_VALUE;
+
+    /**
+     * Store elements in iteration order; computed on first use for multi-sample pileups.
+     */
+    private int[] orderedElements = null;
+
+    ColumnarReadBackedPileup(final GenomeLoc loc, final ColumnarPileupStore store) {
+        this(loc, store, store.sampleIterationOrder, boundsOfAllSamples(store), null);
+    }
+
+    private ColumnarReadBackedPileup(final GenomeLoc loc, final ColumnarPileupStore store, final int[] sampleIds,
+                                     final int[] sampleBounds, final int[] index) {
+        this.loc = loc;
+        this.store = store;
+        this.sampleIds = sampleIds;
+        this.sampleBounds = sampleBounds;
+        this.index = index;
+
+        int size = 0;
+        for(int j = 0; j < sampleIds.length; j++)
+            size += sampleBounds[2*j+1] - sampleBounds[2*j];
+        this.size = size;
+    }
+
+    private static int[] boundsOfAllSamples(final ColumnarPileupStore store) {
+        final int[] bounds = new int[2*store.getNumSamples()];
+        for(int j = 0; j < store.sampleIterationOrder.length; j++) {
+            final int sampleId = store.sampleIterationOrder[j];
+            bounds[2*j] = store.sampleStarts[sampleId];
+            bounds[2*j+1] = store.sampleStarts[sampleId+1];
+        }
+        return bounds;
+    }
+
+    private int elementAt(final int position) {
+        return index == null ? position : index[position];
+    }
+
+    // --------------------------------------------------------
+    //
+    // Views
+    //
+    // --------------------------------------------------------
+
+    /**
+     * Decides whether a store element belongs in a filtered pileup.
+     */
+    private interface ElementFilter {
+        boolean allow(final int element);
+    }
+
+    /**
+     * Creates a pileup of the elements of this pileup passing the given filter, retaining all samples.
+     * @param filter the filter to apply.
+     * @return the filtered pileup, or this pileup if every element passes.
+     */
+    private ColumnarReadBackedPileup filter(final ElementFilter filter) {
+        final int[] filteredIndex = new int[size];
+        final int[] filteredBounds = new int[sampleBounds.length];
+        int filteredSize = 0;
+        for(int j = 0; j < sampleIds.length; j++) {
+            filteredBounds[2*j] = filteredSize;
+            for(int position = sampleBounds[2*j]; position < sampleBounds[2*j+1]; position++) {
+                final int element = elementAt(position);
+                if(filter.allow(element))
+                    filteredIndex[filteredSize++] = element;
+            }
+            filteredBounds[2*j+1] = filteredSize;
+        }
+        if(filteredSize == size)
+            return this;
+        return new ColumnarReadBackedPileup(loc, store, sampleIds, filteredBounds, filteredIndex);
+    }
+
+    /**
+     * Creates a view of a subset of this pileup's samples.
+     * @param sampleIndices indices into sampleIds of the samples to keep, in iteration order.
+     * @param numSamples number of entries of sampleIndices to use.
+     * @return a view sharing this pileup's index.
+     */
+    private ColumnarReadBackedPileup selectSamples(final int[] sampleIndices, final int numSamples) {
+        final int[] selectedIds = new int[numSamples];
+        final int[] selectedBounds = new int[2*numSamples];
+        for(int i = 0; i < numSamples; i++) {
+            final int j = sampleIndices[i];
+            selectedIds[i] = sampleIds[j];
+            selectedBounds[2*i] = sampleBounds[2*j];
+            selectedBounds[2*i+1] = sampleBounds[2*j+1];
+        }
+        return new ColumnarReadBackedPileup(loc, store, selectedIds, selectedBounds, index);
+    }
+
+    /**
+     * @param sampleName name of a sample.
+     * @return the index into sampleIds of the given sample, or -1 if it isn't in this pileup.
+     */
+    private int findSample(final String sampleName) {
+        final Integer sampleId = store.sampleIds.get(sampleName);
+        if(sampleId != null) {
+            for(int j = 0; j < sampleIds.length; j++) {
+                if(sampleIds[j] == sampleId)
+                    return j;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public ReadBackedPileup getPileupWithoutDeletions() {
+        if(getNumberOfDeletions() == 0)
+            return this;
+        return filter(new ElementFilter() {
+            public boolean allow(final int element) { return !store.isDeletion(element); }
+        });
+    }
+
+    @Override
+    public ReadBackedPileup getOverlappingFragmentFilteredPileup() {
+        return getOverlappingFragmentFilteredPileup(true, true);
+    }
+
+    @Override
+    public ReadBackedPileup getOverlappingFragmentFilteredPileup(final boolean discardDiscordant, final boolean baseQualNotMapQual) {
+        final int[] filteredIndex = new int[size];
+        final int[] filteredBounds = new int[sampleBounds.length];
+        int filteredSize = 0;
+        for(int j = 0; j < sampleIds.length; j++) {
+            final Map<String,Integer> filteredPileup = new HashMap<String,Integer>();
+            for(int position = sampleBounds[2*j]; position < sampleBounds[2*j+1]; position++) {
+                final int element = elementAt(position);
+                final String readName = store.reads[element].getReadName();
+                final Integer existing = filteredPileup.get(readName);
+
+                // if we've never seen this read before, life is good
+                if(existing == null)
+                    filteredPileup.put(readName, element);
+                // if the reads disagree at this position, throw them both out.  Otherwise
+                // keep the element with the higher quality score
+                else if(discardDiscordant && store.bases[existing] != store.bases[element])
+                    filteredPileup.remove(readName);
+                else if(baseQualNotMapQual ? store.quals[existing] < store.quals[element] : store.mappingQuals[existing] < store.mappingQuals[element])
+                    filteredPileup.put(readName, element);
+            }
+
+            filteredBounds[2*j] = filteredSize;
+            for(final int element: filteredPileup.values())
+                filteredIndex[filteredSize++] = element;
+            filteredBounds[2*j+1] = filteredSize;
+        }
+        return new ColumnarReadBackedPileup(loc, store, sampleIds, filteredBounds, filteredIndex);
+    }
+
+    @Override
+    public ReadBackedPileup getPileupWithoutMappingQualityZeroReads() {
+        if(getNumberOfMappingQualityZeroReads() == 0)
+            return this;
+        return filter(new ElementFilter() {
+            public boolean allow(final int element) { return store.mappingQuals[element] > 0; }
+        });
+    }
+
+    @Override
+    public ReadBackedPileup getPositiveStrandPileup() {
+        return filter(new ElementFilter() {
+            public boolean allow(final int element) { return !store.isNegativeStrand(element); }
+        });
+    }
+
+    @Override
+    public ReadBackedPileup getNegativeStrandPileup() {
+        return filter(new ElementFilter() {
+            public boolean allow(final int element) { return store.isNegativeStrand(element); }
+        });
+    }
+
+    @Override
+    public ReadBackedPileup getFilteredPileup(final PileupElementFilter filter) {
+        return filter(new ElementFilter() {
+            public boolean allow(final int element) { return filter.allow(store.getElement(element)); }
+        });
+    }
+
+    @Override
+    public ReadBackedPileup getBaseAndMappingFilteredPileup(final int minBaseQ, final int minMapQ) {
+        return filter(new ElementFilter() {
+            public boolean allow(final int element) {
+                return store.mappingQuals[element] >= minMapQ && (store.isDeletion(element) || store.quals[element] >= minBaseQ);
+            }
+        });
+    }
+
+    @Override
+    public ReadBackedPileup getBaseFilteredPileup(final int minBaseQ) {
+        return getBaseAndMappingFilteredPileup(minBaseQ, -1);
+    }
+
+    @Override
+    public ReadBackedPileup getMappingFilteredPileup(final int minMapQ) {
+        return getBaseAndMappingFilteredPileup(-1, minMapQ);
+    }
+
+    @Override
+    public ReadBackedPileup getDownsampledPileup(final int desiredCoverage) {
+        if(size <= desiredCoverage)
+            return this;
+
+        // randomly choose positions to keep
+        final boolean[] keep = new boolean[size];
+        for(int i = 0; i < desiredCoverage; /* no update */) {
+            final int position = Utils.getRandomGenerator().nextInt(size);
+            if(!keep[position]) {
+                keep[position] = true;
+                i++;
+            }
+        }
+
+        final int[] filteredIndex = new int[desiredCoverage];
+        final int[] filteredBounds = new int[sampleBounds.length];
+        int filteredSize = 0;
+        int position = 0;
+        for(int j = 0; j < sampleIds.length; j++) {
+            filteredBounds[2*j] = filteredSize;
+            for(int p = sampleBounds[2*j]; p < sampleBounds[2*j+1]; p++, position++) {
+                if(keep[position])
+                    filteredIndex[filteredSize++] = elementAt(p);
+            }
+            filteredBounds[2*j+1] = filteredSize;
+        }
+        return new ColumnarReadBackedPileup(loc, store, sampleIds, filteredBounds, filteredIndex);
+    }
+
+    @Override
+    public Collection<String> getReadGroups() {
+        final Set<String> readGroups = new HashSet<String>();
+        for(int j = 0; j < sampleIds.length; j++) {
+            for(int position = sampleBounds[2*j]; position < sampleBounds[2*j+1]; position++)
+                readGroups.add(store.reads[elementAt(position)].getReadGroup().getReadGroupId());
+        }
+        return readGroups;
+    }
+
+    @Override
+    public ReadBackedPileup getPileupForReadGroup(final String targetReadGroupId) {
+        final ColumnarReadBackedPileup pileup = filter(new ElementFilter() {
+            public boolean allow(final int element) {
+                final SAMReadGroupRecord readGroup = store.reads[element].getReadGroup();
+                if(targetReadGroupId != null)
+                    return readGroup != null && targetReadGroupId.equals(readGroup.getReadGroupId());
+                else
+                    return readGroup == null || readGroup.getReadGroupId() == null;
+            }
+        });
+        return pileup.isEmpty() ? null : pileup;
+    }
+
+    @Override
+    public ReadBackedPileup getPileupForReadGroups(final HashSet<String> rgSet) {
+        final ColumnarReadBackedPileup pileup = filter(new ElementFilter() {
+            public boolean allow(final int element) {
+                final SAMReadGroupRecord readGroup = store.reads[element].getReadGroup();
+                if(rgSet != null && !rgSet.isEmpty())
+                    return readGroup != null && rgSet.contains(readGroup.getReadGroupId());
+                else
+                    return readGroup == null || readGroup.getReadGroupId() == null;
+            }
+        });
+        return pileup.isEmpty() ? null : pileup;
+    }
+
+    @Override
+    public ReadBackedPileup getPileupForLane(final String laneID) {
+        final ColumnarReadBackedPileup pileup = filter(new ElementFilter() {
+            public boolean allow(final int element) {
+                final SAMReadGroupRecord readGroup = store.reads[element].getReadGroup();
+                if(laneID != null)
+                    return readGroup != null &&
+                            (readGroup.getReadGroupId().startsWith(laneID + ".") ||   // lane is the same, but sample identifier is different
+                             readGroup.getReadGroupId().equals(laneID));              // in case there is no sample identifier, they have to be exactly the same
+                else
+                    return readGroup == null || readGroup.getReadGroupId() == null;
+            }
+        });
+        return pileup.isEmpty() ? null : pileup;
+    }
+
+    @Override
+    public Collection<String> getSamples() {
+        final Set<String> samples = new HashSet<String>();
+        for(final int sampleId: sampleIds)
+            samples.add(store.sampleNames[sampleId]);
+        return samples;
+    }
+
+    @Override
+    public ReadBackedPileup getPileupForSamples(final Collection<String> sampleNames) {
+        final Set<String> requestedSamples = new HashSet<String>(sampleNames);
+        final int[] selected = new int[sampleIds.length];
+        int numSelected = 0;
+        for(int j = 0; j < sampleIds.length; j++) {
+            if(requestedSamples.contains(store.sampleNames[sampleIds[j]]))
+                selected[numSelected++] = j;
+        }
+        return selectSamples(selected, numSelected);
+    }
+
+    @Override
+    public Map<String, ReadBackedPileup> getPileupsForSamples(final Collection<String> sampleNames) {
+        final Map<String, ReadBackedPileup> result = new HashMap<String, ReadBackedPileup>();
+        for(final String sample: sampleNames) {
+            final ReadBackedPileup pileup = getPileupForSample(sample);
+            if(pileup != null)
+                result.put(sample, pileup);
+        }
+        return result;
+    }
+
+    @Override
+    public ReadBackedPileup getPileupForSample(final String sampleName) {
+        final int j = findSample(sampleName);
+        return j >= 0 ? selectSamples(new int[] { j }, 1) : null;
+    }
+
+    // --------------------------------------------------------
+    //
+    // iterators
+    //
+    // --------------------------------------------------------
+
+    @Override
+    public Iterator<PileupElement> iterator() {
+        return new Iterator<PileupElement>() {
+            private final int[] elements = sampleIds.length > 1 ? getOrderedElements() : null;
+            private int position = sampleIds.length > 0 ? sampleBounds[0] : 0;
+            private final int end = sampleIds.length > 0 ? sampleBounds[1] : 0;
+            private int next = 0;
+
+            public boolean hasNext() {
+                return elements != null ? next < elements.length : position < end;
+            }
+
+            public PileupElement next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                return store.getElement(elements != null ? elements[next++] : elementAt(position++));
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("Cannot remove from a pileup element iterator");
+            }
+        };
+    }
+
+    /**
+     * Gets the store elements of this pileup in iteration order, merging the samples the same way that
+     * ReadBackedPileupImpl's MergingPileupElementIterator does.
+     * @return the elements, in order.  Do not modify.
+     */
+    private int[] getOrderedElements() {
+        if(orderedElements == null) {
+            final int[] ordered = new int[size];
+            final PriorityQueue<SampleCursor> cursors = new PriorityQueue<SampleCursor>(Math.max(1,sampleIds.length), new Comparator<SampleCursor>() {
+                public int compare(final SampleCursor lhs, final SampleCursor rhs) {
+                    return store.offsets[elementAt(rhs.position)] - store.offsets[elementAt(lhs.position)];
+                }
+            });
+            for(int j = 0; j < sampleIds.length; j++) {
+                if(sampleBounds[2*j+1] > sampleBounds[2*j])
+                    cursors.add(new SampleCursor(sampleBounds[2*j], sampleBounds[2*j+1]));
+            }
+
+            int next = 0;
+            while(!cursors.isEmpty()) {
+                final SampleCursor cursor = cursors.remove();
+                ordered[next++] = elementAt(cursor.position++);
+                if(cursor.position < cursor.end)
+                    cursors.add(cursor);
+            }
+            orderedElements = ordered;
+        }
+        return orderedElements;
+    }
+
+    /**
+     * Position of a merge within a single sample's elements.
+     */
+    private static class SampleCursor {
+        private int position;
+        private final int end;
+
+        public SampleCursor(final int position, final int end) {
+            this.position = position;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Store element at the given position in iteration order.
+     */
+    private int orderedElementAt(final int i) {
+        return sampleIds.length > 1 ? getOrderedElements()[i] : elementAt(sampleBounds[0] + i);
+    }
+
+    // --------------------------------------------------------
+    //
+    // counts and accessors
+    //
+    // --------------------------------------------------------
+
+    @Override
+    public int getNumberOfDeletions() {
+        if(nDeletions == UNINITIALIZED_CACHED_INT_VALUE) {
+            int count = 0;
+            for(int j = 0; j < sampleIds.length; j++) {
+                for(int position = sampleBounds[2*j]; position < sampleBounds[2*j+1]; position++) {
+                    if(store.isDeletion(elementAt(position)))
+                        count++;
+                }
+            }
+            nDeletions = count;
+        }
+        return nDeletions;
+    }
+
+    @Override
+    public int getNumberOfDeletionsAfterThisElement() {
+        int count = 0;
+        for(int j = 0; j < sampleIds.length; j++) {
+            for(int position = sampleBounds[2*j]; position < sampleBounds[2*j+1]; position++) {
+                if(store.getElement(elementAt(position)).isBeforeDeletionStart())
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int getNumberOfInsertionsAfterThisElement() {
+        int count = 0;
+        for(int j = 0; j < sampleIds.length; j++) {
+            for(int position = sampleBounds[2*j]; position < sampleBounds[2*j+1]; position++) {
+                if(store.getElement(elementAt(position)).isBeforeInsertion())
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int getNumberOfMappingQualityZeroReads() {
+        if(nMQ0Reads == UNINITIALIZED_CACHED_INT_VALUE) {
+            int count = 0;
+            for(int j = 0; j < sampleIds.length; j++) {
+                for(int position = sampleBounds[2*j]; position < sampleBounds[2*j+1]; position++) {
+                    if(store.mappingQuals[elementAt(position)] == 0)
+                        count++;
+                }
+            }
+            nMQ0Reads = count;
+        }
+        return nMQ0Reads;
+    }
+
+    @Override
+    public int getNumberOfElements() {
+        return size;
+    }
+
+    @Override
+    public int depthOfCoverage() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public GenomeLoc getLocation() {
+        return loc;
+    }
+
+    @Override
+    public int[] getBaseCounts() {
+        final int[] counts = new int[4];
+        for(int j = 0; j < sampleIds.length; j++) {
+            for(int position = sampleBounds[2*j]; position < sampleBounds[2*j+1]; position++) {
+                final int element = elementAt(position);
+                // skip deletion sites
+                if(!store.isDeletion(element)) {
+                    final int index = BaseUtils.simpleBaseToBaseIndex((char) store.bases[element]);
+                    if(index != -1)
+                        counts[index]++;
+                }
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public String getPileupString(final Character ref) {
+        // In the pileup format, each line represents a genomic position, consisting of chromosome name,
+        // coordinate, reference base, read bases, read qualities and alignment mapping qualities.
+        return String.format("%s %s %c %s %s",
+                getLocation().getContig(), getLocation().getStart(),    // chromosome name and coordinate
+                ref,                                                     // reference base
+                new String(getBases()),
+                quals2String(getQuals()));
+    }
+
+    private static String quals2String(final byte[] quals) {
+        final StringBuilder qualStr = new StringBuilder();
+        for(int qual: quals) {
+            qual = Math.min(qual, 63);              // todo: fixme, this isn't a good idea
+            qualStr.append((char) (33 + qual));     // todo: warning, this is illegal for qual > 63
+        }
+        return qualStr.toString();
+    }
+
+    @Override
+    public List<GATKSAMRecord> getReads() {
+        final List<GATKSAMRecord> reads = new ArrayList<GATKSAMRecord>(size);
+        for(int i = 0; i < size; i++)
+            reads.add(store.reads[orderedElementAt(i)]);
+        return reads;
+    }
+
+    @Override
+    public List<Integer> getOffsets() {
+        final List<Integer> offsets = new ArrayList<Integer>(size);
+        for(int j = 0; j < sampleIds.length; j++) {
+            for(int position = sampleBounds[2*j]; position < sampleBounds[2*j+1]; position++)
+                offsets.add(store.offsets[elementAt(position)]);
+        }
+        return offsets;
+    }
+
+    @Override
+    public byte[] getBases() {
+        final byte[] bases = new byte[size];
+        for(int i = 0; i < size; i++)
+            bases[i] = store.bases[orderedElementAt(i)];
+        return bases;
+    }
+
+    @Override
+    public byte[] getQuals() {
+        final byte[] quals = new byte[size];
+        for(int i = 0; i < size; i++)
+            quals[i] = store.quals[orderedElementAt(i)];
+        return quals;
+    }
+
+    @Override
+    public int[] getMappingQuals() {
+        final int[] mappingQuals = new int[size];
+        for(int i = 0; i < size; i++)
+            mappingQuals[i] = store.mappingQuals[orderedElementAt(i)];
+        return mappingQuals;
+    }
+
+    @Override
+    public ReadBackedPileup getStartSortedPileup() {
+        final TreeSet<PileupElement> sortedElements = new TreeSet<PileupElement>(new Comparator<PileupElement>() {
+            @Override
+            public int compare(PileupElement element1, PileupElement element2) {
+                final int difference = element1.getRead().getAlignmentStart() - element2.getRead().getAlignmentStart();
+                return difference != 0 ? difference : element1.getRead().getReadName().compareTo(element2.getRead().getReadName());
+            }
+        });
+        for(final PileupElement pile: this)
+            sortedElements.add(pile);
+        return new ReadBackedPileupImpl(loc, new ArrayList<PileupElement>(sortedElements));
+    }
+
+    @Override
+    public FragmentCollection<PileupElement> toFragments() {
+        if(store.mateElements == null)
+            return FragmentUtils.create(this);
+
+        // The store already knows each element's mate, so we only need to find where the mates sit in this pileup.
+        final int[] positions = new int[store.size()];
+        Arrays.fill(positions,-1);
+        final List<PileupElement> elements = new ArrayList<PileupElement>(size);
+        for(int i = 0; i < size; i++) {
+            final int element = orderedElementAt(i);
+            positions[element] = i;
+            elements.add(store.getElement(element));
+        }
+
+        final int[] mates = new int[size];
+        for(int i = 0; i < size; i++) {
+            final int mateElement = store.mateElements[orderedElementAt(i)];
+            mates[i] = mateElement < 0 ? -1 : positions[mateElement];
+        }
+        return FragmentUtils.create(elements,mates);
+    }
+
+    @Override
+    public ReadBackedPileup copy() {
+        // The pileup is immutable, so a new view onto the same data is as good as a copy.
+        return new ColumnarReadBackedPileup(loc, store, sampleIds, sampleBounds, index);
+    }
+}
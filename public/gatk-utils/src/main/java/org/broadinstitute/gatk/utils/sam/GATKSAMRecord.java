@@ -92,34 +92,49 @@ public class GATKSAMRecord extends SAMRecord implements Cloneable {
      * @param read
      */
     public GATKSAMRecord(final SAMRecord read) {
+        this(read, true);
+    }
+
+    /**
+     * Create a GATKSAMRecord from the given read, optionally leaving out the cigar, bases, base qualities and
+     * attributes.  Subclasses that skip these fields are responsible for supplying them on first access.
+     * @param read the read to copy
+     * @param copyVariableLengthFields if false, copy only the fixed-length fields of the read
+     */
+    protected GATKSAMRecord(final SAMRecord read, final boolean copyVariableLengthFields) {
         super(read.getHeader());
         super.setReferenceIndex(read.getReferenceIndex());
         super.setAlignmentStart(read.getAlignmentStart());
         super.setReadName(read.getReadName());
         super.setMappingQuality(read.getMappingQuality());
         // indexing bin done below
-        super.setCigar(read.getCigar());
+        if (copyVariableLengthFields)
+            super.setCigar(read.getCigar());
         super.setFlags(read.getFlags());
         super.setMateReferenceIndex(read.getMateReferenceIndex());
         super.setMateAlignmentStart(read.getMateAlignmentStart());
         super.setInferredInsertSize(read.getInferredInsertSize());
-        SAMReadGroupRecord samRG = read.getReadGroup();
-        SAMBinaryTagAndValue samAttr = GATKBin.getReadBinaryAttributes(read);
-        if (samAttr == null) {
-            clearAttributes();
-        } else {
-            setAttributes(samAttr);
-        }
-        if (samRG != null) {
-            GATKSAMReadGroupRecord rg = new GATKSAMReadGroupRecord(samRG);
-            setReadGroup(rg);
+        if (copyVariableLengthFields) {
+            SAMReadGroupRecord samRG = read.getReadGroup();
+            SAMBinaryTagAndValue samAttr = GATKBin.getReadBinaryAttributes(read);
+            if (samAttr == null) {
+                clearAttributes();
+            } else {
+                setAttributes(samAttr);
+            }
+            if (samRG != null) {
+                GATKSAMReadGroupRecord rg = new GATKSAMReadGroupRecord(samRG);
+                setReadGroup(rg);
+            }
         }
 
         super.setFileSource(read.getFileSource());
         super.setReadName(read.getReadName());
-        super.setCigarString(read.getCigarString());
-        super.setReadBases(read.getReadBases());
-        super.setBaseQualities(read.getBaseQualities());
+        if (copyVariableLengthFields) {
+            super.setCigarString(read.getCigarString());
+            super.setReadBases(read.getReadBases());
+            super.setBaseQualities(read.getBaseQualities());
+        }
         // From SAMRecord constructor: Do this after the above because setCigarString will clear it.
         GATKBin.setReadIndexingBin(this, GATKBin.getReadIndexingBin(read));
     }
@@ -41,12 +41,23 @@ import java.util.Iterator;
 public class GATKSAMRecordIterator implements CloseableIterator<GATKSAMRecord>, Iterable<GATKSAMRecord> {
     final CloseableIterator<? extends SAMRecord> it;
 
+    /**
+     * If true, wrap incoming records in LazyGATKSAMRecords rather than copying them in full.
+     */
+    final boolean decodeLazily;
+
     public GATKSAMRecordIterator(final CloseableIterator<? extends SAMRecord> it) {
+        this(it, false);
+    }
+
+    public GATKSAMRecordIterator(final CloseableIterator<? extends SAMRecord> it, final boolean decodeLazily) {
         this.it = it;
+        this.decodeLazily = decodeLazily;
     }
 
     public GATKSAMRecordIterator(final GATKSAMIterator it) {
         this.it = it;
+        this.decodeLazily = false;
     }
 
     @Override public boolean hasNext() { return it.hasNext(); }
@@ -55,7 +66,7 @@ public class GATKSAMRecordIterator implements CloseableIterator<GATKSAMRecord>,
         if (next instanceof GATKSAMRecord) {
             return (GATKSAMRecord)next;
         } else {
-            return new GATKSAMRecord(next);
+            return decodeLazily ? new LazyGATKSAMRecord(next) : new GATKSAMRecord(next);
         }
     }
     @Override public void remove() { it.remove(); }
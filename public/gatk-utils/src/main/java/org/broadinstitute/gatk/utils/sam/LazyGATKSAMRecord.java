@@ -0,0 +1,224 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.utils.sam;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.GATKBin;
+import htsjdk.samtools.SAMBinaryTagAndValue;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * A GATKSAMRecord that copies the cigar, bases, base qualities and attributes out of the record it was created
+ * from only when they are first accessed.  Since BAM records are themselves decoded lazily, walkers that only
+ * look at flags, positions and lengths never pay to decode the variable-length portion of the record.
+ *
+ * The cigar is consolidated into canonical form as it is decoded, as the engine's ReadFormattingIterator would
+ * otherwise do for every read on input.
+ *
+ * Once every field has been decoded, the reference to the source record is dropped.
+ */
+public class LazyGATKSAMRecord extends GATKSAMRecord {
+    /**
+     * The record from which to decode fields.  Null once all fields are decoded.
+     */
+    private SAMRecord source;
+
+    private boolean cigarDecoded = false;
+    private boolean basesDecoded = false;
+    private boolean qualitiesDecoded = false;
+    private boolean attributesDecoded = false;
+
+    public LazyGATKSAMRecord(final SAMRecord read) {
+        super(read, false);
+        this.source = read;
+    }
+
+    @Override
+    public Cigar getCigar() {
+        decodeCigar();
+        return super.getCigar();
+    }
+
+    @Override
+    public String getCigarString() {
+        // The constructor leaves SAMRecord's default "*" in place, so the string must come from the decoded cigar.
+        decodeCigar();
+        return super.getCigarString();
+    }
+
+    @Override
+    public int getCigarLength() {
+        decodeCigar();
+        return super.getCigarLength();
+    }
+
+    @Override
+    public void setCigar(final Cigar cigar) {
+        cigarDecoded = true;
+        super.setCigar(cigar);
+        releaseSourceIfDecoded();
+    }
+
+    @Override
+    public void setCigarString(final String value) {
+        cigarDecoded = true;
+        super.setCigarString(value);
+        releaseSourceIfDecoded();
+    }
+
+    @Override
+    public byte[] getReadBases() {
+        decodeBases();
+        return super.getReadBases();
+    }
+
+    @Override
+    public void setReadBases(final byte[] value) {
+        basesDecoded = true;
+        super.setReadBases(value);
+        releaseSourceIfDecoded();
+    }
+
+    @Override
+    public int getReadLength() {
+        // BAM records know their length without decoding their bases.
+        return basesDecoded ? super.getReadLength() : source.getReadLength();
+    }
+
+    @Override
+    public byte[] getBaseQualities() {
+        decodeQualities();
+        return super.getBaseQualities();
+    }
+
+    @Override
+    public void setBaseQualities(final byte[] value) {
+        qualitiesDecoded = true;
+        super.setBaseQualities(value);
+        releaseSourceIfDecoded();
+    }
+
+    @Override
+    protected SAMBinaryTagAndValue getBinaryAttributes() {
+        decodeAttributes();
+        return super.getBinaryAttributes();
+    }
+
+    @Override
+    protected void setAttributes(final SAMBinaryTagAndValue attributes) {
+        attributesDecoded = true;
+        super.setAttributes(attributes);
+        releaseSourceIfDecoded();
+    }
+
+    @Override
+    protected void setAttribute(final short tag, final Object value, final boolean isUnsignedArray) {
+        // populate all the attributes before overwriting one
+        decodeAttributes();
+        super.setAttribute(tag, value, isUnsignedArray);
+    }
+
+    @Override
+    public void clearAttributes() {
+        attributesDecoded = true;
+        super.clearAttributes();
+        releaseSourceIfDecoded();
+    }
+
+    @Override
+    public int hashCode() {
+        decodeAll();
+        return super.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        // SAMRecord.equals() compares fields directly, so both records must be fully decoded first.
+        decodeAll();
+        if ( o instanceof LazyGATKSAMRecord )
+            ((LazyGATKSAMRecord)o).decodeAll();
+        return super.equals(o);
+    }
+
+    /**
+     * Has the given record had all of its fields decoded?
+     * @return true if the source record is no longer needed.
+     */
+    public boolean isFullyDecoded() {
+        return cigarDecoded && basesDecoded && qualitiesDecoded && attributesDecoded;
+    }
+
+    private void decodeCigar() {
+        if ( cigarDecoded )
+            return;
+        cigarDecoded = true;
+        // setCigar() clears the indexing bin, which was copied from the source record on construction.
+        final Integer indexingBin = GATKBin.getReadIndexingBin(this);
+        super.setCigar(AlignmentUtils.consolidateCigar(source.getCigar()));
+        GATKBin.setReadIndexingBin(this, indexingBin);
+        releaseSourceIfDecoded();
+    }
+
+    private void decodeBases() {
+        if ( basesDecoded )
+            return;
+        basesDecoded = true;
+        super.setReadBases(source.getReadBases());
+        releaseSourceIfDecoded();
+    }
+
+    private void decodeQualities() {
+        if ( qualitiesDecoded )
+            return;
+        qualitiesDecoded = true;
+        super.setBaseQualities(source.getBaseQualities());
+        releaseSourceIfDecoded();
+    }
+
+    private void decodeAttributes() {
+        if ( attributesDecoded )
+            return;
+        attributesDecoded = true;
+        final SAMBinaryTagAndValue attributes = GATKBin.getReadBinaryAttributes(source);
+        if ( attributes == null )
+            super.clearAttributes();
+        else
+            super.setAttributes(attributes);
+        releaseSourceIfDecoded();
+    }
+
+    private void decodeAll() {
+        decodeCigar();
+        decodeBases();
+        decodeQualities();
+        decodeAttributes();
+    }
+
+    private void releaseSourceIfDecoded() {
+        if ( isFullyDecoded() )
+            source = null;
+    }
+}
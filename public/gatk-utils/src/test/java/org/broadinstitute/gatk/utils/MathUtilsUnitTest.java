@@ -226,6 +226,29 @@ public class MathUtilsUnitTest extends BaseTest {
         Assert.assertTrue(Five.containsAll(BigFive));
     }
 
+    /**
+     * Tests that the primitive random index selection picks the same indices as the boxed version
+     */
+    @Test
+    public void testRandomIndicesWithoutReplacementIntoBitSet() {
+        logger.warn("Executing testRandomIndicesWithoutReplacementIntoBitSet");
+
+        final int[] scratch = new int[100];
+        final BitSet chosen = new BitSet();
+        for ( final int n : Arrays.asList(0, 1, 2, 10, 100) ) {
+            for ( int k = 0; k <= n; k += Math.max(1, n / 4) ) {
+                Utils.resetRandomGenerator();
+                final List<Integer> expected = MathUtils.sampleIndicesWithoutReplacement(n, k);
+                Utils.resetRandomGenerator();
+                MathUtils.sampleIndicesWithoutReplacement(n, k, scratch, chosen);
+
+                Assert.assertEquals(chosen.cardinality(), k);
+                for ( final int index : expected )
+                    Assert.assertTrue(chosen.get(index), "Index " + index + " wasn't chosen for n = " + n + " k = " + k);
+            }
+        }
+    }
+
     /**
      * Tests that we get the right values from the multinomial distribution
      */
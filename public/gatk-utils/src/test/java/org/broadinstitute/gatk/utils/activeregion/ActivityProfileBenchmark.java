@@ -0,0 +1,89 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.utils.activeregion;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+import htsjdk.samtools.SAMFileHeader;
+import org.broadinstitute.gatk.utils.GenomeLoc;
+import org.broadinstitute.gatk.utils.GenomeLocParser;
+import org.broadinstitute.gatk.utils.Utils;
+import org.broadinstitute.gatk.utils.sam.ArtificialSAMUtils;
+
+/**
+ * Caliper microbenchmark of maintaining an activity profile, as the active region traversal does,
+ * over a synthetic 1 Mb profile with sparse stretches of activity
+ */
+public class ActivityProfileBenchmark extends SimpleBenchmark {
+    private final static int PROFILE_LENGTH = 1000000;
+    private final static int MAX_PROB_PROPAGATION_DISTANCE = 50;
+    private final static double ACTIVE_PROB_THRESHOLD = 0.002;
+
+    @Param({"0", "10", "50"})
+    int filterSize; // set automatically by framework; 0 uses the plain, unfiltered profile
+
+    @Param({"0.01", "0.1"})
+    double fractionActive; // set automatically by framework
+
+    private GenomeLocParser genomeLocParser;
+    private ActivityProfileState[] states;
+
+    @Override protected void setUp() {
+        final SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(1, 1, PROFILE_LENGTH + 1000);
+        genomeLocParser = new GenomeLocParser(header.getSequenceDictionary());
+
+        // short runs of active sites, scattered at random across an otherwise inactive profile
+        states = new ActivityProfileState[PROFILE_LENGTH];
+        boolean active = false;
+        for ( int i = 0; i < PROFILE_LENGTH; i++ ) {
+            if ( Utils.getRandomGenerator().nextDouble() < (active ? 0.1 : fractionActive * 0.1) )
+                active = ! active;
+            final GenomeLoc loc = genomeLocParser.createGenomeLoc(header.getSequence(0).getSequenceName(), i + 1);
+            states[i] = new ActivityProfileState(loc, active ? Utils.getRandomGenerator().nextDouble() : 0.0);
+        }
+    }
+
+    public void timeAddAndPop(int rep) {
+        for ( int i = 0; i < rep; i++ ) {
+            final ActivityProfile profile = filterSize == 0
+                    ? new ActivityProfile(genomeLocParser, MAX_PROB_PROPAGATION_DISTANCE, ACTIVE_PROB_THRESHOLD)
+                    : new BandPassActivityProfile(genomeLocParser, null, MAX_PROB_PROPAGATION_DISTANCE, ACTIVE_PROB_THRESHOLD, filterSize, BandPassActivityProfile.DEFAULT_SIGMA, false);
+
+            int nRegions = 0;
+            for ( final ActivityProfileState state : states ) {
+                // the states are mutated by the profile, so add a fresh copy each time
+                profile.add(new ActivityProfileState(state.getLoc(), state.isActiveProb));
+                nRegions += profile.popReadyActiveRegions(0, 50, 300, false).size();
+            }
+            nRegions += profile.popReadyActiveRegions(0, 50, 300, true).size();
+            if ( nRegions == 0 ) throw new IllegalStateException("Expected to find some regions");
+        }
+    }
+
+    public static void main(String[] args) {
+        com.google.caliper.Runner.main(ActivityProfileBenchmark.class, args);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.utils.collections;
+
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.broadinstitute.gatk.utils.exceptions.ReviewedGATKException;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Basic unit test for FlatNestedIntegerArray, checking it against NestedIntegerArray
+ */
+public class FlatNestedIntegerArrayUnitTest extends BaseTest {
+    @DataProvider(name = "FlatNestedIntegerArrayData")
+    public Object[][] makeFlatNestedIntegerArrayData() {
+        return new Object[][]{
+                {false, new int[]{7}},
+                {false, new int[]{3, 5}},
+                {false, new int[]{4, 94, 3}},
+                {false, new int[]{2, 10, 17, 3}},
+                {true, new int[]{4, 94, 3}},
+                {true, new int[]{2, 10, 17, 3}},
+        };
+    }
+
+    @Test(dataProvider = "FlatNestedIntegerArrayData")
+    public void testMatchesNestedIntegerArray(final boolean offHeap, final int[] dimensions) {
+        final FlatNestedIntegerArray flat = new FlatNestedIntegerArray(offHeap, dimensions);
+        final NestedIntegerArray<double[]> nested = new NestedIntegerArray<double[]>(dimensions);
+        Assert.assertEquals(flat.isOffHeap(), offHeap);
+
+        final Random random = new Random(dimensions.length);
+        for ( int i = 0; i < 1000; i++ ) {
+            final int[] keys = new int[dimensions.length];
+            for ( int j = 0; j < dimensions.length; j++ )
+                keys[j] = random.nextInt(dimensions[j]);
+            final int count = random.nextInt(3);
+            final double value = random.nextDouble();
+
+            flat.add(count, value, keys);
+            nested.put(new double[2], keys);
+            nested.get(keys)[0] += count;
+            nested.get(keys)[1] += value;
+
+            Assert.assertTrue(flat.contains(keys));
+            Assert.assertEquals(flat.getKeys(flat.getIndex(keys)), keys);
+        }
+
+        final List<NestedIntegerArray.Leaf<double[]>> expected = nested.getAllLeaves();
+        final List<FlatNestedIntegerArray.Leaf> actual = flat.getAllLeaves();
+        Assert.assertEquals(actual.size(), expected.size());
+        Assert.assertEquals(flat.getNumLeaves(), expected.size());
+        for ( int i = 0; i < expected.size(); i++ ) {
+            Assert.assertEquals(actual.get(i).keys, expected.get(i).keys);
+            Assert.assertEquals(actual.get(i).longValue, (long)expected.get(i).value[0]);
+            Assert.assertEquals(actual.get(i).doubleValue, expected.get(i).value[1], 1e-10);
+            Assert.assertEquals(flat.getLong(expected.get(i).keys), (long)expected.get(i).value[0]);
+            Assert.assertEquals(flat.getDouble(expected.get(i).keys), expected.get(i).value[1], 1e-10);
+        }
+    }
+
+    @Test
+    public void testAddAllAndSet() {
+        final FlatNestedIntegerArray first = new FlatNestedIntegerArray(3, 4);
+        final FlatNestedIntegerArray second = new FlatNestedIntegerArray(true, 3, 4);
+        first.add(1, 0.5, 0, 1);
+        second.add(2, 1.0, 0, 1);
+        second.set(0, 0.0, 2, 3);
+
+        first.addAll(second);
+        Assert.assertEquals(first.getLong(0, 1), 3);
+        Assert.assertEquals(first.getDouble(0, 1), 1.5);
+        Assert.assertTrue(first.contains(2, 3), "Cells written with zeros should still be leaves");
+        Assert.assertFalse(first.contains(1, 1));
+        Assert.assertEquals(first.getNumLeaves(), 2);
+    }
+
+    @Test
+    public void testOutOfRangeKeys() {
+        final FlatNestedIntegerArray array = new FlatNestedIntegerArray(3, 4);
+        Assert.assertEquals(array.getIndex(3, 0), -1);
+        Assert.assertEquals(array.getIndex(0, -1), -1);
+        Assert.assertEquals(array.getLong(5, 5), 0);
+        Assert.assertFalse(array.contains(0, 4));
+    }
+
+    @Test(expectedExceptions = ReviewedGATKException.class)
+    public void testAddOutOfRange() {
+        new FlatNestedIntegerArray(3, 4).add(1, 1.0, 0, 4);
+    }
+
+    @Test(expectedExceptions = ReviewedGATKException.class)
+    public void testWrongNumberOfKeys() {
+        new FlatNestedIntegerArray(3, 4).getIndex(1);
+    }
+}
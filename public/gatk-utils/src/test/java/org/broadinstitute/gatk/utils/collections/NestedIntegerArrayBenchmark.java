@@ -0,0 +1,114 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.utils.collections;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Caliper microbenchmark of counting observations in a BQSR-shaped table (read group x quality x
+ * covariate x event) with NestedIntegerArray, LoggingNestedIntegerArray and FlatNestedIntegerArray
+ */
+public class NestedIntegerArrayBenchmark extends SimpleBenchmark {
+    private final static int N_UPDATES = 1000000;
+    private final static int N_READ_GROUPS = 8;
+    private final static int N_QUALS = 94;
+    private final static int N_EVENTS = 3;
+
+    public enum Implementation { NESTED, LOGGING, FLAT, FLAT_OFF_HEAP }
+
+    @Param
+    Implementation implementation; // set automatically by framework
+
+    @Param({"200", "1024"})
+    int covariateDimension; // set automatically by framework
+
+    private int[][] updates;
+    private boolean[] isError;
+
+    /**
+     * Mutable stand-in for a RecalDatum in the object tables
+     */
+    private static class Counts {
+        long numObservations;
+        double numMismatches;
+    }
+
+    @Override protected void setUp() {
+        final Random random = new Random(42);
+        updates = new int[N_UPDATES][];
+        isError = new boolean[N_UPDATES];
+        for ( int i = 0; i < N_UPDATES; i++ ) {
+            // quals are concentrated in the range real data uses
+            updates[i] = new int[]{random.nextInt(N_READ_GROUPS), 2 + random.nextInt(40), random.nextInt(covariateDimension), random.nextInt(N_EVENTS)};
+            isError[i] = random.nextInt(100) == 0;
+        }
+    }
+
+    public void timeCounting(int rep) {
+        for ( int i = 0; i < rep; i++ ) {
+            switch ( implementation ) {
+                case NESTED:
+                    countNested(new NestedIntegerArray<Counts>(N_READ_GROUPS, N_QUALS, covariateDimension, N_EVENTS));
+                    break;
+                case LOGGING:
+                    countNested(new LoggingNestedIntegerArray<Counts>(new PrintStream(NullOutputStream.NULL_OUTPUT_STREAM), "BENCHMARK", N_READ_GROUPS, N_QUALS, covariateDimension, N_EVENTS));
+                    break;
+                case FLAT:
+                case FLAT_OFF_HEAP:
+                    countFlat(new FlatNestedIntegerArray(implementation == Implementation.FLAT_OFF_HEAP, N_READ_GROUPS, N_QUALS, covariateDimension, N_EVENTS));
+                    break;
+            }
+        }
+    }
+
+    private void countNested(final NestedIntegerArray<Counts> table) {
+        for ( int i = 0; i < N_UPDATES; i++ ) {
+            Counts counts = table.get(updates[i]);
+            if ( counts == null ) {
+                table.put(new Counts(), updates[i]);
+                counts = table.get(updates[i]);
+            }
+            counts.numObservations++;
+            counts.numMismatches += isError[i] ? 1.0 : 0.0;
+        }
+        if ( table.getAllLeaves().isEmpty() ) throw new IllegalStateException("Expected some leaves");
+    }
+
+    private void countFlat(final FlatNestedIntegerArray table) {
+        for ( int i = 0; i < N_UPDATES; i++ )
+            table.add(1, isError[i] ? 1.0 : 0.0, updates[i]);
+        if ( table.getAllLeaves().isEmpty() ) throw new IllegalStateException("Expected some leaves");
+    }
+
+    public static void main(String[] args) {
+        com.google.caliper.Runner.main(NestedIntegerArrayBenchmark.class, args);
+    }
+}
@@ -32,6 +32,7 @@ import org.broadinstitute.gatk.utils.Utils;
 import org.broadinstitute.gatk.utils.pileup.PileupElement;
 import org.broadinstitute.gatk.utils.pileup.ReadBackedPileup;
 import org.broadinstitute.gatk.utils.pileup.ReadBackedPileupImpl;
+import org.broadinstitute.gatk.utils.pileup2.ColumnarPileupBuilder;
 import org.broadinstitute.gatk.utils.recalibration.EventType;
 import org.broadinstitute.gatk.utils.sam.ArtificialSAMUtils;
 import org.broadinstitute.gatk.utils.sam.GATKSAMReadGroupRecord;
@@ -43,7 +44,9 @@ import org.testng.annotations.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Test routines for read-backed pileup.
@@ -56,12 +59,13 @@ public class FragmentUtilsUnitTest extends BaseTest {
     private class FragmentUtilsTest extends TestDataProvider {
         List<TestState> statesForPileup = new ArrayList<>();
         List<TestState> statesForReads = new ArrayList<>();
+        List<GATKSAMRecord> pair;
 
         private FragmentUtilsTest(String name, int readLen, int leftStart, int rightStart,
                                   boolean leftIsFirst, boolean leftIsNegative) {
             super(FragmentUtilsTest.class, String.format("%s-leftIsFirst:%b-leftIsNegative:%b", name, leftIsFirst, leftIsNegative));
 
-            List<GATKSAMRecord> pair = ArtificialSAMUtils.createPair(header, "readpair", readLen, leftStart, rightStart, leftIsFirst, leftIsNegative);
+            pair = ArtificialSAMUtils.createPair(header, "readpair", readLen, leftStart, rightStart, leftIsFirst, leftIsNegative);
             GATKSAMRecord left = pair.get(0);
             GATKSAMRecord right = pair.get(1);
 
@@ -137,6 +141,26 @@ public class FragmentUtilsUnitTest extends BaseTest {
         }
     }
 
+    @Test(enabled = !DEBUG, dataProvider = "fragmentUtilsTest")
+    public void testAsIndexedPileup(FragmentUtilsTest test) {
+        for ( TestState testState : test.statesForPileup ) {
+            // both reads enter the index, whether or not they are in this pileup
+            final FragmentIndex index = new FragmentIndex();
+            final Map<GATKSAMRecord, FragmentIndex.Link> links = new IdentityHashMap<>();
+            for ( final GATKSAMRecord read : test.pair )
+                links.put(read, index.add(read));
+
+            final ColumnarPileupBuilder builder = new ColumnarPileupBuilder();
+            builder.startSample(null);
+            for ( final PileupElement pe : testState.pileup )
+                builder.add(pe.getRead(), pe.getOffset(), pe.getCurrentCigarElement(), pe.getCurrentCigarOffset(), pe.getOffsetInCurrentCigar(), links.get(pe.getRead()));
+
+            FragmentCollection<PileupElement> fp = builder.build(null).toFragments();
+            Assert.assertEquals(fp.getOverlappingPairs().size(), testState.expectedPairs);
+            Assert.assertEquals(fp.getSingletonReads().size(), testState.expectedSingletons);
+        }
+    }
+
     @Test(enabled = !DEBUG, dataProvider = "fragmentUtilsTest")
     public void testAsListOfReadsFromPileup(FragmentUtilsTest test) {
         for ( TestState testState : test.statesForPileup ) {
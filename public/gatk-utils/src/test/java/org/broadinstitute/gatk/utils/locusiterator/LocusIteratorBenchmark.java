@@ -32,6 +32,7 @@ import org.broadinstitute.gatk.utils.contexts.AlignmentContext;
 import org.broadinstitute.gatk.utils.GenomeLocParser;
 import org.broadinstitute.gatk.utils.QualityUtils;
 import org.broadinstitute.gatk.utils.Utils;
+import org.broadinstitute.gatk.utils.sam.ArtificialBAMBuilder;
 import org.broadinstitute.gatk.utils.sam.ArtificialSAMUtils;
 import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
 
@@ -53,6 +54,12 @@ public class LocusIteratorBenchmark extends SimpleBenchmark {
     @Param({"101M", "50M10I40M", "50M10D40M"})
     String cigar; // set automatically by framework
 
+    // many samples, for splitting the samples of each pileup across threads
+    final int nSamples = 500;
+    final int nSampleThreads = 4;
+    ArtificialBAMBuilder sparseStartsBuilder;
+    ArtificialBAMBuilder denseStartsBuilder;
+
     @Override protected void setUp() {
         header = ArtificialSAMUtils.createArtificialSamHeader(1, 1, 1000);
         genomeLocParser = new GenomeLocParser(header.getSequenceDictionary());
@@ -67,6 +74,19 @@ public class LocusIteratorBenchmark extends SimpleBenchmark {
             read.setCigarString(cigar);
             reads.add(read);
         }
+
+        // every sample starts a read every 10 loci, so ~5000 read states per locus, with 10 loci between starts
+        sparseStartsBuilder = makeManySampleBuilder(50, 9);
+        // every sample starts a read at every locus, so no two loci can be assembled in one go
+        denseStartsBuilder = makeManySampleBuilder(20, 0);
+    }
+
+    private ArtificialBAMBuilder makeManySampleBuilder(final int nLoci, final int skipNLoci) {
+        final ArtificialBAMBuilder builder = new ArtificialBAMBuilder(1, nLoci);
+        builder.createAndSetHeader(nSamples).setReadLength(readLength).setSkipNLoci(skipNLoci);
+        for ( final GATKSAMRecord read : builder.makeReads() )
+            read.setCigarString(cigar);
+        return builder;
     }
 
 //    public void timeOriginalLIBS(int rep) {
@@ -114,6 +134,54 @@ public class LocusIteratorBenchmark extends SimpleBenchmark {
         }
     }
 
+    public void timeDownsampledLIBS(int rep) {
+        for ( int i = 0; i < rep; i++ ) {
+            final org.broadinstitute.gatk.utils.locusiterator.LocusIteratorByState libs =
+                    new org.broadinstitute.gatk.utils.locusiterator.LocusIteratorByState(
+                            new LocusIteratorByStateBaseTest.FakeCloseableIterator<GATKSAMRecord>(reads.iterator()),
+                            new LIBSDownsamplingInfo(true, 250), true,
+                            genomeLocParser,
+                            LocusIteratorByState.sampleListForSAMWithoutReadGroups(),
+                            false);
+
+            while ( libs.hasNext() ) {
+                AlignmentContext context = libs.next();
+            }
+        }
+    }
+
+    public void timeManySampleSparseStartsLIBS(int rep) {
+        runManySampleLIBS(sparseStartsBuilder, 1, rep);
+    }
+
+    public void timeManySampleSparseStartsLIBSOnSampleThreads(int rep) {
+        runManySampleLIBS(sparseStartsBuilder, nSampleThreads, rep);
+    }
+
+    public void timeManySampleDenseStartsLIBS(int rep) {
+        runManySampleLIBS(denseStartsBuilder, 1, rep);
+    }
+
+    public void timeManySampleDenseStartsLIBSOnSampleThreads(int rep) {
+        runManySampleLIBS(denseStartsBuilder, nSampleThreads, rep);
+    }
+
+    private void runManySampleLIBS(final ArtificialBAMBuilder builder, final int nThreads, final int rep) {
+        for ( int i = 0; i < rep; i++ ) {
+            final LocusIteratorByState libs = new LocusIteratorByState(
+                    new LocusIteratorByStateBaseTest.FakeCloseableIterator<GATKSAMRecord>(builder.makeReads().iterator()),
+                    LocusIteratorByState.NO_DOWNSAMPLING, true,
+                    builder.getGenomeLocParser(),
+                    builder.getSamples(),
+                    false, nThreads);
+
+            while ( libs.hasNext() ) {
+                AlignmentContext context = libs.next();
+            }
+            libs.close();
+        }
+    }
+
 //    public void timeOriginalLIBSStateMachine(int rep) {
 //        for ( int i = 0; i < rep; i++ ) {
 //            for ( final SAMRecord read : reads ) {
@@ -136,6 +204,19 @@ public class LocusIteratorBenchmark extends SimpleBenchmark {
         }
     }
 
+    /**
+     * Steps the same reads as timeAlignmentStateMachine, but all together through the state arrays LIBS uses
+     */
+    public void timePerSampleReadStateManager(int rep) {
+        for ( int i = 0; i < rep; i++ ) {
+            final PerSampleReadStateManager readStates = new PerSampleReadStateManager(new LIBSDownsamplingInfo(false, 0));
+            readStates.addReadsAtNextAlignmentStart(reads);
+            while ( ! readStates.isEmpty() ) {
+                readStates.updateReadStates();
+            }
+        }
+    }
+
     public static void main(String[] args) {
         com.google.caliper.Runner.main(LocusIteratorBenchmark.class, args);
     }
@@ -574,6 +574,82 @@ public class LocusIteratorByStateUnitTest extends LocusIteratorByStateBaseTest {
         }
     }
 
+    // ------------------------------------------------------------
+    //
+    // Tests for assembling pileups with samples split across threads
+    //
+    // ------------------------------------------------------------
+
+    @DataProvider(name = "LIBS_SampleThreadsTests")
+    public Object[][] makeLIBS_SampleThreadsTests() {
+        final List<Object[]> tests = new LinkedList<Object[]>();
+
+        for ( final int nSampleThreads : Arrays.asList(2, 3, 8) ) {
+            for ( final int nSamples : Arrays.asList(1, 5, 50) ) {
+                for ( final int downsampleTo : Arrays.asList(-1, 3) ) {
+                    // reads starting at every locus, every few loci, and with gaps between them
+                    for ( final int skipNLoci : Arrays.asList(0, 4, 15) ) {
+                        tests.add(new Object[]{nSampleThreads, nSamples, downsampleTo, skipNLoci});
+                    }
+                }
+            }
+        }
+
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(enabled = true && ! DEBUG, dataProvider = "LIBS_SampleThreadsTests")
+    public void testLIBS_SampleThreadsMatchSequential(final int nSampleThreads, final int nSamples, final int downsampleTo, final int skipNLoci) {
+        final DownsamplingMethod downsampler = downsampleTo != -1
+                ? new DownsamplingMethod(DownsampleType.BY_SAMPLE, downsampleTo, null)
+                : new DownsamplingMethod(DownsampleType.NONE, null, null);
+
+        final ArtificialBAMBuilder bamBuilder = new ArtificialBAMBuilder(header.getSequenceDictionary(), 7, 20);
+        bamBuilder.createAndSetHeader(nSamples).setReadLength(10).setAlignmentStart(1).setSkipNLoci(skipNLoci);
+        final List<GATKSAMRecord> reads = bamBuilder.makeReads();
+
+        Utils.resetRandomGenerator();
+        final LocusIteratorByState sequential = new LocusIteratorByState(new FakeCloseableIterator<GATKSAMRecord>(reads.iterator()),
+                downsampler, true, true, genomeLocParser, bamBuilder.getSamples(), 1);
+        final List<AlignmentContext> expected = new ArrayList<AlignmentContext>();
+        final List<List<GATKSAMRecord>> expectedReads = new ArrayList<List<GATKSAMRecord>>();
+        while ( sequential.hasNext() ) {
+            expected.add(sequential.next());
+            expectedReads.add(sequential.transferReadsFromAllPreviousPileups());
+        }
+
+        Utils.resetRandomGenerator();
+        final LocusIteratorByState parallel = new LocusIteratorByState(new FakeCloseableIterator<GATKSAMRecord>(reads.iterator()),
+                downsampler, true, true, genomeLocParser, bamBuilder.getSamples(), nSampleThreads);
+        parallel.minReadStatesPerSampleThread = 0; // split the samples at every locus, however few reads it has
+        try {
+            int i = 0;
+            while ( parallel.hasNext() ) {
+                final AlignmentContext actual = parallel.next();
+                Assert.assertTrue(i < expected.size(), "Sample-threaded LIBS produced more loci than the sequential one");
+                Assert.assertEquals(actual.getLocation(), expected.get(i).getLocation());
+
+                final ReadBackedPileup actualPileup = actual.getBasePileup();
+                final ReadBackedPileup expectedPileup = expected.get(i).getBasePileup();
+                Assert.assertEquals(new ArrayList<String>(actualPileup.getSamples()), new ArrayList<String>(expectedPileup.getSamples()));
+                Assert.assertEquals(actualPileup.getNumberOfElements(), expectedPileup.getNumberOfElements());
+
+                final Iterator<PileupElement> expectedElements = expectedPileup.iterator();
+                for ( final PileupElement actualElement : actualPileup ) {
+                    final PileupElement expectedElement = expectedElements.next();
+                    Assert.assertSame(actualElement.getRead(), expectedElement.getRead(), "Pileup elements out of order at " + actual.getLocation());
+                    Assert.assertEquals(actualElement.getOffset(), expectedElement.getOffset());
+                    Assert.assertEquals(actualElement.getBase(), expectedElement.getBase());
+                }
+                Assert.assertEquals(parallel.transferReadsFromAllPreviousPileups(), expectedReads.get(i), "Reads collected by a different locus at " + actual.getLocation());
+                i++;
+            }
+            Assert.assertEquals(i, expected.size(), "Sample-threaded LIBS produced fewer loci than the sequential one");
+        } finally {
+            parallel.close();
+        }
+    }
+
     private void AssertWellOrderedPileup(final ReadBackedPileup pileup) {
         if ( ! pileup.isEmpty() ) {
             int leftMostPos = -1;
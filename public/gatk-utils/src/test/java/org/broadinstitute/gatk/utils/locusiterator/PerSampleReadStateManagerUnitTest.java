@@ -185,4 +185,58 @@ public class PerSampleReadStateManagerUnitTest extends LocusIteratorByStateBaseT
 
         test.run();
     }
+
+    @DataProvider(name = "StateArraySteppingTest")
+    public Object[][] makeStateArraySteppingTests() {
+        return new Object[][]{
+                {Arrays.asList("10M", "10M", "10M")},
+                {Arrays.asList("3M2I5M", "2S8M", "4M2D4M")},
+                {Arrays.asList("3M1N6M", "1H9M", "5M5S", "2M1I2M1D5M")},
+        };
+    }
+
+    /**
+     * The struct-of-arrays stepping in PerSampleReadStateManager must exactly track AlignmentStateMachine
+     */
+    @Test(dataProvider = "StateArraySteppingTest")
+    public void testStateArraysMatchAlignmentStateMachines(final List<String> cigars) {
+        final List<GATKSAMRecord> reads = new LinkedList<GATKSAMRecord>();
+        final List<AlignmentStateMachine> machines = new LinkedList<AlignmentStateMachine>();
+        for ( int i = 0; i < cigars.size(); i++ ) {
+            final GATKSAMRecord read = ArtificialSAMUtils.createArtificialRead(header, "read" + i, 0, 1, 10);
+            read.setCigarString(cigars.get(i));
+            reads.add(read);
+            final AlignmentStateMachine machine = new AlignmentStateMachine(read);
+            machine.stepForwardOnGenome();
+            machines.add(machine);
+        }
+
+        final PerSampleReadStateManager manager = new PerSampleReadStateManager(LocusIteratorByState.NO_DOWNSAMPLING);
+        Assert.assertEquals(manager.addReadsAtNextAlignmentStart(reads), reads.size());
+
+        while ( ! machines.isEmpty() ) {
+            Assert.assertEquals(manager.size(), machines.size());
+            for ( int i = 0; i < machines.size(); i++ ) {
+                final AlignmentStateMachine machine = machines.get(i);
+                Assert.assertSame(manager.getRead(i), machine.getRead());
+                Assert.assertEquals(manager.getCigarOperator(i), machine.getCigarOperator());
+                Assert.assertEquals(manager.getCurrentCigarElement(i), machine.getCurrentCigarElement());
+                Assert.assertEquals(manager.getCurrentCigarElementOffset(i), machine.getCurrentCigarElementOffset());
+                Assert.assertEquals(manager.getOffsetIntoCurrentCigarElement(i), machine.getOffsetIntoCurrentCigarElement());
+                Assert.assertEquals(manager.getReadOffset(i), machine.getReadOffset());
+                Assert.assertEquals(manager.getGenomePosition(i), machine.getGenomePosition());
+            }
+
+            final int nRemoved = manager.updateReadStates();
+            int nMachinesRemoved = 0;
+            for ( final Iterator<AlignmentStateMachine> it = machines.iterator(); it.hasNext(); ) {
+                if ( it.next().stepForwardOnGenome() == null ) {
+                    it.remove();
+                    nMachinesRemoved++;
+                }
+            }
+            Assert.assertEquals(nRemoved, nMachinesRemoved);
+        }
+        Assert.assertTrue(manager.isEmpty());
+    }
 }
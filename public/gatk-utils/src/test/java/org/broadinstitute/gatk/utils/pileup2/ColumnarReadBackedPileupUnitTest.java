@@ -0,0 +1,210 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.utils.pileup2;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.broadinstitute.gatk.utils.GenomeLoc;
+import org.broadinstitute.gatk.utils.GenomeLocParser;
+import org.broadinstitute.gatk.utils.pileup.PileupElement;
+import org.broadinstitute.gatk.utils.pileup.ReadBackedPileup;
+import org.broadinstitute.gatk.utils.pileup.ReadBackedPileupImpl;
+import org.broadinstitute.gatk.utils.sam.ArtificialSAMUtils;
+import org.broadinstitute.gatk.utils.sam.GATKSAMReadGroupRecord;
+import org.broadinstitute.gatk.utils.sam.GATKSAMRecord;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+public class ColumnarReadBackedPileupUnitTest extends BaseTest {
+    private static final int LOCUS = 10;
+    private static final String[] SAMPLES = { "sample1", "sample2", "sample3" };
+
+    private GenomeLoc loc;
+    private ColumnarReadBackedPileup columnarPileup;
+    private ReadBackedPileup referencePileup;
+
+    /**
+     * Builds the same multi-sample pileup both columnar and the way LocusIteratorByState used to.
+     */
+    @BeforeMethod
+    public void buildPileups() {
+        final SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(1, 1, 1000);
+        for ( final String sample : SAMPLES ) {
+            final SAMReadGroupRecord readGroup = new SAMReadGroupRecord("rg_" + sample);
+            readGroup.setSample(sample);
+            header.addReadGroup(readGroup);
+        }
+        loc = new GenomeLocParser(header.getSequenceDictionary()).createGenomeLoc("chr1", LOCUS);
+
+        final Random random = new Random(42);
+        final ColumnarPileupBuilder builder = new ColumnarPileupBuilder(2);
+        final Map<String, ReadBackedPileupImpl> pileupsBySample = new HashMap<String, ReadBackedPileupImpl>();
+        int readNumber = 0;
+
+        for ( final String sample : SAMPLES ) {
+            builder.startSample(sample);
+            final List<PileupElement> elements = new ArrayList<PileupElement>();
+
+            for ( int i = 0; i < 8; i++ ) {
+                final GATKSAMRecord read;
+                final PileupElement element;
+                if ( i == 3 ) {
+                    // a read with a deletion over the locus
+                    read = ArtificialSAMUtils.createArtificialRead(header, "read" + readNumber++, 0, LOCUS - 5,
+                            randomBases(random, 10), randomQuals(random, 10), "5M2D5M");
+                    element = new PileupElement(read, 4, read.getCigar().getCigarElement(1), 1, 0);
+                } else {
+                    final int start = LOCUS - random.nextInt(10);
+                    read = ArtificialSAMUtils.createArtificialRead(header, "read" + readNumber++, 0, start,
+                            randomBases(random, 10), randomQuals(random, 10), "10M");
+                    final CigarElement cigarElement = read.getCigar().getCigarElement(0);
+                    element = new PileupElement(read, LOCUS - start, cigarElement, 0, LOCUS - start);
+                }
+                // setReadGroup() rather than setAttribute("RG"), which would leave the read's cached read group stale
+                read.setReadGroup(new GATKSAMReadGroupRecord(header.getReadGroup("rg_" + sample)));
+                read.setMappingQuality(i % 4 == 0 ? 0 : 20 + i);
+                read.setReadNegativeStrandFlag(random.nextBoolean());
+
+                builder.add(read, element.getOffset(), element.getCurrentCigarElement(),
+                        element.getCurrentCigarOffset(), element.getOffsetInCurrentCigar());
+                elements.add(element);
+            }
+            pileupsBySample.put(sample, new ReadBackedPileupImpl(loc, elements));
+        }
+
+        columnarPileup = builder.build(loc);
+        referencePileup = new ReadBackedPileupImpl(loc, pileupsBySample);
+    }
+
+    private static byte[] randomBases(final Random random, final int length) {
+        final byte[] bases = new byte[length];
+        for ( int i = 0; i < length; i++ )
+            bases[i] = "ACGT".getBytes()[random.nextInt(4)];
+        return bases;
+    }
+
+    private static byte[] randomQuals(final Random random, final int length) {
+        final byte[] quals = new byte[length];
+        for ( int i = 0; i < length; i++ )
+            quals[i] = (byte)(5 + random.nextInt(35));
+        return quals;
+    }
+
+    private static void assertSamePileups(final ReadBackedPileup actual, final ReadBackedPileup expected) {
+        Assert.assertNotNull(expected, "Expected pileup is null");
+        Assert.assertNotNull(actual, "Actual pileup is null");
+        Assert.assertEquals(actual.getNumberOfElements(), expected.getNumberOfElements());
+        Assert.assertEquals(actual.getReads(), expected.getReads());
+        Assert.assertEquals(actual.getBases(), expected.getBases());
+        Assert.assertEquals(actual.getQuals(), expected.getQuals());
+        Assert.assertEquals(actual.getMappingQuals(), expected.getMappingQuals());
+        Assert.assertEquals(actual.getBaseCounts(), expected.getBaseCounts());
+        Assert.assertEquals(actual.getNumberOfDeletions(), expected.getNumberOfDeletions());
+        Assert.assertEquals(actual.getNumberOfMappingQualityZeroReads(), expected.getNumberOfMappingQualityZeroReads());
+        Assert.assertEquals(new HashSet<Integer>(actual.getOffsets()), new HashSet<Integer>(expected.getOffsets()));
+
+        final Iterator<PileupElement> actualElements = actual.iterator();
+        for ( final PileupElement expectedElement : expected ) {
+            final PileupElement actualElement = actualElements.next();
+            Assert.assertEquals(actualElement.getRead(), expectedElement.getRead());
+            Assert.assertEquals(actualElement.getOffset(), expectedElement.getOffset());
+            Assert.assertEquals(actualElement.isDeletion(), expectedElement.isDeletion());
+        }
+        Assert.assertFalse(actualElements.hasNext());
+    }
+
+    @Test
+    public void testMatchesPerSamplePileup() {
+        assertSamePileups(columnarPileup, referencePileup);
+        Assert.assertEquals(columnarPileup.getSamples(), referencePileup.getSamples());
+        Assert.assertEquals(columnarPileup.getPileupString('A'), referencePileup.getPileupString('A'));
+    }
+
+    @Test
+    public void testPileupForSample() {
+        for ( final String sample : SAMPLES )
+            assertSamePileups(columnarPileup.getPileupForSample(sample), referencePileup.getPileupForSample(sample));
+        Assert.assertNull(columnarPileup.getPileupForSample("noSuchSample"));
+
+        final List<String> twoSamples = Arrays.asList(SAMPLES[0], SAMPLES[2]);
+        final ReadBackedPileup subset = columnarPileup.getPileupForSamples(twoSamples);
+        Assert.assertEquals(subset.getSamples(), new HashSet<String>(twoSamples));
+        Assert.assertEquals(subset.getNumberOfElements(),
+                columnarPileup.getPileupForSample(SAMPLES[0]).getNumberOfElements() + columnarPileup.getPileupForSample(SAMPLES[2]).getNumberOfElements());
+    }
+
+    @Test
+    public void testFilteredPileups() {
+        assertSamePileups(columnarPileup.getPileupWithoutDeletions(), referencePileup.getPileupWithoutDeletions());
+        assertSamePileups(columnarPileup.getPileupWithoutMappingQualityZeroReads(), referencePileup.getPileupWithoutMappingQualityZeroReads());
+        assertSamePileups(columnarPileup.getBaseAndMappingFilteredPileup(20, 22), referencePileup.getBaseAndMappingFilteredPileup(20, 22));
+        assertSamePileups(columnarPileup.getPositiveStrandPileup(), referencePileup.getPositiveStrandPileup());
+        assertSamePileups(columnarPileup.getNegativeStrandPileup(), referencePileup.getNegativeStrandPileup());
+        assertSamePileups(columnarPileup.getPileupForReadGroup("rg_sample2"), referencePileup.getPileupForReadGroup("rg_sample2"));
+
+        // filtered pileups can themselves be split by sample
+        final ReadBackedPileup filtered = columnarPileup.getBaseFilteredPileup(20);
+        assertSamePileups(filtered.getPileupForSample(SAMPLES[1]), referencePileup.getBaseFilteredPileup(20).getPileupForSample(SAMPLES[1]));
+    }
+
+    @Test
+    public void testUnfilteredViewsShareElements() {
+        final ReadBackedPileup noDeletions = columnarPileup.getPileupWithoutDeletions();
+        Assert.assertSame(noDeletions.getPileupWithoutDeletions(), noDeletions);
+        final PileupElement first = columnarPileup.iterator().next();
+        Assert.assertSame(columnarPileup.copy().iterator().next(), first);
+    }
+
+    @Test
+    public void testDownsampledPileup() {
+        final ReadBackedPileup downsampled = columnarPileup.getDownsampledPileup(5);
+        Assert.assertEquals(downsampled.getNumberOfElements(), 5);
+        Assert.assertTrue(columnarPileup.getReads().containsAll(downsampled.getReads()));
+        Assert.assertSame(columnarPileup.getDownsampledPileup(100), columnarPileup);
+    }
+
+    @Test
+    public void testBuilderReuse() {
+        final ColumnarPileupBuilder builder = new ColumnarPileupBuilder();
+        builder.startSample("empty");
+        Assert.assertTrue(builder.isEmpty());
+
+        final GATKSAMRecord read = columnarPileup.getReads().get(0);
+        final PileupElement element = columnarPileup.iterator().next();
+        builder.startSample("sample");
+        builder.add(read, element.getOffset(), element.getCurrentCigarElement(), element.getCurrentCigarOffset(), element.getOffsetInCurrentCigar());
+        final ReadBackedPileup pileup = builder.build(loc);
+
+        Assert.assertTrue(builder.isEmpty());
+        Assert.assertEquals(pileup.getSamples(), Collections.singleton("sample"));
+        Assert.assertEquals(pileup.getReads(), Collections.singletonList(read));
+    }
+}
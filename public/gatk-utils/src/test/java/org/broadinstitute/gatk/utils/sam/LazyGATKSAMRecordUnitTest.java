@@ -0,0 +1,98 @@
+/*
+* Copyright 2012-2016 Broad Institute, Inc.
+* 
+* Permission is hereby granted, free of charge, to any person
+* obtaining a copy of this software and associated documentation
+* files (the "Software"), to deal in the Software without
+* restriction, including without limitation the rights to use,
+* copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the
+* Software is furnished to do so, subject to the following
+* conditions:
+* 
+* The above copyright notice and this permission notice shall be
+* included in all copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+* OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+* NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+* HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+* WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+* FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+* THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package org.broadinstitute.gatk.utils.sam;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMUtils;
+import org.broadinstitute.gatk.utils.BaseTest;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class LazyGATKSAMRecordUnitTest extends BaseTest {
+    private final static String BASES = "ACGTA";
+    private final static String QUALS = "!+5?@";
+
+    private SAMFileHeader header;
+
+    @BeforeClass
+    public void init() {
+        header = ArtificialSAMUtils.createArtificialSamHeader(1, 1, 1000);
+    }
+
+    private GATKSAMRecord makeSourceRead() {
+        final GATKSAMRecord read = ArtificialSAMUtils.createArtificialRead(header, "read1", 0, 10, BASES.getBytes(), SAMUtils.fastqToPhred(QUALS), "2M0I3M");
+        read.setReadPairedFlag(true);
+        read.setMappingQuality(42);
+        read.setAttribute("XY", 7);
+        return read;
+    }
+
+    @Test
+    public void testFixedFieldsDoNotRequireDecoding() {
+        final GATKSAMRecord source = makeSourceRead();
+        final LazyGATKSAMRecord lazy = new LazyGATKSAMRecord(source);
+
+        Assert.assertEquals(lazy.getReadName(), source.getReadName());
+        Assert.assertEquals(lazy.getFlags(), source.getFlags());
+        Assert.assertEquals(lazy.getReferenceIndex(), source.getReferenceIndex());
+        Assert.assertEquals(lazy.getAlignmentStart(), source.getAlignmentStart());
+        Assert.assertEquals(lazy.getMappingQuality(), source.getMappingQuality());
+        Assert.assertEquals(lazy.getReadLength(), BASES.length());
+        Assert.assertFalse(lazy.isFullyDecoded());
+    }
+
+    @Test
+    public void testVariableLengthFieldsDecodedOnAccess() {
+        final LazyGATKSAMRecord lazy = new LazyGATKSAMRecord(makeSourceRead());
+
+        Assert.assertEquals(lazy.getCigarString(), "5M", "Cigar should be consolidated when decoded");
+        Assert.assertEquals(lazy.getAlignmentEnd(), 14);
+        Assert.assertEquals(lazy.getReadString(), BASES);
+        Assert.assertEquals(lazy.getBaseQualityString(), QUALS);
+        Assert.assertEquals(lazy.getAttribute("XY"), 7);
+        Assert.assertTrue(lazy.isFullyDecoded());
+    }
+
+    @Test
+    public void testCigarLengthDecodesCigar() {
+        final LazyGATKSAMRecord lazy = new LazyGATKSAMRecord(makeSourceRead());
+        Assert.assertEquals(lazy.getCigarLength(), 1);
+        Assert.assertEquals(lazy.getCigarString(), "5M");
+    }
+
+    @Test
+    public void testSettersOverrideUndecodedFields() {
+        final LazyGATKSAMRecord lazy = new LazyGATKSAMRecord(makeSourceRead());
+
+        lazy.setAttribute("ZZ", "new");
+        Assert.assertEquals(lazy.getAttribute("XY"), 7, "Existing attributes should survive setting a new one");
+        Assert.assertEquals(lazy.getAttribute("ZZ"), "new");
+
+        lazy.setReadBases("TTTTT".getBytes());
+        Assert.assertEquals(lazy.getReadString(), "TTTTT");
+    }
+}